@@ -0,0 +1,220 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * FactorBatchGCD.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Finds primes shared between moduli in a large collection.  Comparing
+ * every pair takes n^2 gcds; Bernstein's batch gcd does it in quasi-linear
+ * time.  Build a product tree of every modulus to get P, walk the
+ * remainder tree to get r_i = P mod n_i^2, and then gcd(n_i, r_i / n_i)
+ * is the product of the primes n_i shares with the rest of the collection.
+ * <p>
+ * When every prime of a modulus is shared the gcd is the modulus itself.
+ * Those few are compared pairwise against the other moduli that turned up
+ * a shared factor, which splits them unless the modulus is a duplicate.
+ * <p>
+ * Usage: java model.FactorBatchGCD [file] [threads], where file holds one
+ * modulus per line in decimal (or hex with a 0x prefix).  Blank lines and
+ * lines starting with # are skipped.
+ */
+
+public class FactorBatchGCD {
+
+    private static final BigInteger ONE = BigInteger.ONE;
+
+    private BigInteger[] moduli; // the collection being checked
+
+    /**
+     * FactorBatchGCD
+     * Prepares a batch gcd over the given moduli.
+     *
+     * @param moduli the moduli to check against each other
+     */
+    public FactorBatchGCD(List<BigInteger> moduli) {
+
+        this.moduli = moduli.toArray(new BigInteger[0]);
+
+        for (BigInteger n : this.moduli) {
+            if (n.compareTo(ONE) <= 0) {
+                throw new IllegalArgumentException("moduli must be greater " +
+                                                   "than 1");
+            }
+        }
+
+    }
+
+    /**
+     * main
+     * Reads moduli from a file, runs the batch gcd, and prints every
+     * modulus that shares a factor with another.
+     *
+     * @param args the file of moduli, then optionally a thread count
+     */
+    public static void main(String[] args) {
+
+        if (args.length < 1) {
+            System.err.println("java FactorBatchGCD [file] [threads]");
+            System.exit(1);
+        }
+
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) :
+                Runtime.getRuntime().availableProcessors();
+
+        List<BigInteger> moduli = null;
+        try {
+            moduli = readModuli(args[0]);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("could not read moduli: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (moduli.isEmpty()) {
+            System.out.println("no moduli found in " + args[0]);
+            return;
+        }
+
+        System.out.println("read " + moduli.size() + " moduli, running " +
+                           "batch gcd on " + threads + " threads");
+
+        long startTime = System.nanoTime();
+        BigInteger[] shared = new FactorBatchGCD(moduli).sharedFactors(threads);
+        long endTime = System.nanoTime();
+
+        int found = 0;
+        for (int i = 0; i < shared.length; i++) {
+            BigInteger n = moduli.get(i);
+            if (shared[i].equals(ONE)) {
+                continue;
+            }
+
+            found++;
+            if (shared[i].equals(n)) {
+                System.out.println("modulus #" + i + " = " + n +
+                                   " is repeated in the input");
+            } else {
+                System.out.println("modulus #" + i + " = " + n);
+                System.out.println("    factor = " + shared[i] +
+                                   ", cofactor = " + n.divide(shared[i]));
+            }
+        }
+
+        long[] time = FactorMath.getTime(endTime - startTime);
+        System.out.println(found + " of " + shared.length + " moduli share " +
+                           "a factor");
+        System.out.println("Time: " + time[0] + " seconds, " + time[1] +
+                           " milliseconds");
+
+    }
+
+    /**
+     * readModuli
+     * Streams moduli from a file, one per line.  Decimal by default, or hex
+     * with a 0x prefix.  Blank lines and lines starting with # are skipped.
+     *
+     * @param path the file to read
+     * @return the moduli in file order
+     * @throws IOException if the file cannot be read
+     */
+    public static List<BigInteger> readModuli(String path) throws
+            IOException {
+
+        List<BigInteger> moduli = new ArrayList<>();
+
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith("0x") || line.startsWith("0X")) {
+                    moduli.add(new BigInteger(line.substring(2), 16));
+                } else {
+                    moduli.add(new BigInteger(line));
+                }
+            }
+        }
+
+        return moduli;
+
+    } /*readModuli*/
+
+    /**
+     * sharedFactors
+     * Runs the batch gcd.  Entry i of the result is the product of the
+     * primes moduli[i] shares with the rest of the collection: 1 if it
+     * shares nothing, moduli[i] itself only if it is repeated in the input.
+     *
+     * @param threads threads used to build and walk the trees
+     * @return the shared part of each modulus, in input order
+     */
+    public BigInteger[] sharedFactors(int threads) {
+
+        ExecutorService pool = threads > 1 ?
+                Executors.newFixedThreadPool(threads) : null;
+
+        try {
+            return sharedFactors(pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+    } /*sharedFactors*/
+
+    // sharedFactors
+    // the batch gcd itself, on an existing pool (or none)
+    private BigInteger[] sharedFactors(ExecutorService pool) {
+
+        BigInteger[] shared = new BigInteger[moduli.length];
+        if (moduli.length < 2) {
+            Arrays.fill(shared, ONE);
+            return shared;
+        }
+
+        FactorProductTree tree = new FactorProductTree(moduli, pool);
+        BigInteger[] rems = tree.remaindersSquared(tree.product(), pool);
+
+        // P mod n^2 is a multiple of n, and P / n mod n is what we want
+        FactorProductTree.forEach(moduli.length, pool, i -> shared[i] =
+                moduli[i].gcd(rems[i].divide(moduli[i])));
+
+        // a modulus whose primes are all shared came back whole, compare
+        // it directly against the others that share something
+        List<Integer> weak = new ArrayList<>();
+        for (int i = 0; i < moduli.length; i++) {
+            if (!shared[i].equals(ONE)) {
+                weak.add(i);
+            }
+        }
+
+        for (int i : weak) {
+            if (!shared[i].equals(moduli[i])) {
+                continue;
+            }
+            for (int j : weak) {
+                BigInteger g = moduli[i].gcd(moduli[j]);
+                if (i != j && !g.equals(ONE) && !g.equals(moduli[i])) {
+                    shared[i] = g;
+                    break;
+                }
+            }
+        }
+
+        return shared;
+
+    } /*sharedFactors*/
+}
@@ -0,0 +1,544 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FactorCFRAC.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * The continued fraction factoring algorithm (CFRAC) of Morrison and
+ * Brillhart.  The continued fraction expansion of sqrt(kn) produces values
+ * A and Q with A^2 = +-Q (mod n) and Q < 2*sqrt(kn).  Values of Q that
+ * factor completely over a small factor base are collected, and a subset
+ * whose product is a square is found with FactorMatrix over GF(2).
+ * That gives X^2 = Y^2 (mod n) and gcd(X - Y, n) is usually a factor.
+ * <p>
+ * Unlike a sieve, CFRAC only ever holds the factor base and the relations
+ * it has found, so it runs in very little memory.
+ */
+
+public class FactorCFRAC {
+
+    /* constants */
+    private static final BigInteger ZERO = BigInteger.ZERO;
+    private static final BigInteger ONE = BigInteger.ONE;
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    // squarefree multipliers considered for k
+    private static final int[] MULTIPLIERS = {1, 2, 3, 5, 6, 7, 10, 11, 13,
+            14, 15, 17, 19, 21, 22, 23, 26, 29, 30, 31, 33, 34, 35, 37, 38, 39,
+            41, 42, 43, 46, 47, 51, 53, 55, 57, 58, 59, 61, 62, 65, 66, 67, 69,
+            70, 71, 73};
+
+    // extra relations collected beyond the factor base size
+    private static final int EXTRA_RELATIONS = 16;
+
+    // fraction of the factor base tried before the early abort check
+    private static final int EARLY_ABORT_DIVISOR = 8;
+
+    /**
+     * multipliers
+     * Ranks the candidate multipliers k for num using the Knuth-Schroeppel
+     * function.  A good k makes many small primes quadratic residues of kn,
+     * so that values of Q are more likely to be smooth.  The best multiplier
+     * comes first.
+     *
+     * @param num the number to factor
+     * @return multipliers ordered from best to worst
+     */
+    public static int[] multipliers(BigInteger num) {
+
+        int count = MULTIPLIERS.length;
+        double[] score = new double[count];
+        int[] primes = primesUpTo(500);
+
+        for (int i = 0; i < count; i++) {
+            int k = MULTIPLIERS[i];
+            BigInteger kn = num.multiply(BigInteger.valueOf(k));
+            double f = -0.5 * Math.log(k);
+
+            // contribution of the prime 2
+            int mod8 = kn.mod(BigInteger.valueOf(8)).intValue();
+            if (mod8 == 1) {
+                f += 2 * Math.log(2);
+            } else if (mod8 == 5) {
+                f += Math.log(2);
+            } else if (mod8 == 3 || mod8 == 7) {
+                f += 0.5 * Math.log(2);
+            }
+
+            // contribution of every odd prime
+            for (int p : primes) {
+                if (p == 2) {
+                    continue;
+                }
+                if (k % p == 0) {
+                    f += Math.log(p) / p;
+                } else if (legendre(kn.mod(BigInteger.valueOf(p)).intValue(),
+                        p) == 1) {
+                    f += 2 * Math.log(p) / (p - 1);
+                }
+            }
+
+            score[i] = f;
+        }
+
+        // selection sort, the list is tiny
+        int[] ranked = MULTIPLIERS.clone();
+        for (int i = 0; i < count; i++) {
+            int best = i;
+            for (int j = i + 1; j < count; j++) {
+                if (score[j] > score[best]) {
+                    best = j;
+                }
+            }
+            double s = score[i];
+            score[i] = score[best];
+            score[best] = s;
+            int k = ranked[i];
+            ranked[i] = ranked[best];
+            ranked[best] = k;
+        }
+
+        return ranked;
+
+    } /*multipliers*/
+
+    /**
+     * factorBaseSize
+     * Picks how many primes go in the factor base for num.  This grows like
+     * exp(c * sqrt(ln n ln ln n)), the usual shape for subexponential
+     * methods, and is clamped so tiny and huge inputs stay sensible.
+     *
+     * @param num the number to factor
+     * @return number of primes in the factor base
+     */
+    public static int factorBaseSize(BigInteger num) {
+
+        double ln = num.bitLength() * Math.log(2);
+        double size = Math.exp(0.35 * Math.sqrt(ln * Math.log(ln)));
+
+        return (int) Math.max(30, Math.min(size, 4000));
+
+    } /*factorBaseSize*/
+
+    /**
+     * defaultSteps
+     * The number of continued fraction steps a single run may take before
+     * giving up.  Scales with the square of the factor base, since both the
+     * number of relations needed and the cost of finding one grow with it.
+     *
+     * @param num the number to factor
+     * @return the step budget for one run
+     */
+    public static long defaultSteps(BigInteger num) {
+
+        long size = factorBaseSize(num);
+        return Math.max(100_000L, size * size * 200);
+
+    } /*defaultSteps*/
+
+    /**
+     * stepsForRank
+     * The step budget for the run ranked rank.  The first pass tries each
+     * multiplier with the default budget.  A run is deterministic, so
+     * running a multiplier again with the same budget would fail the same
+     * way, and every pass after the first doubles the budget instead.
+     *
+     * @param num  the number to factor
+     * @param rank the run's rank, as the sub-server handed it out
+     * @return the step budget for that run
+     */
+    public static long stepsForRank(BigInteger num, int rank) {
+        int pass = Math.max(0, rank) / multipliers(num).length;
+        long steps = defaultSteps(num);
+        return pass >= Long.numberOfLeadingZeros(steps) - 1 ? Long
+                .MAX_VALUE : steps << pass;
+    }
+
+    /**
+     * findFactorCFRAC
+     * Runs CFRAC on num using the expansion of sqrt(k * num).  Q values are
+     * trial divided over the factor base, with an early abort if the first
+     * primes of the base haven't removed enough of Q.  A leftover cofactor
+     * that is a single prime is kept as a partial relation, and two partials
+     * sharing the same large prime combine into a full relation.  Once there
+     * are more relations than primes in the factor base, the dependencies
+     * are found by FactorMatrix and each is tried for a factor.
+     *
+     * @param num        the number to factor, an odd composite
+     * @param multiplier the multiplier k
+     * @param steps      maximum number of continued fraction steps to take
+     * @return a non-trivial factor of num, null if none was found
+     */
+    public static BigInteger findFactorCFRAC(BigInteger num, int multiplier,
+                                             long steps) {
+
+        // if num is even, return two
+        if (!num.testBit(0)) {
+            return TWO;
+        }
+
+        // a perfect square has its root as a factor
+        BigInteger[] rootN = FactorMath.sqrt(num);
+        if (rootN[1].equals(ZERO)) {
+            return rootN[0];
+        }
+
+        BigInteger kn = num.multiply(BigInteger.valueOf(multiplier));
+        BigInteger[] rootKN = FactorMath.sqrt(kn);
+        if (rootKN[1].equals(ZERO)) {
+            return null; // kn is square, the expansion has no period
+        }
+
+        int[] base = buildFactorBase(kn, factorBaseSize(num));
+
+        // a prime in the factor base may divide num outright
+        for (int p : base) {
+            if (p > 1 && num.mod(BigInteger.valueOf(p)).equals(ZERO)
+                && !num.equals(BigInteger.valueOf(p))) {
+                return BigInteger.valueOf(p);
+            }
+        }
+
+        Relations relations = new Relations(num, base);
+        int needed = base.length + 1 + EXTRA_RELATIONS;
+
+        // continued fraction state, A(i-1)^2 = (-1)^i Q(i) (mod kn)
+        BigInteger g = rootKN[0];
+        BigInteger pPrev = ZERO;
+        BigInteger qPrev = kn; // Q(-1)
+        BigInteger qCur = ONE; // Q(0)
+        BigInteger a = g; // partial quotient q(0)
+        BigInteger aPrev = ONE; // A(-1)
+        BigInteger aCur = g.mod(num); // A(0)
+
+        for (long i = 1; i <= steps; i++) {
+
+            // advance one step of the expansion
+            BigInteger pNext = a.multiply(qCur).subtract(pPrev);
+            BigInteger qNext = qPrev.add(a.multiply(pPrev.subtract(pNext)));
+            a = g.add(pNext).divide(qNext);
+
+            pPrev = pNext;
+            qPrev = qCur;
+            qCur = qNext;
+
+            // A(i-1)^2 = (-1)^i Q(i) (mod num)
+            relations.offer(aCur, qCur, (i & 1) == 1);
+
+            if (relations.size() >= needed) {
+                BigInteger factor = relations.solve();
+                if (factor != null) {
+                    return factor;
+                }
+                needed += EXTRA_RELATIONS; // every dependency was trivial
+            }
+
+            // Q = 1 at an even step means the period ended
+            if (qCur.equals(ONE) && (i & 1) == 0) {
+                break;
+            }
+
+            BigInteger aNext = a.multiply(aCur).add(aPrev).mod(num);
+            aPrev = aCur;
+            aCur = aNext;
+
+            if ((i & 0x3ff) == 0 && Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+
+        return null;
+
+    } /*findFactorCFRAC*/
+
+    // buildFactorBase
+    // Returns -1 followed by the first size primes p for which kn is a
+    // quadratic residue (or p divides kn).  Only such primes can divide a
+    // value of Q.
+    private static int[] buildFactorBase(BigInteger kn, int size) {
+
+        int[] base = new int[size + 1];
+        base[0] = -1;
+        int count = 1;
+
+        int limit = 1000;
+        while (count <= size) {
+            count = 1;
+            for (int p : primesUpTo(limit)) {
+                int r = kn.mod(BigInteger.valueOf(p)).intValue();
+                if (p == 2 || r == 0 || legendre(r, p) == 1) {
+                    base[count++] = p;
+                    if (count > size) {
+                        break;
+                    }
+                }
+            }
+            limit *= 2;
+        }
+
+        return base;
+    }
+
+    // legendre
+    // returns the Legendre symbol (a/p) for an odd prime p using Euler's
+    // criterion
+    private static int legendre(int a, int p) {
+
+        long result = 1;
+        long b = ((a % p) + p) % p;
+        int e = (p - 1) / 2;
+
+        if (b == 0) {
+            return 0;
+        }
+
+        while (e > 0) {
+            if ((e & 1) == 1) {
+                result = result * b % p;
+            }
+            b = b * b % p;
+            e >>= 1;
+        }
+
+        return result == 1 ? 1 : -1;
+    }
+
+    // primesUpTo
+    // sieve of Eratosthenes, returns every prime <= limit
+    static int[] primesUpTo(int limit) {
+
+        boolean[] composite = new boolean[limit + 1];
+        int count = 0;
+
+        for (int i = 2; i <= limit; i++) {
+            if (!composite[i]) {
+                count++;
+                for (long j = (long) i * i; j <= limit; j += i) {
+                    composite[(int) j] = true;
+                }
+            }
+        }
+
+        int[] primes = new int[count];
+        count = 0;
+        for (int i = 2; i <= limit; i++) {
+            if (!composite[i]) {
+                primes[count++] = i;
+            }
+        }
+
+        return primes;
+    }
+
+    /**
+     * Relations
+     * The relations found so far.  A relation is a value x and a list of
+     * factor base indices such that x^2 = (product of those primes) *
+     * extra^2 (mod num), where extra is the large prime of a combined
+     * partial relation (or one).
+     */
+    private static class Relations {
+
+        private BigInteger num;
+        private int[] base;
+        private long largePrimeBound;
+
+        private List<BigInteger> xs;
+        private List<int[]> factors;
+        private List<BigInteger> extras;
+
+        // partial relations waiting for a partner, keyed by large prime
+        private Map<Long, Object[]> partials;
+
+        // chunks of primes whose product fits in a long, for quick remainders
+        private BigInteger[] chunkProducts;
+        private int[] chunkEnds;
+        private int earlyAbortChunk;
+
+        Relations(BigInteger num, int[] base) {
+            this.num = num;
+            this.base = base;
+            xs = new ArrayList<>();
+            factors = new ArrayList<>();
+            extras = new ArrayList<>();
+            partials = new HashMap<>();
+
+            long pmax = base[base.length - 1];
+            largePrimeBound = Math.min(pmax * pmax, pmax * 128);
+
+            List<BigInteger> products = new ArrayList<>();
+            List<Integer> ends = new ArrayList<>();
+            long product = 1;
+            for (int i = 1; i < base.length; i++) {
+                if (product > Long.MAX_VALUE / base[i]) {
+                    products.add(BigInteger.valueOf(product));
+                    ends.add(i);
+                    product = 1;
+                }
+                product *= base[i];
+            }
+            products.add(BigInteger.valueOf(product));
+            ends.add(base.length);
+
+            chunkProducts = products.toArray(new BigInteger[0]);
+            chunkEnds = new int[ends.size()];
+            for (int i = 0; i < chunkEnds.length; i++) {
+                chunkEnds[i] = ends.get(i);
+            }
+
+            // the early abort check happens after the chunk holding the
+            // first 1/EARLY_ABORT_DIVISOR of the factor base
+            int earlyAbort = base.length / EARLY_ABORT_DIVISOR;
+            while (earlyAbortChunk < chunkEnds.length - 1
+                   && chunkEnds[earlyAbortChunk] < earlyAbort) {
+                earlyAbortChunk++;
+            }
+        }
+
+        int size() {
+            return xs.size();
+        }
+
+        // offer
+        // Trial divides q over the factor base and keeps the relation if q
+        // is smooth, or smooth apart from one large prime.
+        void offer(BigInteger x, BigInteger q, boolean negative) {
+
+            List<Integer> found = new ArrayList<>();
+            if (negative) {
+                found.add(0);
+            }
+
+            int bits = q.bitLength();
+            BigInteger rest = q;
+
+            int start = 1;
+            for (int c = 0; c < chunkProducts.length; c++) {
+                long r = rest.bitLength() < 63 ? rest.longValue() :
+                        rest.remainder(chunkProducts[c]).longValue();
+
+                for (int i = start; i < chunkEnds[c]; i++) {
+                    int p = base[i];
+                    if (r % p != 0) {
+                        continue;
+                    }
+                    BigInteger bp = BigInteger.valueOf(p);
+                    BigInteger[] qr = rest.divideAndRemainder(bp);
+                    while (qr[1].signum() == 0) {
+                        found.add(i);
+                        rest = qr[0];
+                        qr = rest.divideAndRemainder(bp);
+                    }
+                    if (rest.bitLength() < 63) {
+                        r = rest.longValue();
+                    }
+                }
+                start = chunkEnds[c];
+
+                // early abort, the small primes should have removed a share
+                // of q by now or it's unlikely to be smooth
+                if (c == earlyAbortChunk && rest.bitLength() > bits - bits / 8) {
+                    return;
+                }
+
+                if (rest.equals(ONE)) {
+                    break;
+                }
+            }
+
+            int[] indices = new int[found.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = found.get(i);
+            }
+
+            if (rest.equals(ONE)) {
+                add(x, indices, ONE);
+                return;
+            }
+
+            // large prime variation
+            if (rest.bitLength() < 63 && rest.longValue() < largePrimeBound) {
+                long large = rest.longValue();
+                Object[] partner = partials.remove(large);
+                if (partner == null) {
+                    partials.put(large, new Object[]{x, indices});
+                } else {
+                    int[] other = (int[]) partner[1];
+                    int[] merged = new int[indices.length + other.length];
+                    System.arraycopy(indices, 0, merged, 0, indices.length);
+                    System.arraycopy(other, 0, merged, indices.length,
+                            other.length);
+                    BigInteger mergedX = x.multiply((BigInteger) partner[0])
+                            .mod(num);
+                    add(mergedX, merged, rest);
+                }
+            }
+        }
+
+        private void add(BigInteger x, int[] indices, BigInteger extra) {
+            xs.add(x);
+            factors.add(indices);
+            extras.add(extra);
+        }
+
+        // solve
+        // Finds the dependencies between relations with FactorMatrix and
+        // tries each for a factor of num.
+        BigInteger solve() {
+
+            FactorMatrix matrix = new FactorMatrix(base.length);
+            for (int[] indices : factors) {
+                matrix.addColumn(indices);
+            }
+
+            for (int[] dependency : matrix.findDependencies(1)) {
+                BigInteger factor = tryDependency(dependency);
+                if (factor != null) {
+                    return factor;
+                }
+            }
+
+            return null;
+        }
+
+        // tryDependency
+        // X is the product of the x values, Y the square root of the
+        // product of the Q values.  Returns gcd(X - Y, num) if non-trivial.
+        private BigInteger tryDependency(int[] set) {
+
+            int[] exponents = new int[base.length];
+            BigInteger x = ONE;
+            BigInteger y = ONE;
+
+            for (int i : set) {
+                x = x.multiply(xs.get(i)).mod(num);
+                y = y.multiply(extras.get(i)).mod(num);
+                for (int index : factors.get(i)) {
+                    exponents[index]++;
+                }
+            }
+
+            for (int i = 1; i < base.length; i++) {
+                if (exponents[i] > 0) {
+                    BigInteger p = BigInteger.valueOf(base[i]);
+                    y = y.multiply(p.modPow(BigInteger.valueOf(exponents[i]
+                                                              / 2), num)).mod(num);
+                }
+            }
+
+            BigInteger factor = x.subtract(y).gcd(num);
+            if (factor.equals(ONE) || factor.equals(num)) {
+                return null;
+            }
+
+            return factor;
+        }
+    }
+}
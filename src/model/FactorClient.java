@@ -1,12 +1,14 @@
 package model;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * FactorClient.java
@@ -16,29 +18,86 @@ import java.net.Socket;
  * This object is to serve as a client that
  * will connect to a given sub-server.  This object will send
  * communications back to this sub-server about its progress on factoring
- * a number.  This object will attempt one of four factoring algorithms as
+ * a number.  This object will attempt one of five factoring algorithms as
  * dictated by its sub-server.  Factoring calculations are handled by the
  * FactorMath.java class.  This client should be able to run on the same
  * machine as one sub-server or main server.
+ * <p>
+ * The client keeps one connection open to the main server and one to its
+ * sub-server for the whole run.  Both carry messages in each direction, so
+ * the client needs no ServerSocket of its own.  While connected it sends
+ * the sub-server a heartbeat every FactorSubServer.HEARTBEAT_INTERVAL, so
+ * the sub-server can tell a long range from a dead client.
+ * <p>
+ * A client runs one unit of work per core at once, on a pool of worker
+ * threads (-Dfactor.workers sets how many).  It tells its sub-server the
+ * count when it connects, and the sub-server keeps it that many units.
+ * Every worker's results go back over the one sub-server connection.
+ * <p>
+ * The client also asks for a few units more than it has workers
+ * (-Dfactor.prefetch, default 1 per client).  They wait in the pool's
+ * queue, so a worker that finishes a unit starts the next at once and
+ * its report doubles as the request for a replacement.  Workers never
+ * sit through a round trip to the sub-server.
+ * <p>
+ * When a factor splits a job the sub-server sends "cancel" with the job's
+ * id.  The client interrupts the workers on that job, whose FactorMath
+ * loops notice within a few milliseconds, drops that job's queued units
+ * and answers "cancelled".  Units of other jobs carry on.  Units stopped
+ * part way report nothing.
+ * <p>
+ * The server may move a client to another algorithm part way through a
+ * run, as the numbers and the progress on them change.  It sends
+ * "switch" with the algorithm and its sub-server's host.  The client
+ * stops its units, leaves its sub-server and joins the new one.
+ * <p>
+ * A client can be started or stopped at any point in a run.  One that is
+ * stopped (Ctrl-C, or a kill from whatever scales the pool) tells its
+ * sub-server it is leaving, so the units it held go straight to the other
+ * clients.  If the client stopped was hosting a sub-server, the clients
+ * of that sub-server stop their units and join the one the server names
+ * in its place.
+ * <p>
+ * As it starts, the client runs the FactorCostModel benchmark for a
+ * moment, and reports the score along with its cores, heap and Java
+ * version to the server and its sub-server.  The server counts a fast
+ * client's workers for more when sharing the algorithms, and the
+ * sub-server sizes its first units to its speed.
  */
 
 public class FactorClient {
 
     private static final BigInteger ONE = BigInteger.ONE;
     private static final BigInteger TWO = BigInteger.valueOf(2);
-    private Thread listenThread;
+
+    // how long the startup benchmark runs
+    private static final long BENCHMARK_MILLIS = 250;
+
     // instance variables
     private FactorType type; // what algorithm are we performing
     private FactorData data; // data relating to the factored integer
-    private boolean completed = false;
-    private Socket subsocket; // the sub-server socket
-    private Socket socket; // the server socket
+    private volatile FactorConnection subserver; // to the sub-server
+    private FactorConnection server; // connection to the main server
     private int sserverport;
     private String ssaddress = null;
     private String serverAddress;
-    private int myPort;
     private String myAddress;
 
+    // factoring runs here so the connections keep reading while it works,
+    // one unit per worker thread
+    private ExecutorService pool;
+    private int workers;
+    private int prefetch; // units queued beyond the ones running
+    private long score; // benchmark, trial divisions a second a worker
+
+    // units given to the pool, each with its job's id, so a cancel stops
+    // only that job's
+    private Map<Future<?>, Long> units = new ConcurrentHashMap<>();
+
+    private volatile boolean quitting = false; // true once told to quit
+
+    // the sub-server a worker's unit came from, which its result goes to
+    private ThreadLocal<FactorConnection> replyTo = new ThreadLocal<>();
 
     /**
      * FactorClient
@@ -57,24 +116,35 @@ public class FactorClient {
         type = FactorType.NONE; // no algorithm until a server decides
         this.data = new FactorData(null);
         data.setMessage("new client");
-        startListener();
-
-        data.setClientAddress(myAddress);
-        System.out.println("My address: " + data.getClientAddress());
+        workers = Math.max(1, Integer.getInteger("factor.workers", Runtime
+                .getRuntime().availableProcessors()));
+        pool = Executors.newFixedThreadPool(workers);
+        prefetch = Math.max(0, Integer.getInteger("factor.prefetch", 1));
 
         try {
-            socket = new Socket(host, FactorServer.SERVERPORT);
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket
-                    .getOutputStream());
-
-            outputStream.writeObject(data);
-            outputStream.flush();
+            myAddress = InetAddress.getLocalHost().getHostName();
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        score = FactorCostModel.benchmark(BENCHMARK_MILLIS);
+        data.setClientAddress(myAddress);
+        describe(data);
+        System.out.println("My address: " + data.getClientAddress());
+        System.out.println(data.getCores() + " cores, " + workers +
+                           " worker(s), " + data.getHeapMegabytes() + " MB " +
+                           "heap, Java " + data.getJvmVersion() + ", score " +
+                           score);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::leave,
+                "factor-leave"));
+
+        // the server answers on this same connection
         try {
-            listenThread.join();
-        } catch (InterruptedException e) {
+            server = FactorConnection.open(host, FactorServer.SERVERPORT);
+            server.start(this::handleReadData);
+            server.send(data);
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
@@ -112,19 +182,6 @@ public class FactorClient {
         System.out.println("\n*-----------------------------*\n");
     }
 
-    /**
-     * startListener
-     * Launches the main listener.  The listener will read inputs sent to a
-     * created server socket which tells this client what actions to perform.
-     */
-    private void startListener() {
-        ClientListener listener = new ClientListener(); // server listener obj
-        listenThread = new Thread(listener);
-        listenThread.start(); // start listener in its own thread
-        data.setClientPort(myPort);
-        data.setClientAddress(myAddress);
-    }
-
     /**
      * setType
      * Use an enum in the FactorType.java file to dictate what factoring
@@ -143,6 +200,8 @@ public class FactorClient {
             sserverport = FactorSubServer.FERMATPORT;
         } else if (type == FactorType.POLLARDS) {
             sserverport = FactorSubServer.POLLARDPORT;
+        } else if (type == FactorType.CFRAC) {
+            sserverport = FactorSubServer.CFRACPORT;
         }
 
     }
@@ -153,17 +212,29 @@ public class FactorClient {
      * If no type has been selected, method prints out a status statement
      */
     public void startFactoring() {
+        factor(data);
+    }
+
+    // factor
+    // runs the algorithm for our type on one unit of work.  Each worker
+    // thread has its own unit, so several can run at once.
+    private void factor(FactorData unit) {
 
         System.out.println("factoring with " + FactorType.toString(type));
 
+        // when work started, which sendData turns into how long it took
+        unit.setWorkMillis(System.currentTimeMillis());
+
         if (type == FactorType.TD2) {
-            factorTD2();
+            factorTD2(unit);
         } else if (type == FactorType.TDRN) {
-            factorTDRN();
+            factorTDRN(unit);
         } else if (type == FactorType.FERMAT) {
-            factorFermat();
+            factorFermat(unit);
         } else if (type == FactorType.POLLARDS) {
-            factorPollards();
+            factorPollards(unit);
+        } else if (type == FactorType.CFRAC) {
+            factorCFRAC(unit);
         } else {
             System.out.println("Client has not been assigned a factoring " +
                                "algorithm.");
@@ -186,121 +257,174 @@ public class FactorClient {
     // factorTD2
     // Use trial-division counting up from 2 to determine if a number is a
     // factor.  Factoring is controlled by the FactorMath class.
-    private void factorTD2() {
+    private void factorTD2(FactorData unit) {
 
-        BigInteger num = data.getNum(); // the number to factor
-        BigInteger[] bounds = data.getTDBounds(); // the upper/lower bounds
+        BigInteger num = unit.getNum(); // the number to factor
+        BigInteger[] bounds = unit.getTDBounds(); // the upper/lower bounds
 
         // factor num
         BigInteger factor = FactorMath.findFactorTD2(num, bounds[0], bounds[1]);
 
         // send result to sendOutputTD
-        sendOutputTD(num, bounds, factor);
+        sendOutputTD(unit, num, bounds, factor);
     }
 
     // factorTDRN
     // Use trial-division counting down from sqrt(num) to determine if a number
     // is a factor.  Factoring is controlled by the FactorMath class.
-    private void factorTDRN() {
+    private void factorTDRN(FactorData unit) {
 
-        BigInteger num = data.getNum(); // number to factor
-        BigInteger[] bounds = data.getTDBounds(); // upper or lower bounds
+        BigInteger num = unit.getNum(); // number to factor
+        BigInteger[] bounds = unit.getTDBounds(); // upper or lower bounds
 
         // factor num
         BigInteger factor = FactorMath.findFactorTDRN(num, bounds[0],
                 bounds[1]);
 
         // send output to sendOutputTD
-        sendOutputTD(num, bounds, factor);
+        sendOutputTD(unit, num, bounds, factor);
 
     }
 
     // sendOutputTD
     // handles result of TD factoring.  if the factor is null, then no output
-    // was reported.  Otherwise, add the factor to data and send to the
+    // was reported.  Otherwise, add the factor to the unit and send to the
     // sub-server
-    private void sendOutputTD(BigInteger num, BigInteger[] bounds,
-                              BigInteger factor) {
+    private void sendOutputTD(FactorData unit, BigInteger num,
+                              BigInteger[] bounds, BigInteger factor) {
 
         // if no factor was found
         if (factor == null) {
             System.out.println(num + " has no factor in range [" + bounds[0] +
                                ", " + bounds[1] + "]");
-            data.setMessage("failed");
+            unit.setMessage("failed");
         } else {
             System.out.println("Found factor = " + factor);
-            data.addFactor(factor);
-            data.setMessage("factor found");
+            unit.addFactor(factor);
+            unit.setMessage("factor found");
         }
-        sendData();
+        sendData(unit);
     }
 
-    // setSubSocket
-    // Creates the socket to send data to this client's sub-server
-    private void setSubSocket() {
+    // connectSubServer
+    // Opens the connection to this client's sub-server and introduces
+    // ourselves with message.  The sub-server sends work back down it.
+    private void connectSubServer(String message) {
+        System.out.println("Contacting subserver at " + ssaddress + "" +
+                           " port " + sserverport);
         try {
-            subsocket = new Socket(ssaddress, sserverport);
+            subserver = FactorConnection.open(ssaddress, sserverport);
+            subserver.start(new FactorPeer.Handler() {
+                @Override
+                public void handle(FactorData data, FactorPeer from) {
+                    handleReadData(data, from);
+                }
+
+                @Override
+                public void closed(FactorPeer from) {
+                    lostSubServer(from);
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
-    }
 
-    // senddata
-    // set the data into the FactorData object and send that data to this
-    // client's sub-server.
-    private void sendData() {
-        setSubSocket(); // establish socket with sserver
-        data.setClientPort(myPort);
+        data.setMessage(message);
         data.setClientAddress(myAddress);
         data.setType(type);
-        System.out.println("Client sending data, message = " + data.getMessage());
+        describe(data);
+        data.setPrefetch(prefetch);
+        subserver.send(data);
+        subserver.fork("factor-heartbeat", this::heartbeat);
+    }
+
+    // describe
+    // puts what this client runs on into data
+    private void describe(FactorData data) {
+        data.setWorkers(workers);
+        data.setCores(Runtime.getRuntime().availableProcessors());
+        data.setHeapMegabytes((int) Math.min(Integer.MAX_VALUE, Runtime
+                .getRuntime().maxMemory() >> 20));
+        data.setJvmVersion(System.getProperty("java.version"));
+        data.setScore(score);
+    }
+
+    // heartbeat
+    // runs in the sub-server connection's scope, telling the sub-server
+    // we are alive until the connection closes
+    private void heartbeat() {
+        FactorConnection to = subserver;
+        FactorData beat = new FactorData(null);
+        beat.setMessage("heartbeat");
         try {
-            ObjectOutputStream outputStream = new ObjectOutputStream(subsocket
-                    .getOutputStream());
-            outputStream.writeObject(data);
-        } catch (IOException e) {
-            e.printStackTrace();
+            while (to != null && to.send(beat)) {
+                Thread.sleep(FactorSubServer.HEARTBEAT_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            // connection closed
+        }
+    }
+
+    // senddata
+    // set our details on a finished unit and send it back to this
+    // client's sub-server.
+    private void sendData(FactorData unit) {
+        // a unit cancelled part way is not finished, so says nothing
+        if (Thread.currentThread().isInterrupted()) {
+            System.out.println("Client dropped a cancelled unit");
+            return;
+        }
+        unit.setWorkMillis(Math.max(1, System.currentTimeMillis() - unit
+                .getWorkMillis()));
+        unit.setClientAddress(myAddress);
+        unit.setType(type);
+        System.out.println("Client sending data, message = " + unit.getMessage());
+        FactorConnection to = replyTo.get() != null ? replyTo.get() :
+                subserver;
+        if (to != null) {
+            to.send(unit);
         }
     }
 
     // factorFermat
     // use Fermat's Factorization Algorithm to factor a number num.  Info on
     // the factorization algorithm can be found in the FactorMath class.
-    // Will run a number of attempts specified in the data object.  If it
+    // Will run a number of attempts specified in the unit.  If it
     // returns null, then no factor was found in that range.  Call this
     // function again to get another factor.
-    private void factorFermat() {
+    private void factorFermat(FactorData unit) {
 
-        BigInteger num = data.getNum();
-        BigInteger start = data.getFermatStartVal();
-        long attempts = data.getAttempts();
+        BigInteger num = unit.getNum();
+        BigInteger start = unit.getFermatStartVal();
+        long attempts = unit.getAttempts();
 
         BigInteger factor = FactorMath.findFactorFermat(num, start, attempts);
 
         if (factor == null) {
-            data.setFermatStartVal(start.add(BigInteger.valueOf(attempts)));
-            data.setMessage("failed");
+            unit.setFermatStartVal(start.add(BigInteger.valueOf(attempts)));
+            unit.setMessage("failed");
         } else {
             System.out.println("Found factor = " + factor);
-            data.addFactor(factor);
-            data.setMessage("factor found");
+            unit.addFactor(factor);
+            unit.setMessage("factor found");
         }
 
-        sendData();
+        sendData(unit);
     }
 
     // factorPollards
     // Uses Pollard's p-1 algorithm to try and find a factor of num.  Num is
-    // specified in the data object.  Unlike Fermat's, this function will
+    // specified in the unit.  Unlike Fermat's, this function will
     // loop endlessly unless interrupted by another process or it finds a
     // factor.
-    private void factorPollards() {
+    private void factorPollards(FactorData unit) {
 
-        BigInteger num = data.getNum(); // get number to factor
+        BigInteger num = unit.getNum(); // get number to factor
         BigInteger[] factor; // index 0 will hold factor, index 1 will hold
         // the next major power if desired
 
-        BigInteger[] bounds = data.getPollardsBounds();
+        BigInteger[] bounds = unit.getPollardsBounds();
 
         // create a bound somewhere between the upper and lower bounds
         BigInteger bound = bounds[0].add(bounds[1].divide(TWO));
@@ -309,227 +433,273 @@ public class FactorClient {
         // base value likely isn't good.  Reset the base to a new value.
         if (bound.subtract(bounds[0]).compareTo(ONE) <= 0) {
             if (bounds[1].subtract(bound).compareTo(ONE) <= 0) {
-                data.incrementPollardsBase();
-                data.setMessage("failed");
-                sendData();
+                unit.incrementPollardsBase();
+                unit.setMessage("failed");
+                sendData(unit);
                 return;
             }
         }
 
         // get factor
-        factor = FactorMath.findFactorPollards(num, data.getTwoToImodN(),
-                data.getStartP(), bound);
+        factor = FactorMath.findFactorPollards(num, unit.getTwoToImodN(),
+                unit.getStartP(), bound);
 
         // if factor == 1, then our bound was too small
         if (factor[0].equals(ONE)) {
-            data.setLowerBoundP(bound); // set the lower bound to be higher
-            data.setTwoToImodN(factor[1]); // carry over same power
-            data.setStartP(bound.add(ONE)); // set power to bound+1
-            data.setBoundAmount(bound);
-            data.setMessage("failed");
-            sendData();
+            unit.setLowerBoundP(bound); // set the lower bound to be higher
+            unit.setTwoToImodN(factor[1]); // carry over same power
+            unit.setStartP(bound.add(ONE)); // set power to bound+1
+            unit.setBoundAmount(bound);
+            unit.setMessage("failed");
+            sendData(unit);
         } else if (factor[0].equals(num)) {
             // if factor == num, our bound is too high
-            data.setUpperBoundP(bound); // set new upper bound
-            data.resetStartTMN(); // reset the power
-            data.setBoundAmount(bound);
-            data.setMessage("failed");
-            sendData();
+            unit.setUpperBoundP(bound); // set new upper bound
+            unit.resetStartTMN(); // reset the power
+            unit.setBoundAmount(bound);
+            unit.setMessage("failed");
+            sendData(unit);
         } else {
             // we found a factor
-            data.addFactor(factor[0]); // add factor to data list
-            data.setMessage("factor found"); // set message for server
-            sendData();
+            unit.addFactor(factor[0]); // add factor to unit list
+            unit.setMessage("factor found"); // set message for server
+            sendData(unit);
         }
 
     }
 
-    // ClientListener
-    // This object runs in its own thread, reading inputs sent to it from
-    // other servers.  When receiving a connection, this creates a reader
-    // object in another thread which actually handles the data.
-    private class ClientListener implements Runnable {
+    // factorCFRAC
+    // Runs the continued fraction algorithm on num, using the multiplier
+    // the sub-server ranked for this client.  A run either finds a factor
+    // or uses up its step budget, in which case the sub-server hands out
+    // the next multiplier.  Once every multiplier has been tried the
+    // ranks wrap around with a bigger budget.
+    private void factorCFRAC(FactorData unit) {
 
-        private ServerSocket socketListener;
+        BigInteger num = unit.getNum();
+        int[] multipliers = FactorCFRAC.multipliers(num);
+        int rank = Math.max(0, unit.getCFRACRank());
+        int k = multipliers[rank % multipliers.length];
+        long steps = FactorCFRAC.stepsForRank(num, rank);
 
-        // ClientListener
-        // Create the ServerSocket that other machines can talk to and save
-        // the host and port information related to that port.
-        ClientListener() {
-            try {
-                socketListener = new ServerSocket(0, 3, null);
-                myPort = socketListener.getLocalPort();
-                myAddress = InetAddress.getLocalHost().getHostName();
-
-                System.out.println("Client creating socket on " + myAddress + " " +
-                                   "on port " + myPort);
+        BigInteger factor = FactorCFRAC.findFactorCFRAC(num, k, steps);
 
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (factor == null) {
+            System.out.println("CFRAC with multiplier " + k + " failed " +
+                               "after " + steps + " steps");
+            unit.setMessage("failed");
+        } else {
+            System.out.println("Found factor = " + factor);
+            unit.addFactor(factor);
+            unit.setMessage("factor found");
         }
 
-        // run
-        // Accept inputs to this ServerSocket, then pass any connections to a
-        // ClientReader object to handle.  Then go back to listening.
-        @Override
-        public void run() {
-            Socket s;
-            while (!completed) {
-                try {
-                    s = socketListener.accept();
-                    ClientReader reader = new ClientReader(s);
-                    Thread t = new Thread(reader);
-                    t.start();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            System.exit(0);
-        }
+        sendData(unit);
     }
 
-    // ClientReader
-    // This object is given a socket from ClientListener.  This object reads
-    // the data attached to that socket and handles it.
-    private class ClientReader implements Runnable {
-
-        Socket mySocket; // socket passed to this object
-
-        ClientReader(Socket socket) {
-            mySocket = socket;
+    // leave
+    // runs as the client shuts down.  Stops the workers, so they report
+    // nothing half done, and hands our units back to the sub-server
+    private void leave() {
+        FactorConnection old = subserver;
+        if (quitting || old == null) {
+            return;
+        }
+        pool.shutdownNow();
+        FactorData bye = new FactorData(null);
+        bye.setMessage("leave");
+        if (old.send(bye)) {
+            System.out.println("Client left, units handed back");
         }
+        old.close();
+    }
 
-        // run
-        // Read the InputStream from the socket and get the FactorData from
-        // it.  If the message wants to quit or run, handle that.  Also can
-        // handle information about starting up this client or whether to
-        // also launch a SubServer.  Message data is obtained by the
-        // getMessage() method on FactorData.
-        @Override
-        public void run() {
-            FactorData factorData;
+    // lostSubServer
+    // our sub-server went away without us leaving it, e.g. the client
+    // hosting it was stopped.  Its units are no use now.  Stop them and
+    // wait for the server to name the next sub-server for our algorithm
+    private synchronized void lostSubServer(FactorPeer from) {
+        if (from != subserver || quitting) {
+            return;
+        }
+        System.out.println("Client: lost sub-server, waiting for a new one");
+        subserver = null;
+        for (Future<?> unit : units.keySet()) {
+            unit.cancel(true);
+        }
+    }
 
+    // queue
+    // gives a unit to the pool.  Its result goes back on the connection it
+    // came in on, even if we have switched sub-servers since
+    private synchronized void queue(FactorData unitData, FactorPeer from) {
+        if (from != subserver) {
+            return;
+        }
+        FactorConnection source = subserver;
+        FutureTask<Void> unit = new FutureTask<>(() -> factor(unitData), null);
+        units.put(unit, unitData.getJobId());
+        pool.execute(() -> {
+            replyTo.set(source);
             try {
-                // get input stream
-                ObjectInputStream inputStream = new ObjectInputStream(mySocket
-                        .getInputStream());
-                // data sent by other servers or clients
-                factorData = (FactorData) inputStream.readObject();
-                // message attached to Data object
-                String message = factorData.getMessage();
-
-                System.out.println("Client reader read object, message = " +
-                                   "" + message);
-
-                // when we're done, this kills the program
-                if (message.equals("quit")) {
-                    completed = true;
-                    System.out.println("Client quitting");
-                    System.exit(0);
-                }
+                unit.run();
+            } finally {
+                units.remove(unit);
+                replyTo.remove();
+            }
+        });
+    }
 
-                // the server is ready to start factoring
-                if (message.equals("run")) {
-                    data = factorData;
-                    startFactoring();
-                }
+    // switchTo
+    // stops every unit, hands them back to the sub-server we are leaving,
+    // and joins the sub-server for the new algorithm
+    private synchronized void switchTo(FactorType next, String host) {
+        System.out.println("Client switching from " + FactorType.toString
+                (type) + " to " + FactorType.toString(next));
+        FactorConnection old = subserver;
+        subserver = null; // its units are no longer ours to run
+        for (Future<?> unit : units.keySet()) {
+            unit.cancel(true);
+        }
+        if (old != null) {
+            FactorData bye = new FactorData(null);
+            bye.setMessage("leave");
+            old.send(bye);
+            old.close();
+        }
+        setType(next);
+        data.setType(type);
+        ssaddress = host;
+        if (ssaddress != null) {
+            connectSubServer("connect");
+        }
+    }
 
-                // we have received the name the subserver host is located at
-                if (message.length() >= 5 && message.substring(0, 5)
-                        .equals("name:")) {
-                    String hostname = message.substring(5);
-
-                    FactorType type = data.getType();
-
-                    if (type == FactorType.TD2) {
-                        sserverport = FactorSubServer.TD2PORT;
-                    } else if (type == FactorType.TDRN) {
-                        sserverport = FactorSubServer.TDRNPORT;
-                    } else if (type == FactorType.FERMAT) {
-                        sserverport = FactorSubServer.FERMATPORT;
-                    } else if (type == FactorType.POLLARDS) {
-                        sserverport = FactorSubServer.POLLARDPORT;
-                    }
+    // cancelWork
+    // interrupts every running unit of a job, and marks its queued ones so
+    // the pool skips them.  Returns how many units were stopped.
+    private int cancelWork(long jobId) {
+        int count = 0;
+        for (Map.Entry<Future<?>, Long> unit : units.entrySet()) {
+            if (unit.getValue() == jobId && unit.getKey().cancel(true)) {
+                count++;
+            }
+        }
+        return count;
+    }
 
-                    ssaddress = hostname;
-                    subsocket = new Socket(hostname, sserverport);
-                    mySocket = subsocket;
-                    socket = mySocket;
+    // handleReadData
+    // Handles a message from the server or the sub-server.  If the message
+    // wants to quit or run, handle that.  Also can handle information about
+    // starting up this client or whether to also launch a SubServer.
+    // Message data is obtained by the getMessage() method on FactorData.
+    private void handleReadData(FactorData factorData, FactorPeer from) {
 
-                    System.out.println("Client: Changed socket to sub-server");
+        // message attached to Data object
+        String message = factorData.getMessage();
 
-                    ObjectOutputStream outputStream = new
-                            ObjectOutputStream(mySocket
-                            .getOutputStream());
+        System.out.println("Client reader read object, message = " +
+                           "" + message);
 
-                    factorData.setMessage("connect");
-                    factorData.setClientAddress(myAddress);
-                    factorData.setClientPort(myPort);
-                    outputStream.writeObject(factorData);
+        // when we're done, this kills the program
+        if (message.equals("quit")) {
+            System.out.println("Client quitting");
+            quitting = true;
+            System.exit(0);
+        }
 
-                }
+        // a unit of work, for the next free worker.  Units after the first
+        // few wait in the pool's queue.  One from a sub-server we have
+        // switched away from is for the wrong algorithm
+        if (message.equals("run")) {
+            queue(factorData, from);
+        }
 
-                // we have a new value of n for our FactorData
-                if (message.equals("new value")) {
-                    FactorType type = factorData.getType();
-                    FactorSubServer sserver = null;
-
-                    // Handle whether to create sub-server
-                    if (type == FactorType.TD2Server) {
-                        sserver = new FactorSubServer(factorData);
-                        ssaddress = InetAddress.getLocalHost().getHostAddress();
-                        sserverport = FactorSubServer.TD2PORT;
-                        data.setType(FactorType.TD2);
-                        setType(FactorType.TD2);
-                    } else if (type == FactorType.TDRNServer) {
-                        sserver = new FactorSubServer(factorData);
-                        ssaddress = InetAddress.getLocalHost().getHostAddress();
-                        sserverport = FactorSubServer.TDRNPORT;
-                        data.setType(FactorType.TDRN);
-                        setType(FactorType.TDRN);
-                    } else if (type == FactorType.FERMATServer) {
-                        sserver = new FactorSubServer(factorData);
-                        ssaddress = InetAddress.getLocalHost().getHostAddress();
-                        sserverport = FactorSubServer.FERMATPORT;
-                        data.setType(FactorType.FERMAT);
-                        setType(FactorType.FERMAT);
-                    } else if (type == FactorType.POLLARDSServer) {
-                        sserver = new FactorSubServer(factorData);
-                        ssaddress = InetAddress.getLocalHost().getHostAddress();
-                        sserverport = FactorSubServer.POLLARDPORT;
-                        data.setType(FactorType.POLLARDS);
-                        setType(FactorType.POLLARDS);
-                    } else { // get info about sub-server
-                        setType(type);
-                        ssaddress = factorData.getSubservername();
-                        sserverport = FactorType.getAddress(type);
-                    }
+        // a job is no longer wanted.  Stop its units, then tell the
+        // sub-server our workers are off it
+        if (message.equals("cancel")) {
+            int stopped = cancelWork(factorData.getJobId());
+            System.out.println("Client cancelled job " + factorData.getJobId()
+                               + ", " + stopped + " unit(s) stopped");
+            FactorData ack = new FactorData(null);
+            ack.setMessage("cancelled");
+            ack.setJobId(factorData.getJobId());
+            from.send(ack);
+        }
 
-                    // if sub-server is null, sleep for a bit in case the
-                    // sub-server isn't running yet.
-                    if (sserver != null) {
-                        while (!sserver.isReady()) {
-                            Thread.sleep(1000);
-                        }
-                        sserver.setServerHost(serverAddress);
-                    }
+        // the server has moved us to another algorithm
+        if (message.equals("switch") && factorData.getType() != type) {
+            switchTo(factorData.getType(), factorData.getSubservername());
+        }
 
-                    System.out.println("Contacting subserver at " + ssaddress + "" +
-                                       " port " + sserverport);
-                    subsocket = new Socket(ssaddress, sserverport);
-                    data.setMessage("new");
-                    data.setClientPort(myPort);
-                    data.setClientAddress(myAddress);
+        // a sub-server has come up.  If it is ours and we are still waiting
+        // for it, connect.  The message is "name:", the type, then the host
+        if (message.length() > 6 && message.substring(0, 5).equals("name:")) {
+            int which = Character.getNumericValue(message.charAt(5));
+            String hostname = message.substring(6);
+
+            if (subserver == null && which == FactorType.asInt(type)) {
+                ssaddress = hostname;
+                sserverport = FactorType.getAddress(type);
+                System.out.println("Client: found sub-server");
+                connectSubServer("connect");
+            }
+        }
 
-                    ObjectOutputStream outputStream = new ObjectOutputStream
-                            (subsocket.getOutputStream());
-                    outputStream.writeObject(data);
+        // we have a new value of n for our FactorData
+        if (message.equals("new value")) {
+            FactorType type = factorData.getType();
+            FactorSubServer sserver = null;
 
+            try {
+                // Handle whether to create sub-server
+                if (type == FactorType.TD2Server) {
+                    sserver = new FactorSubServer(factorData);
+                    ssaddress = InetAddress.getLocalHost().getHostAddress();
+                    setType(FactorType.TD2);
+                } else if (type == FactorType.TDRNServer) {
+                    sserver = new FactorSubServer(factorData);
+                    ssaddress = InetAddress.getLocalHost().getHostAddress();
+                    setType(FactorType.TDRN);
+                } else if (type == FactorType.FERMATServer) {
+                    sserver = new FactorSubServer(factorData);
+                    ssaddress = InetAddress.getLocalHost().getHostAddress();
+                    setType(FactorType.FERMAT);
+                } else if (type == FactorType.POLLARDSServer) {
+                    sserver = new FactorSubServer(factorData);
+                    ssaddress = InetAddress.getLocalHost().getHostAddress();
+                    setType(FactorType.POLLARDS);
+                } else if (type == FactorType.CFRACServer) {
+                    sserver = new FactorSubServer(factorData);
+                    ssaddress = InetAddress.getLocalHost().getHostAddress();
+                    setType(FactorType.CFRAC);
+                } else { // get info about sub-server
+                    setType(type);
+                    ssaddress = factorData.getSubservername();
                 }
-            } catch (IOException | ClassNotFoundException | InterruptedException e) {
+            } catch (IOException e) {
                 e.printStackTrace();
             }
+            data.setType(this.type);
+
+            // if sub-server is null, sleep for a bit in case the
+            // sub-server isn't running yet.
+            if (sserver != null) {
+                while (!sserver.isReady()) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                sserver.setServerHost(serverAddress);
+            }
+
+            // the sub-server may not have reported in yet, in which case
+            // its name arrives later
+            if (ssaddress != null && subserver == null) {
+                connectSubServer("new");
+            }
         }
     }
 }
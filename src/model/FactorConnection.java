@@ -0,0 +1,243 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FactorConnection.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * One long-lived, two-way link between a pair of machines (server and
+ * sub-server, or sub-server and client).  Every message type travels over
+ * the same socket in both directions, so a work unit costs one write
+ * instead of a TCP handshake, a fresh object stream header and an ephemeral
+ * port.  Replies go back down the connection a message arrived on, which
+ * means clients no longer need to run a ServerSocket of their own.
+ * Messages are framed by FactorWire, which only sends what changed since
+ * the previous message in the same direction.
+ * <p>
+ * Messages are read on a dedicated thread and handed to a Handler one at a
+ * time, in the order they were sent.  Sending is synchronized, so any
+ * thread may send at any point.  The reader comes from FactorThreads, so
+ * it is a virtual thread where the JDK has them.
+ * <p>
+ * Each connection is also a scope for the work done on its behalf.  Work
+ * started with fork belongs to the connection: when the connection closes
+ * those threads are interrupted, and the Handler hears about the close
+ * only after they have finished.
+ */
+
+public class FactorConnection implements FactorPeer {
+
+    private Socket socket;
+    private OutputStream outputStream;
+    private FactorWire.Encoder encoder = new FactorWire.Encoder();
+    private Thread readThread;
+    private volatile boolean closed = false;
+
+    // threads forked in this connection's scope
+    private Set<Thread> scope = ConcurrentHashMap.newKeySet();
+
+    /**
+     * FactorConnection
+     * Wraps a connected socket.
+     *
+     * @param socket a connected socket
+     * @throws IOException if the stream cannot be opened
+     */
+    public FactorConnection(Socket socket) throws IOException {
+
+        this.socket = socket;
+        socket.setTcpNoDelay(true); // small messages, send them right away
+        outputStream = new BufferedOutputStream(socket.getOutputStream());
+
+    }
+
+    /**
+     * open
+     * Connects to a listening machine and wraps the socket.
+     *
+     * @param host the machine to connect to
+     * @param port the port it listens on
+     * @return the new connection
+     * @throws IOException if the machine cannot be reached
+     */
+    public static FactorConnection open(String host, int port) throws
+            IOException {
+        return new FactorConnection(new Socket(host, port));
+    }
+
+    /**
+     * start
+     * Launches the thread that reads messages from this connection and
+     * passes them to handler.
+     *
+     * @param handler what to do with each message
+     */
+    public void start(FactorPeer.Handler handler) {
+        readThread = FactorThreads.start("factor-reader-" + this, new
+                ConnectionReader(handler));
+    }
+
+    /**
+     * fork
+     * Runs task on its own thread inside this connection's scope.  It is
+     * interrupted if the connection closes first.
+     *
+     * @param name the thread's name
+     * @param task the work to run
+     * @return the thread, or null if the connection is already closed
+     */
+    public Thread fork(String name, Runnable task) {
+
+        if (closed) {
+            return null;
+        }
+
+        Thread[] self = new Thread[1];
+        synchronized (scope) {
+            self[0] = FactorThreads.start(name, () -> {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (scope) {
+                        scope.remove(Thread.currentThread());
+                    }
+                }
+            });
+            if (self[0].isAlive()) {
+                scope.add(self[0]);
+            }
+        }
+        if (closed) {
+            self[0].interrupt();
+        }
+        return self[0];
+
+    } /*fork*/
+
+    /**
+     * send
+     * Writes a message to the other side.  The caller may keep changing
+     * data afterwards, the frame holds a copy of what was sent.
+     *
+     * @param data the message to send
+     * @return true if the message was written
+     */
+    @Override
+    public synchronized boolean send(FactorData data) {
+
+        if (closed) {
+            return false;
+        }
+
+        try {
+            outputStream.write(encoder.encode(data));
+            outputStream.flush();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return false;
+        }
+
+    } /*send*/
+
+    /**
+     * close
+     * Closes the connection.  The reader thread notices and stops.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Thread thread : scope) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * isClosed
+     * returns whether this connection has been closed by either side
+     *
+     * @return true once the connection is closed
+     */
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * getHostAddress
+     * returns the address of the machine on the other end
+     *
+     * @return the other machine's address
+     */
+    @Override
+    public String getHostAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public String toString() {
+        return socket.getInetAddress().getHostAddress() + ":" + socket
+                .getPort();
+    }
+
+    // ConnectionReader
+    // Reads messages until the connection closes.
+    private class ConnectionReader implements Runnable {
+
+        private FactorPeer.Handler handler;
+
+        ConnectionReader(FactorPeer.Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream inputStream = new BufferedInputStream(socket
+                        .getInputStream());
+                FactorWire.Decoder decoder = new FactorWire.Decoder();
+                while (!closed) {
+                    FactorData data = decoder.read(inputStream);
+                    handler.handle(data, FactorConnection.this);
+                }
+            } catch (EOFException | SocketException e) {
+                // the other side hung up
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+
+            // end the scope before reporting the close
+            closed = true;
+            for (Thread thread : scope) {
+                thread.interrupt();
+            }
+            for (Thread thread : scope) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            handler.closed(FactorConnection.this);
+        }
+    }
+}
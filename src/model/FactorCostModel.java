@@ -0,0 +1,417 @@
+package model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * FactorCostModel.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * How long each algorithm takes per step on this kind of machine.  The
+ * FactorPortfolio counts an algorithm's work in steps (trial divisions,
+ * Fermat steps, p-1 exponents, CFRAC's L(n)), and this turns steps into
+ * seconds.  Without it every step of every algorithm was guessed at a
+ * microsecond.
+ * <p>
+ * Run as 'java model.FactorCostModel' it calibrates: each kernel of
+ * FactorMath and FactorCFRAC is timed on semiprimes of several sizes, and
+ * for each algorithm a line is fitted through log(seconds per step)
+ * against log(bits).  The fit, and the timings behind it, are saved to
+ * factor-costs.properties (or -Dfactor.costs), where the server picks
+ * them up.  'java model.FactorCostModel -predict [n]' prints what the
+ * model expects of each algorithm on n before anything is run.
+ * <p>
+ * Clients on different hardware run at different speeds.  Calibrate on a
+ * machine like the ones the clients run on, since the model is what
+ * decides which algorithms they are given.
+ */
+
+public class FactorCostModel {
+
+    // what a step costs until the model is calibrated
+    public static final double DEFAULT_OPS_PER_SECOND = 1e6;
+
+    // file the model is kept in
+    public static final String DEFAULT_FILE = "factor-costs.properties";
+
+    // sizes each kernel is timed at.  CFRAC factors its test numbers
+    // outright, so it stops where that starts to take minutes
+    private static final int[] SEARCH_BITS = {48, 64, 96, 128, 192, 256};
+    private static final int[] CFRAC_BITS = {48, 56, 64, 72, 80};
+
+    // per algorithm, log seconds per step = alpha + beta log bits
+    private Map<FactorType, double[]> fits = new EnumMap<>(FactorType
+            .class);
+
+    // the timings the fits came from: bits, seconds per step
+    private Map<FactorType, List<double[]>> samples = new EnumMap<>
+            (FactorType.class);
+
+    private String calibrated; // when and where, null if never
+
+    // the calibrating machine's benchmark score, 0 if unknown, so a
+    // client's score says how much faster or slower than it it runs
+    private long score;
+
+    // the number benchmark times trial division on, the same everywhere
+    private static final BigInteger BENCHMARK_NUM = BigInteger
+            .probablePrime(63, new Random(49)).multiply(BigInteger
+                    .probablePrime(65, new Random(50)));
+
+    /**
+     * FactorCostModel
+     * Creates an uncalibrated model, DEFAULT_OPS_PER_SECOND for every
+     * algorithm at every size.
+     */
+    public FactorCostModel() {
+        for (FactorType type : FactorPortfolio.ALGORITHMS) {
+            fits.put(type, new double[]{-Math.log(DEFAULT_OPS_PER_SECOND),
+                    0});
+            samples.put(type, new ArrayList<>());
+        }
+    }
+
+    /**
+     * main
+     * Calibrates the model and saves it, or with -predict, prints what it
+     * expects of a number.
+     *
+     * @param args [seconds per measurement], or -predict [n]
+     */
+    public static void main(String[] args) {
+
+        if (args.length > 1 && args[0].equals("-predict")) {
+            FactorCostModel model = load();
+            BigInteger n = new BigInteger(args[1]);
+            System.out.println(model.describe());
+            System.out.print(new FactorPortfolio(n.bitLength(), model)
+                    .forecast());
+            return;
+        }
+
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 0.5;
+        FactorCostModel model = new FactorCostModel();
+        model.calibrate((long) (seconds * 1e9), new Random());
+        File file = file();
+        try {
+            model.save(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println(model.describe());
+        System.out.println("Saved to " + file);
+
+    } /*main*/
+
+    /**
+     * load
+     * Reads the model the last calibration saved.
+     *
+     * @return the model, uncalibrated if nothing was saved
+     */
+    public static FactorCostModel load() {
+        FactorCostModel model = new FactorCostModel();
+        File file = file();
+        if (!file.exists()) {
+            return model;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            Properties saved = new Properties();
+            saved.load(in);
+            for (FactorType type : FactorPortfolio.ALGORITHMS) {
+                String alpha = saved.getProperty(type.name() + ".alpha");
+                String beta = saved.getProperty(type.name() + ".beta");
+                if (alpha != null && beta != null) {
+                    model.fits.put(type, new double[]{Double.parseDouble
+                            (alpha), Double.parseDouble(beta)});
+                }
+                String timings = saved.getProperty(type.name() + ".samples",
+                        "");
+                for (String sample : timings.split(",")) {
+                    String[] parts = sample.split(":");
+                    if (parts.length == 2) {
+                        model.samples.get(type).add(new double[]{Double
+                                .parseDouble(parts[0]), Double.parseDouble
+                                (parts[1])});
+                    }
+                }
+            }
+            model.calibrated = saved.getProperty("calibrated");
+            model.score = Long.parseLong(saved.getProperty("score", "0"));
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace(); // fall back to the defaults
+            return new FactorCostModel();
+        }
+        return model;
+    }
+
+    /**
+     * save
+     * Writes the model where load will find it.
+     *
+     * @param file the file to write
+     * @throws IOException if it cannot be written
+     */
+    public void save(File file) throws IOException {
+        Properties out = new Properties();
+        for (FactorType type : FactorPortfolio.ALGORITHMS) {
+            double[] fit = fits.get(type);
+            out.setProperty(type.name() + ".alpha", Double.toString(fit[0]));
+            out.setProperty(type.name() + ".beta", Double.toString(fit[1]));
+            StringBuilder timings = new StringBuilder();
+            for (double[] sample : samples.get(type)) {
+                timings.append(timings.length() > 0 ? "," : "").append((int)
+                        sample[0]).append(':').append(sample[1]);
+            }
+            out.setProperty(type.name() + ".samples", timings.toString());
+        }
+        if (calibrated != null) {
+            out.setProperty("calibrated", calibrated);
+        }
+        out.setProperty("score", Long.toString(score));
+        try (OutputStream stream = new FileOutputStream(file)) {
+            out.store(stream, "seconds per step: exp(alpha + beta ln bits)");
+        }
+    }
+
+    /**
+     * secondsPerStep
+     * returns how long one step of an algorithm takes on a number of the
+     * given size
+     *
+     * @param type the algorithm
+     * @param bits the number's bit length
+     * @return the seconds
+     */
+    public double secondsPerStep(FactorType type, int bits) {
+        double[] fit = fits.get(FactorType.asWorker(type));
+        if (fit == null) {
+            return 1 / DEFAULT_OPS_PER_SECOND;
+        }
+        return Math.exp(fit[0] + fit[1] * Math.log(Math.max(8, bits)));
+    }
+
+    /**
+     * isCalibrated
+     * returns whether the model comes from timings rather than defaults
+     *
+     * @return true once calibrated
+     */
+    public boolean isCalibrated() {
+        return calibrated != null;
+    }
+
+    /**
+     * getScore
+     * returns the benchmark score of the machine the model was calibrated
+     * on
+     *
+     * @return trial divisions a second, 0 if unknown
+     */
+    public long getScore() {
+        return score;
+    }
+
+    /**
+     * benchmark
+     * Times trial division on a fixed 128 bit number on one thread.  The
+     * clients run it as they start and report the score, so the server
+     * can tell a fast machine from a slow one before either has finished
+     * a unit.
+     *
+     * @param millis about how long to run
+     * @return trial divisions a second
+     */
+    public static long benchmark(long millis) {
+        long steps = 0;
+        long start = System.nanoTime();
+        long end = start + millis * 1_000_000;
+        BigInteger from = BigInteger.valueOf(3);
+        BigInteger span = BigInteger.valueOf(4096);
+        while (System.nanoTime() < end) {
+            FactorMath.findFactorTD2(BENCHMARK_NUM, from, from.add(span));
+            from = from.add(span);
+            steps += 4096;
+        }
+        return (long) (steps / Math.max(1e-9, (System.nanoTime() - start) /
+                                              1e9));
+    }
+
+    /**
+     * record
+     * Adds a timing and fits the algorithm's line again.
+     *
+     * @param type           the algorithm
+     * @param bits           the size of the number it was timed on
+     * @param secondsPerStep what one step took
+     */
+    public void record(FactorType type, int bits, double secondsPerStep) {
+        List<double[]> points = samples.get(FactorType.asWorker(type));
+        points.add(new double[]{bits, secondsPerStep});
+        fits.put(FactorType.asWorker(type), fit(points));
+    }
+
+    // fit
+    // least squares through (log bits, log seconds per step).  A step
+    // never gets cheaper on a bigger number, so a falling line, which
+    // comes of L(n) outgrowing CFRAC at the sizes it can be timed at, is
+    // flattened to the mean.  A single timing gives a flat line too
+    private static double[] fit(List<double[]> points) {
+        double n = points.size();
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (double[] point : points) {
+            double x = Math.log(point[0]);
+            double y = Math.log(point[1]);
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+        }
+        double spread = n * sxx - sx * sx;
+        double beta = spread > 1e-12 ? (n * sxy - sx * sy) / spread : 0;
+        beta = Math.max(0, beta);
+        return new double[]{(sy - beta * sx) / n, beta};
+    }
+
+    /**
+     * calibrate
+     * Times every kernel at each of its sizes, replacing what the model
+     * held.
+     *
+     * @param target how long to make each measurement, in nanos
+     * @param random where the test numbers come from
+     */
+    public void calibrate(long target, Random random) {
+
+        for (FactorType type : FactorPortfolio.ALGORITHMS) {
+            samples.get(type).clear();
+            int[] sizes = type == FactorType.CFRAC ? CFRAC_BITS : SEARCH_BITS;
+            for (int bits : sizes) {
+                double perStep = time(type, bits, target, random);
+                if (perStep > 0) {
+                    record(type, bits, perStep);
+                    System.out.printf("%-9s %4d bits  %.3g s/step%n",
+                            FactorType.toString(type), bits, perStep);
+                }
+            }
+        }
+        score = benchmark(1000);
+        String host = "unknown";
+        try {
+            host = java.net.InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        calibrated = new java.util.Date() + " on " + host + ", " + Runtime
+                .getRuntime().availableProcessors() + " cores";
+
+    } /*calibrate*/
+
+    /**
+     * time
+     * Measures one kernel at one size.  The search kernels are run on a
+     * range that doubles until a run takes target, or until it would reach
+     * a factor.  CFRAC is run until it factors the number, and its time is
+     * spread over L(n) steps, the count FactorPortfolio uses for it.
+     *
+     * @param type   the algorithm
+     * @param bits   the size of the test number
+     * @param target how long a measurement should take, in nanos
+     * @param random where the test number comes from
+     * @return seconds per step, or 0 if it could not be measured
+     */
+    private static double time(FactorType type, int bits, long target,
+                               Random random) {
+
+        // the search kernels must not meet a factor, so the smaller one
+        // sits above any range timed from below, and well away from
+        // sqrt n for the ones that start there
+        BigInteger p = BigInteger.probablePrime(type == FactorType.TD2 ?
+                bits / 2 - 1 : bits / 3, random);
+        BigInteger q = BigInteger.probablePrime(bits - p.bitLength(),
+                random);
+        BigInteger n = p.multiply(q);
+        BigInteger root = FactorMath.sqrt(n)[0];
+
+        if (type == FactorType.CFRAC) {
+            long start = System.nanoTime();
+            int[] multipliers = FactorCFRAC.multipliers(n);
+            BigInteger factor = null;
+            for (int i = 0; factor == null && i < multipliers.length; i++) {
+                factor = FactorCFRAC.findFactorCFRAC(n, multipliers[i],
+                        FactorCFRAC.defaultSteps(n));
+            }
+            if (factor == null) {
+                return 0;
+            }
+            return (System.nanoTime() - start) / 1e9 / FactorPortfolio
+                    .windowSteps(type, bits);
+        }
+
+        // the search ranges stay clear of the factors, and of zero
+        int limit = type == FactorType.TD2 ? p.bitLength() - 2 : type ==
+                FactorType.TDRN ? root.bitLength() - 2 : 40;
+        double perStep = 0;
+        for (long span = 1024; BigInteger.valueOf(span).bitLength() <= limit;
+             span *= 2) {
+            BigInteger steps = BigInteger.valueOf(span);
+            long start = System.nanoTime();
+            if (type == FactorType.TD2) {
+                FactorMath.findFactorTD2(n, BigInteger.valueOf(3), steps);
+            } else if (type == FactorType.TDRN) {
+                FactorMath.findFactorTDRN(n, root.subtract(steps), root);
+            } else if (type == FactorType.FERMAT) {
+                FactorMath.findFactorFermat(n, root.add(BigInteger.ONE),
+                        span);
+            } else {
+                FactorMath.findFactorPollards(n, BigInteger.valueOf(2),
+                        BigInteger.ONE, steps);
+            }
+            long took = System.nanoTime() - start;
+            perStep = took / 1e9 / span;
+            if (took >= target) {
+                break;
+            }
+        }
+        return perStep;
+
+    } /*time*/
+
+    /**
+     * describe
+     * returns what the model says, one algorithm a line
+     *
+     * @return the description
+     */
+    public String describe() {
+        StringBuilder out = new StringBuilder(calibrated == null ?
+                "Cost model: not calibrated, run 'java model.FactorCostModel'"
+                : "Cost model: calibrated " + calibrated + ", score " +
+                  score);
+        for (FactorType type : FactorPortfolio.ALGORITHMS) {
+            out.append(String.format("%n  %-9s %.3g s/step at 64 bits, " +
+                                     "%.3g at 256", FactorType.toString(type),
+                    secondsPerStep(type, 64), secondsPerStep(type, 256)));
+        }
+        return out.toString();
+    }
+
+    // file
+    // where the model is kept
+    private static File file() {
+        return new File(System.getProperty("factor.costs", DEFAULT_FILE));
+    }
+}
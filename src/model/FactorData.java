@@ -49,6 +49,42 @@ public class FactorData implements Serializable {
     private BigInteger upperBoundP; // upper bound for polard's
     private BigInteger boundAmount; // last used bound value
 
+    // data for CFRAC
+    private int cfracRank; // which multiplier to use, 0 is the best
+
+    // which work unit this is, so a sub-server can match up the answer
+    private long unitId;
+
+    // how many values Fermat's tries in one unit
+    private long attempts = 1000;
+
+    // how many units a client works on at once, and how many more it
+    // keeps queued so its workers never wait on the network
+    private int workers = 1;
+    private int prefetch = 0;
+
+    // how long the client spent computing a unit, not counting its time
+    // in the queue
+    private long workMillis;
+
+    // which job this belongs to, and which value of that job's n.  The
+    // epoch goes up each time n changes, so a result for an older n is
+    // told apart without looking at n
+    private long jobId;
+    private long epoch;
+
+    // the job this one was split from, so work on it carries over
+    private long parentId;
+
+    // the job's share of the clients, higher gets more
+    private int priority = 1;
+
+    // what the client that sent this runs on, reported as it joins
+    private int cores;
+    private int heapMegabytes;
+    private String jvmVersion;
+    private long score; // its FactorCostModel benchmark, 0 if unknown
+
     /**
      * FactorData
      * This constructor initializes the default values used for all of the
@@ -316,7 +352,20 @@ public class FactorData implements Serializable {
      */
     public long getAttempts() {
 
-        return (long) 1000;
+        return attempts;
+
+    }
+
+    /**
+     * setAttempts
+     * sets the number of attempts to make using Fermat's, which the
+     * sub-server sizes to how fast the client is
+     *
+     * @param attempts attempts to make
+     */
+    public void setAttempts(long attempts) {
+
+        this.attempts = attempts;
 
     }
 
@@ -451,6 +500,27 @@ public class FactorData implements Serializable {
         this.clientAddress = clientAddress;
     }
 
+    /**
+     * getCFRACRank
+     * Returns which multiplier CFRAC should use, as an index into the list
+     * of multipliers ranked by FactorCFRAC.multipliers.
+     *
+     * @return the rank of the CFRAC multiplier
+     */
+    public int getCFRACRank() {
+        return cfracRank;
+    }
+
+    /**
+     * setCFRACRank
+     * Set which ranked multiplier CFRAC should use
+     *
+     * @param cfracRank the rank of the multiplier, 0 is the best
+     */
+    public void setCFRACRank(int cfracRank) {
+        this.cfracRank = cfracRank;
+    }
+
     /**
      * getBoundAmount
      * returns the bound used for Pollard's
@@ -470,4 +540,350 @@ public class FactorData implements Serializable {
     public void setBoundAmount(BigInteger boundAmount) {
         this.boundAmount = boundAmount;
     }
+
+    /**
+     * getUnitId
+     * Returns the id the sub-server gave this unit of work when it handed
+     * it out, 0 if it has none.
+     *
+     * @return the work unit's id
+     */
+    public long getUnitId() {
+        return unitId;
+    }
+
+    /**
+     * setUnitId
+     * Sets the id of the work unit this data describes
+     *
+     * @param unitId the work unit's id
+     */
+    public void setUnitId(long unitId) {
+        this.unitId = unitId;
+    }
+
+    /**
+     * getWorkers
+     * Returns how many units the client that sent this can work on at
+     * once, 1 unless it said otherwise.
+     *
+     * @return the client's worker count
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * setWorkers
+     * Sets how many units the sending client can work on at once
+     *
+     * @param workers the client's worker count
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * getPrefetch
+     * Returns how many units the client that sent this wants queued on
+     * top of the ones its workers are running.
+     *
+     * @return the client's queue depth
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * setPrefetch
+     * Sets how many units the sending client wants queued ahead
+     *
+     * @param prefetch the client's queue depth
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * getWorkMillis
+     * Returns how long the client computed on this unit, 0 if unknown.
+     *
+     * @return the unit's compute time in milliseconds
+     */
+    public long getWorkMillis() {
+        return workMillis;
+    }
+
+    /**
+     * setWorkMillis
+     * Sets how long the client computed on this unit
+     *
+     * @param workMillis the unit's compute time in milliseconds
+     */
+    public void setWorkMillis(long workMillis) {
+        this.workMillis = workMillis;
+    }
+
+    /**
+     * getJobId
+     * Returns the id of the job this data belongs to, 0 if none.
+     *
+     * @return the job's id
+     */
+    public long getJobId() {
+        return jobId;
+    }
+
+    /**
+     * setJobId
+     * Sets the id of the job this data belongs to
+     *
+     * @param jobId the job's id
+     */
+    public void setJobId(long jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * getEpoch
+     * Returns which value of the job's n this data was made for.  Each new
+     * n has a higher epoch than the last.
+     *
+     * @return the epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * setEpoch
+     * Sets which value of the job's n this data was made for
+     *
+     * @param epoch the epoch
+     */
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * getParentId
+     * Returns the id of the job this job was split from, 0 if none.
+     *
+     * @return the parent job's id
+     */
+    public long getParentId() {
+        return parentId;
+    }
+
+    /**
+     * setParentId
+     * Sets the id of the job this job was split from
+     *
+     * @param parentId the parent job's id
+     */
+    public void setParentId(long parentId) {
+        this.parentId = parentId;
+    }
+
+    /**
+     * getPriority
+     * Returns the priority of the job this data belongs to, 1 unless it was
+     * given another.
+     *
+     * @return the job's priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * setPriority
+     * Sets the priority of the job this data belongs to
+     *
+     * @param priority the job's priority
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * getCores
+     * Returns how many processors the sending client's machine has, 0 if
+     * it did not say.
+     *
+     * @return the client's processor count
+     */
+    public int getCores() {
+        return cores;
+    }
+
+    /**
+     * setCores
+     * Sets how many processors the sending client's machine has
+     *
+     * @param cores the client's processor count
+     */
+    public void setCores(int cores) {
+        this.cores = cores;
+    }
+
+    /**
+     * getHeapMegabytes
+     * Returns the most memory the sending client's JVM will use, 0 if it
+     * did not say.
+     *
+     * @return the client's maximum heap in megabytes
+     */
+    public int getHeapMegabytes() {
+        return heapMegabytes;
+    }
+
+    /**
+     * setHeapMegabytes
+     * Sets the most memory the sending client's JVM will use
+     *
+     * @param heapMegabytes the client's maximum heap in megabytes
+     */
+    public void setHeapMegabytes(int heapMegabytes) {
+        this.heapMegabytes = heapMegabytes;
+    }
+
+    /**
+     * getJvmVersion
+     * Returns the Java version the sending client runs, null if it did
+     * not say.
+     *
+     * @return the client's java.version
+     */
+    public String getJvmVersion() {
+        return jvmVersion;
+    }
+
+    /**
+     * setJvmVersion
+     * Sets the Java version the sending client runs
+     *
+     * @param jvmVersion the client's java.version
+     */
+    public void setJvmVersion(String jvmVersion) {
+        this.jvmVersion = jvmVersion;
+    }
+
+    /**
+     * getScore
+     * Returns the sending client's benchmark score, trial divisions a
+     * second on one thread, 0 if it did not say.
+     *
+     * @return the client's score
+     */
+    public long getScore() {
+        return score;
+    }
+
+    /**
+     * setScore
+     * Sets the sending client's benchmark score
+     *
+     * @param score trial divisions a second on one thread
+     */
+    public void setScore(long score) {
+        this.score = score;
+    }
+
+    /*--------------------------------------------------------------*
+        Field access for FactorWire.  Every field except the message
+        has a fixed number on the wire, and FactorWire.FIELD_TYPES
+        says how each one is encoded.  New fields go on the end.
+     *--------------------------------------------------------------*/
+
+    static final int FIELDS = 30; // number of fields FactorWire sends
+
+    // getField
+    // returns the field with the given wire number
+    Object getField(int field) {
+        switch (field) {
+            case 0: return type;
+            case 1: return subservername;
+            case 2: return clientPort;
+            case 3: return clientAddress;
+            case 4: return num;
+            case 5: return rootNum;
+            case 6: return factor;
+            case 7: return lowerBoundTD;
+            case 8: return upperBoundTD;
+            case 9: return fermatStartVal;
+            case 10: return twoToImodN;
+            case 11: return base;
+            case 12: return startP;
+            case 13: return lowerBoundP;
+            case 14: return upperBoundP;
+            case 15: return boundAmount;
+            case 16: return cfracRank;
+            case 17: return unitId;
+            case 18: return attempts;
+            case 19: return workers;
+            case 20: return prefetch;
+            case 21: return workMillis;
+            case 22: return jobId;
+            case 23: return epoch;
+            case 24: return parentId;
+            case 25: return priority;
+            case 26: return cores;
+            case 27: return heapMegabytes;
+            case 28: return jvmVersion;
+            case 29: return score;
+            default:
+                throw new IllegalArgumentException("no field " + field);
+        }
+    }
+
+    // setField
+    // sets the field with the given wire number
+    void setField(int field, Object value) {
+        switch (field) {
+            case 0: type = (FactorType) value; break;
+            case 1: subservername = (String) value; break;
+            case 2: clientPort = (Integer) value; break;
+            case 3: clientAddress = (String) value; break;
+            case 4: num = (BigInteger) value; break;
+            case 5: rootNum = (BigInteger) value; break;
+            case 6: factor = (BigInteger) value; break;
+            case 7: lowerBoundTD = (BigInteger) value; break;
+            case 8: upperBoundTD = (BigInteger) value; break;
+            case 9: fermatStartVal = (BigInteger) value; break;
+            case 10: twoToImodN = (BigInteger) value; break;
+            case 11: base = (BigInteger) value; break;
+            case 12: startP = (BigInteger) value; break;
+            case 13: lowerBoundP = (BigInteger) value; break;
+            case 14: upperBoundP = (BigInteger) value; break;
+            case 15: boundAmount = (BigInteger) value; break;
+            case 16: cfracRank = (Integer) value; break;
+            case 17: unitId = (Long) value; break;
+            case 18: attempts = (Long) value; break;
+            case 19: workers = (Integer) value; break;
+            case 20: prefetch = (Integer) value; break;
+            case 21: workMillis = (Long) value; break;
+            case 22: jobId = (Long) value; break;
+            case 23: epoch = (Long) value; break;
+            case 24: parentId = (Long) value; break;
+            case 25: priority = (Integer) value; break;
+            case 26: cores = (Integer) value; break;
+            case 27: heapMegabytes = (Integer) value; break;
+            case 28: jvmVersion = (String) value; break;
+            case 29: score = (Long) value; break;
+            default:
+                throw new IllegalArgumentException("no field " + field);
+        }
+    }
+
+    // copy
+    // returns a new FactorData holding the same values
+    FactorData copy() {
+        FactorData copy = new FactorData(null);
+        for (int i = 0; i < FIELDS; i++) {
+            copy.setField(i, getField(i));
+        }
+        copy.message = message;
+        return copy;
+    }
 }
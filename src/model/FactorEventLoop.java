@@ -0,0 +1,445 @@
+package model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FactorEventLoop.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Serves every connection to a listening port from one selector thread
+ * instead of a thread per connection.  The selector thread accepts, reads
+ * into a direct buffer per connection and cuts the bytes into FactorWire
+ * frames.  Decoded messages go to a small pool of worker threads, which
+ * run the handler.  Messages from one peer are handled one at a time and
+ * in order, while different peers are handled in parallel.
+ * <p>
+ * Sends try to write straight to the channel from the calling thread.
+ * Whatever the socket will not take right away is kept in the peer's
+ * output buffer and written by the selector thread once the socket is
+ * writable again.
+ */
+
+public class FactorEventLoop implements FactorListener, Runnable {
+
+    // pending connections the OS will hold before refusing more
+    public static final int BACKLOG = 1024;
+
+    // starting size of each connection's buffers, they grow when a frame
+    // needs more.  Most frames are well under 100 bytes.
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private Selector selector;
+    private ServerSocketChannel listen;
+    private ExecutorService workers;
+    private FactorPeer.Handler handler;
+    private volatile boolean running = true;
+
+    // peers waiting for the selector thread to watch them for writes
+    private final Queue<Peer> wantWrite = new ArrayDeque<>();
+
+    /**
+     * FactorEventLoop
+     * Binds the port.  Nothing is accepted until start is called.
+     *
+     * @param port    the port to listen on, 0 for any free port
+     * @param threads number of worker threads running the handler
+     * @param handler what to do with each message
+     * @throws IOException if the port cannot be bound
+     */
+    public FactorEventLoop(int port, int threads, FactorPeer.Handler
+            handler) throws IOException {
+
+        this.handler = handler;
+        selector = Selector.open();
+        listen = ServerSocketChannel.open();
+        listen.socket().setReuseAddress(true);
+        listen.bind(new InetSocketAddress(port), BACKLOG);
+        listen.configureBlocking(false);
+        listen.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "factor-worker-" + count
+                    .incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+    }
+
+    /**
+     * start
+     * Starts the selector thread.
+     */
+    @Override
+    public void start() {
+        new Thread(this, "factor-selector").start();
+    }
+
+    /**
+     * getPort
+     * returns the port this loop is bound to
+     *
+     * @return the local port
+     */
+    @Override
+    public int getPort() {
+        return listen.socket().getLocalPort();
+    }
+
+    /**
+     * close
+     * Stops accepting, closes every connection and the worker pool.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * run
+     * The selector loop.  Accepts, reads, and finishes writes until close
+     * is called.
+     */
+    @Override
+    public void run() {
+
+        try {
+            while (running) {
+                selector.select();
+
+                // register write interest asked for by other threads
+                synchronized (wantWrite) {
+                    Peer peer;
+                    while ((peer = wantWrite.poll()) != null) {
+                        peer.watchWrites();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((Peer) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Peer) key.attachment()).flush();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // peer closed while we looked at it
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Peer) {
+                ((Peer) key.attachment()).close();
+            }
+        }
+        try {
+            listen.close();
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        workers.shutdown();
+
+    } /*run*/
+
+    // accept
+    // takes every connection waiting on the listening socket
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = listen.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Peer peer = new Peer(channel);
+            peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+        }
+    }
+
+    // Peer
+    // One accepted connection: its buffers, its wire state, and the queue
+    // of decoded messages waiting for a worker.
+    private class Peer implements FactorPeer, Runnable {
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String address;
+        private String name;
+
+        private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private byte[] frame = new byte[256];
+        private FactorWire.Decoder decoder = new FactorWire.Decoder();
+
+        private ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private FactorWire.Encoder encoder = new FactorWire.Encoder();
+
+        // messages read but not yet handled, and whether a worker owns them
+        private final Queue<FactorData> inbox = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean closeHandled = false;
+
+        private volatile boolean closed = false;
+
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+            address = channel.socket().getInetAddress().getHostAddress();
+            name = address + ":" + channel.socket().getPort();
+            out.flip(); // out is kept ready for writing to the channel
+        }
+
+        // read
+        // called on the selector thread when the channel has bytes
+        void read() {
+            int count;
+            try {
+                count = channel.read(in);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+
+            in.flip();
+            try {
+                while (true) {
+                    in.mark();
+                    long length = readLength();
+                    if (length < 0 || in.remaining() < length) {
+                        in.reset();
+                        break;
+                    }
+
+                    int size = (int) length;
+                    if (frame.length < size) {
+                        frame = new byte[Math.max(size, 2 * frame.length)];
+                    }
+                    in.get(frame, 0, size);
+                    deliver(decoder.decode(frame, 0, size));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+                return;
+            }
+            in.compact();
+
+            // make room for a frame bigger than the buffer
+            if (!in.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(2 * in
+                        .capacity());
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+        }
+
+        // readLength
+        // reads a frame's length prefix, or returns -1 if it isn't all here
+        private long readLength() throws IOException {
+            long length = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (!in.hasRemaining()) {
+                    return -1;
+                }
+                int b = in.get() & 0xff;
+                length |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (length > FactorWire.MAX_FRAME) {
+                        throw new IOException("frame of " + length + " bytes" +
+                                              " is too large");
+                    }
+                    return length;
+                }
+            }
+            throw new IOException("bad frame length");
+        }
+
+        // deliver
+        // queues a message and hands the peer to a worker if none has it
+        private void deliver(FactorData data) {
+            synchronized (inbox) {
+                inbox.add(data);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            workers.execute(this);
+        }
+
+        // run
+        // on a worker: handle queued messages in order until none are left
+        @Override
+        public void run() {
+            while (true) {
+                FactorData data;
+                boolean hangUp = false;
+                synchronized (inbox) {
+                    data = inbox.poll();
+                    if (data == null) {
+                        if (closed && !closeHandled) {
+                            closeHandled = true;
+                            hangUp = true;
+                        } else {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                }
+
+                try {
+                    if (hangUp) {
+                        handler.closed(this);
+                    } else {
+                        handler.handle(data, this);
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public boolean send(FactorData data) {
+
+            if (closed) {
+                return false;
+            }
+
+            synchronized (this) {
+                byte[] bytes = encoder.encode(data);
+
+                // add the frame behind whatever is still unsent
+                out.compact();
+                if (out.remaining() < bytes.length) {
+                    ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(2 *
+                            out.capacity(), out.position() + bytes.length));
+                    out.flip();
+                    bigger.put(out);
+                    out = bigger;
+                }
+                out.put(bytes);
+                out.flip();
+
+                if (!write()) {
+                    return false;
+                }
+                if (out.hasRemaining()) {
+                    synchronized (wantWrite) {
+                        wantWrite.add(this);
+                    }
+                    selector.wakeup();
+                }
+            }
+            return true;
+
+        } /*send*/
+
+        // write
+        // writes as much of the output buffer as the socket will take
+        private boolean write() {
+            try {
+                while (out.hasRemaining()) {
+                    if (channel.write(out) == 0) {
+                        break;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        // watchWrites
+        // on the selector thread, asks to hear when the socket can take more
+        void watchWrites() {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        // flush
+        // on the selector thread, the socket can take more output
+        synchronized void flush() {
+            write();
+            if (!out.hasRemaining() && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (inbox) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // tell the handler, after any messages still queued
+            synchronized (inbox) {
+                if (scheduled) {
+                    return; // the worker draining the inbox will do it
+                }
+                scheduled = true;
+            }
+            workers.execute(this);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public String getHostAddress() {
+            return address;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package model;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FactorHttp.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * A small HTTP front end on the server, so scripts can hand it numbers and
+ * collect the answers without anyone at its console.  It uses the HTTP
+ * server built into the JDK and answers in JSON:
+ * <pre>
+ *   POST   /jobs              queue numbers, one "n [priority]" per line
+ *                             of the body, or n= and priority= as form
+ *                             fields.  Answers with their ids
+ *   GET    /jobs              every job in the table
+ *   GET    /jobs/[id]         one job: state, primes found, times
+ *   GET    /jobs/[id]/factors the job's primes as plain text, one a line,
+ *                             sent as each is found.  The last line is
+ *                             DONE or CANCELLED
+ *   DELETE /jobs/[id]         cancel a job
+ *   POST   /start             the same as typing 'factor'
+ * </pre>
+ * A POST body over MAX_BODY bytes is refused with 413.
+ * <p>
+ * What it reports comes from a FactorJobTable, and what it changes goes
+ * through a Backend, which the server implements.  Each request runs on a
+ * thread of its own from FactorThreads, so a reader left waiting on a
+ * stream of factors holds no more than a parked virtual thread.
+ */
+
+public class FactorHttp {
+
+    // how long a stream of factors waits before checking on its reader
+    private static final long STREAM_POLL = 15000;
+
+    // the largest request body read, plenty for thousands of numbers
+    public static final int MAX_BODY = 1 << 20;
+
+    private HttpServer server;
+    private FactorJobTable table;
+    private Backend backend;
+
+    /**
+     * Backend
+     * What the HTTP front end does to the server.
+     */
+    public interface Backend {
+
+        /**
+         * submit
+         * Queues a number to be factored.
+         *
+         * @param num      the number
+         * @param priority its priority, higher goes first
+         * @return its job id, or -1 if there is no room for it
+         * @throws IllegalArgumentException if num has no prime factors
+         */
+        long submit(BigInteger num, int priority);
+
+        /**
+         * cancel
+         * Stops a job, whether it is running or waiting.
+         *
+         * @param id the job's id
+         * @return false if no such job is running or waiting
+         */
+        boolean cancel(long id);
+
+        /**
+         * start
+         * Starts factoring, once the clients have connected.
+         */
+        void start();
+    }
+
+    private FactorHttp(HttpServer server, FactorJobTable table, Backend
+            backend) {
+        this.server = server;
+        this.table = table;
+        this.backend = backend;
+    }
+
+    /**
+     * open
+     * Binds the front end to a port.  It does not answer until start is
+     * called.
+     *
+     * @param host    the address to listen on
+     * @param port    the port to listen on, 0 for any free one
+     * @param table   where job status is read from
+     * @param backend what submits and cancels jobs
+     * @return the front end
+     * @throws IOException if the port cannot be bound
+     */
+    public static FactorHttp open(InetAddress host, int port, FactorJobTable
+            table, Backend backend) throws IOException {
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(host,
+                port), 0);
+        FactorHttp http = new FactorHttp(server, table, backend);
+        server.createContext("/jobs", http::handleJobs);
+        server.createContext("/start", http::handleStart);
+        server.setExecutor(task -> FactorThreads.start("factor-http", task));
+        return http;
+
+    } /*open*/
+
+    /**
+     * start
+     * Starts answering requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * stop
+     * Stops answering requests and closes the port.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * getPort
+     * returns the port the front end is bound to
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // handleJobs
+    // everything under /jobs
+    private void handleJobs(HttpExchange exchange) throws IOException {
+
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring(1)
+                    .split("/");
+
+            if (!path[0].equals("jobs") || path.length > 3) {
+                reply(exchange, 404, error("no such resource"));
+            } else if (path.length == 1 && method.equals("POST")) {
+                submit(exchange);
+            } else if (path.length == 1 && method.equals("GET")) {
+                StringBuilder out = new StringBuilder("[");
+                for (FactorJobTable.Entry entry : table.list()) {
+                    if (out.length() > 1) {
+                        out.append(",\n");
+                    }
+                    out.append(toJson(entry));
+                }
+                reply(exchange, 200, out.append("]").toString());
+            } else if (path.length > 1) {
+                long id;
+                try {
+                    id = Long.parseLong(path[1]);
+                } catch (NumberFormatException e) {
+                    reply(exchange, 404, error("no such job"));
+                    return;
+                }
+                FactorJobTable.Entry entry = table.get(id);
+                if (entry == null) {
+                    reply(exchange, 404, error("no such job"));
+                } else if (path.length == 3 && path[2].equals("factors") &&
+                           method.equals("GET")) {
+                    stream(exchange, id);
+                } else if (path.length == 3) {
+                    reply(exchange, 404, error("no such resource"));
+                } else if (method.equals("GET")) {
+                    reply(exchange, 200, toJson(entry));
+                } else if (method.equals("DELETE")) {
+                    if (backend.cancel(id)) {
+                        FactorJobTable.Entry now = table.get(id);
+                        reply(exchange, 200, toJson(now != null ? now :
+                                entry));
+                    } else {
+                        reply(exchange, 409, error("job is " + entry
+                                .getState().toString().toLowerCase()));
+                    }
+                } else {
+                    reply(exchange, 405, error("method not allowed"));
+                }
+            } else {
+                reply(exchange, 405, error("method not allowed"));
+            }
+        } finally {
+            exchange.close();
+        }
+
+    } /*handleJobs*/
+
+    // handleStart
+    // POST /start, the same as typing 'factor'
+    private void handleStart(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestMethod().equals("POST")) {
+                backend.start();
+                reply(exchange, 200, "{\"started\": true}");
+            } else {
+                reply(exchange, 405, error("method not allowed"));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * submit
+     * Queues the numbers in a POST to /jobs.  A bad line refuses the whole
+     * request before anything is queued.  If the table fills part way,
+     * the ids queued so far are still returned.
+     *
+     * @param exchange the request
+     * @throws IOException if the reply cannot be sent
+     */
+    private void submit(HttpExchange exchange) throws IOException {
+
+        byte[] bytes = readAll(exchange.getRequestBody(), MAX_BODY);
+        if (bytes == null) {
+            reply(exchange, 413, error("request body is over " + MAX_BODY +
+                                       " bytes"));
+            return;
+        }
+        String body = new String(bytes, StandardCharsets.UTF_8);
+        String query = exchange.getRequestURI().getRawQuery();
+
+        // form fields in the query or body, or one number a line
+        List<BigInteger> nums = new ArrayList<>();
+        List<Integer> priorities = new ArrayList<>();
+        try {
+            Map<String, String> form = parseForm(query != null ? query :
+                    body.contains("=") ? body.trim() : "");
+            if (form.containsKey("n")) {
+                nums.add(new BigInteger(form.get("n").trim()));
+                priorities.add(form.containsKey("priority") ? Integer
+                        .parseInt(form.get("priority").trim()) : 1);
+            } else {
+                for (String line : body.split("\n")) {
+                    String[] words = line.trim().split("\\s+");
+                    if (words[0].isEmpty()) {
+                        continue;
+                    }
+                    nums.add(new BigInteger(words[0]));
+                    priorities.add(words.length > 1 ? Integer.parseInt
+                            (words[1]) : 1);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // bad numbers, and bad % escapes in the form fields
+            reply(exchange, 400, error("expected 'n [priority]' lines or " +
+                                       "n= and priority= fields"));
+            return;
+        }
+        // checked again by the backend, but a bad line here should refuse
+        // the whole request before any of it is queued
+        for (BigInteger num : nums) {
+            if (num.compareTo(BigInteger.ONE) <= 0) {
+                reply(exchange, 400, error(num + " has no prime factors"));
+                return;
+            }
+        }
+        if (nums.isEmpty()) {
+            reply(exchange, 400, error("no numbers given"));
+            return;
+        }
+
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < nums.size(); i++) {
+            long id = backend.submit(nums.get(i), priorities.get(i));
+            if (id < 0) {
+                reply(exchange, 503, "{\"ids\": [" + ids + "], \"error\": " +
+                                     "\"job table is full\"}");
+                return;
+            }
+            ids.append(ids.length() > 0 ? ", " : "").append(id);
+        }
+        if (nums.size() == 1) {
+            exchange.getResponseHeaders().set("Location", "/jobs/" + ids);
+        }
+        reply(exchange, 201, "{\"ids\": [" + ids + "]}");
+
+    } /*submit*/
+
+    /**
+     * stream
+     * Sends a job's primes one a line as they are found, ending with its
+     * final state.  Stops early if the reader hangs up.
+     *
+     * @param exchange the request
+     * @param id       the job's id
+     * @throws IOException if the reader hangs up
+     */
+    private void stream(HttpExchange exchange, long id) throws IOException {
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; " +
+                                                          "charset=utf-8");
+        exchange.sendResponseHeaders(200, 0); // chunked
+        OutputStream out = exchange.getResponseBody();
+
+        int seen = 0;
+        while (true) {
+            FactorJobTable.Entry entry;
+            try {
+                entry = table.await(id, seen, STREAM_POLL);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (entry == null) {
+                return; // dropped from the table
+            }
+            List<BigInteger> factors = entry.getFactors();
+            StringBuilder lines = new StringBuilder();
+            for (; seen < factors.size(); seen++) {
+                lines.append(factors.get(seen)).append('\n');
+            }
+            if (entry.getState().isFinished()) {
+                lines.append(entry.getState()).append('\n');
+            }
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (entry.getState().isFinished()) {
+                return;
+            }
+        }
+
+    } /*stream*/
+
+    /**
+     * toJson
+     * Writes a job's status as a JSON object.  Numbers are written as
+     * strings, since most are too large for a JSON reader's doubles.
+     *
+     * @param entry the job's status
+     * @return the object
+     */
+    public static String toJson(FactorJobTable.Entry entry) {
+        StringBuilder out = new StringBuilder();
+        out.append("{\"id\": ").append(entry.getId());
+        out.append(", \"n\": \"").append(entry.getNum()).append('"');
+        out.append(", \"priority\": ").append(entry.getPriority());
+        out.append(", \"state\": \"").append(entry.getState().toString()
+                .toLowerCase()).append('"');
+        out.append(", \"factors\": [");
+        List<BigInteger> factors = entry.getFactors();
+        for (int i = 0; i < factors.size(); i++) {
+            out.append(i > 0 ? ", " : "").append('"').append(factors.get(i))
+                    .append('"');
+        }
+        out.append("], \"submitted\": ").append(entry.getSubmitted());
+        out.append(", \"started\": ").append(entry.getStarted());
+        out.append(", \"finished\": ").append(entry.getFinished());
+        return out.append('}').toString();
+    }
+
+    // error
+    // a JSON error message
+    private static String error(String message) {
+        return "{\"error\": \"" + message + "\"}";
+    }
+
+    // reply
+    // sends a whole JSON reply
+    private static void reply(HttpExchange exchange, int status, String
+            json) throws IOException {
+        byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.flush();
+    }
+
+    // parseForm
+    // splits "a=1&b=2" into its fields.  A bad % escape throws
+    // IllegalArgumentException
+    private static Map<String, String> parseForm(String form) throws
+            IOException {
+        Map<String, String> fields = new HashMap<>();
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                fields.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return fields;
+    }
+
+    // readAll
+    // reads a request body to the end, or null if it runs past limit
+    // bytes.  What is past the limit is not read, and the connection is
+    // closed with the exchange
+    private static byte[] readAll(InputStream in, int limit) throws
+            IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int r = in.read(buffer); r >= 0; r = in.read(buffer)) {
+            if (out.size() + r > limit) {
+                return null;
+            }
+            out.write(buffer, 0, r);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,288 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FactorJob.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * One number in the tree of numbers a run factors.  The root is the n the
+ * server was given.  A factor found for a job splits it into two children,
+ * the factor and the cofactor, and a child that is prime is a leaf of the
+ * final factorization.
+ * <p>
+ * Every composite leaf is a job of its own.  The server hands all of them
+ * to the sub-servers at once, so the pieces of n are factored side by
+ * side rather than one after another.  The factorization of n is the
+ * prime leaves, and it is complete once no composite leaves are left.
+ * <p>
+ * A root has a priority, which its pieces share.  The server admits
+ * waiting roots highest priority first, and the sub-servers give a job a
+ * share of the clients that grows with its priority.
+ */
+
+public class FactorJob {
+
+    private long id; // sent with every unit of this job
+    private long epoch; // the server's epoch when the job was made
+    private BigInteger num; // the number to factor
+    private FactorJob parent;
+    private List<FactorJob> children = new ArrayList<>();
+    private boolean prime;
+    private int priority = 1; // a job's share of the clients, see above
+
+    /**
+     * FactorJob
+     * Creates a job with no children.
+     *
+     * @param id     the job's id
+     * @param epoch  the epoch its units are stamped with
+     * @param num    the number to factor
+     * @param parent the job it was split from, null for the root
+     */
+    public FactorJob(long id, long epoch, BigInteger num, FactorJob parent) {
+        this.id = id;
+        this.epoch = epoch;
+        this.num = num;
+        this.parent = parent;
+        this.prime = num.isProbablePrime(100);
+        if (parent != null) {
+            priority = parent.priority;
+        }
+    }
+
+    /**
+     * getId
+     * returns the job's id
+     *
+     * @return the id
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * getEpoch
+     * returns the epoch the job's units are stamped with
+     *
+     * @return the epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * getNum
+     * returns the number this job factors
+     *
+     * @return the number
+     */
+    public BigInteger getNum() {
+        return num;
+    }
+
+    /**
+     * getParent
+     * returns the job this one was split from
+     *
+     * @return the parent, or null for the root
+     */
+    public FactorJob getParent() {
+        return parent;
+    }
+
+    /**
+     * getRoot
+     * returns the number this job is a piece of, as it was submitted
+     *
+     * @return the root of the tree
+     */
+    public FactorJob getRoot() {
+        FactorJob job = this;
+        while (job.parent != null) {
+            job = job.parent;
+        }
+        return job;
+    }
+
+    /**
+     * getPriority
+     * returns the job's priority, 1 unless it was given another
+     *
+     * @return the priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * setPriority
+     * Sets a root's priority.  Pieces split off after take it on.
+     *
+     * @param priority the priority, higher goes first
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * getChildren
+     * returns the jobs this one was split into
+     *
+     * @return the children, empty for a leaf
+     */
+    public List<FactorJob> getChildren() {
+        return children;
+    }
+
+    /**
+     * isPrime
+     * returns whether the number is prime, so the job needs no work
+     *
+     * @return true for a prime
+     */
+    public boolean isPrime() {
+        return prime;
+    }
+
+    /**
+     * isLeaf
+     * returns whether the job has not been split
+     *
+     * @return true if it has no children
+     */
+    public boolean isLeaf() {
+        return children.isEmpty();
+    }
+
+    /**
+     * divides
+     * returns whether factor is a proper divisor of this job's number
+     *
+     * @param factor the reported factor
+     * @return true if 1 < factor < num and factor divides num
+     */
+    public boolean divides(BigInteger factor) {
+        return factor != null && factor.compareTo(BigInteger.ONE) > 0 &&
+               factor.compareTo(num) < 0 && num.mod(factor).signum() == 0;
+    }
+
+    /**
+     * split
+     * Splits the job along a factor into two children, the factor and
+     * the cofactor.
+     *
+     * @param factor a proper divisor of the number
+     * @param nextId the id of the first child, the second gets nextId + 1
+     * @param epoch  the epoch for the children
+     * @return the two children
+     */
+    public List<FactorJob> split(BigInteger factor, long nextId, long epoch) {
+        addChild(nextId, epoch, factor);
+        addChild(nextId + 1, epoch, num.divide(factor));
+        return children;
+    }
+
+    /**
+     * addChild
+     * Adds one piece of the number below this job, e.g. an algebraic
+     * factor, or a factor read back from a journal.
+     *
+     * @param id    the child's id
+     * @param epoch the epoch for the child
+     * @param piece a divisor of the number
+     * @return the child
+     */
+    public FactorJob addChild(long id, long epoch, BigInteger piece) {
+        FactorJob child = new FactorJob(id, epoch, piece, this);
+        children.add(child);
+        return child;
+    }
+
+    /**
+     * leaves
+     * returns every number below this job that has not been split, prime
+     * or not
+     *
+     * @return the leaves, in the order describe lists them
+     */
+    public List<FactorJob> leaves() {
+        List<FactorJob> leaves = new ArrayList<>();
+        addLeaves(leaves);
+        return leaves;
+    }
+
+    /**
+     * factors
+     * returns the prime leaves, smallest first
+     *
+     * @return the primes found so far
+     */
+    public List<BigInteger> factors() {
+        List<BigInteger> factors = new ArrayList<>();
+        for (FactorJob leaf : leaves()) {
+            if (leaf.prime) {
+                factors.add(leaf.num);
+            }
+        }
+        factors.sort(BigInteger::compareTo);
+        return factors;
+    }
+
+    /**
+     * isComplete
+     * returns whether every leaf below this job is prime
+     *
+     * @return true once the number is fully factored
+     */
+    public boolean isComplete() {
+        for (FactorJob leaf : leaves()) {
+            if (!leaf.prime) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // addLeaves
+    // adds the leaves below this job to leaves
+    private void addLeaves(List<FactorJob> leaves) {
+        if (isLeaf()) {
+            leaves.add(this);
+        }
+        for (FactorJob child : children) {
+            child.addLeaves(leaves);
+        }
+    }
+
+    /**
+     * describe
+     * Writes the tree below this job, one number per line, each child
+     * indented under its parent.
+     *
+     * @return the tree as text
+     */
+    public String describe() {
+        StringBuilder out = new StringBuilder();
+        describe(out, "");
+        return out.toString();
+    }
+
+    // describe
+    // adds this job and its children to out
+    private void describe(StringBuilder out, String indent) {
+        out.append(indent).append(num);
+        if (prime) {
+            out.append(" (prime)");
+        } else if (isLeaf()) {
+            out.append(" (composite)");
+        }
+        out.append('\n');
+        for (FactorJob child : children) {
+            child.describe(out, indent + "  ");
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FactorJobTable.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * What the server tells the outside world about the numbers it was given.
+ * The FactorJob trees only live while a number is being factored, so a
+ * number's status, and the primes found for it, are copied here as they
+ * change and stay after it is done, for whoever submitted it to collect.
+ * <p>
+ * The table holds at most a fixed number of jobs.  Once it is full, the
+ * oldest finished job is dropped to make room for a new one, and if none
+ * has finished, new jobs are refused until one does.  Readers can wait on
+ * a job for its next prime instead of polling.
+ */
+
+public class FactorJobTable {
+
+    /**
+     * State
+     * Where a job is, from being queued to being done with.
+     */
+    public enum State {
+        WAITING, RUNNING, DONE, CANCELLED;
+
+        /**
+         * isFinished
+         * returns whether nothing more will happen to a job in this state
+         *
+         * @return true for DONE and CANCELLED
+         */
+        public boolean isFinished() {
+            return this == DONE || this == CANCELLED;
+        }
+    }
+
+    private int limit; // most jobs held at once
+
+    // the jobs, by id, oldest first
+    private Map<Long, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * FactorJobTable
+     * Creates an empty table.
+     *
+     * @param limit the most jobs it holds at once
+     */
+    public FactorJobTable(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * hasRoom
+     * returns whether add will take another job
+     *
+     * @return true if the table is not full or a finished job can go
+     */
+    public synchronized boolean hasRoom() {
+        if (entries.size() < limit) {
+            return true;
+        }
+        for (Entry entry : entries.values()) {
+            if (entry.state.isFinished()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * add
+     * Adds a job that has just been queued, dropping the oldest finished
+     * job if the table is full.  A job already in the table is left as it
+     * is.
+     *
+     * @param id       the job's id
+     * @param num      the number to factor
+     * @param priority its priority
+     * @return false if the table is full of unfinished jobs
+     */
+    public synchronized boolean add(long id, BigInteger num, int priority) {
+
+        if (entries.containsKey(id)) {
+            return true;
+        }
+        if (entries.size() >= limit) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().state.isFinished()) {
+                    it.remove();
+                    break;
+                }
+            }
+            if (entries.size() >= limit) {
+                return false;
+            }
+        }
+        entries.put(id, new Entry(id, num, priority));
+        return true;
+
+    } /*add*/
+
+    /**
+     * started
+     * Marks a job as being factored.
+     *
+     * @param id the job's id
+     */
+    public synchronized void started(long id) {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.state == State.WAITING) {
+            entry.state = State.RUNNING;
+            entry.started = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * found
+     * Adds a prime factor of a job's number, and wakes anyone waiting on
+     * it.
+     *
+     * @param id    the job's id
+     * @param prime the prime
+     */
+    public synchronized void found(long id, BigInteger prime) {
+        Entry entry = entries.get(id);
+        if (entry != null && !entry.state.isFinished()) {
+            entry.factors.add(prime);
+            notifyAll();
+        }
+    }
+
+    /**
+     * finished
+     * Marks a job done, or cancelled, and wakes anyone waiting on it.
+     *
+     * @param id        the job's id
+     * @param cancelled true if it was cancelled rather than factored
+     */
+    public synchronized void finished(long id, boolean cancelled) {
+        Entry entry = entries.get(id);
+        if (entry != null && !entry.state.isFinished()) {
+            entry.state = cancelled ? State.CANCELLED : State.DONE;
+            entry.finished = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /**
+     * get
+     * returns a copy of a job's status
+     *
+     * @param id the job's id
+     * @return the status, or null if the job is not in the table
+     */
+    public synchronized Entry get(long id) {
+        Entry entry = entries.get(id);
+        return entry == null ? null : entry.copy();
+    }
+
+    /**
+     * list
+     * returns a copy of every job's status, oldest first
+     *
+     * @return the statuses
+     */
+    public synchronized List<Entry> list() {
+        List<Entry> all = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            all.add(entry.copy());
+        }
+        return all;
+    }
+
+    /**
+     * await
+     * Waits until a job has more than seen primes, or is finished.
+     *
+     * @param id      the job's id
+     * @param seen    how many of its primes the caller has already
+     * @param timeout the most millis to wait
+     * @return the job's status then, or null if it is not in the table
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Entry await(long id, int seen, long timeout) throws
+            InterruptedException {
+
+        long end = System.currentTimeMillis() + timeout;
+        Entry entry = entries.get(id);
+        while (entry != null && entry.factors.size() <= seen &&
+               !entry.state.isFinished()) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            wait(left);
+            entry = entries.get(id);
+        }
+        return entry == null ? null : entry.copy();
+
+    } /*await*/
+
+    /**
+     * clear
+     * Forgets every job, e.g. before the journal is read back.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        notifyAll();
+    }
+
+    /**
+     * size
+     * returns how many jobs are in the table
+     *
+     * @return the number of jobs
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Entry
+     * One job's status.  The ones handed out are copies, so they never
+     * change under their reader.
+     */
+    public static class Entry {
+
+        private long id;
+        private BigInteger num;
+        private int priority;
+        private State state = State.WAITING;
+        // the primes, in the order they were found
+        private List<BigInteger> factors = new ArrayList<>();
+        private long submitted = System.currentTimeMillis();
+        private long started = 0; // 0 until it starts
+        private long finished = 0; // 0 until it is done with
+
+        Entry(long id, BigInteger num, int priority) {
+            this.id = id;
+            this.num = num;
+            this.priority = priority;
+        }
+
+        /**
+         * getId
+         * returns the job's id
+         *
+         * @return the id
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * getNum
+         * returns the number submitted
+         *
+         * @return the number
+         */
+        public BigInteger getNum() {
+            return num;
+        }
+
+        /**
+         * getPriority
+         * returns the priority it was submitted with
+         *
+         * @return the priority
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * getState
+         * returns where the job is
+         *
+         * @return the state
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * getFactors
+         * returns the primes found so far, in the order they were found
+         *
+         * @return the primes
+         */
+        public List<BigInteger> getFactors() {
+            return factors;
+        }
+
+        /**
+         * getSubmitted
+         * returns when the job was queued
+         *
+         * @return the time in millis
+         */
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * getStarted
+         * returns when the job started
+         *
+         * @return the time in millis, 0 if it has not
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * getFinished
+         * returns when the job was done with
+         *
+         * @return the time in millis, 0 if it is not
+         */
+        public long getFinished() {
+            return finished;
+        }
+
+        // copy
+        // a snapshot of this entry
+        private Entry copy() {
+            Entry copy = new Entry(id, num, priority);
+            copy.state = state;
+            copy.factors = new ArrayList<>(factors);
+            copy.submitted = submitted;
+            copy.started = started;
+            copy.finished = finished;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * FactorJournal.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Keeps the state of a long run on disk so a restarted process carries on
+ * where it stopped.  There are two files per journal, in the directory
+ * named by -Dfactor.journal (default "journal"):
+ * <pre>
+ *   name.snapshot  the whole state at some point, written by compact
+ *   name.journal   every change since that snapshot, appended in order
+ * </pre>
+ * The journal is memory-mapped, so appending a record is a copy into
+ * the page cache with no system call.  The OS writes it out even if the
+ * process dies right after, though not if the machine loses power.
+ * compact forces both files to disk.
+ * <p>
+ * Each record is its length, a CRC32 and the bytes the owner gave it.
+ * Recovery stops at the first record that is cut short or fails its CRC.
+ * Once the journal passes COMPACT_SIZE the owner writes a fresh snapshot
+ * and the journal starts over empty.  Recovery reads one snapshot and at
+ * most COMPACT_SIZE of records, however long the run has been.
+ * <p>
+ * Each file starts with a generation number.  A journal whose generation
+ * does not match the snapshot is one left behind by a crash during
+ * compact.  Its records are already in the snapshot, so it is ignored.
+ */
+
+public class FactorJournal {
+
+    // the journal is compacted once it holds this many bytes of records
+    public static final int COMPACT_SIZE = 1 << 20;
+
+    private static final int HEADER = 8; // generation at the front of a file
+    private static final int MAGIC = 0x464a524e; // "FJRN", starts a snapshot
+
+    private File snapshotFile;
+    private File journalFile;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long generation;
+
+    /**
+     * Recovery
+     * What an owner does with its saved state when a journal is opened.
+     */
+    public interface Recovery {
+
+        /**
+         * restore
+         * Loads the state saved by the last compact.
+         *
+         * @param snapshot the bytes passed to compact
+         * @throws IOException if they cannot be read
+         */
+        void restore(byte[] snapshot) throws IOException;
+
+        /**
+         * replay
+         * Applies one change appended after that snapshot.
+         *
+         * @param record the bytes passed to append
+         * @throws IOException if they cannot be read
+         */
+        void replay(byte[] record) throws IOException;
+    }
+
+    /**
+     * FactorJournal
+     * Opens a journal, creating its directory and files if needed.
+     * Nothing is read until recover is called.
+     *
+     * @param dir  the directory holding the journal
+     * @param name the journal's name, used for both file names
+     * @throws IOException if the files cannot be opened
+     */
+    public FactorJournal(File dir, String name) throws IOException {
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create journal directory " + dir);
+        }
+        snapshotFile = new File(dir, name + ".snapshot");
+        journalFile = new File(dir, name + ".journal");
+
+        file = new RandomAccessFile(journalFile, "rw");
+        channel = file.getChannel();
+        map(Math.max(file.length(), COMPACT_SIZE + HEADER));
+
+    }
+
+    /**
+     * open
+     * Opens the journal of the given name in the directory named by
+     * -Dfactor.journal.
+     *
+     * @param name the journal's name
+     * @return the journal, or null if it cannot be opened
+     */
+    public static FactorJournal open(String name) {
+        try {
+            return new FactorJournal(new File(System.getProperty
+                    ("factor.journal", "journal")), name);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * recover
+     * Hands the last snapshot, then every intact record after it, to
+     * recovery.  Appends go after the last intact record.
+     *
+     * @param recovery what to do with the saved state
+     * @return true if there was any saved state
+     * @throws IOException if recovery fails to read what it is given
+     */
+    public synchronized boolean recover(Recovery recovery) throws
+            IOException {
+
+        boolean found = false;
+        long snapshotGeneration = 0;
+
+        if (snapshotFile.exists()) {
+            byte[] bytes = Files.readAllBytes(snapshotFile.toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream
+                    (bytes));
+            if (bytes.length >= 20 && in.readInt() == MAGIC) {
+                snapshotGeneration = in.readLong();
+                int length = in.readInt();
+                int crc = in.readInt();
+                byte[] state = new byte[length];
+                in.readFully(state);
+                if (crc(state, 0, length) != crc) {
+                    throw new IOException(snapshotFile + " is corrupt");
+                }
+                recovery.restore(state);
+                found = true;
+            }
+        }
+
+        generation = map.getLong(0);
+        map.position(HEADER);
+        if (generation != snapshotGeneration) {
+            // left over from before the snapshot, or a new file
+            reset(snapshotGeneration);
+            return found;
+        }
+
+        while (map.remaining() >= 8) {
+            int start = map.position();
+            int length = map.getInt();
+            int crc = map.getInt();
+            if (length <= 0 || length > map.remaining()) {
+                map.position(start);
+                break;
+            }
+            byte[] record = new byte[length];
+            map.get(record);
+            if (crc(record, 0, length) != crc) {
+                map.position(start); // torn write, the rest is garbage
+                break;
+            }
+            recovery.replay(record);
+            found = true;
+        }
+
+        // clear whatever a torn write left, so it is not read next time
+        int end = map.position();
+        for (int i = end; i < Math.min(end + 8, map.limit()); i++) {
+            map.put(i, (byte) 0);
+        }
+        return found;
+
+    } /*recover*/
+
+    /**
+     * append
+     * Adds a record to the end of the journal.
+     *
+     * @param record the change to save
+     * @throws IOException if the journal cannot grow to hold it
+     */
+    public synchronized void append(byte[] record) throws IOException {
+
+        if (map.remaining() < record.length + 16) {
+            map(2L * map.capacity() + record.length);
+        }
+
+        // zero the next length first, so recovery stops after this record
+        int start = map.position();
+        map.putInt(start + 8 + record.length, 0);
+        map.position(start + 4);
+        map.putInt(crc(record, 0, record.length));
+        map.put(record);
+        map.putInt(start, record.length);
+
+    } /*append*/
+
+    /**
+     * needsCompaction
+     * returns whether the journal has grown enough that the owner should
+     * call compact
+     *
+     * @return true when the journal holds COMPACT_SIZE bytes or more
+     */
+    public synchronized boolean needsCompaction() {
+        return map.position() - HEADER >= COMPACT_SIZE;
+    }
+
+    /**
+     * compact
+     * Saves the whole state as the new snapshot and empties the journal.
+     * The snapshot replaces the old one in a single rename, so a crash
+     * part way leaves one or the other.
+     *
+     * @param state the owner's whole state
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void compact(byte[] state) throws IOException {
+
+        long next = generation + 1;
+
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeLong(next);
+            data.writeInt(state.length);
+            data.writeInt(crc(state, 0, state.length));
+            data.write(state);
+            data.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption
+                .REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        reset(next);
+
+    } /*compact*/
+
+    /**
+     * delete
+     * Removes the journal and snapshot, e.g. once the run is finished.
+     */
+    public synchronized void delete() {
+        close();
+        journalFile.delete();
+        snapshotFile.delete();
+    }
+
+    /**
+     * close
+     * Writes out and unmaps the journal.
+     */
+    public synchronized void close() {
+        try {
+            map.force();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*------------------------------------------*
+        Helpers for building records
+     *------------------------------------------*/
+
+    /**
+     * writeBig
+     * Writes a BigInteger, which may be null, to a record.
+     *
+     * @param out   the record being built
+     * @param value the number
+     * @throws IOException never, for a ByteArrayOutputStream
+     */
+    public static void writeBig(DataOutputStream out, BigInteger value) throws
+            IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * readBig
+     * Reads a BigInteger written by writeBig.
+     *
+     * @param in the record being read
+     * @return the number, or null
+     * @throws IOException if the record is cut short
+     */
+    public static BigInteger readBig(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * reader
+     * Wraps a record for reading.
+     *
+     * @param record the record's bytes
+     * @return a stream over them
+     */
+    public static DataInputStream reader(byte[] record) {
+        return new DataInputStream(new ByteArrayInputStream(record));
+    }
+
+    /**
+     * Record
+     * Builds the bytes of one record or snapshot.
+     */
+    public static class Record extends DataOutputStream {
+
+        /**
+         * Record
+         * Starts an empty record.
+         */
+        public Record() {
+            super(new ByteArrayOutputStream());
+        }
+
+        /**
+         * toByteArray
+         * returns what has been written
+         *
+         * @return the record's bytes
+         */
+        public byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    // map
+    // maps the first size bytes of the journal file, keeping the position
+    private void map(long size) throws IOException {
+        int position = map == null ? HEADER : map.position();
+        if (map != null) {
+            map.force();
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.position(position);
+    }
+
+    // reset
+    // empties the journal under a new generation
+    private void reset(long next) throws IOException {
+        if (map.capacity() > COMPACT_SIZE + HEADER) {
+            map = null;
+            file.setLength(COMPACT_SIZE + HEADER);
+            map(COMPACT_SIZE + HEADER);
+        }
+        map.putLong(0, next);
+        map.putInt(HEADER, 0);
+        map.position(HEADER);
+        map.force();
+        generation = next;
+    }
+
+    // crc
+    // the CRC32 of part of an array, as an int
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,272 @@
+package model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FactorLeases.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Keeps track of the work units a sub-server has handed out.  A sub-server
+ * moves its cursors past a range as soon as it sends it, so a client that
+ * dies mid-range used to leave that range unsearched for good.  Now every
+ * unit sent is leased to the client that got it.  The lease holds a copy
+ * of the unit and runs out unless the client keeps renewing it.  Clients
+ * renew with a heartbeat, and with any other message they send.
+ * <p>
+ * A lease that runs out, or whose client hangs up, puts its unit on the
+ * requeue.  The sub-server gives requeued units out again before any new
+ * work, or gives their ranges back to its FactorLedger.  A unit is
+ * finished when its client reports back with the unit's id.  That also
+ * cancels a requeued copy, in case a slow client finishes after its lease
+ * was given up on.
+ */
+
+public class FactorLeases {
+
+    private long timeout; // millis a lease lasts without a renewal
+    private long nextId = 1;
+
+    // units out with a client, by id, oldest first
+    private Map<Long, Lease> leases = new LinkedHashMap<>();
+
+    // units whose client went quiet, waiting to be handed out again
+    private Deque<FactorData> requeue = new ArrayDeque<>();
+
+    /**
+     * FactorLeases
+     * Creates an empty lease table.
+     *
+     * @param timeout millis a lease lasts without being renewed
+     */
+    public FactorLeases(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * grant
+     * Leases a unit of work to a client.  The unit gets a new id, which is
+     * written into unit so the client sends it back with its answer.
+     *
+     * @param unit   the work being sent
+     * @param holder the client it is sent to
+     * @param now    the current time in millis
+     * @return the unit's id
+     */
+    public synchronized long grant(FactorData unit, FactorPeer holder,
+                                   long now) {
+
+        long id = nextId++;
+        unit.setUnitId(id);
+        leases.put(id, new Lease(unit.copy(), holder, now, now + timeout));
+        return id;
+
+    } /*grant*/
+
+    /**
+     * complete
+     * Marks a unit finished, whether it is still leased or was requeued.
+     *
+     * @param unitId the id the unit was granted with
+     * @return the unit as it was sent, or null if it was not outstanding
+     */
+    public synchronized FactorData complete(long unitId) {
+
+        Lease lease = leases.remove(unitId);
+        if (lease != null) {
+            return lease.unit;
+        }
+
+        Iterator<FactorData> it = requeue.iterator();
+        while (it.hasNext()) {
+            FactorData unit = it.next();
+            if (unit.getUnitId() == unitId) {
+                it.remove();
+                return unit;
+            }
+        }
+        return null;
+
+    } /*complete*/
+
+    /**
+     * grantedAt
+     * returns when a unit still out with its client was granted
+     *
+     * @param unitId the unit's id
+     * @return the time in millis, or -1 if the unit is not leased
+     */
+    public synchronized long grantedAt(long unitId) {
+        Lease lease = leases.get(unitId);
+        return lease == null ? -1 : lease.granted;
+    }
+
+    /**
+     * renew
+     * Extends every lease a client holds, since it has just been heard
+     * from.
+     *
+     * @param holder the client
+     * @param now    the current time in millis
+     */
+    public synchronized void renew(FactorPeer holder, long now) {
+        for (Lease lease : leases.values()) {
+            if (lease.holder == holder) {
+                lease.expires = now + timeout;
+            }
+        }
+    }
+
+    /**
+     * expire
+     * Requeues every unit whose lease has run out.
+     *
+     * @param now the current time in millis
+     * @return how many units were requeued
+     */
+    public synchronized int expire(long now) {
+
+        int count = 0;
+        Iterator<Lease> it = leases.values().iterator();
+        while (it.hasNext()) {
+            Lease lease = it.next();
+            if (lease.expires <= now) {
+                it.remove();
+                requeue.add(lease.unit);
+                count++;
+            }
+        }
+        return count;
+
+    } /*expire*/
+
+    /**
+     * release
+     * Requeues every unit a client holds, e.g. because it hung up.
+     *
+     * @param holder the client
+     * @return how many units were requeued
+     */
+    public synchronized int release(FactorPeer holder) {
+
+        int count = 0;
+        Iterator<Lease> it = leases.values().iterator();
+        while (it.hasNext()) {
+            Lease lease = it.next();
+            if (lease.holder == holder) {
+                it.remove();
+                requeue.add(lease.unit);
+                count++;
+            }
+        }
+        return count;
+
+    } /*release*/
+
+    /**
+     * nextRequeued
+     * Takes the oldest requeued unit.  It should be granted again before
+     * it is sent.
+     *
+     * @return a copy of the unit as first sent, or null if none are waiting
+     */
+    public synchronized FactorData nextRequeued() {
+        return requeue.poll();
+    }
+
+    /**
+     * held
+     * returns how many units a client has out
+     *
+     * @param holder the client
+     * @return the number of leases it holds
+     */
+    public synchronized int held(FactorPeer holder) {
+        int count = 0;
+        for (Lease lease : leases.values()) {
+            if (lease.holder == holder) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * clear
+     * Forgets every lease and requeued unit, e.g. when n changes.
+     */
+    public synchronized void clear() {
+        leases.clear();
+        requeue.clear();
+    }
+
+    /**
+     * cancel
+     * Forgets the leases and requeued units of one job, e.g. once it has
+     * been split.
+     *
+     * @param jobId the job's id
+     * @return how many units were dropped
+     */
+    public synchronized int cancel(long jobId) {
+
+        int count = 0;
+        Iterator<Lease> it = leases.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().unit.getJobId() == jobId) {
+                it.remove();
+                count++;
+            }
+        }
+        Iterator<FactorData> queued = requeue.iterator();
+        while (queued.hasNext()) {
+            if (queued.next().getJobId() == jobId) {
+                queued.remove();
+                count++;
+            }
+        }
+        return count;
+
+    } /*cancel*/
+
+    /**
+     * outstanding
+     * returns the number of units out with clients
+     *
+     * @return the number of live leases
+     */
+    public synchronized int outstanding() {
+        return leases.size();
+    }
+
+    /**
+     * requeued
+     * returns the number of units waiting to be handed out again
+     *
+     * @return the size of the requeue
+     */
+    public synchronized int requeued() {
+        return requeue.size();
+    }
+
+    // Lease
+    // one unit out with one client, until a given time
+    private static class Lease {
+
+        private FactorData unit;
+        private FactorPeer holder;
+        private long granted;
+        private long expires;
+
+        Lease(FactorData unit, FactorPeer holder, long granted, long expires) {
+            this.unit = unit;
+            this.holder = holder;
+            this.granted = granted;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package model;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * FactorLedger.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Records which parts of an algorithm's search space are done and which
+ * are out with a client.  Trial division searches a range of divisors and
+ * Fermat a range of starting values, so both are a range of integers
+ * [low, high].  The sub-server used to keep one cursor per algorithm,
+ * which said where the next unit started but nothing about what was
+ * behind it.
+ * <p>
+ * Each state is kept as a set of disjoint, inclusive intervals in a
+ * TreeMap from start to end.  Touching intervals are merged, so a run of
+ * finished units takes one entry however many units it had.  Marking a
+ * range and finding the next gap are both a few map lookups, O(log n) in
+ * the number of intervals.  A third map holds the union of the two, and
+ * the next gap comes from there.
+ * <p>
+ * Units are handed out from the low end of the range, or from the high end
+ * for a search that counts down.  A unit that is given back (its client
+ * was lost) leaves a gap, which is the first thing handed out next.
+ */
+
+public class FactorLedger {
+
+    private static final BigInteger ONE = BigInteger.ONE;
+
+    private BigInteger low; // first value in the search space
+    private BigInteger high; // last value in the search space
+    private boolean descending; // hand out from the top down
+
+    // start -> end of each interval, ends included
+    private TreeMap<BigInteger, BigInteger> done = new TreeMap<>();
+    private TreeMap<BigInteger, BigInteger> leased = new TreeMap<>();
+    private TreeMap<BigInteger, BigInteger> covered = new TreeMap<>();
+
+    // how many values each of done and leased holds
+    private BigInteger doneCount = BigInteger.ZERO;
+    private BigInteger leasedCount = BigInteger.ZERO;
+
+    /**
+     * FactorLedger
+     * Creates a ledger with nothing done.
+     *
+     * @param low        the first value to search
+     * @param high       the last value to search
+     * @param descending true to hand out units from high down to low
+     */
+    public FactorLedger(BigInteger low, BigInteger high, boolean descending) {
+        this.low = low;
+        this.high = high;
+        this.descending = descending;
+    }
+
+    /**
+     * nextGap
+     * Finds the next range nobody has searched or is searching, at the low
+     * end for an ascending search and the high end for a descending one.
+     * The range is not leased until lease is called.
+     *
+     * @param size the most values the range may hold
+     * @return {start, end} of the range, ends included, or null if every
+     * value is done or leased
+     */
+    public synchronized BigInteger[] nextGap(BigInteger size) {
+
+        BigInteger step = size.subtract(ONE).max(BigInteger.ZERO);
+
+        if (!descending) {
+            // the interval holding low, if any, pushes the start past it
+            BigInteger start = low;
+            Map.Entry<BigInteger, BigInteger> first = covered.floorEntry(low);
+            if (first != null && first.getValue().compareTo(low) >= 0) {
+                start = first.getValue().add(ONE);
+            }
+            if (start.compareTo(high) > 0) {
+                return null;
+            }
+
+            BigInteger end = start.add(step).min(high);
+            BigInteger next = covered.higherKey(start);
+            if (next != null) {
+                end = end.min(next.subtract(ONE));
+            }
+            return new BigInteger[]{start, end};
+        }
+
+        BigInteger end = high;
+        Map.Entry<BigInteger, BigInteger> last = covered.floorEntry(high);
+        if (last != null && last.getValue().compareTo(high) >= 0) {
+            end = last.getKey().subtract(ONE);
+        }
+        if (end.compareTo(low) < 0) {
+            return null;
+        }
+
+        BigInteger start = end.subtract(step).max(low);
+        Map.Entry<BigInteger, BigInteger> previous = covered.lowerEntry(end);
+        if (previous != null) {
+            start = start.max(previous.getValue().add(ONE));
+        }
+        return new BigInteger[]{start, end};
+
+    } /*nextGap*/
+
+    /**
+     * lease
+     * Marks a range as out with a client.
+     *
+     * @param start first value of the range
+     * @param end   last value of the range
+     */
+    public synchronized void lease(BigInteger start, BigInteger end) {
+        leasedCount = leasedCount.add(add(leased, start, end));
+        add(covered, start, end);
+    }
+
+    /**
+     * release
+     * Gives back a leased range that was not finished, so it is handed out
+     * again.  Parts of it already done stay done.
+     *
+     * @param start first value of the range
+     * @param end   last value of the range
+     */
+    public synchronized void release(BigInteger start, BigInteger end) {
+
+        leasedCount = leasedCount.subtract(remove(leased, start, end));
+        remove(covered, start, end);
+
+        // put back whatever done intervals overlap the range
+        Map.Entry<BigInteger, BigInteger> before = done.lowerEntry(start);
+        if (before != null && before.getValue().compareTo(start) >= 0) {
+            add(covered, start, before.getValue().min(end));
+        }
+        for (Map.Entry<BigInteger, BigInteger> e : done.subMap(start, true,
+                end, true).entrySet()) {
+            add(covered, e.getKey(), e.getValue().min(end));
+        }
+
+    } /*release*/
+
+    /**
+     * complete
+     * Marks a range as searched.
+     *
+     * @param start first value of the range
+     * @param end   last value of the range
+     */
+    public synchronized void complete(BigInteger start, BigInteger end) {
+        leasedCount = leasedCount.subtract(remove(leased, start, end));
+        doneCount = doneCount.add(add(done, start, end));
+        add(covered, start, end);
+    }
+
+    /**
+     * carry
+     * Marks as done every value another ledger has done that lies in this
+     * one's search space.  Trial division of a divisor of n can skip
+     * whatever was cleared for n, since a divisor of it would divide n.
+     *
+     * @param other the ledger to copy from
+     */
+    public synchronized void carry(FactorLedger other) {
+        for (BigInteger[] range : other.getDoneIntervals()) {
+            BigInteger start = range[0].max(low);
+            BigInteger end = range[1].min(high);
+            if (start.compareTo(end) <= 0) {
+                complete(start, end);
+            }
+        }
+    }
+
+    /**
+     * isComplete
+     * returns whether every value in the search space is done
+     *
+     * @return true once nothing is left to search
+     */
+    public synchronized boolean isComplete() {
+        return doneCount.equals(size());
+    }
+
+    /**
+     * getDone
+     * returns how many values have been searched
+     *
+     * @return the count of done values
+     */
+    public synchronized BigInteger getDone() {
+        return doneCount;
+    }
+
+    /**
+     * getLeased
+     * returns how many values are out with clients
+     *
+     * @return the count of leased values
+     */
+    public synchronized BigInteger getLeased() {
+        return leasedCount;
+    }
+
+    /**
+     * size
+     * returns how many values the search space holds
+     *
+     * @return high - low + 1
+     */
+    public BigInteger size() {
+        return high.subtract(low).add(ONE).max(BigInteger.ZERO);
+    }
+
+    /**
+     * getProgress
+     * returns the share of the search space that is done
+     *
+     * @return percent done, 0 to 100
+     */
+    public synchronized double getProgress() {
+        return percent(doneCount);
+    }
+
+    /**
+     * getFragments
+     * returns how many separate intervals are done.  1 means the done part
+     * has no holes.
+     *
+     * @return the number of done intervals
+     */
+    public synchronized int getFragments() {
+        return done.size();
+    }
+
+    /**
+     * getDoneIntervals
+     * returns the done part as merged intervals, lowest first.  Completing
+     * each of them in a new ledger rebuilds this one's done part.
+     *
+     * @return {start, end} of each done interval
+     */
+    public synchronized List<BigInteger[]> getDoneIntervals() {
+        List<BigInteger[]> intervals = new ArrayList<>();
+        for (Map.Entry<BigInteger, BigInteger> e : done.entrySet()) {
+            intervals.add(new BigInteger[]{e.getKey(), e.getValue()});
+        }
+        return intervals;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%.3g%% done, %.3g%% in flight, %d done " +
+                             "interval(s)", percent(doneCount),
+                percent(leasedCount), done.size());
+    }
+
+    // percent
+    // count as a percent of the search space
+    private double percent(BigInteger count) {
+        if (size().signum() == 0) {
+            return 100;
+        }
+        return new BigDecimal(count).multiply(BigDecimal.valueOf(100))
+                .divide(new BigDecimal(size()), MathContext.DECIMAL64)
+                .doubleValue();
+    }
+
+    // add
+    // merges [start, end] into a set of intervals.  Returns how many values
+    // were not in the set before.
+    private static BigInteger add(TreeMap<BigInteger, BigInteger> set,
+                                  BigInteger start, BigInteger end) {
+
+        BigInteger added = end.subtract(start).add(ONE);
+
+        // join an interval that starts before and reaches up to start
+        Map.Entry<BigInteger, BigInteger> before = set.lowerEntry(start);
+        if (before != null && before.getValue().compareTo(start.subtract(ONE))
+                              >= 0) {
+            set.remove(before.getKey());
+            added = added.subtract(overlap(before, start, end));
+            start = before.getKey();
+            end = end.max(before.getValue());
+        }
+
+        // swallow every interval that starts inside or right after
+        Map.Entry<BigInteger, BigInteger> next;
+        while ((next = set.ceilingEntry(start)) != null && next.getKey()
+                .compareTo(end.add(ONE)) <= 0) {
+            set.remove(next.getKey());
+            added = added.subtract(overlap(next, start, end));
+            end = end.max(next.getValue());
+        }
+
+        set.put(start, end);
+        return added;
+
+    } /*add*/
+
+    // remove
+    // takes [start, end] out of a set of intervals, splitting any that
+    // stick out either side.  Returns how many values were removed.
+    private static BigInteger remove(TreeMap<BigInteger, BigInteger> set,
+                                     BigInteger start, BigInteger end) {
+
+        BigInteger removed = BigInteger.ZERO;
+
+        Map.Entry<BigInteger, BigInteger> before = set.lowerEntry(start);
+        if (before != null && before.getValue().compareTo(start) >= 0) {
+            removed = removed.add(overlap(before, start, end));
+            set.put(before.getKey(), start.subtract(ONE));
+            if (before.getValue().compareTo(end) > 0) {
+                set.put(end.add(ONE), before.getValue());
+            }
+        }
+
+        Map.Entry<BigInteger, BigInteger> next;
+        while ((next = set.ceilingEntry(start)) != null && next.getKey()
+                .compareTo(end) <= 0) {
+            set.remove(next.getKey());
+            removed = removed.add(overlap(next, start, end));
+            if (next.getValue().compareTo(end) > 0) {
+                set.put(end.add(ONE), next.getValue());
+            }
+        }
+
+        return removed;
+
+    } /*remove*/
+
+    // overlap
+    // how many values an interval shares with [start, end]
+    private static BigInteger overlap(Map.Entry<BigInteger, BigInteger>
+                                              interval, BigInteger start,
+                                      BigInteger end) {
+        BigInteger from = interval.getKey().max(start);
+        BigInteger to = interval.getValue().min(end);
+        return to.subtract(from).add(ONE).max(BigInteger.ZERO);
+    }
+}
@@ -0,0 +1,64 @@
+package model;
+
+import java.io.IOException;
+
+/**
+ * FactorListener.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Listens on a port and passes every message from every connection to a
+ * handler.  There are two ways to do it: FactorEventLoop runs every
+ * connection from one selector thread, and FactorThreadListener gives
+ * each connection its own blocking reader thread, which is cheap when
+ * those are virtual threads.
+ * <p>
+ * open picks one.  With -Dfactor.io=nio or -Dfactor.io=threads it uses
+ * the one asked for.  Otherwise it uses threads when the JDK has virtual
+ * threads and the event loop when it does not.
+ */
+
+public interface FactorListener {
+
+    /**
+     * start
+     * Starts accepting connections.
+     */
+    void start();
+
+    /**
+     * close
+     * Stops accepting and closes every connection.
+     */
+    void close();
+
+    /**
+     * getPort
+     * returns the port this listener is bound to
+     *
+     * @return the local port
+     */
+    int getPort();
+
+    /**
+     * open
+     * Binds a listener of the configured kind.
+     *
+     * @param port    the port to listen on, 0 for any free port
+     * @param workers worker threads, for the event loop
+     * @param handler what to do with each message
+     * @return the listener, not yet started
+     * @throws IOException if the port cannot be bound
+     */
+    static FactorListener open(int port, int workers, FactorPeer.Handler
+            handler) throws IOException {
+
+        String io = System.getProperty("factor.io", FactorThreads.isVirtual()
+                ? "threads" : "nio");
+
+        if (io.equals("threads")) {
+            return new FactorThreadListener(port, handler);
+        }
+        return new FactorEventLoop(port, workers, handler);
+    }
+}
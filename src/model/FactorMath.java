@@ -11,6 +11,10 @@ import java.math.BigInteger;
  * This makes extensive use of Java's BigInteger class for integer
  * representation due to the potential size of the integers needing to be
  * represented.  This class contains four primary factoring algorithms.
+ * <p>
+ * The searches check every 1024 steps whether their thread has been
+ * interrupted, and stop early if so.  A client interrupts its workers
+ * when the number they are working on is no longer wanted.
  */
 
 public class FactorMath {
@@ -44,7 +48,8 @@ public class FactorMath {
      *                   function returns 1.  If too big, this function returns
      *                   num.  The value shouldn't need to be larger than sqrt(num).
      * @return an array of BigIntegers.  Index 0 holds the result of the
-     * function.  Index 1 holds the ending value of twoToImodN.
+     * function.  Index 1 holds the ending value of twoToImodN.  If the
+     * thread is interrupted this is the result for a smaller bound.
      */
     public static BigInteger[] findFactorPollards(BigInteger num, BigInteger
             twoToImodN, BigInteger start, BigInteger bound) {
@@ -71,6 +76,11 @@ public class FactorMath {
             }
 
             i = i.add(ONE); // i++
+
+            if ((i.intValue() & 0x3ff) == 0 && Thread.currentThread()
+                    .isInterrupted()) {
+                break;
+            }
         }
 
         // b = tmn - 1
@@ -100,7 +110,8 @@ public class FactorMath {
      * @param startVal the value we're starting at.  Must be ceiling of sqrt
      *                 (num) or higher.
      * @param attempts number of times we will attempt
-     * @return a factor if one is found, null if not
+     * @return a factor if one is found, null if not or if the thread is
+     * interrupted
      */
     public static BigInteger findFactorFermat(BigInteger num, BigInteger
             startVal, long attempts) {
@@ -152,6 +163,11 @@ public class FactorMath {
             boundSquared = startVal.pow(2).subtract(num);
             bound = sqrt(boundSquared);
             iterations++;
+
+            if ((iterations & 0x3ff) == 0 && Thread.currentThread()
+                    .isInterrupted()) {
+                return null;
+            }
         }
 
         // return a factor if one has been found
@@ -171,7 +187,7 @@ public class FactorMath {
      * @param start the lower bound of the search range
      * @param end   the upper bound of the search range
      * @return the factor that was found, null if no factor in the specified
-     * range exists.
+     * range exists or the thread is interrupted.
      */
     public static BigInteger findFactorTDRN(BigInteger num, BigInteger
             start, BigInteger end) {
@@ -199,6 +215,7 @@ public class FactorMath {
 
         // iterator variable
         BigInteger i = end;
+        long steps = 0;
 
         // while i >= 2
         while (i.compareTo(start) >= 0) {
@@ -214,6 +231,11 @@ public class FactorMath {
 
             // i -= 2
             i = i.subtract(TWO);
+
+            if ((++steps & 0x3ff) == 0 && Thread.currentThread()
+                    .isInterrupted()) {
+                return null;
+            }
         }
 
         // if null, then no factor exists in range [start,end]
@@ -235,7 +257,7 @@ public class FactorMath {
      * @param start the starting index of what to try
      * @param end   the ending index of what to try
      * @return the smallest prime that is a factor of num between start and
-     * end.  Null if no value found.
+     * end.  Null if no value found, or if the thread is interrupted.
      */
     public static BigInteger findFactorTD2(BigInteger num, BigInteger
             start, BigInteger end) {
@@ -261,6 +283,7 @@ public class FactorMath {
 
         // iterator i
         BigInteger i = start;
+        long steps = 0;
 
         // while i is less than the end
         while (i.compareTo(end) <= 0) {
@@ -278,6 +301,11 @@ public class FactorMath {
 
             // i+=2, skip even numbers
             i = i.add(TWO);
+
+            if ((++steps & 0x3ff) == 0 && Thread.currentThread()
+                    .isInterrupted()) {
+                return null;
+            }
         }
 
         // if no factor exists, return null
@@ -286,6 +314,28 @@ public class FactorMath {
 
     } /*findFactorTD2*/
 
+    /**
+     * smoothPartsTD
+     * Batch trial division.  Rather than dividing each of many numbers by
+     * every prime up to bound in turn, this finds the part of every value
+     * made up of primes <= bound in one pass of Bernstein's batch
+     * smoothness test (see FactorSmoothness).  A value is fully factored by
+     * the primes up to bound exactly when its smooth part equals itself.
+     *
+     * @param values  positive numbers to trial divide
+     * @param bound   largest prime to divide by
+     * @param threads threads used to build and walk the trees
+     * @return the bound-smooth part of each value, in the same order
+     */
+    public static BigInteger[] smoothPartsTD(BigInteger[] values, int bound,
+                                             int threads) {
+
+        FactorSmoothness tester =
+                new FactorSmoothness(FactorCFRAC.primesUpTo(bound));
+        return tester.smoothParts(values, threads);
+
+    } /*smoothPartsTD*/
+
     /**
      * getTime
      * This method takes a number of nanoseconds (as a long) and returns an
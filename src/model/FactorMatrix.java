@@ -0,0 +1,1059 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * FactorMatrix.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * A sparse matrix over GF(2) used to find the null space of the relations
+ * collected by a relation-based factoring method (CFRAC, QS, NFS).  Each
+ * column is one relation and each row one prime of the factor base; an
+ * entry is set when the prime divides the relation an odd number of times.
+ * A dependency is a set of columns that sum to zero, i.e. a set of
+ * relations whose product is a square.
+ * <p>
+ * Solving happens in three stages.  Filtering throws away relations that
+ * can never be part of a dependency (singletons) and trims excess
+ * relations (cliques).  Structured Gaussian elimination then merges
+ * columns along light rows, shrinking the matrix while keeping it sparse.
+ * Finally the reduced matrix is handed to block Lanczos, which works on
+ * 64 vectors at once packed into longs, or to dense elimination when the
+ * matrix is small.
+ */
+
+public class FactorMatrix {
+
+    // below this many columns, dense elimination beats block Lanczos
+    private static final int LANCZOS_MIN = 1500;
+
+    // relations kept beyond the number of rows when removing cliques
+    private static final int TARGET_EXCESS = 96;
+
+    // heaviest row that structured Gaussian elimination will merge along
+    private static final int MAX_MERGE_WEIGHT = 8;
+
+    // merging stops once the average column holds this many entries
+    private static final int MAX_MERGE_DENSITY = 40;
+
+    // block Lanczos restarts with a new random start this many times
+    private static final int LANCZOS_ATTEMPTS = 3;
+
+    // smallest chunk of work handed to a thread
+    private static final int CHUNK = 4096;
+
+    private int numRows; // rows (primes) in the full matrix
+    private List<int[]> columns; // rows set in each original column
+
+    // working state while the matrix is being reduced
+    private List<int[]> cols; // rows set in each working column, or null
+    private List<int[]> comps; // original columns summed into each one
+    private List<Set<Integer>> rowCols; // working columns holding each row
+    private List<int[]> found; // dependencies found while reducing
+    private int liveColumns; // working columns not yet deleted
+    private long liveEntries; // entries in those columns
+
+    /**
+     * FactorMatrix
+     * Creates an empty matrix with the given number of rows.
+     *
+     * @param numRows the number of rows, e.g. the size of the factor base
+     */
+    public FactorMatrix(int numRows) {
+
+        this.numRows = numRows;
+        columns = new ArrayList<>();
+
+    }
+
+    /**
+     * addColumn
+     * Adds a column to the matrix.  The rows may repeat, as in a list of
+     * prime indices with multiplicity; only rows appearing an odd number of
+     * times are set.
+     *
+     * @param rows the rows of the entries in this column
+     * @return the index of the new column
+     */
+    public int addColumn(int[] rows) {
+
+        int[] sorted = rows.clone();
+        Arrays.sort(sorted);
+
+        // keep the rows that appear an odd number of times
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] < 0 || sorted[i] >= numRows) {
+                throw new IllegalArgumentException("row " + sorted[i] +
+                                                   " is out of range");
+            }
+            if (i + 1 < sorted.length && sorted[i] == sorted[i + 1]) {
+                i++;
+            } else {
+                sorted[count++] = sorted[i];
+            }
+        }
+
+        columns.add(Arrays.copyOf(sorted, count));
+        return columns.size() - 1;
+
+    }
+
+    /**
+     * getColumnCount
+     * returns the number of columns added so far
+     *
+     * @return number of columns
+     */
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    /**
+     * getRowCount
+     * returns the number of rows in the matrix
+     *
+     * @return number of rows
+     */
+    public int getRowCount() {
+        return numRows;
+    }
+
+    /**
+     * findDependencies
+     * Finds sets of columns that sum to zero.  Each dependency is returned
+     * as a sorted array of the original column indices.  Block Lanczos
+     * finds at most 64 dependencies per run, which is plenty since each one
+     * gives a factor with probability of at least one half.
+     *
+     * @param threads number of threads to use for the matrix products
+     * @return the dependencies found, possibly empty
+     */
+    public List<int[]> findDependencies(int threads) {
+
+        found = new ArrayList<>();
+        buildWorkingState();
+
+        removeSingletons();
+        removeCliques();
+        merge();
+        removeSingletons();
+
+        // renumber the surviving rows and columns
+        int[] rowIndex = new int[numRows];
+        int rows = 0;
+        for (int r = 0; r < numRows; r++) {
+            rowIndex[r] = rowCols.get(r).isEmpty() ? -1 : rows++;
+        }
+        List<Integer> live = new ArrayList<>();
+        for (int c = 0; c < cols.size(); c++) {
+            if (cols.get(c) != null) {
+                live.add(c);
+            }
+        }
+
+        List<BitSet> solutions = new ArrayList<>();
+        if (!live.isEmpty()) {
+            Packed packed = new Packed(rows, live, cols, rowIndex);
+            if (live.size() >= LANCZOS_MIN) {
+                solutions = lanczos(packed, threads);
+            }
+            if (solutions.isEmpty()) {
+                solutions = dense(packed);
+            }
+        }
+
+        // map solutions over working columns back to original columns
+        List<int[]> dependencies = new ArrayList<>(found);
+        for (BitSet solution : solutions) {
+            BitSet original = new BitSet();
+            for (int i = solution.nextSetBit(0); i >= 0;
+                 i = solution.nextSetBit(i + 1)) {
+                for (int id : comps.get(live.get(i))) {
+                    original.flip(id);
+                }
+            }
+            if (!original.isEmpty()) {
+                dependencies.add(original.stream().toArray());
+            }
+        }
+
+        cols = null;
+        comps = null;
+        rowCols = null;
+        found = null;
+
+        return dependencies;
+
+    } /*findDependencies*/
+
+    /**
+     * isDependency
+     * Checks that the given columns really sum to zero.
+     *
+     * @param dependency original column indices
+     * @return true if every row is set an even number of times
+     */
+    public boolean isDependency(int[] dependency) {
+
+        BitSet sum = new BitSet(numRows);
+        for (int c : dependency) {
+            for (int r : columns.get(c)) {
+                sum.flip(r);
+            }
+        }
+
+        return dependency.length > 0 && sum.isEmpty();
+
+    } /*isDependency*/
+
+    // buildWorkingState
+    // Copies the original columns into the working lists.  Empty columns
+    // are already dependencies on their own.
+    private void buildWorkingState() {
+
+        cols = new ArrayList<>();
+        comps = new ArrayList<>();
+        rowCols = new ArrayList<>();
+        liveColumns = 0;
+        liveEntries = 0;
+        for (int r = 0; r < numRows; r++) {
+            rowCols.add(new HashSet<>());
+        }
+
+        for (int c = 0; c < columns.size(); c++) {
+            int[] rows = columns.get(c);
+            if (rows.length == 0) {
+                found.add(new int[]{c});
+                cols.add(null);
+            } else {
+                cols.add(rows);
+                for (int r : rows) {
+                    rowCols.get(r).add(c);
+                }
+                liveColumns++;
+                liveEntries += rows.length;
+            }
+            comps.add(new int[]{c});
+        }
+    }
+
+    // removeSingletons
+    // A row set in only one column can never cancel, so that column is in
+    // no dependency.  Removing it may create new singletons, so repeat
+    // until none are left.
+    private void removeSingletons() {
+
+        List<Integer> queue = new ArrayList<>();
+        for (int r = 0; r < numRows; r++) {
+            if (rowCols.get(r).size() == 1) {
+                queue.add(r);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int r = queue.remove(queue.size() - 1);
+            if (rowCols.get(r).size() != 1) {
+                continue;
+            }
+            int c = rowCols.get(r).iterator().next();
+            for (int row : deleteColumn(c)) {
+                if (rowCols.get(row).size() == 1) {
+                    queue.add(row);
+                }
+            }
+        }
+    }
+
+    // removeCliques
+    // Columns linked through rows of weight two form cliques; deleting a
+    // whole clique lowers the excess of columns over rows by about one.
+    // While there is more excess than needed, delete the largest cliques,
+    // since they are the most expensive to carry through elimination.
+    private void removeCliques() {
+
+        while (true) {
+            int excess = liveColumns - liveRows() - TARGET_EXCESS;
+            if (excess <= 0) {
+                return;
+            }
+
+            // union-find over the columns joined by weight two rows
+            int[] parent = new int[cols.size()];
+            for (int c = 0; c < parent.length; c++) {
+                parent[c] = c;
+            }
+            for (Set<Integer> holders : rowCols) {
+                if (holders.size() == 2) {
+                    int[] pair = new int[2];
+                    int i = 0;
+                    for (int c : holders) {
+                        pair[i++] = c;
+                    }
+                    parent[find(parent, pair[0])] = find(parent, pair[1]);
+                }
+            }
+
+            // gather each clique's columns under its root
+            List<List<Integer>> cliques = new ArrayList<>();
+            int[] cliqueOf = new int[cols.size()];
+            Arrays.fill(cliqueOf, -1);
+            for (int c = 0; c < cols.size(); c++) {
+                if (cols.get(c) == null) {
+                    continue;
+                }
+                int root = find(parent, c);
+                if (cliqueOf[root] < 0) {
+                    cliqueOf[root] = cliques.size();
+                    cliques.add(new ArrayList<>());
+                }
+                cliques.get(cliqueOf[root]).add(c);
+            }
+
+            cliques.sort((a, b) -> b.size() - a.size());
+
+            // deleting half the excess per pass leaves room for the
+            // singletons that each deletion creates
+            int remove = Math.max(1, Math.min(cliques.size(), excess / 2));
+            for (int i = 0; i < remove; i++) {
+                for (int c : cliques.get(i)) {
+                    if (cols.get(c) != null) {
+                        deleteColumn(c);
+                    }
+                }
+            }
+
+            removeSingletons();
+        }
+    }
+
+    private static int find(int[] parent, int c) {
+        while (parent[c] != c) {
+            parent[c] = parent[parent[c]];
+            c = parent[c];
+        }
+        return c;
+    }
+
+    // merge
+    // Structured Gaussian elimination.  For a row set in w columns, add
+    // the lightest of them to the other w - 1 and delete it.  The row
+    // disappears and the matrix loses one row and one column while staying
+    // sparse, provided w is small.  Lighter rows are merged first.
+    private void merge() {
+
+        for (int weight = 2; weight <= MAX_MERGE_WEIGHT; weight++) {
+            for (int r = 0; r < numRows; r++) {
+
+                if (density() > MAX_MERGE_DENSITY) {
+                    return;
+                }
+
+                Set<Integer> holders = rowCols.get(r);
+                if (holders.isEmpty() || holders.size() > weight) {
+                    continue;
+                }
+
+                // the lightest column is the pivot
+                int pivot = -1;
+                for (int c : holders) {
+                    if (pivot < 0 || cols.get(c).length
+                                     < cols.get(pivot).length) {
+                        pivot = c;
+                    }
+                }
+
+                int[] pivotRows = cols.get(pivot);
+                int[] pivotComp = comps.get(pivot);
+                for (int c : new ArrayList<>(holders)) {
+                    if (c == pivot) {
+                        continue;
+                    }
+                    int[] rows = symmetricDifference(cols.get(c), pivotRows);
+                    comps.set(c, symmetricDifference(comps.get(c), pivotComp));
+
+                    // only the pivot's rows change membership
+                    for (int row : pivotRows) {
+                        Set<Integer> set = rowCols.get(row);
+                        if (!set.remove(c)) {
+                            set.add(c);
+                        }
+                    }
+                    liveEntries += rows.length - cols.get(c).length;
+                    if (rows.length == 0) {
+                        // the sum cancelled completely, a free dependency
+                        found.add(comps.get(c));
+                        cols.set(c, null);
+                        liveColumns--;
+                    } else {
+                        cols.set(c, rows);
+                    }
+                }
+
+                deleteColumn(pivot);
+            }
+        }
+    }
+
+    // deleteColumn
+    // Removes a working column and returns the rows it was in.
+    private int[] deleteColumn(int c) {
+
+        int[] rows = cols.get(c);
+        for (int r : rows) {
+            rowCols.get(r).remove(c);
+        }
+        cols.set(c, null);
+        liveColumns--;
+        liveEntries -= rows.length;
+
+        return rows;
+    }
+
+    private int liveRows() {
+        int count = 0;
+        for (Set<Integer> holders : rowCols) {
+            if (!holders.isEmpty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private double density() {
+        return liveColumns == 0 ? 0 : (double) liveEntries / liveColumns;
+    }
+
+    // symmetricDifference
+    // merges two sorted arrays, keeping the values found in exactly one
+    private static int[] symmetricDifference(int[] a, int[] b) {
+
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                out[k++] = a[i++];
+            } else if (a[i] > b[j]) {
+                out[k++] = b[j++];
+            } else {
+                i++;
+                j++;
+            }
+        }
+        while (i < a.length) {
+            out[k++] = a[i++];
+        }
+        while (j < b.length) {
+            out[k++] = b[j++];
+        }
+
+        return Arrays.copyOf(out, k);
+    }
+
+    /*---------------------------*
+        Dense elimination
+     *---------------------------*/
+
+    // dense
+    // Plain Gaussian elimination on the columns, for small matrices.  Each
+    // column carries a tag recording which columns were added into it; the
+    // columns that reduce to zero give the dependencies.
+    private static List<BitSet> dense(Packed m) {
+
+        int n = m.cols;
+        int rowWords = (m.rows + 63) >>> 6;
+        int tagWords = (n + 63) >>> 6;
+
+        long[][] vec = new long[n][rowWords];
+        long[][] tag = new long[n][tagWords];
+        for (int c = 0; c < n; c++) {
+            for (int k = m.colStart[c]; k < m.colStart[c + 1]; k++) {
+                int r = m.colRows[k];
+                vec[c][r >>> 6] |= 1L << r;
+            }
+            tag[c][c >>> 6] |= 1L << c;
+        }
+
+        boolean[] pivoted = new boolean[n];
+        for (int r = 0; r < m.rows; r++) {
+            int word = r >>> 6;
+            long bit = 1L << r;
+
+            int pivot = -1;
+            for (int c = 0; c < n; c++) {
+                if (!pivoted[c] && (vec[c][word] & bit) != 0) {
+                    pivot = c;
+                    break;
+                }
+            }
+            if (pivot < 0) {
+                continue;
+            }
+            pivoted[pivot] = true;
+
+            for (int c = 0; c < n; c++) {
+                if (!pivoted[c] && (vec[c][word] & bit) != 0) {
+                    xorInto(vec[c], vec[pivot]);
+                    xorInto(tag[c], tag[pivot]);
+                }
+            }
+        }
+
+        List<BitSet> solutions = new ArrayList<>();
+        for (int c = 0; c < n; c++) {
+            if (!pivoted[c]) {
+                solutions.add(BitSet.valueOf(tag[c]));
+            }
+        }
+
+        return solutions;
+    }
+
+    private static void xorInto(long[] target, long[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] ^= source[i];
+        }
+    }
+
+    /*---------------------------*
+        Block Lanczos
+     *---------------------------*/
+
+    // lanczos
+    // Montgomery's block Lanczos.  Works on the symmetric matrix A = B'B
+    // with blocks of 64 vectors, one per bit of a long.  Starting from a
+    // random x, it solves A y = A x, so x + y is (nearly) in the null space
+    // of A.  The result is then combined with the last Lanczos block to
+    // get vectors in the null space of B itself.
+    private static List<BitSet> lanczos(Packed b, int threads) {
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+                threads));
+        Random random = new Random();
+
+        try {
+            for (int attempt = 0; attempt < LANCZOS_ATTEMPTS; attempt++) {
+                List<BitSet> solutions = lanczosRun(b, pool, random);
+                if (!solutions.isEmpty()) {
+                    return solutions;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        return new ArrayList<>();
+    }
+
+    private static List<BitSet> lanczosRun(Packed b, ExecutorService pool,
+                                           Random random) {
+
+        int n = b.cols;
+
+        long[] x = new long[n];
+        long[] v0 = new long[n];
+        long[][] v = new long[3][n];
+        long[] vnext = new long[n];
+        long[] scratch = new long[b.rows];
+
+        long[][] winv = new long[3][64];
+        long[][] vtav = new long[2][64];
+        long[][] vta2v = new long[2][64];
+        long[] d = new long[64];
+        long[] e = new long[64];
+        long[] f = new long[64];
+        long[] f2 = new long[64];
+
+        int[] s0 = new int[64];
+        int[] s1 = new int[64];
+        for (int i = 0; i < 64; i++) {
+            s1[i] = i;
+        }
+        int dim1 = 64;
+        long mask1 = -1L;
+
+        // v[0] = A x for a random x
+        for (int i = 0; i < n; i++) {
+            x[i] = random.nextLong();
+        }
+        b.multiply(x, scratch, pool);
+        b.multiplyTranspose(scratch, v[0], pool);
+        System.arraycopy(v[0], 0, v0, 0, n);
+
+        int maxIterations = n / 60 + 100;
+        for (int iter = 0; ; iter++) {
+
+            if (iter > maxIterations) {
+                return new ArrayList<>(); // not converging
+            }
+
+            // vnext = A v[0]
+            b.multiply(v[0], scratch, pool);
+            b.multiplyTranspose(scratch, vnext, pool);
+
+            innerProduct(v[0], vnext, vtav[0], pool);
+            innerProduct(vnext, vnext, vta2v[0], pool);
+
+            // done once v[0] is A-orthogonal to itself
+            if (isZero(vtav[0])) {
+                break;
+            }
+
+            int dim0 = findNonsingular(vtav[0], s0, s1, dim1, winv[0]);
+            if (dim0 == 0) {
+                return new ArrayList<>();
+            }
+
+            long mask0 = 0;
+            for (int i = 0; i < dim0; i++) {
+                mask0 |= 1L << s0[i];
+            }
+
+            // every column must be used in one of two consecutive steps
+            if ((mask0 | mask1) != -1L) {
+                return new ArrayList<>();
+            }
+
+            // d = I - winv0 (vta2v0 S0 S0' + vtav0)
+            for (int i = 0; i < 64; i++) {
+                d[i] = (vta2v[0][i] & mask0) ^ vtav[0][i];
+            }
+            multiply64(winv[0], d, d);
+            for (int i = 0; i < 64; i++) {
+                d[i] ^= 1L << i;
+            }
+
+            // e = - winv1 vtav0 S0 S0'
+            multiply64(winv[1], vtav[0], e);
+            for (int i = 0; i < 64; i++) {
+                e[i] &= mask0;
+            }
+
+            // f = - winv2 (I - vtav1 winv1) (vta2v1 S1 S1' + vtav1) S0 S0'
+            multiply64(vtav[1], winv[1], f);
+            for (int i = 0; i < 64; i++) {
+                f[i] ^= 1L << i;
+            }
+            multiply64(winv[2], f, f);
+            for (int i = 0; i < 64; i++) {
+                f2[i] = ((vta2v[1][i] & mask1) ^ vtav[1][i]) & mask0;
+            }
+            multiply64(f, f2, f);
+
+            // vnext = A v0 S0 S0' + v0 d + v1 e + v2 f
+            for (int i = 0; i < n; i++) {
+                vnext[i] &= mask0;
+            }
+            multiplyAccumulate(v[0], d, vnext, pool);
+            multiplyAccumulate(v[1], e, vnext, pool);
+            multiplyAccumulate(v[2], f, vnext, pool);
+
+            // x += v0 winv0 v0' v_start
+            innerProduct(v[0], v0, d, pool);
+            multiply64(winv[0], d, d);
+            multiplyAccumulate(v[0], d, x, pool);
+
+            // rotate
+            long[] t = v[2];
+            v[2] = v[1];
+            v[1] = v[0];
+            v[0] = vnext;
+            vnext = t;
+
+            t = winv[2];
+            winv[2] = winv[1];
+            winv[1] = winv[0];
+            winv[0] = t;
+
+            t = vtav[1];
+            vtav[1] = vtav[0];
+            vtav[0] = t;
+
+            t = vta2v[1];
+            vta2v[1] = vta2v[0];
+            vta2v[0] = t;
+
+            System.arraycopy(s0, 0, s1, 0, 64);
+            mask1 = mask0;
+            dim1 = dim0;
+        }
+
+        return combine(b, x, v[0], pool);
+    }
+
+    // findNonsingular
+    // Picks the columns S0 of t = v'Av that form an invertible submatrix,
+    // preferring columns not used in the previous step, and writes the
+    // inverse of that submatrix into w.  Returns the number of columns.
+    private static int findNonsingular(long[] t, int[] s, int[] lastS,
+                                       int lastDim, long[] w) {
+
+        long[][] m = new long[64][2];
+        for (int i = 0; i < 64; i++) {
+            m[i][0] = t[i];
+            m[i][1] = 1L << i;
+        }
+
+        // columns from the last step go to the back
+        long mask = 0;
+        for (int i = 0; i < lastDim; i++) {
+            mask |= 1L << lastS[i];
+            s[63 - i] = lastS[i];
+        }
+        for (int i = 0, j = 0; i < 64; i++) {
+            if ((mask & (1L << i)) == 0) {
+                s[j++] = i;
+            }
+        }
+
+        int dim = 0;
+        for (int i = 0; i < 64; i++) {
+            long bit = 1L << s[i];
+            long[] rowI = m[s[i]];
+
+            // find a pivot for this column in the left half
+            int j;
+            for (j = i; j < 64; j++) {
+                if ((m[s[j]][0] & bit) != 0) {
+                    swap(m, s[i], s[j]);
+                    break;
+                }
+            }
+            rowI = m[s[i]];
+
+            if (j < 64) {
+                for (j = 0; j < 64; j++) {
+                    if (m[s[j]] != rowI && (m[s[j]][0] & bit) != 0) {
+                        m[s[j]][0] ^= rowI[0];
+                        m[s[j]][1] ^= rowI[1];
+                    }
+                }
+                s[dim++] = s[i];
+                continue;
+            }
+
+            // no pivot, use the right half to make up for it
+            for (j = i; j < 64; j++) {
+                if ((m[s[j]][1] & bit) != 0) {
+                    swap(m, s[i], s[j]);
+                    break;
+                }
+            }
+            if (j == 64) {
+                return 0; // not invertible
+            }
+            rowI = m[s[i]];
+
+            for (j = 0; j < 64; j++) {
+                if (m[s[j]] != rowI && (m[s[j]][1] & bit) != 0) {
+                    m[s[j]][0] ^= rowI[0];
+                    m[s[j]][1] ^= rowI[1];
+                }
+            }
+            rowI[0] = 0;
+            rowI[1] = 0;
+        }
+
+        for (int i = 0; i < 64; i++) {
+            w[i] = m[i][1];
+        }
+
+        return dim;
+    }
+
+    private static void swap(long[][] m, int a, int b) {
+        long[] t = m[a];
+        m[a] = m[b];
+        m[b] = t;
+    }
+
+    // combine
+    // x and v together span the null space vectors found by the
+    // iteration.  Find combinations of their 128 columns that B sends to
+    // zero, and return each combination as a set of columns of B.
+    private static List<BitSet> combine(Packed b, long[] x, long[] v,
+                                        ExecutorService pool) {
+
+        int n = b.cols;
+        long[] bx = new long[b.rows];
+        long[] bv = new long[b.rows];
+        b.multiply(x, bx, pool);
+        b.multiply(v, bv, pool);
+
+        // transpose [bx | bv] into 128 bit vectors over the rows
+        int words = (b.rows + 63) >>> 6;
+        long[][] vec = new long[128][words];
+        for (int r = 0; r < b.rows; r++) {
+            for (long w = bx[r]; w != 0; w &= w - 1) {
+                vec[Long.numberOfTrailingZeros(w)][r >>> 6] |= 1L << r;
+            }
+            for (long w = bv[r]; w != 0; w &= w - 1) {
+                vec[64 + Long.numberOfTrailingZeros(w)][r >>> 6] |= 1L << r;
+            }
+        }
+        long[][] tag = new long[128][2];
+        for (int j = 0; j < 128; j++) {
+            tag[j][j >>> 6] = 1L << j;
+        }
+
+        boolean[] pivoted = new boolean[128];
+        for (int r = 0; r < b.rows; r++) {
+            int word = r >>> 6;
+            long bit = 1L << r;
+            int pivot = -1;
+            for (int j = 0; j < 128; j++) {
+                if (!pivoted[j] && (vec[j][word] & bit) != 0) {
+                    pivot = j;
+                    break;
+                }
+            }
+            if (pivot < 0) {
+                continue;
+            }
+            pivoted[pivot] = true;
+            for (int j = 0; j < 128; j++) {
+                if (!pivoted[j] && (vec[j][word] & bit) != 0) {
+                    xorInto(vec[j], vec[pivot]);
+                    xorInto(tag[j], tag[pivot]);
+                }
+            }
+        }
+
+        List<BitSet> solutions = new ArrayList<>();
+        for (int j = 0; j < 128 && solutions.size() < 64; j++) {
+            if (pivoted[j]) {
+                continue;
+            }
+            BitSet solution = new BitSet(n);
+            for (int i = 0; i < n; i++) {
+                long bits = (x[i] & tag[j][0]) ^ (v[i] & tag[j][1]);
+                if ((Long.bitCount(bits) & 1) == 1) {
+                    solution.set(i);
+                }
+            }
+            if (!solution.isEmpty() && !solutions.contains(solution)) {
+                solutions.add(solution);
+            }
+        }
+
+        return solutions;
+    }
+
+    private static boolean isZero(long[] a) {
+        for (long w : a) {
+            if (w != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // multiply64
+    // c = a * b for 64x64 matrices stored one row per long.  c may alias
+    // a or b.
+    private static void multiply64(long[] a, long[] b, long[] c) {
+
+        long[] out = new long[64];
+        for (int i = 0; i < 64; i++) {
+            long sum = 0;
+            for (long w = a[i]; w != 0; w &= w - 1) {
+                sum ^= b[Long.numberOfTrailingZeros(w)];
+            }
+            out[i] = sum;
+        }
+        System.arraycopy(out, 0, c, 0, 64);
+    }
+
+    // innerProduct
+    // out = x' y, a 64x64 matrix, for n x 64 blocks x and y.  Uses a table
+    // per byte of x so each element costs eight lookups.
+    private static void innerProduct(long[] x, long[] y, long[] out,
+                                     ExecutorService pool) {
+
+        List<long[]> partials = parallel(x.length, pool, (start, end) -> {
+            long[][] table = new long[8][256];
+            for (int i = start; i < end; i++) {
+                long xi = x[i];
+                long yi = y[i];
+                for (int k = 0; k < 8; k++) {
+                    table[k][(int) (xi >>> (8 * k)) & 0xff] ^= yi;
+                }
+            }
+
+            // row 8k + bit of the result sums every entry whose index has
+            // that bit set
+            long[] result = new long[64];
+            for (int k = 0; k < 8; k++) {
+                for (int bit = 0; bit < 8; bit++) {
+                    long sum = 0;
+                    for (int idx = 1; idx < 256; idx++) {
+                        if ((idx & (1 << bit)) != 0) {
+                            sum ^= table[k][idx];
+                        }
+                    }
+                    result[8 * k + bit] = sum;
+                }
+            }
+            return result;
+        });
+
+        Arrays.fill(out, 0);
+        for (long[] part : partials) {
+            xorInto(out, part);
+        }
+    }
+
+    // multiplyAccumulate
+    // y ^= x * m for an n x 64 block x and a 64x64 matrix m
+    private static void multiplyAccumulate(long[] x, long[] m, long[] y,
+                                           ExecutorService pool) {
+
+        // table[k][byte] is the sum of the rows of m picked by that byte
+        long[][] table = new long[8][256];
+        for (int k = 0; k < 8; k++) {
+            for (int idx = 1; idx < 256; idx++) {
+                int low = Integer.numberOfTrailingZeros(idx);
+                table[k][idx] = table[k][idx & (idx - 1)] ^ m[8 * k + low];
+            }
+        }
+
+        parallel(x.length, pool, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                long xi = x[i];
+                long sum = 0;
+                for (int k = 0; k < 8; k++) {
+                    sum ^= table[k][(int) (xi >>> (8 * k)) & 0xff];
+                }
+                y[i] ^= sum;
+            }
+            return null;
+        });
+    }
+
+    // parallel
+    // Splits [0, count) into chunks, runs task on each from the pool and
+    // returns the results in order.
+    private static List<long[]> parallel(int count, ExecutorService pool,
+                                         RangeTask task) {
+
+        List<long[]> results = new ArrayList<>();
+        if (count <= CHUNK) {
+            results.add(task.run(0, count));
+            return results;
+        }
+
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int start = 0; start < count; start += CHUNK) {
+            int s = start;
+            int e = Math.min(count, start + CHUNK);
+            futures.add(pool.submit(() -> task.run(s, e)));
+        }
+
+        try {
+            for (Future<long[]> future : futures) {
+                results.add(future.get());
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+
+        return results;
+    }
+
+    /**
+     * RangeTask
+     * A piece of work over the indices [start, end).
+     */
+    private interface RangeTask {
+        long[] run(int start, int end);
+    }
+
+    /**
+     * Packed
+     * The reduced matrix in compressed form, stored both by row and by
+     * column so that B v and B' w are both gathers that split cleanly
+     * between threads.
+     */
+    private static class Packed {
+
+        int rows;
+        int cols;
+
+        int[] rowStart;
+        int[] rowCols;
+        int[] colStart;
+        int[] colRows;
+
+        Packed(int rows, List<Integer> live, List<int[]> workingCols,
+               int[] rowIndex) {
+            this.rows = rows;
+            this.cols = live.size();
+
+            colStart = new int[cols + 1];
+            for (int c = 0; c < cols; c++) {
+                colStart[c + 1] = colStart[c] + workingCols.get(live.get(c))
+                        .length;
+            }
+            colRows = new int[colStart[cols]];
+            rowStart = new int[rows + 1];
+            for (int c = 0; c < cols; c++) {
+                int k = colStart[c];
+                for (int r : workingCols.get(live.get(c))) {
+                    colRows[k++] = rowIndex[r];
+                    rowStart[rowIndex[r] + 1]++;
+                }
+            }
+            for (int r = 0; r < rows; r++) {
+                rowStart[r + 1] += rowStart[r];
+            }
+            rowCols = new int[colRows.length];
+            int[] fill = Arrays.copyOf(rowStart, rows);
+            for (int c = 0; c < cols; c++) {
+                for (int k = colStart[c]; k < colStart[c + 1]; k++) {
+                    rowCols[fill[colRows[k]]++] = c;
+                }
+            }
+        }
+
+        // out = B v
+        void multiply(long[] v, long[] out, ExecutorService pool) {
+            parallel(rows, pool, (start, end) -> {
+                for (int r = start; r < end; r++) {
+                    long sum = 0;
+                    for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                        sum ^= v[rowCols[k]];
+                    }
+                    out[r] = sum;
+                }
+                return null;
+            });
+        }
+
+        // out = B' w
+        void multiplyTranspose(long[] w, long[] out, ExecutorService pool) {
+            parallel(cols, pool, (start, end) -> {
+                for (int c = start; c < end; c++) {
+                    long sum = 0;
+                    for (int k = colStart[c]; k < colStart[c + 1]; k++) {
+                        sum ^= w[colRows[k]];
+                    }
+                    out[c] = sum;
+                }
+                return null;
+            });
+        }
+    }
+}
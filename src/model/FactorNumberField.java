@@ -0,0 +1,656 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * FactorNumberField.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Arithmetic in Z[alpha], where alpha is a root of a monic irreducible
+ * polynomial f.  An element is a polynomial of degree below d = deg f in
+ * alpha, held as its coefficients lowest degree first.  The number field
+ * sieve needs the ring for the algebraic half of its congruence of
+ * squares: the square root of a product of many (a - b*alpha).
+ * <p>
+ * The square root is found q-adically.  For a small prime q at which f
+ * has d distinct roots, each root lifts to a q-adic root R, and x -> x(R)
+ * maps Z[alpha] into the q-adic integers.  The square root is taken at
+ * each root with Newton's method and the d values are interpolated back
+ * into an element.  Only the sign at each root is unknown, so the 2^(d-1)
+ * choices are tried until one squares back to the original exactly.
+ */
+
+public class FactorNumberField {
+
+    /* constants */
+    private static final BigInteger ZERO = BigInteger.ZERO;
+    private static final BigInteger ONE = BigInteger.ONE;
+
+    // primes q tried for the square root start here
+    private static final int FIRST_SQRT_PRIME = 1009;
+
+    // and stop here, q-adic lifting makes any of them good enough
+    private static final int LAST_SQRT_PRIME = 1 << 24;
+
+    // bits of precision kept beyond the size of the element's coefficients
+    private static final int SLACK_BITS = 64;
+
+    private final BigInteger[] poly; // f, lowest degree first, monic
+    private final int degree;
+
+    /**
+     * FactorNumberField
+     * Creates the ring Z[alpha] for a root alpha of f.
+     *
+     * @param poly f, lowest degree first; the leading coefficient must be 1
+     */
+    public FactorNumberField(BigInteger[] poly) {
+
+        if (poly.length < 3 || !poly[poly.length - 1].equals(ONE)) {
+            throw new IllegalArgumentException("f must be monic of degree " +
+                                               "at least 2");
+        }
+
+        this.poly = poly.clone();
+        this.degree = poly.length - 1;
+
+    }
+
+    /**
+     * getDegree
+     * returns the degree of f
+     *
+     * @return d
+     */
+    public int getDegree() {
+        return degree;
+    }
+
+    /**
+     * element
+     * returns a - b*alpha
+     *
+     * @param a the constant term
+     * @param b minus the coefficient of alpha
+     * @return the element a - b*alpha
+     */
+    public BigInteger[] element(long a, long b) {
+
+        BigInteger[] x = zero();
+        x[0] = BigInteger.valueOf(a);
+        x[1] = BigInteger.valueOf(-b);
+        return x;
+
+    }
+
+    /**
+     * derivative
+     * returns f'(alpha).  Multiplying by its square makes the square root
+     * of a product of (a - b*alpha) fall in Z[alpha] rather than only in the
+     * ring of integers.
+     *
+     * @return f'(alpha)
+     */
+    public BigInteger[] derivative() {
+
+        BigInteger[] x = zero();
+        for (int i = 1; i <= degree; i++) {
+            x[i - 1] = poly[i].multiply(BigInteger.valueOf(i));
+        }
+        return x;
+
+    }
+
+    /**
+     * multiply
+     * Multiplies two elements and reduces the result modulo f.
+     *
+     * @param x an element
+     * @param y an element
+     * @return x * y
+     */
+    public BigInteger[] multiply(BigInteger[] x, BigInteger[] y) {
+
+        BigInteger[] product = new BigInteger[2 * degree - 1];
+        Arrays.fill(product, ZERO);
+
+        for (int i = 0; i < degree; i++) {
+            if (x[i].signum() == 0) {
+                continue;
+            }
+            for (int j = 0; j < degree; j++) {
+                product[i + j] = product[i + j].add(x[i].multiply(y[j]));
+            }
+        }
+
+        // alpha^d = -(f_0 + f_1*alpha + ... + f_(d-1)*alpha^(d-1))
+        for (int k = 2 * degree - 2; k >= degree; k--) {
+            BigInteger top = product[k];
+            if (top.signum() == 0) {
+                continue;
+            }
+            for (int i = 0; i < degree; i++) {
+                if (poly[i].signum() != 0) {
+                    product[k - degree + i] = product[k - degree + i]
+                            .subtract(top.multiply(poly[i]));
+                }
+            }
+        }
+
+        return Arrays.copyOf(product, degree);
+
+    } /*multiply*/
+
+    /**
+     * product
+     * Multiplies a list of elements, pairing them off in a balanced tree so
+     * the large multiplications are between numbers of similar size.
+     *
+     * @param elements the elements to multiply
+     * @return their product, one if the list is empty
+     */
+    public BigInteger[] product(List<BigInteger[]> elements) {
+
+        if (elements.isEmpty()) {
+            BigInteger[] one = zero();
+            one[0] = ONE;
+            return one;
+        }
+
+        List<BigInteger[]> level = new ArrayList<>(elements);
+        while (level.size() > 1) {
+            List<BigInteger[]> next = new ArrayList<>();
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                next.add(multiply(level.get(i), level.get(i + 1)));
+            }
+            if (level.size() % 2 == 1) {
+                next.add(level.get(level.size() - 1));
+            }
+            level = next;
+        }
+
+        return level.get(0);
+
+    } /*product*/
+
+    /**
+     * sqrt
+     * Finds the square root of an element, if it is a square in Z[alpha].
+     * Which of the two roots is returned is arbitrary.
+     *
+     * @param x the element
+     * @return y with y * y = x, or null if x is not a square
+     */
+    public BigInteger[] sqrt(BigInteger[] x) {
+
+        int bits = 0;
+        for (BigInteger c : x) {
+            bits = Math.max(bits, c.bitLength());
+        }
+        if (bits == 0) {
+            return zero();
+        }
+
+        // a prime where f has d distinct roots, none of them roots of x
+        long q = 0;
+        long[] roots = null;
+        for (long p = FIRST_SQRT_PRIME; p < LAST_SQRT_PRIME && q == 0;
+             p += 2) {
+            if (!BigInteger.valueOf(p).isProbablePrime(30)) {
+                continue;
+            }
+            roots = roots(poly, p);
+            if (roots.length != degree || !usable(x, roots, p)) {
+                continue;
+            }
+            for (long r : roots) {
+                if (legendre(evaluate(x, r, p), p) != 1) {
+                    return null; // x is not even a square mod (q, alpha - r)
+                }
+            }
+            q = p;
+        }
+        if (q == 0) {
+            return null;
+        }
+
+        // enough q-adic digits to hold the coefficients of the root
+        BigInteger bq = BigInteger.valueOf(q);
+        int precision = 1;
+        while (bq.pow(precision).bitLength() <= bits + SLACK_BITS) {
+            precision *= 2;
+        }
+        BigInteger modulus = bq.pow(precision);
+
+        // lift each root of f, then the square root of x at it
+        BigInteger[] lifted = new BigInteger[degree];
+        BigInteger[] halves = new BigInteger[degree];
+        for (int i = 0; i < degree; i++) {
+            lifted[i] = liftRoot(roots[i], bq, precision);
+            BigInteger value = evaluate(x, lifted[i], modulus);
+            halves[i] = liftSqrt(sqrtMod(value.mod(bq).longValue(), q),
+                    value, bq, precision);
+        }
+
+        // Lagrange basis for the lifted roots
+        BigInteger[][] basis = new BigInteger[degree][];
+        for (int i = 0; i < degree; i++) {
+            BigInteger[] numerator = {ONE};
+            BigInteger denominator = ONE;
+            for (int j = 0; j < degree; j++) {
+                if (j != i) {
+                    numerator = timesLinear(numerator, lifted[j], modulus);
+                    denominator = denominator.multiply(lifted[i]
+                            .subtract(lifted[j])).mod(modulus);
+                }
+            }
+            BigInteger inverse = denominator.modInverse(modulus);
+            basis[i] = new BigInteger[degree];
+            for (int k = 0; k < degree; k++) {
+                basis[i][k] = numerator[k].multiply(inverse).mod(modulus);
+            }
+        }
+
+        // the sign at the first root is free, try each choice for the rest
+        BigInteger half = modulus.shiftRight(1);
+        for (int signs = 0; signs < 1 << (degree - 1); signs++) {
+            BigInteger[] y = zero();
+            for (int i = 0; i < degree; i++) {
+                BigInteger value = i > 0 && (signs >> (i - 1) & 1) == 1 ?
+                        halves[i].negate() : halves[i];
+                for (int k = 0; k < degree; k++) {
+                    y[k] = y[k].add(value.multiply(basis[i][k]));
+                }
+            }
+            for (int k = 0; k < degree; k++) {
+                y[k] = y[k].mod(modulus);
+                if (y[k].compareTo(half) > 0) {
+                    y[k] = y[k].subtract(modulus);
+                }
+            }
+            if (Arrays.equals(multiply(y, y), x)) {
+                return y;
+            }
+        }
+
+        return null;
+
+    } /*sqrt*/
+
+    /**
+     * map
+     * Applies the homomorphism alpha -> m from Z[alpha] to Z/nZ, where m is
+     * a root of f modulo n.
+     *
+     * @param x   the element
+     * @param m   a root of f modulo mod
+     * @param mod the modulus n
+     * @return x(m) mod n
+     */
+    public static BigInteger map(BigInteger[] x, BigInteger m,
+                                 BigInteger mod) {
+
+        BigInteger value = ZERO;
+        for (int i = x.length - 1; i >= 0; i--) {
+            value = value.multiply(m).add(x[i]).mod(mod);
+        }
+        return value;
+
+    }
+
+    /**
+     * roots
+     * Finds the distinct roots of a polynomial modulo a prime p below 2^31
+     * by Cantor-Zassenhaus: gcd(x^p - x, f) is the product of the linear
+     * factors of f, and gcds with (x + delta)^((p-1)/2) - 1 for random
+     * delta split it apart.
+     *
+     * @param poly the polynomial, lowest degree first
+     * @param p    the prime
+     * @return the roots in increasing order, possibly none
+     */
+    public static long[] roots(BigInteger[] poly, long p) {
+
+        long[] f = reduce(poly, p);
+        List<Long> found = new ArrayList<>();
+
+        if (f.length <= 1) {
+            return new long[0]; // constant, or zero mod p
+        }
+
+        if (p < 64) {
+            for (long r = 0; r < p; r++) {
+                if (evaluate(f, r, p) == 0) {
+                    found.add(r);
+                }
+            }
+        } else {
+            f = monic(f, p);
+            long[] x = {0, 1};
+            long[] xp = powMod(x, p, f, p);
+            long[] linear = gcd(subtract(xp, x, p), f, p);
+            splitRoots(linear, p, new Random(p), found);
+        }
+
+        long[] result = new long[found.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = found.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+
+    } /*roots*/
+
+    /**
+     * legendre
+     * returns the Legendre symbol (a/p) for an odd prime p below 2^31
+     *
+     * @param a the value
+     * @param p the prime
+     * @return 1, -1, or 0 if p divides a
+     */
+    public static int legendre(long a, long p) {
+
+        a = ((a % p) + p) % p;
+        if (a == 0) {
+            return 0;
+        }
+        return powMod(a, (p - 1) / 2, p) == 1 ? 1 : -1;
+
+    }
+
+    // zero
+    // returns the element 0
+    private BigInteger[] zero() {
+        BigInteger[] x = new BigInteger[degree];
+        Arrays.fill(x, ZERO);
+        return x;
+    }
+
+    // usable
+    // checks that the roots of f mod p are simple and x is a unit at each
+    private boolean usable(BigInteger[] x, long[] roots, long p) {
+        BigInteger[] slope = derivative();
+        for (long r : roots) {
+            if (evaluate(slope, r, p) == 0 || evaluate(x, r, p) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // liftRoot
+    // Newton's method, r <- r - f(r)/f'(r), doubling the q-adic digits
+    // each step
+    private BigInteger liftRoot(long root, BigInteger q, int precision) {
+        BigInteger r = BigInteger.valueOf(root);
+        BigInteger[] slope = derivative();
+        for (int e = 2; e <= precision; e *= 2) {
+            BigInteger mod = q.pow(e);
+            BigInteger value = evaluate(poly, r, mod);
+            BigInteger step = evaluate(slope, r, mod).modInverse(mod);
+            r = r.subtract(value.multiply(step)).mod(mod);
+        }
+        return r;
+    }
+
+    // liftSqrt
+    // Newton's method, s <- s - (s^2 - v)/(2s), from a square root of v
+    // mod q to one mod q^precision
+    private static BigInteger liftSqrt(long root, BigInteger value,
+                                       BigInteger q, int precision) {
+        BigInteger s = BigInteger.valueOf(root);
+        for (int e = 2; e <= precision; e *= 2) {
+            BigInteger mod = q.pow(e);
+            BigInteger error = s.multiply(s).subtract(value);
+            BigInteger step = s.shiftLeft(1).modInverse(mod);
+            s = s.subtract(error.multiply(step)).mod(mod);
+        }
+        return s;
+    }
+
+    // timesLinear
+    // multiplies a polynomial by (x - r) modulo mod
+    private static BigInteger[] timesLinear(BigInteger[] a, BigInteger r,
+                                            BigInteger mod) {
+        BigInteger[] result = new BigInteger[a.length + 1];
+        Arrays.fill(result, ZERO);
+        for (int i = 0; i < a.length; i++) {
+            result[i + 1] = result[i + 1].add(a[i]);
+            result[i] = result[i].subtract(a[i].multiply(r)).mod(mod);
+        }
+        result[a.length] = result[a.length].mod(mod);
+        return result;
+    }
+
+    // evaluate
+    // a(r) mod mod by Horner's rule
+    private static BigInteger evaluate(BigInteger[] a, BigInteger r,
+                                       BigInteger mod) {
+        BigInteger value = ZERO;
+        for (int i = a.length - 1; i >= 0; i--) {
+            value = value.multiply(r).add(a[i]).mod(mod);
+        }
+        return value;
+    }
+
+    // evaluate
+    // a(r) mod p for big coefficients and a word sized prime
+    private static long evaluate(BigInteger[] a, long r, long p) {
+        BigInteger bp = BigInteger.valueOf(p);
+        long value = 0;
+        for (int i = a.length - 1; i >= 0; i--) {
+            value = (value * r + a[i].mod(bp).longValue()) % p;
+        }
+        return value;
+    }
+
+    // evaluate
+    // a(r) mod p
+    private static long evaluate(long[] a, long r, long p) {
+        long value = 0;
+        for (int i = a.length - 1; i >= 0; i--) {
+            value = (value * r + a[i]) % p;
+        }
+        return value;
+    }
+
+    // sqrtMod
+    // Tonelli-Shanks, a square root of a quadratic residue a mod p
+    private static long sqrtMod(long a, long p) {
+
+        if (p % 4 == 3) {
+            return powMod(a, (p + 1) / 4, p);
+        }
+
+        // p - 1 = s * 2^e with s odd
+        long s = p - 1;
+        int e = 0;
+        while (s % 2 == 0) {
+            s /= 2;
+            e++;
+        }
+        long z = 2;
+        while (legendre(z, p) != -1) {
+            z++;
+        }
+
+        long c = powMod(z, s, p);
+        long x = powMod(a, (s + 1) / 2, p);
+        long t = powMod(a, s, p);
+        int m = e;
+        while (t != 1) {
+            int i = 0;
+            for (long u = t; u != 1; u = u * u % p) {
+                i++;
+            }
+            long b = c;
+            for (int j = 0; j < m - i - 1; j++) {
+                b = b * b % p;
+            }
+            x = x * b % p;
+            c = b * b % p;
+            t = t * c % p;
+            m = i;
+        }
+        return x;
+    }
+
+    // powMod
+    // a^e mod p
+    private static long powMod(long a, long e, long p) {
+        long result = 1;
+        a %= p;
+        while (e > 0) {
+            if ((e & 1) == 1) {
+                result = result * a % p;
+            }
+            a = a * a % p;
+            e >>= 1;
+        }
+        return result;
+    }
+
+    /*
+     * Polynomials mod p are long arrays, lowest degree first, with no
+     * leading zeros.  The zero polynomial is the empty array.
+     */
+
+    // reduce
+    // the coefficients of poly mod p
+    private static long[] reduce(BigInteger[] poly, long p) {
+        BigInteger bp = BigInteger.valueOf(p);
+        long[] a = new long[poly.length];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = poly[i].mod(bp).longValue();
+        }
+        return trim(a);
+    }
+
+    // trim
+    // drops leading zero coefficients
+    private static long[] trim(long[] a) {
+        int length = a.length;
+        while (length > 0 && a[length - 1] == 0) {
+            length--;
+        }
+        return length == a.length ? a : Arrays.copyOf(a, length);
+    }
+
+    // monic
+    // scales a so its leading coefficient is 1
+    private static long[] monic(long[] a, long p) {
+        long inverse = powMod(a[a.length - 1], p - 2, p);
+        long[] result = new long[a.length];
+        for (int i = 0; i < a.length; i++) {
+            result[i] = a[i] * inverse % p;
+        }
+        return result;
+    }
+
+    // subtract
+    // a - b mod p
+    private static long[] subtract(long[] a, long[] b, long p) {
+        long[] result = new long[Math.max(a.length, b.length)];
+        for (int i = 0; i < result.length; i++) {
+            long x = i < a.length ? a[i] : 0;
+            long y = i < b.length ? b[i] : 0;
+            result[i] = (x - y + p) % p;
+        }
+        return trim(result);
+    }
+
+    // divide
+    // {quotient, remainder} of a by a non-zero b mod p
+    private static long[][] divide(long[] a, long[] b, long p) {
+        long[] rem = a.clone();
+        if (rem.length < b.length) {
+            return new long[][]{new long[0], rem};
+        }
+        long[] quotient = new long[rem.length - b.length + 1];
+        long inverse = powMod(b[b.length - 1], p - 2, p);
+        for (int k = rem.length - 1; k >= b.length - 1; k--) {
+            long c = rem[k] * inverse % p;
+            quotient[k - b.length + 1] = c;
+            if (c == 0) {
+                continue;
+            }
+            for (int i = 0; i < b.length; i++) {
+                int j = k - b.length + 1 + i;
+                rem[j] = (rem[j] - c * b[i] % p + p) % p;
+            }
+        }
+        return new long[][]{trim(quotient),
+                trim(Arrays.copyOf(rem, b.length - 1))};
+    }
+
+    // multiplyMod
+    // a * b mod (g, p)
+    private static long[] multiplyMod(long[] a, long[] b, long[] g, long p) {
+        if (a.length == 0 || b.length == 0) {
+            return new long[0];
+        }
+        long[] product = new long[a.length + b.length - 1];
+        for (int i = 0; i < a.length; i++) {
+            for (int j = 0; j < b.length; j++) {
+                product[i + j] = (product[i + j] + a[i] * b[j]) % p;
+            }
+        }
+        return divide(trim(product), g, p)[1];
+    }
+
+    // powMod
+    // a^e mod (g, p)
+    private static long[] powMod(long[] a, long e, long[] g, long p) {
+        long[] result = divide(new long[]{1}, g, p)[1];
+        long[] base = divide(a, g, p)[1];
+        while (e > 0) {
+            if ((e & 1) == 1) {
+                result = multiplyMod(result, base, g, p);
+            }
+            base = multiplyMod(base, base, g, p);
+            e >>= 1;
+        }
+        return result;
+    }
+
+    // gcd
+    // the monic gcd of a and b mod p
+    private static long[] gcd(long[] a, long[] b, long p) {
+        while (b.length > 0) {
+            long[] rem = divide(a, b, p)[1];
+            a = b;
+            b = rem;
+        }
+        return a.length == 0 ? a : monic(a, p);
+    }
+
+    // splitRoots
+    // adds the roots of a monic product of distinct linear factors
+    private static void splitRoots(long[] g, long p, Random random,
+                                   List<Long> found) {
+        int degree = g.length - 1;
+        if (degree < 1) {
+            return;
+        }
+        if (degree == 1) {
+            found.add((p - g[0]) % p);
+            return;
+        }
+        while (true) {
+            long delta = Math.floorMod(random.nextLong(), p);
+            long[] h = powMod(new long[]{delta, 1}, (p - 1) / 2, g, p);
+            long[] d = gcd(subtract(h, new long[]{1}, p), g, p);
+            if (d.length > 1 && d.length < g.length) {
+                splitRoots(d, p, random, found);
+                splitRoots(divide(g, d, p)[0], p, random, found);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package model;
+
+/**
+ * FactorPeer.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * The other end of a long-lived link, whether it is a blocking
+ * FactorConnection (clients, and sub-servers talking to the main server)
+ * or a channel served by a FactorEventLoop (the main server and the
+ * sub-servers' listeners).  Handlers reply through this without caring
+ * which one it is.
+ */
+
+public interface FactorPeer {
+
+    /**
+     * send
+     * Sends a message to the other side.  Safe to call from any thread.
+     *
+     * @param data the message to send
+     * @return true if the message was queued or written
+     */
+    boolean send(FactorData data);
+
+    /**
+     * close
+     * Closes the link.
+     */
+    void close();
+
+    /**
+     * isClosed
+     * returns whether this link has been closed by either side
+     *
+     * @return true once the link is closed
+     */
+    boolean isClosed();
+
+    /**
+     * getHostAddress
+     * returns the address of the machine on the other end
+     *
+     * @return the other machine's address
+     */
+    String getHostAddress();
+
+    /**
+     * Handler
+     * Receives the messages read from a peer.
+     */
+    interface Handler {
+
+        /**
+         * handle
+         * Called for every message.  Messages from one peer are handled
+         * one at a time, in the order they were sent.
+         *
+         * @param data the message
+         * @param from the peer it came from, for replies
+         */
+        void handle(FactorData data, FactorPeer from);
+
+        /**
+         * closed
+         * Called once when the other side goes away, after its last
+         * message has been handled.
+         *
+         * @param peer the peer that closed
+         */
+        default void closed(FactorPeer peer) {
+        }
+    }
+}
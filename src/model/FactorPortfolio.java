@@ -0,0 +1,377 @@
+package model;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * FactorPortfolio.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Decides how the clients are split between the algorithms.  Handing
+ * them out in turn gave each algorithm a fifth of the machines whatever
+ * the number, so trial division got as many on a 100 bit number, where
+ * it has no hope, as on a 30 bit one, where it is the fastest.
+ * <p>
+ * Each algorithm is given a window: how much work it takes to either
+ * find a factor or give up, and its chance of finding one in that time.
+ * <pre>
+ *   trial division  sweeps to sqrt n, 2^(b/2) trials, and cannot miss
+ *   Fermat          the near-square window, 2^(b/4) steps.  Finds a
+ *                   factor only when the two lie that close together
+ *   Pollard's p-1   stage one to 2^20.  Finds p when p - 1 is that
+ *                   smooth, about u^-u for u = (b/2) / 20
+ *   CFRAC           exp(sqrt(2 ln n ln ln n)) steps, and cannot miss
+ * </pre>
+ * for a b bit n.  A FactorCostModel turns the steps into worker-seconds,
+ * from timings of each kernel on this kind of machine once it has been
+ * calibrated.  What an algorithm is worth is its chance of success per
+ * worker-second of what is left of its window.  Time spent without a
+ * factor lowers the chance for the algorithms that can miss, and the one
+ * that runs out of its window is worth nothing from then on.  The clients
+ * are shared in proportion to worth, so most go to the best bet and a long
+ * shot still gets a few while it has a chance.
+ * <p>
+ * The server counts worker-seconds per algorithm as the run goes, and
+ * moves clients across when the shares drift far enough from the counts.
+ */
+
+public class FactorPortfolio {
+
+    // the algorithms a client can run
+    public static final FactorType[] ALGORITHMS = {FactorType.TD2,
+            FactorType.TDRN, FactorType.FERMAT, FactorType.POLLARDS,
+            FactorType.CFRAC};
+
+    // chance a number's factors lie inside Fermat's window
+    private static final double FERMAT_PRIOR = 0.05;
+
+    // how far, in bits, a p-1 unit takes its smoothness bound
+    private static final int POLLARD_BOUND_BITS = 20;
+
+    private int bits; // size of the number being factored
+    private FactorCostModel costs; // seconds per step of each algorithm
+    private Map<FactorType, Double> spent = new EnumMap<>(FactorType.class);
+
+    /**
+     * FactorPortfolio
+     * Creates a portfolio for a number with nothing spent on it yet,
+     * costed by an uncalibrated model.
+     *
+     * @param bits the number's bit length
+     */
+    public FactorPortfolio(int bits) {
+        this(bits, new FactorCostModel());
+    }
+
+    /**
+     * FactorPortfolio
+     * Creates a portfolio for a number with nothing spent on it yet.
+     *
+     * @param bits  the number's bit length
+     * @param costs what a step of each algorithm takes
+     */
+    public FactorPortfolio(int bits, FactorCostModel costs) {
+        this.costs = costs;
+        reset(bits);
+    }
+
+    /**
+     * reset
+     * Starts over on a new number, forgetting the time spent on the last.
+     *
+     * @param bits the new number's bit length
+     */
+    public void reset(int bits) {
+        this.bits = bits;
+        spent.clear();
+        for (FactorType type : ALGORITHMS) {
+            spent.put(type, 0.0);
+        }
+    }
+
+    /**
+     * getBits
+     * returns the bit length of the number the portfolio is for
+     *
+     * @return the bit length
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * spend
+     * Records time the clients put into one algorithm without finding a
+     * factor.
+     *
+     * @param type          the algorithm
+     * @param workerSeconds the worker threads on it times the seconds
+     */
+    public void spend(FactorType type, double workerSeconds) {
+        spent.merge(FactorType.asWorker(type), workerSeconds, Double::sum);
+    }
+
+    /**
+     * getSpent
+     * returns the worker-seconds put into an algorithm on this number
+     *
+     * @param type the algorithm
+     * @return the worker-seconds
+     */
+    public double getSpent(FactorType type) {
+        return spent.getOrDefault(FactorType.asWorker(type), 0.0);
+    }
+
+    /**
+     * windowSteps
+     * returns how many steps an algorithm's window takes on a number of
+     * the given size
+     *
+     * @param type the algorithm
+     * @param bits the number's bit length
+     * @return the steps
+     */
+    public static double windowSteps(FactorType type, int bits) {
+
+        switch (FactorType.asWorker(type)) {
+            case TD2:
+            case TDRN:
+                return Math.pow(2, bits / 2.0);
+            case FERMAT:
+                return Math.pow(2, bits / 4.0);
+            case POLLARDS:
+                return Math.pow(2, POLLARD_BOUND_BITS);
+            case CFRAC:
+                double ln = bits * Math.log(2);
+                return Math.exp(Math.sqrt(2 * ln * Math.log(Math.max(ln, 2))));
+            default:
+                return Double.POSITIVE_INFINITY;
+        }
+
+    } /*windowSteps*/
+
+    /**
+     * expectedCost
+     * returns the worker-seconds an algorithm's window takes on this
+     * number
+     *
+     * @param type the algorithm
+     * @return the worker-seconds
+     */
+    public double expectedCost(FactorType type) {
+        return windowSteps(type, bits) * costs.secondsPerStep(type, bits);
+    }
+
+    /**
+     * prior
+     * returns the chance an algorithm finds a factor of a number of the
+     * given size within its window, before any time is spent on it
+     *
+     * @param type the algorithm
+     * @param bits the number's bit length
+     * @return the chance, 0 to 1
+     */
+    public static double prior(FactorType type, int bits) {
+
+        switch (FactorType.asWorker(type)) {
+            case FERMAT:
+                return FERMAT_PRIOR;
+            case POLLARDS:
+                // Dickman's rho, roughly, for the smaller factor
+                double u = bits / 2.0 / POLLARD_BOUND_BITS;
+                return u <= 1 ? 1 : Math.pow(u, -u);
+            case TD2:
+            case TDRN:
+            case CFRAC:
+                return 1;
+            default:
+                return 0;
+        }
+
+    } /*prior*/
+
+    /**
+     * payoff
+     * returns an algorithm's chance of finding a factor per worker-second
+     * from here on.  Time spent is taken off its window, and for the ones
+     * that can miss, it lowers the chance that the factor is in what is
+     * left.
+     *
+     * @param type the algorithm
+     * @return the chance per worker-second, 0 once the window of one that
+     * can miss is spent
+     */
+    public double payoff(FactorType type) {
+
+        double cost = expectedCost(type);
+        double p = prior(type, bits);
+        double done = Math.min(1, getSpent(type) / cost);
+        if (p >= 1) {
+            // cannot miss, so one that overruns its estimate is still
+            // close to done
+            return 1 / (cost * Math.max(0.1, 1 - done));
+        }
+        if (done >= 1 || p <= 0) {
+            return 0;
+        }
+        // chance it is in the part not yet searched, given that it was
+        // not in the part that was
+        double left = p * (1 - done) / (1 - p * done);
+        return left / (cost * (1 - done));
+
+    } /*payoff*/
+
+    /**
+     * shares
+     * returns the fraction of the workers each algorithm should have
+     *
+     * @return the shares, adding up to 1
+     */
+    public Map<FactorType, Double> shares() {
+        Map<FactorType, Double> shares = new EnumMap<>(FactorType.class);
+        double total = 0;
+        for (FactorType type : ALGORITHMS) {
+            total += payoff(type);
+        }
+        for (FactorType type : ALGORITHMS) {
+            shares.put(type, total > 0 ? payoff(type) / total : 0.0);
+        }
+        return shares;
+    }
+
+    /**
+     * pick
+     * Chooses the algorithm furthest below its share of the workers.
+     *
+     * @param threads   the workers on each algorithm now, each counted by
+     *                  its speed
+     * @param available the algorithms that have a sub-server to join
+     * @return the algorithm, or null if none is available
+     */
+    public FactorType pick(Map<FactorType, Double> threads,
+                           Collection<FactorType> available) {
+        Map<FactorType, Double> shares = shares();
+        double total = total(threads);
+        FactorType best = null;
+        double bestGap = Double.NEGATIVE_INFINITY;
+        for (FactorType type : available) {
+            double gap = shares.get(type) * total - threads.getOrDefault
+                    (type, 0.0);
+            if (gap > bestGap) {
+                best = type;
+                bestGap = gap;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * improves
+     * returns whether moving a client from one algorithm to another
+     * brings the workers meaningfully closer to the shares.  Moves that
+     * only trade one small miss for another are not worth stopping a
+     * client's units for.
+     *
+     * @param threads the workers on each algorithm now, each counted by
+     *                its speed
+     * @param from    the client's algorithm
+     * @param to      the algorithm it would move to
+     * @param workers the client's workers, counted the same way
+     * @return true if the move is worth making
+     */
+    public boolean improves(Map<FactorType, Double> threads, FactorType
+            from, FactorType to, double workers) {
+        if (from == to) {
+            return false;
+        }
+        Map<FactorType, Double> shares = shares();
+        double total = total(threads);
+        double over = threads.getOrDefault(from, 0.0) - shares.get(from) *
+                                                        total;
+        double under = shares.get(to) * total - threads.getOrDefault(to, 0.0);
+        double before = Math.abs(over) + Math.abs(under);
+        double after = Math.abs(over - workers) + Math.abs(under - workers);
+        return after < before - workers / 2.0;
+    }
+
+    /**
+     * forecast
+     * returns, before any time is spent, what each algorithm's window
+     * would take and its chance in it, one algorithm a line
+     *
+     * @return the forecast
+     */
+    public String forecast() {
+        StringBuilder out = new StringBuilder();
+        Map<FactorType, Double> shares = shares();
+        for (FactorType type : ALGORITHMS) {
+            out.append(String.format("  %-9s %10s worker-time, %3.0f%% " +
+                                     "chance, %3.0f%% of the workers%n",
+                    FactorType.toString(type), duration(expectedCost(type)),
+                    100 * prior(type, bits), 100 * shares.get(type)));
+        }
+        return out.toString();
+    }
+
+    /**
+     * expectedTime
+     * returns the worker-seconds the cheapest algorithm that cannot miss
+     * takes on this number: about how long the run takes, in all
+     *
+     * @return the worker-seconds
+     */
+    public double expectedTime() {
+        double best = Double.POSITIVE_INFINITY;
+        for (FactorType type : ALGORITHMS) {
+            if (prior(type, bits) >= 1) {
+                best = Math.min(best, expectedCost(type));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * duration
+     * returns seconds in the largest unit that keeps them readable
+     *
+     * @param seconds the seconds
+     * @return e.g. "2.26 h"
+     */
+    public static String duration(double seconds) {
+        if (Double.isInfinite(seconds) || seconds > 3.15e13) {
+            return "forever";
+        } else if (seconds >= 3.15e7) {
+            return String.format("%.3g y", seconds / 3.15e7);
+        } else if (seconds >= 86400) {
+            return String.format("%.3g d", seconds / 86400);
+        } else if (seconds >= 3600) {
+            return String.format("%.3g h", seconds / 3600);
+        } else if (seconds >= 1) {
+            return String.format("%.3g s", seconds);
+        }
+        return String.format("%.3g ms", seconds * 1000);
+    }
+
+    // total
+    // the workers over every algorithm
+    private static double total(Map<FactorType, Double> threads) {
+        double total = 0;
+        for (double count : threads.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(bits + " bits:");
+        Map<FactorType, Double> shares = shares();
+        for (FactorType type : ALGORITHMS) {
+            out.append(String.format(" %s %.0f%%", FactorType.toString
+                    (type), 100 * shares.get(type)));
+        }
+        return out.toString();
+    }
+}
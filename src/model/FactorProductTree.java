@@ -0,0 +1,197 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * FactorProductTree.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * A product tree over a list of integers.  The leaves are the integers and
+ * every node is the product of its two children, so the root is the
+ * product of everything.  Multiplying in a balanced tree keeps both sides
+ * of every multiplication about the same size, which is where BigInteger's
+ * Karatsuba and Toom-Cook multiplication pay off.
+ * <p>
+ * Going back down the tree gives a remainder tree: reduce a value modulo
+ * the root, then each remainder modulo the children, and so on.  This
+ * finds the value modulo every leaf in quasi-linear time instead of one
+ * full division per leaf.  Both directions can split the nodes of a level
+ * across a thread pool.
+ */
+
+public class FactorProductTree {
+
+    // levels smaller than this are computed on the calling thread
+    private static final int PARALLEL_MIN = 64;
+
+    // levels[0] holds the leaves, the last level holds the root
+    private BigInteger[][] levels;
+
+    /**
+     * FactorProductTree
+     * Builds the product tree of values.
+     *
+     * @param values the leaves, must not be empty
+     * @param pool   threads used to build each level, or null to build on
+     *               the calling thread
+     */
+    public FactorProductTree(BigInteger[] values, ExecutorService pool) {
+
+        if (values.length == 0) {
+            throw new IllegalArgumentException("product tree needs at " +
+                                               "least one value");
+        }
+
+        List<BigInteger[]> built = new ArrayList<>();
+        BigInteger[] level = values.clone();
+        built.add(level);
+
+        while (level.length > 1) {
+            BigInteger[] below = level;
+            BigInteger[] above = new BigInteger[(below.length + 1) / 2];
+
+            forEach(above.length, pool, i -> {
+                if (2 * i + 1 < below.length) {
+                    above[i] = below[2 * i].multiply(below[2 * i + 1]);
+                } else {
+                    above[i] = below[2 * i];
+                }
+            });
+
+            built.add(above);
+            level = above;
+        }
+
+        levels = built.toArray(new BigInteger[0][]);
+
+    }
+
+    /**
+     * product
+     * returns the product of every leaf
+     *
+     * @return the root of the tree
+     */
+    public BigInteger product() {
+        return levels[levels.length - 1][0];
+    }
+
+    /**
+     * size
+     * returns the number of leaves
+     *
+     * @return number of values the tree was built from
+     */
+    public int size() {
+        return levels[0].length;
+    }
+
+    /**
+     * remainders
+     * Computes value mod leaf for every leaf by walking the remainder tree.
+     *
+     * @param value the value to reduce
+     * @param pool  threads used for each level, or null
+     * @return value mod each leaf, in leaf order
+     */
+    public BigInteger[] remainders(BigInteger value, ExecutorService pool) {
+        return descend(value, false, pool);
+    }
+
+    /**
+     * remaindersSquared
+     * Computes value mod leaf^2 for every leaf.  Each node is reduced
+     * modulo the square of its product, as batch gcd needs.
+     *
+     * @param value the value to reduce
+     * @param pool  threads used for each level, or null
+     * @return value mod the square of each leaf, in leaf order
+     */
+    public BigInteger[] remaindersSquared(BigInteger value,
+                                          ExecutorService pool) {
+        return descend(value, true, pool);
+    }
+
+    // descend
+    // walks from the root to the leaves, reducing each parent's remainder
+    // modulo the child (or the child squared)
+    private BigInteger[] descend(BigInteger value, boolean squared,
+                                 ExecutorService pool) {
+
+        int top = levels.length - 1;
+        BigInteger[] rems = {value.mod(modulus(levels[top][0], squared))};
+
+        for (int l = top - 1; l >= 0; l--) {
+            BigInteger[] nodes = levels[l];
+            BigInteger[] parents = rems;
+            BigInteger[] children = new BigInteger[nodes.length];
+
+            forEach(nodes.length, pool, i -> children[i] = parents[i / 2]
+                    .mod(modulus(nodes[i], squared)));
+
+            rems = children;
+        }
+
+        return rems;
+    }
+
+    private static BigInteger modulus(BigInteger node, boolean squared) {
+        return squared ? node.multiply(node) : node;
+    }
+
+    /**
+     * forEach
+     * Runs task for every index in [0, count), spread across the pool when
+     * there is one and enough work to be worth it.
+     *
+     * @param count number of indices
+     * @param pool  the pool to use, or null
+     * @param task  work for one index
+     */
+    static void forEach(int count, ExecutorService pool, IndexTask task) {
+
+        if (pool == null || count < PARALLEL_MIN) {
+            for (int i = 0; i < count; i++) {
+                task.run(i);
+            }
+            return;
+        }
+
+        // a few chunks per thread keeps the load even
+        int chunk = Math.max(1, count / (4 * Runtime.getRuntime()
+                .availableProcessors()));
+        List<Callable<Void>> work = new ArrayList<>();
+        for (int start = 0; start < count; start += chunk) {
+            int s = start;
+            int e = Math.min(count, start + chunk);
+            work.add(() -> {
+                for (int i = s; i < e; i++) {
+                    task.run(i);
+                }
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : pool.invokeAll(work)) {
+                future.get();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * IndexTask
+     * A piece of work for a single index.
+     */
+    interface IndexTask {
+        void run(int index);
+    }
+}
@@ -0,0 +1,1053 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * FactorSNFS.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Handles numbers of the special form n = b^k + c, where b is a small base
+ * and c is a small (possibly negative) constant.  Numbers of this shape
+ * have structure that the general purpose algorithms in FactorMath cannot
+ * see.  This class recognizes the special form, removes the algebraic
+ * factors that come for free when c = +-1 (b^k - 1 and b^k + 1 split along
+ * cyclotomic polynomials), and factors what is left with the special
+ * number field sieve.
+ * <p>
+ * The sieve works with the pair f(x) = x^d + c*b^(d*t-k), which is
+ * monic, and g(x) = x - m, where m = b^t is a common root modulo num.
+ * It looks for coprime (a, b) where both a - b*m and the norm of
+ * a - b*alpha, F(a, b) = b^d * f(a/b), are smooth, with one large prime
+ * allowed on each side.  The lines b = 1, 2, ... are sieved over
+ * -A <= a < A with rounded logarithms, and the survivors are checked with
+ * FactorSmoothness.  Each relation is a column of a FactorMatrix with
+ * rows for the rational primes, the algebraic ideals (p, r) with
+ * f(r) = 0 (mod p), the signs, the large primes and a set of quadratic
+ * characters.  FactorMatrix's filtering drops the large primes seen only
+ * once.  A dependency gives a square on both sides: the rational square
+ * root comes from the exponents, the algebraic one from
+ * FactorNumberField, and the two images modulo num give X^2 = Y^2.
+ */
+
+public class FactorSNFS {
+
+    /* constants */
+    private static final BigInteger ZERO = BigInteger.ZERO;
+    private static final BigInteger ONE = BigInteger.ONE;
+
+    // largest base and constant searched for when recognizing a special form
+    private static final int MAX_BASE = 1000;
+    private static final long MAX_CONSTANT = 1L << 16;
+
+    // sieve parameters by the size of num: digits up to, the bound on both
+    // factor bases, and half the width of a sieve line
+    private static final int[][] SIEVE_PARAMETERS = {
+            {25, 1500, 1 << 12},
+            {35, 4000, 1 << 13},
+            {50, 12000, 1 << 14},
+            {65, 30000, 1 << 15},
+            {80, 60000, 1 << 16},
+            {Integer.MAX_VALUE, 120000, 1 << 16}};
+
+    // a large prime is kept below this multiple of the factor base bound
+    private static final int LARGE_PRIME_MULTIPLE = 64;
+
+    // primes below this are not sieved, the threshold allows for them
+    private static final int SMALL_PRIME = 30;
+
+    // quadratic characters, relations kept beyond the rows, and candidates
+    // gathered before each batch smoothness check
+    private static final int CHARACTERS = 32;
+    private static final int EXTRA_RELATIONS = 32;
+    private static final int BATCH = 2048;
+
+    // the sieve gives up after this many lines
+    private static final int MAX_LINES = 1 << 20;
+
+    // the special form n = base^exponent + constant
+    private final BigInteger base;
+    private final int exponent;
+    private final BigInteger constant;
+    private final BigInteger num;
+
+    /**
+     * FactorSNFS
+     * Creates an engine for the number base^exponent + constant.
+     *
+     * @param base     the base b, must be at least 2
+     * @param exponent the exponent k, must be at least 1
+     * @param constant the constant c
+     */
+    public FactorSNFS(BigInteger base, int exponent, BigInteger constant) {
+
+        if (base.compareTo(BigInteger.valueOf(2)) < 0 || exponent < 1) {
+            throw new IllegalArgumentException("special form needs b >= 2 " +
+                                               "and k >= 1");
+        }
+
+        this.base = base;
+        this.exponent = exponent;
+        this.constant = constant;
+        this.num = base.pow(exponent).add(constant);
+
+    }
+
+    /**
+     * recognize
+     * Tries to write num as b^k + c for a base b up to MAX_BASE and a
+     * constant |c| below MAX_CONSTANT.  The first match with the smallest
+     * base is returned.
+     *
+     * @param num the number to examine
+     * @return an engine for the special form, null if num has no such form
+     */
+    public static FactorSNFS recognize(BigInteger num) {
+
+        if (num.bitLength() < 32) {
+            return null; // small enough that the form doesn't matter
+        }
+
+        BigInteger limit = BigInteger.valueOf(MAX_CONSTANT);
+
+        for (int b = 2; b <= MAX_BASE; b++) {
+            BigInteger base = BigInteger.valueOf(b);
+
+            // estimate k from the bit lengths, then check k and k + 1
+            int k = (int) ((num.bitLength() - 1) / (Math.log(b) / Math.log(2)));
+            for (int e = Math.max(k - 1, 1); e <= k + 1; e++) {
+                BigInteger c = num.subtract(base.pow(e));
+                if (c.abs().compareTo(limit) < 0) {
+                    return new FactorSNFS(base, e, c);
+                }
+            }
+        }
+
+        return null;
+
+    } /*recognize*/
+
+    /**
+     * getNum
+     * returns b^k + c
+     *
+     * @return the number this engine works on
+     */
+    public BigInteger getNum() {
+        return num;
+    }
+
+    /**
+     * toString
+     * Returns the special form as a string, e.g. "2^64+1"
+     *
+     * @return the special form of num
+     */
+    @Override
+    public String toString() {
+        String sign = constant.signum() < 0 ? "" : "+";
+        return base + "^" + exponent + sign + constant;
+    }
+
+    /**
+     * algebraicFactors
+     * Splits num along its algebraic factorization.  When c = -1,
+     * b^k - 1 is the product of the cyclotomic values Phi_d(b) for every d
+     * dividing k.  When c = +1, b^k + 1 is the product of Phi_d(b) for every
+     * d dividing 2k but not k.  Each cyclotomic value is reduced by gcds
+     * against the pieces already found, so the returned list multiplies
+     * back to num.  For any other constant the list just holds num.
+     *
+     * @return list of pieces whose product is num, sorted ascending
+     */
+    public List<BigInteger> algebraicFactors() {
+
+        List<BigInteger> pieces = new LinkedList<>();
+        pieces.add(num);
+
+        int k;
+        if (constant.equals(ONE.negate())) {
+            k = exponent;
+        } else if (constant.equals(ONE)) {
+            k = 2 * exponent;
+        } else {
+            return pieces;
+        }
+
+        for (int d : divisors(k)) {
+
+            // b^k + 1 only uses the divisors of 2k that don't divide k
+            if (constant.equals(ONE) && exponent % d == 0) {
+                continue;
+            }
+
+            BigInteger phi = cyclotomic(d, base);
+            pieces = splitAll(pieces, phi);
+        }
+
+        pieces.removeIf(ONE::equals);
+        pieces.sort(BigInteger::compareTo);
+
+        return pieces;
+
+    } /*algebraicFactors*/
+
+    /**
+     * findFactorSNFS
+     * Returns a non-trivial factor of num.  The algebraic factorization is
+     * tried first, since it costs nothing, and the sieve after that.
+     *
+     * @return a non-trivial factor of num, null if none is found
+     */
+    public BigInteger findFactorSNFS() {
+
+        List<BigInteger> pieces = algebraicFactors();
+
+        for (BigInteger piece : pieces) {
+            if (!piece.equals(num) && !piece.equals(ONE)) {
+                return piece;
+            }
+        }
+
+        return findFactorSieve(num, 1);
+
+    } /*findFactorSNFS*/
+
+    /**
+     * findFactorSieve
+     * Runs the special number field sieve on target, which may be num or
+     * any divisor of it, such as a piece left by the algebraic
+     * factorization.  The polynomials come from num, and their common root
+     * m is a root modulo every divisor too.  Checks for interruption
+     * between lines.
+     *
+     * @param target  a composite divisor of num
+     * @param threads threads used for sieving and the matrix step
+     * @return a non-trivial factor of target, null if none was found
+     */
+    public BigInteger findFactorSieve(BigInteger target, int threads) {
+
+        if (target.signum() <= 0 || num.mod(target).signum() != 0) {
+            throw new IllegalArgumentException(target + " does not divide " +
+                                               this);
+        }
+
+        if (!target.testBit(0)) {
+            return target.equals(BigInteger.valueOf(2)) ? null :
+                    BigInteger.valueOf(2);
+        }
+        if (target.isProbablePrime(40)) {
+            return null;
+        }
+        BigInteger[] root = FactorMath.sqrt(target);
+        if (root[1].signum() == 0) {
+            return root[0];
+        }
+
+        BigInteger[] poly = sievePolynomial();
+        if (poly == null) {
+            return null; // f is reducible in every degree tried
+        }
+
+        ExecutorService pool = threads > 1 ?
+                Executors.newFixedThreadPool(threads) : null;
+
+        try {
+            return new Sieve(poly, target, num.toString().length(), pool,
+                    Math.max(1, threads)).run();
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+
+    } /*findFactorSieve*/
+
+    /**
+     * polynomialDegree
+     * Picks the algebraic degree for the sieve from the size of num.  These
+     * are the usual cross-over points, degree 3 below ~60 digits, degree 4
+     * below ~110 digits, degree 5 up to ~160 digits and degree 6 above
+     * that.
+     *
+     * @return the degree of the algebraic polynomial
+     */
+    public int polynomialDegree() {
+
+        int digits = num.toString().length();
+
+        if (digits < 60) {
+            return 3;
+        } else if (digits < 110) {
+            return 4;
+        } else if (digits < 160) {
+            return 5;
+        }
+
+        return 6;
+
+    } /*polynomialDegree*/
+
+    /**
+     * selectPolynomial
+     * Builds the SNFS polynomial pair for num.  With d the degree and
+     * t = ceil(k/d), let m = b^t.  Then f(x) = x^d + c*b^(d*t-k) has m as a
+     * root modulo num, since f(m) = b^(d*t-k) * (b^k + c).  The rational
+     * side is g(x) = x - m.  Coefficients are returned lowest degree first
+     * with m in the last slot, so the result has d + 2 entries.
+     *
+     * @return {f_0, f_1, ..., f_d, m}
+     */
+    public BigInteger[] selectPolynomial() {
+        return selectPolynomial(polynomialDegree());
+    }
+
+    // selectPolynomial
+    // the polynomial pair above for a given degree d
+    private BigInteger[] selectPolynomial(int d) {
+
+        int t = (exponent + d - 1) / d;
+        BigInteger m = base.pow(t);
+
+        BigInteger[] poly = new BigInteger[d + 2];
+        for (int i = 0; i <= d; i++) {
+            poly[i] = ZERO;
+        }
+
+        poly[0] = constant.multiply(base.pow(d * t - exponent));
+        poly[d] = ONE;
+        poly[d + 1] = m;
+
+        return poly;
+
+    } /*selectPolynomial*/
+
+    // sievePolynomial
+    // The pair for the usual degree, or the nearest degree from 3 to 6
+    // where f is irreducible, since the sieve needs Z[alpha] to be a
+    // domain.  Null if there is none.
+    private BigInteger[] sievePolynomial() {
+
+        int preferred = polynomialDegree();
+
+        for (int step = 0; step <= 3; step++) {
+            for (int d : new int[]{preferred - step, preferred + step}) {
+                if (d >= 3 && d <= 6) {
+                    BigInteger[] poly = selectPolynomial(d);
+                    if (isIrreducible(d, poly[0].negate())) {
+                        return poly;
+                    }
+                }
+            }
+        }
+
+        return null;
+
+    } /*sievePolynomial*/
+
+    // isIrreducible
+    // Capelli's theorem: x^d - a is reducible over Q exactly when a is a
+    // p-th power for some prime p dividing d, or 4 divides d and
+    // a = -4t^4.
+    static boolean isIrreducible(int d, BigInteger a) {
+
+        if (a.signum() == 0) {
+            return false;
+        }
+
+        for (int p = 2; p <= d; p++) {
+            if (d % p == 0 && divisors(p).size() == 2
+                && exactRoot(a, p) != null) {
+                return false;
+            }
+        }
+
+        if (d % 4 == 0 && a.signum() < 0 && a.mod(BigInteger.valueOf(4))
+                .signum() == 0) {
+            return exactRoot(a.negate().shiftRight(2), 4) == null;
+        }
+
+        return true;
+
+    } /*isIrreducible*/
+
+    // exactRoot
+    // t with t^p = a, or null if a isn't a p-th power
+    private static BigInteger exactRoot(BigInteger a, int p) {
+
+        if (a.signum() < 0) {
+            if (p % 2 == 0) {
+                return null;
+            }
+            BigInteger t = exactRoot(a.negate(), p);
+            return t == null ? null : t.negate();
+        }
+
+        // binary search for the p-th root
+        BigInteger low = ZERO;
+        BigInteger high = ONE.shiftLeft(a.bitLength() / p + 1);
+        while (low.compareTo(high) < 0) {
+            BigInteger mid = low.add(high).add(ONE).shiftRight(1);
+            if (mid.pow(p).compareTo(a) <= 0) {
+                low = mid;
+            } else {
+                high = mid.subtract(ONE);
+            }
+        }
+
+        return low.pow(p).equals(a) ? low : null;
+
+    } /*exactRoot*/
+
+    /**
+     * evaluate
+     * Evaluates the polynomial returned by selectPolynomial at x using
+     * Horner's rule.
+     *
+     * @param poly the polynomial, lowest degree first, m in the last slot
+     * @param x    where to evaluate it
+     * @return f(x)
+     */
+    public static BigInteger evaluate(BigInteger[] poly, BigInteger x) {
+
+        BigInteger value = ZERO;
+
+        for (int i = poly.length - 2; i >= 0; i--) {
+            value = value.multiply(x).add(poly[i]);
+        }
+
+        return value;
+
+    } /*evaluate*/
+
+    /**
+     * cyclotomic
+     * Computes the cyclotomic value Phi_d(b) as the product of (b^e - 1) to
+     * the power mu(d/e) over every e dividing d.
+     *
+     * @param d the index of the cyclotomic polynomial
+     * @param b the point to evaluate at
+     * @return Phi_d(b)
+     */
+    static BigInteger cyclotomic(int d, BigInteger b) {
+
+        BigInteger numerator = ONE;
+        BigInteger denominator = ONE;
+
+        for (int e : divisors(d)) {
+            int mu = mobius(d / e);
+            if (mu == 1) {
+                numerator = numerator.multiply(b.pow(e).subtract(ONE));
+            } else if (mu == -1) {
+                denominator = denominator.multiply(b.pow(e).subtract(ONE));
+            }
+        }
+
+        return numerator.divide(denominator);
+
+    } /*cyclotomic*/
+
+    // splitAll
+    // Splits every piece in the list by its gcd with value.
+    private static List<BigInteger> splitAll(List<BigInteger> pieces,
+                                             BigInteger value) {
+
+        List<BigInteger> result = new LinkedList<>();
+
+        for (BigInteger piece : pieces) {
+            BigInteger g = piece.gcd(value);
+            if (g.equals(ONE) || g.equals(piece)) {
+                result.add(piece);
+            } else {
+                result.add(g);
+                result.add(piece.divide(g));
+            }
+        }
+
+        return result;
+    }
+
+    // divisors
+    // returns every positive divisor of n in increasing order
+    private static List<Integer> divisors(int n) {
+
+        List<Integer> small = new ArrayList<>();
+        List<Integer> large = new ArrayList<>();
+
+        for (int i = 1; (long) i * i <= n; i++) {
+            if (n % i == 0) {
+                small.add(i);
+                if (i != n / i) {
+                    large.add(0, n / i);
+                }
+            }
+        }
+
+        small.addAll(large);
+        return small;
+    }
+
+    // mobius
+    // returns the Mobius function of n: 0 if n has a square factor,
+    // otherwise -1 or 1 depending on its number of prime factors
+    private static int mobius(int n) {
+
+        int mu = 1;
+
+        for (int p = 2; (long) p * p <= n; p++) {
+            if (n % p == 0) {
+                n /= p;
+                if (n % p == 0) {
+                    return 0;
+                }
+                mu = -mu;
+            }
+        }
+
+        if (n > 1) {
+            mu = -mu;
+        }
+
+        return mu;
+    }
+
+    /**
+     * Sieve
+     * The state of one run of the sieve: the factor bases, the relations
+     * found so far, and the rows of the matrix they fill.  Rows 0 and 1
+     * are the signs of a - b*m and of the norm, then come the rational
+     * primes, the algebraic ideals, the quadratic characters and last the
+     * large primes, numbered as they turn up.
+     */
+    private static class Sieve {
+
+        private BigInteger target;
+        private BigInteger[] poly; // f, lowest degree first
+        private double[] approx; // f as doubles, for the sieve threshold
+        private BigInteger m;
+        private int degree;
+        private FactorNumberField field;
+        private ExecutorService pool;
+        private int threads;
+
+        private int halfWidth; // a runs over [-halfWidth, halfWidth)
+        private long largeBound;
+
+        // the rational factor base, m mod each prime, and its rounded log
+        private int[] primes;
+        private int[] rootM;
+        private byte[] logs;
+
+        // the algebraic factor base, ideals (p, r) with f(r) = 0 (mod p)
+        private int[] idealP;
+        private int[] idealR;
+        private byte[] idealLogs;
+
+        // quadratic characters (q, s), q above the large prime bound
+        private long[] charQ;
+        private long[] charS;
+
+        private FactorSmoothness smoothness;
+        private int idealRow; // first row of the ideals
+        private int charRow; // first row of the characters
+        private int baseRows; // rows before the large primes
+
+        // the large primes by key: -p on the rational side, and
+        // p * (largeBound + 1) + r for the algebraic ideal (p, r)
+        private Map<Long, Integer> largeRows = new HashMap<>();
+        private List<Long> largeKeys = new ArrayList<>();
+        private List<Integer> largeCounts = new ArrayList<>();
+
+        // the relations: (a, b) and the rows of each, with multiplicity
+        private List<long[]> pairs = new ArrayList<>();
+        private List<int[]> rows = new ArrayList<>();
+
+        Sieve(BigInteger[] pair, BigInteger target, int digits,
+              ExecutorService pool, int threads) {
+
+            this.target = target;
+            this.pool = pool;
+            this.threads = threads;
+            degree = pair.length - 2;
+            poly = Arrays.copyOf(pair, degree + 1);
+            m = pair[degree + 1];
+            field = new FactorNumberField(poly);
+            approx = new double[degree + 1];
+            for (int i = 0; i <= degree; i++) {
+                approx[i] = poly[i].doubleValue();
+            }
+
+            int bound = 0;
+            for (int[] row : SIEVE_PARAMETERS) {
+                bound = row[1];
+                halfWidth = row[2];
+                if (digits <= row[0]) {
+                    break;
+                }
+            }
+            largeBound = (long) bound * LARGE_PRIME_MULTIPLE;
+
+            primes = FactorCFRAC.primesUpTo(bound);
+            rootM = new int[primes.length];
+            logs = new byte[primes.length];
+            List<int[]> ideals = new ArrayList<>();
+            for (int i = 0; i < primes.length; i++) {
+                int p = primes[i];
+                rootM[i] = m.mod(BigInteger.valueOf(p)).intValue();
+                logs[i] = (byte) Math.round(Math.log(p) / Math.log(2));
+                for (long r : FactorNumberField.roots(poly, p)) {
+                    ideals.add(new int[]{p, (int) r, i});
+                }
+            }
+            idealP = new int[ideals.size()];
+            idealR = new int[ideals.size()];
+            idealLogs = new byte[ideals.size()];
+            for (int k = 0; k < idealP.length; k++) {
+                idealP[k] = ideals.get(k)[0];
+                idealR[k] = ideals.get(k)[1];
+                idealLogs[k] = logs[ideals.get(k)[2]];
+            }
+
+            // characters at simple roots of f, past every prime in a relation
+            charQ = new long[CHARACTERS];
+            charS = new long[CHARACTERS];
+            BigInteger[] slope = field.derivative();
+            int count = 0;
+            for (long q = largeBound + 1; count < CHARACTERS; q++) {
+                if (!BigInteger.valueOf(q).isProbablePrime(30)) {
+                    continue;
+                }
+                for (long s : FactorNumberField.roots(poly, q)) {
+                    if (count < CHARACTERS && FactorNumberField.map(slope,
+                            BigInteger.valueOf(s), BigInteger.valueOf(q))
+                            .signum() != 0) {
+                        charQ[count] = q;
+                        charS[count++] = s;
+                    }
+                }
+            }
+
+            smoothness = new FactorSmoothness(primes);
+            idealRow = 2 + primes.length;
+            charRow = idealRow + idealP.length;
+            baseRows = charRow + CHARACTERS;
+
+        }
+
+        // run
+        // Sieves lines until the relations outnumber the rows they use,
+        // then looks for a factor among the dependencies.
+        BigInteger run() {
+
+            // a prime of the factor base, or f'(m), may share a factor
+            for (int p : primes) {
+                BigInteger bp = BigInteger.valueOf(p);
+                if (target.mod(bp).signum() == 0) {
+                    return bp;
+                }
+            }
+            BigInteger shared = FactorNumberField.map(field.derivative(), m,
+                    target).gcd(target);
+            if (!shared.equals(ONE) && !shared.equals(target)) {
+                return shared;
+            }
+
+            int needed = EXTRA_RELATIONS;
+            List<long[]> candidates = new ArrayList<>();
+
+            for (long b = 1; b <= MAX_LINES; b += threads) {
+
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+
+                for (List<long[]> line : sieveLines(b, threads)) {
+                    candidates.addAll(line);
+                }
+                if (candidates.size() < BATCH) {
+                    continue;
+                }
+
+                confirm(candidates);
+                candidates.clear();
+
+                if (excess() >= needed) {
+                    BigInteger factor = solve();
+                    if (factor != null) {
+                        return factor;
+                    }
+                    needed += EXTRA_RELATIONS; // every dependency was trivial
+                }
+            }
+
+            return null;
+
+        } /*run*/
+
+        // sieveLines
+        // sieves count lines starting at b, one per thread
+        private List<List<long[]>> sieveLines(long b, int count) {
+
+            List<List<long[]>> lines = new ArrayList<>();
+            if (pool == null) {
+                for (int i = 0; i < count; i++) {
+                    lines.add(sieveLine(b + i));
+                }
+                return lines;
+            }
+
+            List<Callable<List<long[]>>> work = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                long line = b + i;
+                work.add(() -> sieveLine(line));
+            }
+            try {
+                for (Future<List<long[]>> future : pool.invokeAll(work)) {
+                    lines.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // run checks for it
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return lines;
+
+        } /*sieveLines*/
+
+        // sieveLine
+        // Adds the log of each prime to the a where it divides a - b*m, and
+        // of each ideal (p, r) where it divides a - b*alpha, i.e. where
+        // a = b*r (mod p).  The (a, b) whose sums come close enough to the
+        // size of both values are returned for the smoothness check.
+        private List<long[]> sieveLine(long b) {
+
+            int width = 2 * halfWidth;
+            short[] rational = new short[width];
+            short[] algebraic = new short[width];
+
+            for (int i = 0; i < primes.length; i++) {
+                int p = primes[i];
+                if (p < SMALL_PRIME) {
+                    continue;
+                }
+                long root = b % p * rootM[i] % p;
+                for (int j = (int) ((root + halfWidth) % p); j < width;
+                     j += p) {
+                    rational[j] += logs[i];
+                }
+            }
+            for (int k = 0; k < idealP.length; k++) {
+                int p = idealP[k];
+                if (p < SMALL_PRIME) {
+                    continue;
+                }
+                long root = b % p * idealR[k] % p;
+                for (int j = (int) ((root + halfWidth) % p); j < width;
+                     j += p) {
+                    algebraic[j] += idealLogs[k];
+                }
+            }
+
+            // what the small primes and one large prime may leave unsieved
+            double slack = Math.log(largeBound) / Math.log(2) + 4;
+            double rationalSize = log2(m.doubleValue() * b + halfWidth);
+
+            List<long[]> found = new ArrayList<>();
+            for (int j = 0; j < width; j++) {
+                if (rational[j] < rationalSize - slack) {
+                    continue;
+                }
+                long a = j - halfWidth;
+                if (a == 0 || gcd(Math.abs(a), b) != 1) {
+                    continue;
+                }
+                double norm = 0;
+                for (int i = degree; i >= 0; i--) {
+                    norm = norm * a + approx[i] * Math.pow(b, degree - i);
+                }
+                if (norm != 0 && algebraic[j] >= log2(Math.abs(norm)) -
+                                                  slack) {
+                    found.add(new long[]{a, b});
+                }
+            }
+
+            return found;
+
+        } /*sieveLine*/
+
+        // confirm
+        // Checks the candidates with FactorSmoothness and keeps those
+        // whose values are smooth apart from at most one large prime each.
+        private void confirm(List<long[]> candidates) {
+
+            int count = candidates.size();
+            BigInteger[] values = new BigInteger[2 * count];
+            for (int i = 0; i < count; i++) {
+                long[] pair = candidates.get(i);
+                values[2 * i] = rationalValue(pair[0], pair[1]).abs();
+                values[2 * i + 1] = norm(pair[0], pair[1]).abs();
+            }
+
+            BigInteger[] smooth = smoothness.smoothParts(values, pool);
+
+            for (int i = 0; i < count; i++) {
+                BigInteger rational = values[2 * i].divide(smooth[2 * i]);
+                BigInteger algebraic = values[2 * i + 1].divide(smooth[2 * i
+                                                                      + 1]);
+                if (isLarge(rational) && isLarge(algebraic)) {
+                    long[] pair = candidates.get(i);
+                    add(pair[0], pair[1], rational.longValue(), algebraic
+                            .longValue());
+                }
+            }
+
+        } /*confirm*/
+
+        // isLarge
+        // whether what is left of a value is 1 or a single large prime.
+        // Anything below largeBound is prime, as it is under bound^2.
+        private boolean isLarge(BigInteger rest) {
+            return rest.bitLength() < 63 && rest.longValue() <= largeBound;
+        }
+
+        // add
+        // Works out the rows of a smooth (a, b) and keeps it as a relation.
+        private void add(long a, long b, long rationalLarge,
+                         long algebraicLarge) {
+
+            List<Integer> found = new ArrayList<>();
+
+            BigInteger rational = rationalValue(a, b);
+            if (rational.signum() < 0) {
+                found.add(0);
+            }
+            rational = rational.abs();
+            for (int i = 0; i < primes.length; i++) {
+                int p = primes[i];
+                if (Math.floorMod(a - b % p * rootM[i], p) == 0) {
+                    rational = divideOut(rational, p, 2 + i, found);
+                }
+            }
+            if (rationalLarge > 1) {
+                found.add(largeRow(-rationalLarge));
+            }
+
+            BigInteger norm = norm(a, b);
+            if (norm.signum() < 0) {
+                found.add(1);
+            }
+            norm = norm.abs();
+            for (int k = 0; k < idealP.length; k++) {
+                int p = idealP[k];
+                if (Math.floorMod(a - b % p * idealR[k], p) == 0) {
+                    norm = divideOut(norm, p, idealRow + k, found);
+                }
+            }
+            if (algebraicLarge > 1) {
+                BigInteger p = BigInteger.valueOf(algebraicLarge);
+                long r = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)
+                        .modInverse(p)).mod(p).longValue();
+                found.add(largeRow(algebraicLarge * (largeBound + 1) + r));
+            }
+
+            for (int c = 0; c < CHARACTERS; c++) {
+                long value = Math.floorMod(a - b % charQ[c] * charS[c],
+                        charQ[c]);
+                if (FactorNumberField.legendre(value, charQ[c]) == -1) {
+                    found.add(charRow + c);
+                }
+            }
+
+            int[] indices = new int[found.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = found.get(i);
+            }
+            pairs.add(new long[]{a, b});
+            rows.add(indices);
+
+        } /*add*/
+
+        // divideOut
+        // adds row once for every time p divides value, returns what's left
+        private static BigInteger divideOut(BigInteger value, int p, int row,
+                                            List<Integer> found) {
+            BigInteger bp = BigInteger.valueOf(p);
+            BigInteger[] qr = value.divideAndRemainder(bp);
+            while (qr[1].signum() == 0 && value.signum() != 0) {
+                found.add(row);
+                value = qr[0];
+                qr = value.divideAndRemainder(bp);
+            }
+            return value;
+        }
+
+        // largeRow
+        // the row of a large prime, numbered the first time it turns up
+        private int largeRow(long key) {
+            Integer row = largeRows.get(key);
+            if (row == null) {
+                row = baseRows + largeKeys.size();
+                largeRows.put(key, row);
+                largeKeys.add(key);
+                largeCounts.add(0);
+            }
+            largeCounts.set(row - baseRows, largeCounts.get(row - baseRows)
+                                            + 1);
+            return row;
+        }
+
+        // excess
+        // Relations beyond the rows they use, leaving out those with a large
+        // prime nothing else has, which can't be in any dependency.
+        private int excess() {
+
+            BitSet used = new BitSet();
+            int useful = 0;
+
+            for (int[] relation : rows) {
+                boolean alone = false;
+                for (int row : relation) {
+                    alone |= row >= baseRows && largeCounts.get(row -
+                                                                baseRows) < 2;
+                }
+                if (!alone) {
+                    useful++;
+                    for (int row : relation) {
+                        used.set(row);
+                    }
+                }
+            }
+
+            return useful - used.cardinality();
+
+        } /*excess*/
+
+        // solve
+        // Finds the dependencies with FactorMatrix and tries each for a
+        // factor of the target.
+        private BigInteger solve() {
+
+            FactorMatrix matrix = new FactorMatrix(baseRows + largeKeys
+                    .size());
+            for (int[] relation : rows) {
+                matrix.addColumn(relation);
+            }
+
+            for (int[] dependency : matrix.findDependencies(threads)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                BigInteger factor = tryDependency(dependency);
+                if (factor != null) {
+                    return factor;
+                }
+            }
+
+            return null;
+
+        } /*solve*/
+
+        // tryDependency
+        // The product of the (a - b*m) is a square X^2 in Z, and f'(alpha)^2
+        // times the product of the (a - b*alpha) is a square y^2 in
+        // Z[alpha].  Mapping alpha to m, f'(m) * X and y(m) have the same
+        // square mod the target, so their difference may share a factor.
+        private BigInteger tryDependency(int[] set) {
+
+            int[] counts = new int[baseRows + largeKeys.size()];
+            List<BigInteger[]> elements = new ArrayList<>();
+            for (int i : set) {
+                for (int row : rows.get(i)) {
+                    counts[row]++;
+                }
+                long[] pair = pairs.get(i);
+                elements.add(field.element(pair[0], pair[1]));
+            }
+
+            // the rational side from its exponents
+            BigInteger x = FactorNumberField.map(field.derivative(), m,
+                    target);
+            for (int i = 0; i < primes.length; i++) {
+                if (counts[2 + i] > 0) {
+                    x = x.multiply(BigInteger.valueOf(primes[i]).modPow
+                            (BigInteger.valueOf(counts[2 + i] / 2), target))
+                            .mod(target);
+                }
+            }
+            for (int i = 0; i < largeKeys.size(); i++) {
+                long key = largeKeys.get(i);
+                if (key < 0 && counts[baseRows + i] > 0) {
+                    x = x.multiply(BigInteger.valueOf(-key).modPow(BigInteger
+                            .valueOf(counts[baseRows + i] / 2), target))
+                            .mod(target);
+                }
+            }
+
+            // the algebraic side from its square root in Z[alpha]
+            BigInteger[] slope = field.derivative();
+            BigInteger[] square = field.multiply(field.product(elements),
+                    field.multiply(slope, slope));
+            BigInteger[] root = field.sqrt(square);
+            if (root == null) {
+                return null; // the characters missed an obstruction
+            }
+            BigInteger y = FactorNumberField.map(root, m, target);
+
+            BigInteger factor = x.subtract(y).gcd(target);
+            if (factor.equals(ONE) || factor.equals(target)) {
+                return null;
+            }
+
+            return factor;
+
+        } /*tryDependency*/
+
+        // rationalValue
+        // a - b*m
+        private BigInteger rationalValue(long a, long b) {
+            return BigInteger.valueOf(a).subtract(m.multiply(BigInteger
+                    .valueOf(b)));
+        }
+
+        // norm
+        // the norm of a - b*alpha, F(a, b) = sum of f_i * a^i * b^(d-i)
+        private BigInteger norm(long a, long b) {
+            BigInteger value = ZERO;
+            BigInteger ba = BigInteger.valueOf(a);
+            BigInteger bb = BigInteger.valueOf(b);
+            for (int i = degree; i >= 0; i--) {
+                value = value.multiply(ba).add(poly[i].multiply(bb.pow(degree
+                                                                       - i)));
+            }
+            return value;
+        }
+
+        // log2
+        // base two logarithm
+        private static double log2(double x) {
+            return Math.log(x) / Math.log(2);
+        }
+
+        // gcd
+        // greatest common divisor of two non-negative longs
+        private static long gcd(long a, long b) {
+            while (b != 0) {
+                long t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+    }
+}
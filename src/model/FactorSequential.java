@@ -90,11 +90,13 @@ public class FactorSequential {
         TDRNFactorize tdrn = new TDRNFactorize(data);
         FermatFactorize fermat = new FermatFactorize(data);
         PollardsFactorize pollards = new PollardsFactorize(data);
+        CFRACFactorize cfrac = new CFRACFactorize(data);
 
         Thread td2Thread = new Thread(td2);
         Thread tdrnThread = new Thread(tdrn);
         Thread fermatThread = new Thread(fermat);
         Thread pollardsThread = new Thread(pollards);
+        Thread cfracThread = new Thread(cfrac);
 
         startTime = System.nanoTime();
 
@@ -102,6 +104,7 @@ public class FactorSequential {
         tdrnThread.start();
         fermatThread.start();
         pollardsThread.start();
+        cfracThread.start();
 
         try {
             block.acquire();
@@ -285,4 +288,35 @@ public class FactorSequential {
             block.release();
         }
     }
+
+    private static class CFRACFactorize implements Runnable {
+
+        FactorData factorData;
+
+        public CFRACFactorize(FactorData data) {
+            factorData = data;
+        }
+
+        @Override
+        public void run() {
+            BigInteger num = factorData.getNum();
+            int[] multipliers = FactorCFRAC.multipliers(num);
+            long steps = FactorCFRAC.defaultSteps(num);
+
+            // try each multiplier in order of how promising it is
+            for (int k : multipliers) {
+
+                BigInteger factor = FactorCFRAC.findFactorCFRAC(num, k, steps);
+
+                checkCompletion();
+
+                if (factor != null) {
+                    data.addFactor(factor);
+                    data.setType(FactorType.CFRAC);
+                    block.release();
+                    return;
+                }
+            }
+        }
+    }
 }
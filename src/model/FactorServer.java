@@ -2,13 +2,23 @@ package model;
 
 import java.io.*;
 import java.math.BigInteger;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.LinkedList;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * FactorServer.java
@@ -17,59 +27,228 @@ import java.util.concurrent.Semaphore;
  * connect to.  This server maintains the clients and sub-servers such that
  * the clients are tasked with factoring n, and will report to this server
  * when found.
+ * <p>
+ * Started with -serve instead of a number, the server keeps running and
+ * factors whatever numbers it is given, with "job [n] [priority]" typed
+ * at its console.  Each number is a job.  Up to MAX_RUNNING are factored
+ * at once, and the rest wait their turn, highest priority first.  The
+ * clients and sub-servers stay connected from one number to the next, so
+ * a new number starts on machines that are already up and warmed up.
+ * <p>
+ * Each number is the root of a tree of FactorJobs.  Each factor found
+ * splits one job in two, and every composite piece is a job of its own.
+ * The sub-servers are given all of them at once, so the pieces are
+ * factored side by side, each with every algorithm, and a number is
+ * factored once its last composite piece splits into primes.  The
+ * sub-servers share their clients between the jobs by size and priority.
+ * <p>
+ * A number of the special form b^k + c is split along its algebraic
+ * factors when it is given, and the server runs the special number field
+ * sieve (FactorSNFS) on each composite piece itself, on factor.snfs
+ * threads, while the clients work on it too.
+ * <p>
+ * Clients can connect at any time, before or after factoring starts, and
+ * are put to work on the running jobs at once.  With factor.minworkers
+ * set the server starts on its own once that many worker threads are
+ * connected, rather than waiting for 'factor'.
+ * <p>
+ * The first five clients to connect each host the sub-server for one
+ * algorithm.  If one of them leaves, its role goes to the next client to
+ * join, which is sent the jobs being worked on, and the old sub-server's
+ * clients join the new one once it reports in.
+ * <p>
+ * Which algorithm each client runs is up to a FactorPortfolio.  Every
+ * factor.rebalance seconds the server works out from the size of the
+ * numbers, and the time spent on each algorithm so far, what share of the
+ * workers each one should have, and moves clients whose algorithm has
+ * more than its share to one that has less.  What each algorithm costs
+ * comes from a FactorCostModel, once one has been calibrated.  Clients
+ * report their cores, heap, Java version and a benchmark score as they
+ * join, and a client's workers count for more or less by its score, so a
+ * large server and a laptop are not taken for the same.
+ * <p>
+ * Numbers can also be submitted, watched and cancelled over HTTP, on
+ * port HTTPPORT of this machine (see FactorHttp).  The status of each is
+ * kept in a FactorJobTable, which holds the last factor.jobtable of them.
+ * <p>
+ * The numbers being factored, the factors found so far and the numbers
+ * still to factor are kept in a FactorJournal.  A server restarted with
+ * -resume, -serve or the same n carries on from there instead of from the
+ * start.
  *
  * @author Jon Thomas
  */
 
-public class FactorServer {
+public class FactorServer implements FactorHttp.Backend {
+
+    // the port clients and sub-servers reach the server on, the same
+    // -Dfactor.port everywhere
+    public static final int SERVERPORT = Integer.getInteger("factor.port",
+            10188);
+    public static final int HTTPPORT = 10189; // -Dfactor.http=0 for none
+    private static final int WORKERS = 4; // threads handling messages
+
+    // numbers factored at once, the rest wait in the queue
+    private static final int MAX_RUNNING = Math.max(1, Integer.getInteger
+            ("factor.maxjobs", 4));
+
+    // worker threads connected before the server starts on its own, 0 to
+    // wait for 'factor'
+    private static final int MIN_WORKERS = Integer.getInteger
+            ("factor.minworkers", 0);
+
+    // seconds between looks at the algorithm mix, 0 to keep every client
+    // on the algorithm it was first given
+    private static final long REBALANCE = Long.getLong("factor.rebalance",
+            10);
+
+    // threads the server gives the special number field sieve on each
+    // piece of a number of the special form, 0 to leave them to the clients
+    private static final int SNFS_THREADS = Integer.getInteger("factor.snfs",
+            1);
+
+    // the status of every number given, for the HTTP front end
+    private FactorJobTable jobTable = new FactorJobTable(Integer.getInteger
+            ("factor.jobtable", 10000));
 
-    public static final int SERVERPORT = 10188;
     private static int bits = -1;
     private FactorType winner;
     private int clientCount = 0; //maintains a count of clients
-    private BigInteger origN; // original value of n
-    private BigInteger n; // the number that will be factored
+    // sub-server roles not handed out, in the order they go out.  A role
+    // comes back when the client given it, or its sub-server, goes away
+    private List<FactorType> openRoles = new ArrayList<>(Arrays.asList
+            (FactorType.TD2Server, FactorType.TDRNServer, FactorType
+                    .FERMATServer, FactorType.POLLARDSServer, FactorType
+                    .CFRACServer));
+    private BigInteger n; // the number given, null when serving jobs
     private BigInteger p; // the two factors of n (if known)
     private BigInteger q;
-    private List<BigInteger> factors; // list of all found factors
-    private List<BigInteger> jobs; // list of integers to factor
-    private boolean complete = false; // whether factorization is done
+    private boolean serve = false; // keep running once every job is done
+    private boolean started = false; // true once 'factor' has been typed
     private FactorData data; // data generated about n
-    private List<Socket> sockets;
-
-    private long startTime;
-    private long endTime;
-
-    private List<String> subserverAddresses;
-    private List<Integer> subserverPorts;
+    private FactorSNFS special; // special form of n, if it has one
+    // special forms of the numbers given, by job id, and the sieve running
+    // on each of their composite pieces
+    private Map<Long, FactorSNFS> forms = new HashMap<>();
+    private Map<Long, Thread> sieves = new HashMap<>();
+    private List<FactorPeer> clients; // connections from clients
+    // worker threads each client runs, for factor.minworkers, and the
+    // benchmark score each reported
+    private Map<FactorPeer, Integer> workers = new HashMap<>();
+    private Map<FactorPeer, Long> scores = new HashMap<>();
+
+    // the algorithm each client runs, the share each should have, and
+    // when the time spent on them was last counted
+    private Map<FactorPeer, FactorType> roles = new LinkedHashMap<>();
+    private FactorPortfolio portfolio;
+    private long lastRebalance;
+    // what a step of each algorithm takes, from the last calibration
+    private FactorCostModel costs = FactorCostModel.load();
+
+    // the numbers being factored, by id, and those waiting their turn,
+    // highest priority first.  active holds the composite leaves of the
+    // running ones, which are all being worked on at once
+    private Map<Long, FactorJob> roots;
+    private PriorityQueue<FactorJob> waiting;
+    private Map<Long, FactorJob> active;
+    private Map<Long, Long> startTimes; // when each number was started
+    private long nextJobId = 1;
+
+    private List<FactorPeer> subservers; // connections from sub-servers
+    // the role each sub-server's connection serves, and the clients given
+    // a role whose sub-server has not reported in yet
+    private Map<FactorPeer, FactorType> hosted = new HashMap<>();
+    private Map<FactorPeer, FactorType> hosting = new HashMap<>();
+
+    // per split job, the sub-servers yet to confirm its cancel, and when
+    // the cancel was sent
+    private Map<Long, Set<FactorPeer>> pendingCancels = new HashMap<>();
+    private Map<Long, Long> cancelTimes = new HashMap<>();
+
+    // goes up each time a job splits.  Every job is stamped with the epoch
+    // it was made in, so stale results are told apart by it
+    private long epoch = 1;
 
     // hostnames for sub-servers
     private String td2host;
     private String tdrnhost;
     private String fermathost;
     private String pollardhost;
+    private String cfrachost;
+
+    private Semaphore mutex; // held while a message is handled
 
-    private Semaphore mutex;
+    // saved state, so a restarted server picks up where this one stopped
+    private FactorJournal journal;
+    private boolean recovering = false; // true while the journal is read
+    private static final byte FACTOR_RECORD = 1;
+    private static final byte SUBMIT_RECORD = 2;
+    private static final byte CANCEL_RECORD = 3;
+    private FactorListener listener; // serves every connection
+    private FactorHttp http; // takes jobs over HTTP, if on
 
     /**
      * FactorServer
      * Constructor for this server.  Initializes information about n, and
-     * launches the server listener in another thread.
+     * launches the event loop that serves every connection.
      *
      * @param args command line arguments passed from main
      */
 
     private FactorServer(String[] args) {
 
+        mutex = new Semaphore(1);
+
         init(args);
 
         printInfo();
 
-        mutex = new Semaphore(1);
+        try {
+            listener = FactorListener.open(SERVERPORT, WORKERS, new
+                    FactorPeer.Handler() {
+                @Override
+                public void handle(FactorData data, FactorPeer from) {
+                    handleMessage(data, from);
+                }
+
+                @Override
+                public void closed(FactorPeer from) {
+                    handleClosed(from);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        listener.start();
+        System.out.println("Server waiting for connections");
+
+        int httpPort = Integer.getInteger("factor.http", HTTPPORT);
+        if (httpPort > 0) {
+            try {
+                InetAddress host = System.getProperty("factor.httphost") ==
+                                   null ? InetAddress.getLoopbackAddress() :
+                        InetAddress.getByName(System.getProperty
+                                ("factor.httphost"));
+                http = FactorHttp.open(host, httpPort, jobTable, this);
+                http.start();
+                System.out.println("Taking jobs at http://" + host
+                        .getHostAddress() + ":" + http.getPort() + "/jobs");
+            } catch (IOException e) {
+                e.printStackTrace(); // the console still works
+            }
+        }
 
-        ServerListener listener = new ServerListener();
-        Thread listenThread = new Thread(listener);
-        listenThread.start();
+        if (REBALANCE > 0) {
+            ScheduledExecutorService timer = Executors
+                    .newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "factor-rebalance");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            timer.scheduleWithFixedDelay(() -> locked(this::rebalance),
+                    REBALANCE, REBALANCE, TimeUnit.SECONDS);
+        }
 
         FactorLauncher launcher = new FactorLauncher();
         Thread t = new Thread(launcher);
@@ -100,9 +279,22 @@ public class FactorServer {
         System.out.println("*-----------------------------*");
         System.out.println("*         FactorServer        *");
         System.out.println("*-----------------------------*");
-        System.out.println("\nn = " + n);
-        System.out.println("p = " + p);
-        System.out.println("q = " + q);
+        if (n != null) {
+            System.out.println("\nn = " + n);
+            System.out.println("p = " + p);
+            System.out.println("q = " + q);
+        } else {
+            System.out.println("\nServing jobs, " + MAX_RUNNING + " at a " +
+                               "time");
+        }
+        if (special != null) {
+            System.out.println("form = " + special);
+        }
+        System.out.println("\n" + costs.describe());
+        if (n != null) {
+            System.out.print("\nExpected on n:\n" + new FactorPortfolio(n
+                    .bitLength(), costs).forecast());
+        }
         System.out.println("\n*-----------------------------*\n");
 
     }
@@ -118,14 +310,23 @@ public class FactorServer {
     private void init(String[] args) {
 
         // instantiate lists
-        factors = new LinkedList<>();
-        jobs = new LinkedList<>();
-        sockets = new LinkedList<>();
-        subserverAddresses = new LinkedList<>();
-        subserverPorts = new LinkedList<>();
+        roots = new LinkedHashMap<>();
+        waiting = new PriorityQueue<>(FactorServer::compareWaiting);
+        active = new LinkedHashMap<>();
+        startTimes = new HashMap<>();
+        clients = new CopyOnWriteArrayList<>();
+        subservers = new CopyOnWriteArrayList<>();
+
+        // carry on with the run saved in the journal
+        // args: -resume
+        boolean resume = args.length > 0 && args[0].equals("-resume");
+
+        // run as a service, taking numbers from the console
+        // args: -serve
+        serve = args.length > 0 && args[0].equals("-serve");
 
         //args[0] is a flag, either -n, -g, -r, or -pq
-        if (args.length < 2) {
+        if (args.length < 2 && !resume && !serve) {
             System.err.println("java FactorServer [flags] [numbers(s)]");
             System.exit(1);
         }
@@ -166,15 +367,575 @@ public class FactorServer {
             n = p.multiply(q);
         }
 
+        // factor a number of the special form b^k + c
+        // args: -snfs [base] [exponent] [constant]
+        else if (args[0].equals("-snfs")) {
+            if (args.length < 4) {
+                System.err.println("java FactorServer -snfs [base] " +
+                                   "[exponent] [constant]");
+                System.exit(1);
+            }
+            special = new FactorSNFS(new BigInteger(args[1]),
+                    Integer.parseInt(args[2]), new BigInteger(args[3]));
+            n = special.getNum();
+        }
+
+        // n comes from the journal, or from the console
+        else if (resume || serve) {
+            n = null;
+        }
+
         // not a valid argument
         else {
-            System.err.println("FactorServer valid arguments: -n, -g, -pq");
+            System.err.println("FactorServer valid arguments: -n, -g, -pq, " +
+                               "-snfs, -resume, -serve");
+            System.exit(1);
+        }
+
+        journal = FactorJournal.open("server");
+        recovering = true;
+        boolean recovered = recoverJournal(resume);
+        recovering = false;
+        if (recovered) {
+            data = new FactorData(n);
+            return;
+        }
+        if (resume) {
+            System.err.println("No saved run to resume");
             System.exit(1);
         }
 
+        // a fresh run replaces whatever the journal held
+        saveState();
+
+        if (n != null) {
+            try {
+                submitJob(n, 1); // n is the first job
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
         data = new FactorData(n);
-        //jobs.add(n); // n is the first factor to find
-        origN = n;
+
+        // n may have split algebraically into primes, nothing for the
+        // clients to do
+        if (!serve && roots.isEmpty() && waiting.isEmpty()) {
+            shutdown();
+        }
+    }
+
+    /**
+     * recoverJournal
+     * Loads the state saved by an earlier server.  It is used if -resume
+     * or -serve was given, or the earlier server was factoring the same
+     * number.
+     *
+     * @param resume whether -resume was given
+     * @return true if the saved state is now this server's state
+     */
+    private boolean recoverJournal(boolean resume) {
+
+        if (journal == null) {
+            return false;
+        }
+
+        BigInteger givenP = p;
+        BigInteger givenQ = q;
+        int givenBits = bits;
+        boolean found;
+        try {
+            found = journal.recover(new FactorJournal.Recovery() {
+                @Override
+                public void restore(byte[] snapshot) throws IOException {
+                    readState(snapshot);
+                }
+
+                @Override
+                public void replay(byte[] record) throws IOException {
+                    DataInputStream in = FactorJournal.reader(record);
+                    byte kind = in.readByte();
+                    if (kind == FACTOR_RECORD) {
+                        BigInteger factor = FactorJournal.readBig(in);
+                        FactorJob job = findJob(in.readLong(), factor);
+                        if (job != null) {
+                            applyFactor(job, factor);
+                        }
+                    } else if (kind == CANCEL_RECORD) {
+                        cancelJob(in.readLong());
+                        admit();
+                    } else if (kind == SUBMIT_RECORD) {
+                        long id = in.readLong();
+                        int priority = in.readInt();
+                        BigInteger num = FactorJournal.readBig(in);
+                        nextJobId = Math.max(nextJobId, id + 1);
+                        addRoot(id, num, priority);
+                        admit();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            found = false;
+        }
+
+        boolean ours = resume || serve;
+        for (FactorJob root : allRoots()) {
+            ours |= root.getNum().equals(n);
+        }
+        if (found && ours && !allRoots().isEmpty()) {
+            System.out.println("Resuming " + allRoots().size() + " saved " +
+                               "job(s)");
+            return true;
+        }
+
+        // not ours, start over
+        jobTable.clear();
+        roots = new LinkedHashMap<>();
+        waiting.clear();
+        active = new LinkedHashMap<>();
+        startTimes = new HashMap<>();
+        nextJobId = 1;
+        epoch = 1;
+        p = givenP;
+        q = givenQ;
+        bits = givenBits;
+        return false;
+
+    } /*recoverJournal*/
+
+    // readState
+    // the inverse of saveState.  Each tree comes back one level deep, its
+    // leaves as children of the number submitted
+    private void readState(byte[] snapshot) throws IOException {
+        DataInputStream in = FactorJournal.reader(snapshot);
+        p = FactorJournal.readBig(in);
+        q = FactorJournal.readBig(in);
+        bits = in.readInt();
+        epoch = in.readLong();
+        nextJobId = in.readLong();
+        roots = new LinkedHashMap<>();
+        waiting.clear();
+        active = new LinkedHashMap<>();
+        jobTable.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            long id = in.readLong();
+            int priority = in.readInt();
+            BigInteger num = FactorJournal.readBig(in);
+            boolean running = in.readBoolean();
+            FactorJob root = new FactorJob(id, epoch, num, null);
+            root.setPriority(priority);
+            for (int j = in.readInt(); j > 0; j--) {
+                long leafId = in.readLong();
+                long leafEpoch = in.readLong();
+                BigInteger leafNum = FactorJournal.readBig(in);
+                if (leafNum.equals(num)) {
+                    // not split yet, the number is its own leaf
+                    root = new FactorJob(leafId, leafEpoch, num, null);
+                    root.setPriority(priority);
+                } else {
+                    root.addChild(leafId, leafEpoch, leafNum);
+                }
+            }
+            tableRoot(root);
+            if (running) {
+                jobTable.started(root.getId());
+                roots.put(root.getId(), root);
+                startTimes.put(root.getId(), System.nanoTime());
+                for (FactorJob leaf : root.leaves()) {
+                    if (!leaf.isPrime()) {
+                        active.put(leaf.getId(), leaf);
+                    }
+                }
+            } else {
+                waiting.add(root);
+            }
+        }
+    }
+
+    // saveState
+    // writes everything a restarted server needs as a journal snapshot.
+    // Numbers already factored are left out
+    private void saveState() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            FactorJournal.Record out = new FactorJournal.Record();
+            FactorJournal.writeBig(out, p);
+            FactorJournal.writeBig(out, q);
+            out.writeInt(bits);
+            out.writeLong(epoch);
+            out.writeLong(nextJobId);
+            List<FactorJob> all = allRoots();
+            out.writeInt(all.size());
+            for (FactorJob root : all) {
+                out.writeLong(root.getId());
+                out.writeInt(root.getPriority());
+                FactorJournal.writeBig(out, root.getNum());
+                out.writeBoolean(roots.containsKey(root.getId()));
+                List<FactorJob> leaves = root.leaves();
+                out.writeInt(leaves.size());
+                for (FactorJob leaf : leaves) {
+                    out.writeLong(leaf.getId());
+                    out.writeLong(leaf.getEpoch());
+                    FactorJournal.writeBig(out, leaf.getNum());
+                }
+            }
+            journal.compact(out.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // journalFactor
+    // saves a reported factor, and the job it splits, before it is acted on
+    private void journalFactor(long jobId, BigInteger factor) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            FactorJournal.Record out = new FactorJournal.Record();
+            out.writeByte(FACTOR_RECORD);
+            FactorJournal.writeBig(out, factor);
+            out.writeLong(jobId);
+            journal.append(out.toByteArray());
+            if (journal.needsCompaction()) {
+                saveState();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // journalSubmit
+    // saves a number submitted to be factored
+    private void journalSubmit(long id, BigInteger num, int priority) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            FactorJournal.Record out = new FactorJournal.Record();
+            out.writeByte(SUBMIT_RECORD);
+            out.writeLong(id);
+            out.writeInt(priority);
+            FactorJournal.writeBig(out, num);
+            journal.append(out.toByteArray());
+            if (journal.needsCompaction()) {
+                saveState();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // journalCancel
+    // saves a number cancelled before it was factored
+    private void journalCancel(long id) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            FactorJournal.Record out = new FactorJournal.Record();
+            out.writeByte(CANCEL_RECORD);
+            out.writeLong(id);
+            journal.append(out.toByteArray());
+            if (journal.needsCompaction()) {
+                saveState();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * submit
+     * Queues a number to be factored.  It starts once fewer than
+     * MAX_RUNNING numbers are being factored and none waiting has a higher
+     * priority.  Safe to call from any thread.
+     *
+     * @param num      the number to factor
+     * @param priority its priority, higher goes first and gets more of the
+     *                 clients
+     * @return the number's job id, or -1 if the job table is full
+     * @throws IllegalArgumentException if num is less than 2
+     */
+    @Override
+    public long submit(BigInteger num, int priority) {
+        long[] id = {-1};
+        locked(() -> id[0] = submitJob(num, priority));
+        return id[0];
+    }
+
+    // submitJob
+    // queues a number, journaling it first.  Every way in comes through
+    // here, so a number with no prime factors is refused the same way
+    // whether it came from the console, HTTP or the command line.  The
+    // mutex is held
+    private long submitJob(BigInteger num, int priority) {
+        if (num.compareTo(BigInteger.ONE) <= 0) {
+            throw new IllegalArgumentException(num + " has no prime factors");
+        }
+        if (!jobTable.hasRoom()) {
+            System.out.println("Job table is full, " + num + " refused");
+            return -1;
+        }
+        long id = nextJobId++;
+        journalSubmit(id, num, priority);
+        addRoot(id, num, priority);
+        System.out.println("Job " + id + " queued: " + num + ", priority " +
+                           priority + ", about " + FactorPortfolio.duration
+                                   (new FactorPortfolio(num.bitLength(),
+                                           costs).expectedTime()) +
+                           " worker-time");
+        admit();
+        return id;
+    }
+
+    // addRoot
+    // makes the tree for a submitted number and puts it in the queue
+    private FactorJob addRoot(long id, BigInteger num, int priority) {
+
+        FactorJob root = new FactorJob(id, epoch, num, null);
+        root.setPriority(priority);
+
+        // numbers of the form b^k + c may split algebraically for free
+        FactorSNFS form = num.equals(n) && special != null ? special :
+                FactorSNFS.recognize(num);
+        if (form != null) {
+            if (num.equals(n)) {
+                special = form;
+            }
+            forms.put(id, form);
+            splitSpecialForm(root, form);
+        }
+
+        waiting.add(root);
+        tableRoot(root);
+        return root;
+    }
+
+    // tableRoot
+    // adds a number, and any primes it has split into, to the job table
+    private void tableRoot(FactorJob root) {
+        jobTable.add(root.getId(), root.getNum(), root.getPriority());
+        for (FactorJob leaf : root.leaves()) {
+            if (leaf.isPrime()) {
+                jobTable.found(root.getId(), leaf.getNum());
+            }
+        }
+    }
+
+    /**
+     * cancel
+     * Stops factoring a number, whether it is running or waiting.  Its
+     * pieces are cancelled on every sub-server, and the next number
+     * waiting takes its place.  Safe to call from any thread.
+     *
+     * @param id the number's job id
+     * @return false if no such number is running or waiting
+     */
+    @Override
+    public boolean cancel(long id) {
+        boolean[] found = {false};
+        locked(() -> {
+            found[0] = roots.containsKey(id);
+            for (FactorJob queued : waiting) {
+                found[0] |= queued.getId() == id;
+            }
+            if (!found[0]) {
+                return;
+            }
+            journalCancel(id);
+
+            // only the running ones have work out with the clients
+            if (roots.containsKey(id)) {
+                for (FactorJob leaf : roots.get(id).leaves()) {
+                    if (active.containsKey(leaf.getId())) {
+                        cancelWork(leaf);
+                    }
+                }
+            }
+            cancelJob(id);
+            System.out.println("Job " + id + " cancelled");
+            admit();
+            if (!serve && roots.isEmpty() && waiting.isEmpty()) {
+                shutdown();
+            }
+        });
+        return found[0];
+    }
+
+    // cancelJob
+    // forgets a number and its pieces.  Journal replay goes through here
+    // too
+    private void cancelJob(long id) {
+        FactorJob root = roots.remove(id);
+        startTimes.remove(id);
+        for (FactorJob queued : new ArrayList<>(waiting)) {
+            if (queued.getId() == id) {
+                waiting.remove(queued);
+                root = queued;
+            }
+        }
+        if (root != null) {
+            for (FactorJob leaf : root.leaves()) {
+                active.remove(leaf.getId());
+                stopSieve(leaf.getId());
+            }
+        }
+        forms.remove(id);
+        jobTable.finished(id, true);
+    }
+
+    // admit
+    // starts the numbers at the head of the queue while there is room
+    private void admit() {
+        while (roots.size() < MAX_RUNNING && !waiting.isEmpty()) {
+            FactorJob root = waiting.poll();
+            roots.put(root.getId(), root);
+            startTimes.put(root.getId(), System.nanoTime());
+            jobTable.started(root.getId());
+            for (FactorJob leaf : root.leaves()) {
+                if (!leaf.isPrime()) {
+                    active.put(leaf.getId(), leaf);
+                    if (started) {
+                        sendJob(leaf, "start");
+                    }
+                }
+            }
+            if (root.isComplete()) {
+                finishRoot(root); // every piece was prime already
+            }
+        }
+    }
+
+    // compareWaiting
+    // orders the queue: higher priority first, then first come
+    private static int compareWaiting(FactorJob a, FactorJob b) {
+        if (a.getPriority() != b.getPriority()) {
+            return Integer.compare(b.getPriority(), a.getPriority());
+        }
+        return Long.compare(a.getId(), b.getId());
+    }
+
+    // allRoots
+    // every number not yet factored, running ones first
+    private List<FactorJob> allRoots() {
+        List<FactorJob> all = new ArrayList<>(roots.values());
+        List<FactorJob> queued = new ArrayList<>(waiting);
+        queued.sort(FactorServer::compareWaiting);
+        all.addAll(queued);
+        return all;
+    }
+
+    /**
+     * findJob
+     * Finds the job a reported factor splits.  That is the job it was
+     * found for, if that is still being factored.  A factor found for a
+     * job that has since split may still divide one of its pieces, so
+     * failing that it is any job the factor properly divides.
+     *
+     * @param jobId  the job the factor was reported for
+     * @param factor the factor
+     * @return the job, or null if the factor divides nothing left
+     */
+    private FactorJob findJob(long jobId, BigInteger factor) {
+
+        FactorJob job = active.get(jobId);
+        if (job != null && job.divides(factor)) {
+            return job;
+        }
+        for (FactorJob leaf : active.values()) {
+            if (leaf.divides(factor)) {
+                return leaf;
+            }
+        }
+        return null;
+
+    } /*findJob*/
+
+    /**
+     * applyFactor
+     * Splits a job along a factor.  Prime pieces are leaves of the
+     * factorization, and composite pieces become jobs of their own.  The
+     * number the job is a piece of is finished when no composite pieces
+     * of it are left.  Journal replay goes through here too, so it ends
+     * in the same state.
+     *
+     * @param job    the job, from findJob
+     * @param factor a proper divisor of the job's number
+     */
+    private void applyFactor(FactorJob job, BigInteger factor) {
+
+        active.remove(job.getId());
+        stopSieve(job.getId());
+        epoch++;
+        for (FactorJob child : job.split(factor, nextJobId, epoch)) {
+            nextJobId++;
+            if (!child.isPrime()) {
+                active.put(child.getId(), child);
+            } else {
+                jobTable.found(job.getRoot().getId(), child.getNum());
+            }
+        }
+
+        if (job.getRoot().isComplete()) {
+            finishRoot(job.getRoot());
+        }
+
+    } /*applyFactor*/
+
+    // finishRoot
+    // a number is fully factored.  Report it and make room for the next
+    private void finishRoot(FactorJob root) {
+        roots.remove(root.getId());
+        forms.remove(root.getId());
+        Long began = startTimes.remove(root.getId());
+        jobTable.finished(root.getId(), false);
+        if (recovering) {
+            return;
+        }
+        System.out.println("All prime factors of job " + root.getId() +
+                           " have been found");
+        printOutput(root, began == null ? 0 : System.nanoTime() - began);
+        saveState(); // nothing of it left to resume
+    }
+
+    /**
+     * splitSpecialForm
+     * Breaks a number into its algebraic factors using its special form.
+     * Each piece becomes a job below the number, and the prime ones are
+     * leaves of its factorization already.
+     *
+     * @param root the submitted number
+     * @param form its special form
+     */
+    private void splitSpecialForm(FactorJob root, FactorSNFS form) {
+
+        System.out.println(root.getNum() + " has the special form " + form);
+
+        List<BigInteger> pieces = form.algebraicFactors();
+        if (pieces.size() == 1) {
+            return;
+        }
+        System.out.println("Algebraic factors: " + pieces);
+
+        for (BigInteger piece : pieces) {
+            root.addChild(nextJobId++, epoch, piece);
+        }
+    }
+
+    /**
+     * handleMessage
+     * Handles one message from the event loop.  Messages from different
+     * machines arrive on different worker threads, so they take turns.
+     *
+     * @param data FactorData object sent by a client
+     * @param from the connection data arrived on, used for replies
+     */
+    private void handleMessage(FactorData data, FactorPeer from) {
+        locked(() -> handleReadData(data, from));
     }
 
     /**
@@ -184,9 +945,10 @@ public class FactorServer {
      * sent, and will message clients based on that information.
      *
      * @param data FactorData object sent by a client
+     * @param from the connection data arrived on, used for replies
      */
 
-    private void handleReadData(FactorData data, Socket socket) {
+    private void handleReadData(FactorData data, FactorPeer from) {
 
         String message = data.getMessage(); // message client sent
 
@@ -194,148 +956,362 @@ public class FactorServer {
 
         if (message.equals("factor found")) { // if we found a factor
 
-            try {
-                mutex.acquire();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-
             BigInteger factor = data.getFactor();
             winner = data.getType();
 
-            // if the factor is not prime, it will need to be factored
-            if (!factor.isProbablePrime(100)) {
-                jobs.add(factor);
-            }
-
-            // if this number factors n
-            // if it doesn't do nothing, as the client messed up
-            // possible we're receiving messages for old values of n
-            if (n.mod(factor).equals(BigInteger.ZERO)) {
-                factors.add(factor); // add to list of factors
-                System.out.println("Factor found: " + factor);
-                n = n.divide(factor); // n = n/factor
-
-                // if new n is prime, check if we're done
-                if (n.isProbablePrime(100)) {
-                    if (jobs.isEmpty()) { // if there aren't more integers
-                        endTime = System.nanoTime();
-                        complete = true;
-                        factors.add(n); // add n as a factor
-                        factors.sort(BigInteger::compareTo); // sort list
-                        System.out.println("All prime factors have been found");
-                        System.out.println("Last algorithm to return factor: " +
-                                           "" + FactorType.toString(data.
-                                getType()));
-                        sendData("quit");
-                        printOutput();
-                    } else {
-                        n = jobs.remove(0); // get next integer to factor
-                        System.out.println("Now factoring n = " + n);
-                        // send this new n to the clients
-                        sendData(null);
-                    }
-                } else {
-                    // send new data to clients
-                    sendData(null);
+            // if it splits none of the jobs left do nothing, as the client
+            // messed up or it was found for a job that is done with
+            FactorJob job = findJob(data.getJobId(), factor);
+            if (job == null) {
+                if (active.containsKey(data.getJobId())) {
+                    System.out.println(factor + " is not a factor of " +
+                                       active.get(data.getJobId()).getNum());
                 }
-            } else {
-                System.out.println(factor + " is not a factor of " + n);
+                return;
             }
 
-            mutex.release();
+            // journal it first, so a crash part way is replayed the same
+            journalFactor(job.getId(), factor);
+            System.out.println("Factor found: " + factor + " of " + job
+                    .getNum());
+            applyFactor(job, factor);
+
+            if (job.getRoot().isComplete()) {
+                System.out.println("Last algorithm to return factor: " +
+                                   "" + FactorType.toString(data.getType()));
+                if (!serve && roots.isEmpty() && waiting.isEmpty()) {
+                    shutdown();
+                }
+            }
+
+            // stop the work on the split job, then hand out its composite
+            // pieces, and any number that now has room, alongside the
+            // other jobs
+            cancelWork(job);
+            for (FactorJob child : job.getChildren()) {
+                if (active.containsKey(child.getId())) {
+                    sendJob(child, "new value");
+                }
+            }
+            admit();
+            List<BigInteger> left = new ArrayList<>();
+            for (FactorJob leaf : active.values()) {
+                left.add(leaf.getNum());
+            }
+            System.out.println("Now factoring " + left);
 
         } else if (message.equals("new client")) {
 
-            int portNo = data.getClientPort();
-            String clientAdd = data.getClientAddress();
+            clients.add(from);
+            workers.put(from, Math.max(1, data.getWorkers()));
+            if (data.getScore() > 0) {
+                scores.put(from, data.getScore());
+            }
+            System.out.println("Client " + data.getClientAddress() + ": " +
+                               data.getCores() + " cores, " + data
+                                       .getWorkers() + " worker(s), " + data
+                                       .getHeapMegabytes() + " MB heap, " +
+                               "Java " + data.getJvmVersion() + ", " + String
+                                       .format("%.2fx", speed(from)) + " " +
+                               "speed");
+            autoStart();
             data = prepareData();
-            FactorType type = data.getType();
 
-            String sshost = null;
+            // once running, a plain client goes where it is most needed
+            if (portfolio != null && FactorType.asWorker(data.getType()) ==
+                                     data.getType()) {
+                FactorType pick = portfolio.pick(capacityByType(),
+                        available());
+                if (pick != null) {
+                    data.setType(pick);
+                }
+            }
+            roles.put(from, FactorType.asWorker(data.getType()));
+            FactorType type = data.getType();
 
-            if (type == FactorType.TD2) {
-                sshost = td2host;
-            } else if (type == FactorType.TDRN) {
-                sshost = tdrnhost;
-            } else if (type == FactorType.FERMAT) {
-                sshost = fermathost;
-            } else if (type == FactorType.POLLARDS) {
-                sshost = pollardhost;
+            // take the role now rather than when the sub-server reports in,
+            // so a second client joining in between isn't given the same one
+            if (openRoles.remove(type)) {
+                hosting.put(from, type);
             }
 
-            System.out.println("connecting to " + clientAdd + " at port " + portNo);
+            String sshost = type == FactorType.asWorker(type) ? hostFor
+                    (type) : null;
 
-            try {
-                socket = new Socket(clientAdd, portNo);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            System.out.println("new client at " + from);
 
             data.setSubservername(sshost);
+            from.send(data); // reply on the client's own connection
 
-            try {
-                ObjectOutputStream outputStream = new ObjectOutputStream(socket
-                        .getOutputStream());
-                outputStream.writeObject(data);
-            } catch (IOException e) {
-                e.printStackTrace();
+        } else if (message.equals("cancelled")) {
+
+            long jobId = data.getJobId();
+            System.out.println(FactorType.toString(data.getType()) + " " +
+                               "sub-server has stopped job " + jobId);
+            Set<FactorPeer> left = pendingCancels.get(jobId);
+            if (left != null) {
+                left.remove(from);
+                ackCancel(jobId);
             }
+
         } else if (message.equals("request sserver")) {
 
-            try {
-                int clientSocket = data.getClientPort();
-                String clientAddress = data.getClientAddress();
-                Socket s = new Socket(clientAddress, clientSocket);
-                ObjectOutputStream outputStream = new ObjectOutputStream(s
-                        .getOutputStream());
-                FactorType type = data.getType();
-                String hostName = null;
-                if (type == FactorType.TD2) {
-                    hostName = td2host;
-                } else if (type == FactorType.TDRN) {
-                    hostName = tdrnhost;
-                } else if (type == FactorType.FERMAT) {
-                    hostName = fermathost;
-                } else if (type == FactorType.POLLARDS) {
-                    hostName = pollardhost;
-                }
-                data.setMessage("name:" + hostName);
-                outputStream.writeObject(data);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            FactorType type = data.getType();
+            String hostName = type == FactorType.asWorker(type) ? hostFor
+                    (type) : null;
+            data.setMessage("name:" + FactorType.asInt(type) + hostName);
+            from.send(data);
 
         } else if (message.substring(0, 5).equals("name:")) {
 
             FactorType type = data.getType();
             String hostname = message.substring(6);
 
-            if (type == FactorType.TD2Server) {
+            setHost(type, hostname);
+            subservers.add(from);
+            hosted.put(from, type);
+            hosting.values().remove(type);
+            clients.remove(from);
+
+            // a sub-server that comes up once factoring has started gets
+            // every job being worked on
+            if (started) {
+                for (FactorJob job : active.values()) {
+                    from.send(jobData(job, "start"));
+                }
+            }
+
+            sendData(message);
+        }
+    }
+
+    /**
+     * handleClosed
+     * Called when a client or sub-server hangs up.  Drops it from the lists
+     * so nothing more is sent to it, and stops waiting for it to confirm
+     * any cancel.
+     *
+     * @param connection the connection that closed
+     */
+    private void handleClosed(FactorPeer connection) {
+        System.out.println("Lost connection to " + connection);
+        locked(() -> {
+            workers.remove(connection);
+            scores.remove(connection);
+            roles.remove(connection);
+
+            // a sub-server that has gone will not confirm its cancels
+            for (Long jobId : new ArrayList<>(pendingCancels.keySet())) {
+                pendingCancels.get(jobId).remove(connection);
+                ackCancel(jobId);
+            }
+
+            // nor serve its clients.  The next client to join takes its
+            // role over, and is sent the jobs being worked on
+            FactorType lost = hosted.remove(connection);
+            if (lost == null) {
+                lost = hosting.remove(connection);
+            }
+            if (lost != null) {
+                setHost(lost, null);
+                if (!openRoles.contains(lost)) {
+                    openRoles.add(0, lost); // the jobs are missing it now
+                }
+                System.out.println(FactorType.toString(lost) + " sub-server " +
+                                   "lost, its role goes to the next client");
+            }
+        });
+        clients.remove(connection);
+        subservers.remove(connection);
+    }
+
+    // setHost
+    // records where the sub-server for an algorithm is, null once it is
+    // gone
+    private void setHost(FactorType type, String hostname) {
+        switch (FactorType.asWorker(type)) {
+            case TD2:
                 td2host = hostname;
-                subserverAddresses.add(td2host);
-                subserverPorts.add(FactorSubServer.TD2PORT);
-            } else if (type == FactorType.TDRNServer) {
+                break;
+            case TDRN:
                 tdrnhost = hostname;
-                subserverAddresses.add(tdrnhost);
-                subserverPorts.add(FactorSubServer.TDRNPORT);
-            } else if (type == FactorType.FERMATServer) {
+                break;
+            case FERMAT:
                 fermathost = hostname;
-                subserverAddresses.add(fermathost);
-                subserverPorts.add(FactorSubServer.FERMATPORT);
-            } else if (type == FactorType.POLLARDSServer) {
+                break;
+            case POLLARDS:
                 pollardhost = hostname;
-                subserverAddresses.add(pollardhost);
-                subserverPorts.add(FactorSubServer.POLLARDPORT);
+                break;
+            case CFRAC:
+                cfrachost = hostname;
+                break;
+            default:
+                break;
+        }
+    }
+
+    // hostFor
+    // the host of the sub-server for an algorithm, null until it is up
+    private String hostFor(FactorType type) {
+        switch (FactorType.asWorker(type)) {
+            case TD2:
+                return td2host;
+            case TDRN:
+                return tdrnhost;
+            case FERMAT:
+                return fermathost;
+            case POLLARDS:
+                return pollardhost;
+            case CFRAC:
+                return cfrachost;
+            default:
+                return null;
+        }
+    }
+
+    // available
+    // the algorithms whose sub-server is connected, so clients can be sent
+    // there
+    private List<FactorType> available() {
+        List<FactorType> up = new ArrayList<>();
+        for (FactorType type : FactorPortfolio.ALGORITHMS) {
+            for (FactorType role : hosted.values()) {
+                if (FactorType.asWorker(role) == type && hostFor(type) !=
+                                                         null) {
+                    up.add(type);
+                    break;
+                }
             }
+        }
+        return up;
+    }
 
-            sendData(message);
+    // speed
+    // how fast a client's workers are next to the machine the cost model
+    // was calibrated on, or, before a calibration, next to the average
+    // client.  1 for a client that sent no score
+    private double speed(FactorPeer client) {
+        Long score = scores.get(client);
+        if (score == null) {
+            return 1;
+        }
+        double reference = costs.getScore();
+        if (reference <= 0) {
+            for (long other : scores.values()) {
+                reference += other;
+            }
+            reference /= scores.size();
+        }
+        return score / reference;
+    }
+
+    // capacity
+    // a client's workers, each counted by its speed
+    private double capacity(FactorPeer client) {
+        return workers.getOrDefault(client, 1) * speed(client);
+    }
+
+    // capacityByType
+    // the workers on each algorithm, each counted by its speed
+    private Map<FactorType, Double> capacityByType() {
+        Map<FactorType, Double> threads = new HashMap<>();
+        for (FactorPeer client : roles.keySet()) {
+            threads.merge(roles.get(client), capacity(client), Double::sum);
+        }
+        return threads;
+    }
+
+    /**
+     * rebalance
+     * Counts the time the workers have put into each algorithm since the
+     * last look, each worker counted by its speed, then moves clients
+     * toward the shares the portfolio gives.  The portfolio is for the
+     * largest number being worked on, and starts over when that changes,
+     * e.g. when it splits.  At most a quarter of the clients move at once,
+     * as a move costs a client the units it had going.  The mutex is held.
+     */
+    private void rebalance() {
+
+        if (!started || active.isEmpty()) {
+            return;
+        }
+
+        int bits = 0;
+        for (FactorJob job : active.values()) {
+            bits = Math.max(bits, job.getNum().bitLength());
+        }
+        long now = System.nanoTime();
+        if (portfolio == null || portfolio.getBits() != bits) {
+            portfolio = new FactorPortfolio(bits, costs);
+        } else {
+            double seconds = (now - lastRebalance) / 1e9;
+            for (Map.Entry<FactorType, Double> count : capacityByType()
+                    .entrySet()) {
+                portfolio.spend(count.getKey(), count.getValue() * seconds);
+            }
+        }
+        lastRebalance = now;
+
+        Map<FactorType, Double> threads = capacityByType();
+        List<FactorType> up = available();
+        int moves = 0;
+        for (FactorPeer client : new ArrayList<>(roles.keySet())) {
+            if (moves >= Math.max(1, roles.size() / 4)) {
+                break;
+            }
+            FactorType from = roles.get(client);
+            FactorType to = portfolio.pick(threads, up);
+            double count = capacity(client);
+            if (to != null && portfolio.improves(threads, from, to, count)) {
+                switchClient(client, to);
+                threads.merge(from, -count, Double::sum);
+                threads.merge(to, count, Double::sum);
+                moves++;
+            }
+        }
+        if (moves > 0) {
+            System.out.println("Portfolio " + portfolio + ", moved " + moves +
+                               " client(s)");
+        }
+
+    } /*rebalance*/
+
+    // switchClient
+    // tells a client to drop its units and join another algorithm's
+    // sub-server
+    private void switchClient(FactorPeer client, FactorType type) {
+        FactorData data = new FactorData(null);
+        data.setMessage("switch");
+        data.setType(type);
+        data.setSubservername(hostFor(type));
+        if (client.send(data)) {
+            roles.put(client, type);
+        }
+    }
+
+    // autoStart
+    // starts factoring once factor.minworkers worker threads are connected
+    private void autoStart() {
+        int count = 0;
+        for (int threads : workers.values()) {
+            count += threads;
+        }
+        if (!started && MIN_WORKERS > 0 && count >= MIN_WORKERS) {
+            System.out.println(count + " workers connected, begin " +
+                               "factoring!");
+            sendData("start");
         }
     }
 
-    private void printOutput() {
+    // printOutput
+    // prints a factored number and writes it to results.txt, after the
+    // earlier ones when serving jobs
+    private void printOutput(FactorJob root, long nanoseconds) {
+        List<BigInteger> factors = root.factors();
+        System.out.println("*-----------------------*");
+        System.out.print(root.describe());
         System.out.println("*-----------------------*");
-        System.out.print(origN + " = ");
+        System.out.print(root.getNum() + " = ");
         for (int i = 0; i < factors.size(); i++) {
             BigInteger b = factors.get(i);
             System.out.print(b);
@@ -349,8 +1325,8 @@ public class FactorServer {
 
         try {
             BufferedWriter writer = new BufferedWriter
-                    (new FileWriter("results.txt"));
-            writer.write("Factorization Results\n\n" + origN + " = ");
+                    (new FileWriter("results.txt", serve));
+            writer.write("Factorization Results\n\n" + root.getNum() + " = ");
             for (int i = 0; i < factors.size(); i++) {
                 writer.write("" + factors.get(i));
                 if (i != factors.size() - 1) {
@@ -359,17 +1335,33 @@ public class FactorServer {
             }
             writer.write("\n\n");
             long[] time = new long[2];
-            long nanoseconds = endTime - startTime;
             time[0] = nanoseconds / 1000000000;
             time[1] = nanoseconds % 1000000000;
             time[1] = time[1] / 1000000;
             writer.write(time[0] + " seconds, " + time[1] + " millis\n");
-            writer.write("Bit length: " + bits + "\n");
+            writer.write("Bit length: " + (root.getNum().equals(n) ? bits :
+                    root.getNum().bitLength()) + "\n");
             writer.write("Winning algorithm: " + FactorType.toString(winner));
+            if (serve) {
+                writer.write("\n\n");
+            }
             writer.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    // shutdown
+    // every number given is factored, tell everyone to quit and exit
+    private void shutdown() {
+        if (http != null) {
+            http.stop();
+        }
+        if (journal != null) {
+            journal.delete(); // nothing left to resume
+            journal = null;
+        }
+        sendData("quit");
         try {
             Thread.sleep(5000);
         } catch (InterruptedException e) {
@@ -378,6 +1370,23 @@ public class FactorServer {
         System.exit(0);
     }
 
+    // printJobs
+    // lists the numbers being factored and those waiting
+    private void printJobs() {
+        for (FactorJob root : allRoots()) {
+            int left = 0;
+            for (FactorJob leaf : root.leaves()) {
+                if (!leaf.isPrime()) {
+                    left++;
+                }
+            }
+            System.out.println("job " + root.getId() + " (priority " + root
+                    .getPriority() + "): " + root.getNum() + ", " + (roots
+                    .containsKey(root.getId()) ? left + " piece(s) left" :
+                    "waiting"));
+        }
+    }
+
     /**
      * sendData
      * Create a FactorData object and send it to the clients
@@ -394,43 +1403,143 @@ public class FactorServer {
             if (options.length() > 5 && options.substring(0, 5).equals
                     ("name:")) {
                 data.setMessage(options);
-                for (Socket s : sockets) {
-                    try {
-
-                        ObjectOutputStream outputStream = new ObjectOutputStream(s
-                                .getOutputStream());
-                        outputStream.writeObject(data); // send the data object
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                for (FactorPeer client : clients) {
+                    client.send(data); // send the data object
                 }
                 return;
             }
 
             if (options.equals("start")) {
-                data.setMessage(options);
-                startTime = System.nanoTime();
+                started = true;
+                for (Long id : roots.keySet()) {
+                    startTimes.put(id, System.nanoTime());
+                }
+                for (FactorJob job : active.values()) {
+                    sendJob(job, "start");
+                }
+                if (REBALANCE > 0) {
+                    rebalance(); // the first mix, from the size of n alone
+                }
+                return;
             }
         }
 
         System.out.println("Sending data to all sub-servers.");
 
         // for every subserver
-        for (int i = 0; i < subserverPorts.size(); i++) {
-            int port = subserverPorts.get(i);
-            String address = subserverAddresses.get(i);
-            try {
-                Socket s = new Socket(address, port);
-                ObjectOutputStream outputStream = new ObjectOutputStream(s
-                        .getOutputStream());
-                outputStream.writeObject(data); // send the data object
+        for (int i = 0; i < subservers.size(); i++) {
+            if (subservers.get(i).send(data)) { // send the data object
                 System.out.println("Sent to subserver #" + i);
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
     }
 
+    // sendJob
+    // sends one job to every sub-server
+    private void sendJob(FactorJob job, String message) {
+        FactorData data = jobData(job, message);
+        System.out.println("Sending job " + job.getId() + " to all " +
+                           "sub-servers.");
+        for (FactorPeer subserver : subservers) {
+            subserver.send(data);
+        }
+        startSieve(job);
+    }
+
+    // startSieve
+    // Starts the special number field sieve on a composite piece of a
+    // number of the special form, alongside the clients.  Whichever finds
+    // a factor first splits it.
+    private void startSieve(FactorJob job) {
+        FactorSNFS form = forms.get(job.getRoot().getId());
+        if (form == null || SNFS_THREADS <= 0 || sieves.containsKey(job
+                .getId())) {
+            return;
+        }
+        Thread sieve = new Thread(() -> runSieve(job, form), "factor-snfs-" +
+                                                             job.getId());
+        sieve.setDaemon(true);
+        sieves.put(job.getId(), sieve);
+        sieve.start();
+    }
+
+    // runSieve
+    // runs the sieve on a job, and reports a factor it finds the same way
+    // a client would
+    private void runSieve(FactorJob job, FactorSNFS form) {
+        System.out.println("Running the SNFS on " + job.getNum());
+        BigInteger factor = form.findFactorSieve(job.getNum(), SNFS_THREADS);
+        if (factor == null || Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        FactorData found = new FactorData(job.getNum());
+        found.setMessage("factor found");
+        found.addFactor(factor);
+        found.setJobId(job.getId());
+        found.setEpoch(job.getEpoch());
+        found.setType(FactorType.SNFS);
+        handleMessage(found, null);
+    }
+
+    // stopSieve
+    // stops the sieve on a job that has split or been cancelled, unless
+    // it is the sieve's own report that split it
+    private void stopSieve(long id) {
+        Thread sieve = sieves.remove(id);
+        if (sieve != null && sieve != Thread.currentThread()) {
+            sieve.interrupt();
+        }
+    }
+
+    // jobData
+    // a job as sent to the sub-servers, with the job it was split from so
+    // they can carry their work on that over
+    private FactorData jobData(FactorJob job, String message) {
+        FactorData data = new FactorData(job.getNum());
+        data.setMessage(message);
+        data.setJobId(job.getId());
+        data.setEpoch(job.getEpoch());
+        data.setPriority(job.getPriority());
+        if (job.getParent() != null) {
+            data.setParentId(job.getParent().getId());
+        }
+        return data;
+    }
+
+    // cancelWork
+    // tells every sub-server to stop its clients working on a job that has
+    // been split.  Each answers "cancelled" once they have.
+    private void cancelWork(FactorJob job) {
+        FactorData cancel = new FactorData(null);
+        cancel.setMessage("cancel");
+        cancel.setJobId(job.getId());
+        cancel.setEpoch(job.getEpoch());
+        Set<FactorPeer> sent = new HashSet<>();
+        for (FactorPeer subserver : subservers) {
+            if (subserver.send(cancel)) {
+                sent.add(subserver);
+            }
+        }
+        if (!sent.isEmpty()) {
+            pendingCancels.put(job.getId(), sent);
+            cancelTimes.put(job.getId(), System.nanoTime());
+        }
+    }
+
+    // ackCancel
+    // once every sub-server sent a cancel has confirmed it, or gone, says
+    // how long the clients took to stop
+    private void ackCancel(long jobId) {
+        Set<FactorPeer> left = pendingCancels.get(jobId);
+        if (left != null && left.isEmpty()) {
+            pendingCancels.remove(jobId);
+            System.out.println("All clients stopped job " + jobId + " " +
+                               (System.nanoTime() - cancelTimes.remove
+                                       (jobId)) / 1000000 + " ms after the " +
+                               "cancel was sent");
+        }
+    }
+
     /**
      * prepareData
      * Using the current value of n, create a new FactorData object that
@@ -444,22 +1553,18 @@ public class FactorServer {
         data.setMessage("new value");
 
         // set what type client will be
-        if (subserverPorts.size() == 0) {
-            data.setType(FactorType.TD2Server);
-        } else if (subserverPorts.size() == 1) {
-            data.setType(FactorType.TDRNServer);
-        } else if (subserverPorts.size() == 2) {
-            data.setType(FactorType.FERMATServer);
-        } else if (subserverPorts.size() == 3) {
-            data.setType(FactorType.POLLARDSServer);
-        } else if (clientCount % 4 == 0) {
+        if (!openRoles.isEmpty()) {
+            data.setType(openRoles.get(0));
+        } else if (clientCount % 5 == 0) {
             data.setType(FactorType.TD2);
-        } else if (clientCount % 4 == 1) {
+        } else if (clientCount % 5 == 1) {
             data.setType(FactorType.TDRN);
-        } else if (clientCount % 4 == 2) {
+        } else if (clientCount % 5 == 2) {
             data.setType(FactorType.FERMAT);
-        } else if (clientCount % 4 == 3) {
+        } else if (clientCount % 5 == 3) {
             data.setType(FactorType.POLLARDS);
+        } else if (clientCount % 5 == 4) {
+            data.setType(FactorType.CFRAC);
         }
 
         clientCount++;
@@ -468,96 +1573,34 @@ public class FactorServer {
     }
 
     /**
-     * ServerListener
-     * Creates a passive listener that waits for machines to connect to this
-     * machine.  Creates a new reader that will process data sent to this
-     * machine.
+     * start
+     * Starts factoring, the same as typing 'factor'.  Does nothing once
+     * started.  Safe to call from any thread.
      */
-    private class ServerListener implements Runnable {
-
-        @Override
-        public void run() {
-
-            try {
-                ServerSocket listen = new ServerSocket(SERVERPORT, 10);
-                while (!complete) {
-                    System.out.println("Server waiting for connection");
-
-                    Socket socket = listen.accept();
-
-                    System.out.println("Connection found");
-
-                    // determine if we've met socket before
-                    boolean add = true;
-                    for (Socket s : sockets) {
-                        if (s.getInetAddress().equals(socket
-                                .getInetAddress())) {
-                            add = false;
-                        }
-                    }
-
-                    for (String s : subserverAddresses) {
-                        if (s.equals(socket
-                                .getInetAddress().getHostName())) {
-                            add = false;
-                        }
-                    }
-
-                    if (add) {
-                        sockets.add(socket);
-                    }
-
-                    ServerReader reader = new ServerReader(socket);
-                    Thread readThread = new Thread(reader);
-                    readThread.start();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+    @Override
+    public void start() {
+        locked(() -> {
+            if (!started) {
+                System.out.println("Begin factoring!");
+                sendData("start");
             }
-
-        }
+        });
     }
 
-    /**
-     * ServerReader
-     * Reads data received from a specific socket.  Sends data to
-     * handleReadData to be processed.
-     */
-
-    private class ServerReader implements Runnable {
-
-        private Socket mySocket;
-
-        /**
-         * ServerReader
-         * Sets socket field to passed in parameter
-         *
-         * @param socket the socket this is reading from
-         */
-        ServerReader(Socket socket) {
-            mySocket = socket;
+    // locked
+    // runs an action holding the mutex, so it takes its turn with the
+    // messages
+    private void locked(Runnable action) {
+        try {
+            mutex.acquire();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return;
         }
-
-        /**
-         * run
-         * Tries to read data coming in from socket
-         */
-        @Override
-        public void run() {
-
-            ObjectInputStream inputStream;
-            FactorData data;
-            try {
-                inputStream = new ObjectInputStream(mySocket.getInputStream());
-                try {
-                    data = (FactorData) inputStream.readObject();
-                } catch (java.io.EOFException e) {
-                    return;
-                }
-                handleReadData(data, mySocket);
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-            }
+        try {
+            action.run();
+        } finally {
+            mutex.release();
         }
     }
 
@@ -568,21 +1611,38 @@ public class FactorServer {
             System.out.println("Server is setting up.  Please make sure all " +
                                "clients have connected and type 'factor' to " +
                                "begin the program.");
+            System.out.println("Type 'job [n] [priority]' to queue another " +
+                               "number, 'jobs' to list them and 'cancel " +
+                               "[id]' to drop one.");
 
             Scanner in = new Scanner(System.in);
-            while (in.hasNext()) {
-                String input = in.next();
-                if (input.equals("factor")) {
-                    System.out.println("Begin factoring!");
-
-                    //sendData("start");
-
-                    break;
+            while (in.hasNextLine()) {
+                String[] words = in.nextLine().trim().split("\\s+");
+                if (words[0].equals("factor")) {
+                    start();
+                } else if (words[0].equals("job") && words.length > 1) {
+                    try {
+                        submit(new BigInteger(words[1]), words.length > 2 ?
+                                Integer.parseInt(words[2]) : 1);
+                    } catch (NumberFormatException e) {
+                        System.out.println("job [n] [priority]");
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                    }
+                } else if (words[0].equals("jobs")) {
+                    locked(FactorServer.this::printJobs);
+                } else if (words[0].equals("cancel") && words.length > 1) {
+                    try {
+                        if (!cancel(Long.parseLong(words[1]))) {
+                            System.out.println("No job " + words[1] + " to " +
+                                               "cancel");
+                        }
+                    } catch (NumberFormatException e) {
+                        System.out.println("cancel [id]");
+                    }
                 }
             }
             in.close();
-
-            sendData("start");
         }
     }
 
@@ -0,0 +1,144 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * FactorSmoothness.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Bernstein's batch smoothness test.  Given many candidate values and a
+ * factor base, finds the part of each value that factors over the base.
+ * Let P be the product of the primes in the base.  A remainder tree gives
+ * y = P mod x for every candidate x at once, and squaring y e times, where
+ * 2^(2^e) >= x, raises every prime of the base to a power at least as
+ * large as its exponent in x.  Then gcd(x, y) is exactly the smooth part.
+ * <p>
+ * This replaces thousands of separate trial divisions with a handful of
+ * large multiplications, which is where relation-based methods (CFRAC, QS)
+ * spend their time sorting survivors.
+ */
+
+public class FactorSmoothness {
+
+    private static final BigInteger ONE = BigInteger.ONE;
+
+    private int[] primes; // the factor base
+    private BigInteger primeProduct; // product of the factor base
+
+    /**
+     * FactorSmoothness
+     * Prepares a tester for the given factor base.  Entries below 2 (such
+     * as a -1 used for the sign) are ignored.
+     *
+     * @param primes the primes of the factor base
+     */
+    public FactorSmoothness(int[] primes) {
+
+        int count = 0;
+        for (int p : primes) {
+            if (p > 1) {
+                count++;
+            }
+        }
+
+        this.primes = new int[count];
+        BigInteger[] leaves = new BigInteger[Math.max(1, count)];
+        leaves[0] = ONE;
+        count = 0;
+        for (int p : primes) {
+            if (p > 1) {
+                this.primes[count] = p;
+                leaves[count++] = BigInteger.valueOf(p);
+            }
+        }
+
+        primeProduct = new FactorProductTree(leaves, null).product();
+
+    }
+
+    /**
+     * getPrimes
+     * returns the primes of the factor base
+     *
+     * @return the primes this tester checks for
+     */
+    public int[] getPrimes() {
+        return primes.clone();
+    }
+
+    /**
+     * smoothParts
+     * Returns the largest divisor of each value that factors completely
+     * over the factor base.  A value is smooth exactly when its smooth part
+     * equals itself.
+     *
+     * @param values  positive candidates to test
+     * @param threads threads used for the trees and the final powering
+     * @return the smooth part of each value, in the same order
+     */
+    public BigInteger[] smoothParts(BigInteger[] values, int threads) {
+
+        if (values.length == 0) {
+            return new BigInteger[0];
+        }
+
+        ExecutorService pool = threads > 1 ?
+                Executors.newFixedThreadPool(threads) : null;
+
+        try {
+            return smoothParts(values, pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+    } /*smoothParts*/
+
+    /**
+     * smoothParts
+     * As above, but using an existing pool (or null to stay on the calling
+     * thread).
+     *
+     * @param values positive candidates to test
+     * @param pool   threads to use, or null
+     * @return the smooth part of each value, in the same order
+     */
+    public BigInteger[] smoothParts(BigInteger[] values,
+                                    ExecutorService pool) {
+
+        if (values.length == 0) {
+            return new BigInteger[0];
+        }
+
+        for (BigInteger x : values) {
+            if (x.signum() <= 0) {
+                throw new IllegalArgumentException("smoothness needs " +
+                                                   "positive values");
+            }
+        }
+
+        FactorProductTree tree = new FactorProductTree(values, pool);
+        BigInteger[] rems = tree.remainders(primeProduct, pool);
+        BigInteger[] parts = new BigInteger[values.length];
+
+        FactorProductTree.forEach(values.length, pool, i -> {
+            BigInteger x = values[i];
+            BigInteger y = rems[i];
+
+            // square until the exponent 2^e covers every prime power in x
+            int bits = x.bitLength();
+            for (int e = 1; e < bits && y.signum() != 0; e <<= 1) {
+                y = y.multiply(y).mod(x);
+            }
+
+            parts[i] = x.gcd(y);
+        });
+
+        return parts;
+
+    } /*smoothParts*/
+}
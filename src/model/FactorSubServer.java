@@ -1,57 +1,142 @@
 package model;
 
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * FactorSubServer.java
  * <p>
  * This object is created by a client when that client is one of the first
- * four to connect to a given FactorServer.  Depending on the FactorType
+ * five to connect to a given FactorServer.  Depending on the FactorType
  * passed in with the FactorData object, this SubServer starts a ServerSocket
  * at a well-known port number and listens for clients to connect with it.
  * It keeps a list of all connected clients and sends to them info about a
- * number to factor.
+ * number to factor.  Each client, and the main server, keeps one connection
+ * open for the whole run.
+ * <p>
+ * Every unit of work sent to a client is leased to it (see FactorLeases).
+ * Clients send a heartbeat every HEARTBEAT_INTERVAL.  A client that misses
+ * enough of them, or hangs up, loses its unit.  That unit goes to the next
+ * client asking for work, or to any client sitting idle, so no range is
+ * skipped because the machine searching it died.
+ * <p>
+ * Trial division and Fermat hand out units from a FactorLedger, which
+ * records what is done and what is out with a client.  A lost unit is
+ * left as a gap in the ledger, and gaps are handed out first.
+ * <p>
+ * Finished ranges and the Pollard's and CFRAC cursors are kept in a
+ * FactorJournal, by the number they belong to.  A sub-server started again
+ * on the same machine skips the ranges already done on any number it is
+ * given again.
+ * <p>
+ * Units are sized per client by a FactorUnitSizer, so a fast machine gets
+ * bigger units than a slow one and each takes a few seconds.  Until a
+ * client has finished a unit, its size comes from the benchmark score it
+ * joined with.
+ * <p>
+ * A client says how many workers it runs when it connects, and how many
+ * units it wants queued behind them.  It is kept that many units at
+ * once, all over its one connection.  With units queued, a worker that
+ * finishes starts the next one straight away, and the replacement
+ * arrives while it runs.
+ * <p>
+ * The server hands out every composite piece of n as a job of its own, and
+ * a sub-server works on all of its jobs at once.  Each job keeps its own
+ * ledger or cursors.  A free slot goes to the job with the fewest units
+ * handed out for its weight, its size in bits times its priority.  Bigger
+ * numbers, which take longer, and higher priority ones get a bigger share,
+ * and no job is starved.  A job that arrives late starts level with the
+ * job furthest behind, rather than from nothing, so it does not take
+ * every slot until it has caught up with jobs running for hours, and
+ * the pieces of a split job carry on from where it stood.
+ * Pollard's and CFRAC units each carry on from the one before, so a slot
+ * running one of those keeps its job until the job is split.
+ * <p>
+ * Clients can join at any time, and are handed work as soon as they do.
+ * A client shutting down sends "leave" first, so its units go back to
+ * the others at once rather than after its leases run out.
+ * <p>
+ * When a job is split the server sends "cancel" with its id.  The
+ * sub-server drops the job's leases, passes the cancel to every client,
+ * and fills the slots it frees with the other jobs.  Once every client has
+ * answered "cancelled" it tells the server its clients are off the job.
+ * <p>
+ * Every unit carries the id and epoch of its job.  A "failed" for a job
+ * that has been split is dropped before it touches a ledger or lease,
+ * and its client is given current work instead, even if it is the
+ * first thing the client sends.
+ * <p>
+ * A job split from another keeps what was learned on it: trial division
+ * ranges already cleared stay cleared, and Pollard's carries on from its
+ * last power, reduced mod the new number.  Fermat's and CFRAC start
+ * again, since their searches depend on the number itself.
  */
-public class FactorSubServer {
+public class FactorSubServer implements FactorPeer.Handler {
 
     public static final int TD2PORT = 12486;
     public static final int TDRNPORT = 10897;
     public static final int FERMATPORT = 12458;
     public static final int POLLARDPORT = 11489;
+    public static final int CFRACPORT = 11263;
+    private static final int WORKERS = 2; // threads handling messages
+
+    // how often clients check in, and how long a silent client keeps its
+    // work before it goes to someone else
+    public static final long HEARTBEAT_INTERVAL = 5000;
+    public static final long LEASE_TIMEOUT = 4 * HEARTBEAT_INTERVAL;
     private FactorType type;
     private boolean complete = false; // true when factoring is done
 
-    private List<Socket> clients; // a list of client sockets
-
-    private Socket server; // socket for main server
-    private int socketPort;
-    private String serverHost;
+    private List<FactorPeer> clients; // a list of client connections
+    // units each client can hold: its workers plus its prefetch queue
+    private Map<FactorPeer, Integer> capacity = new HashMap<>();
 
-    // bounds and info for TD algs
-    private BigInteger tdLowerBound;
-    private BigInteger tdUpperBound;
-    private BigInteger incrementAmount;
+    private FactorPeer server; // connection to the main server
+    private FactorListener listener; // serves the clients' connections
 
-    // fermat starting value
-    private BigInteger fermatStartValue;
+    // the jobs being worked on, by id, and the ones split since, which
+    // their pieces carry work over from
+    private Map<Long, Job> jobs = new LinkedHashMap<>();
+    private Map<Long, Job> retired = new HashMap<>();
 
-    // info for Pollard's
-    private BigInteger pollardBase;
-    private BigInteger pollardLBound;
-    private BigInteger pollardUBound;
-    private BigInteger pollardPower;
+    // how much work goes in each client's next unit
+    private FactorUnitSizer sizer;
 
     // equals true when listener ready to start
     private boolean ready = false;
 
+    // per cancelled job, the clients yet to confirm they stopped it
+    private Map<Long, Set<FactorPeer>> unacked = new HashMap<>();
+
+    // results for a split job dropped since the last job arrived
+    private int staleResults = 0;
+
+    // units out with clients, and a timer that takes back the lost ones
+    private FactorLeases leases = new FactorLeases(LEASE_TIMEOUT);
+    private ScheduledExecutorService reaper;
+
+    // saved progress by number, as of the last record journaled.  What was
+    // recovered is held until a job for the same number says to use it
+    private FactorJournal journal;
+    private Map<BigInteger, Saved> saved = new LinkedHashMap<>();
+    private static final byte ASSIGN_RECORD = 1;
+    private static final byte DONE_RECORD = 2;
+    private static final byte POLLARD_RECORD = 3;
+    private static final byte CFRAC_RECORD = 4;
+
     /**
      * FactorSubServer
      * initialize all data values and create a server listener.
@@ -59,16 +144,47 @@ public class FactorSubServer {
      * @param data The FactorData object about what number to factor
      */
     FactorSubServer(FactorData data) {
-        clients = new LinkedList<>();
-        type = data.getType();
-        fermatStartValue = BigInteger.ZERO;
-        pollardBase = BigInteger.valueOf(2);
-        pollardUBound = BigInteger.valueOf(100);
-        pollardLBound = BigInteger.ONE;
+        // listen on the well-known port for this algorithm
+        this(data.getType(), null, FactorType.getAddress(data.getType()));
+    }
+
+    /**
+     * FactorSubServer
+     * initialize all data values and listen for clients on the given port.
+     * The main server can be any peer, so a sub-server can be run without
+     * one.
+     *
+     * @param type   the sub-server's algorithm, e.g. FactorType.TD2Server
+     * @param server the main server, or null to connect later with
+     *               setServerHost
+     * @param port   the port to listen on, 0 for any free one
+     */
+    public FactorSubServer(FactorType type, FactorPeer server, int port) {
+        clients = new CopyOnWriteArrayList<>();
+        this.type = type;
+        this.server = server;
+        sizer = unitSizer(type);
         printInfo();
-        ServerListener listener = new ServerListener();
-        Thread listenThread = new Thread(listener);
-        listenThread.start();
+
+        System.out.println("Subserver creating socket on port #" + port);
+        try {
+            listener = FactorListener.open(port, WORKERS, this);
+            listener.start();
+            ready = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "factor-lease-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleWithFixedDelay(this::expireLeases,
+                HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+
+        journal = FactorJournal.open(type.name().toLowerCase());
+        recoverJournal();
     }
 
     /**
@@ -105,10 +221,12 @@ public class FactorSubServer {
      */
     public void setServerHost(String hostname) {
         try {
-            // create socket to main server
-            server = new Socket(hostname, FactorServer.SERVERPORT);
-            serverHost = hostname;
-            socketPort = FactorServer.SERVERPORT;
+            // open the connection to the main server, which also carries
+            // its messages back to us
+            FactorConnection connection = FactorConnection.open(hostname,
+                    FactorServer.SERVERPORT);
+            server = connection;
+            connection.start(this::handleReadData);
             FactorData data = new FactorData(null);
 
             // "name:" tells server that this is a new SubServer
@@ -120,337 +238,813 @@ public class FactorSubServer {
             //send data to server
             data.setMessage(myname);
             data.setType(type);
-            ObjectOutputStream outputStream = new ObjectOutputStream(server
-                    .getOutputStream());
-            outputStream.writeObject(data);
-            outputStream.flush();
+            server.send(data);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * handle
+     * Called by the listener, and by the main server's connection, for
+     * every message read.
+     *
+     * @param data the FactorData read from a connection
+     * @param from the connection it arrived on
+     */
+    @Override
+    public void handle(FactorData data, FactorPeer from) {
+        handleReadData(data, from);
+    }
+
+    /**
+     * closed
+     * Called by the listener when a client's connection goes away.
+     *
+     * @param from the connection that closed
+     */
+    @Override
+    public void closed(FactorPeer from) {
+        handleClosed(from);
+    }
+
     /**
      * handleReadData
      * Given a FactorData object read from a socket, examine that object and
      * determine what actions need to be taken.  Information is found by the
      * getMessage() method on FactorData.
      *
-     * @param data the FactorData read from a socket
+     * @param data the FactorData read from a connection
+     * @param from the connection it arrived on
      */
-    private void handleReadData(FactorData data) {
+    private synchronized void handleReadData(FactorData data,
+                                             FactorPeer from) {
         String message = data.getMessage();
 
+        // hearing from a client at all means it is still working
+        if (from != server) {
+            leases.renew(from, System.currentTimeMillis());
+        }
+        if (message.equals("heartbeat")) {
+            return;
+        }
+
+        // a client is shutting down.  Take its units back now
+        if (message.equals("leave")) {
+            System.out.println("****CLIENT LEFT**** " + from);
+            handleClosed(from);
+            return;
+        }
+
+        // anything but the main server is one of our clients
+        if (from != server && !clients.contains(from)) {
+            clients.add(from);
+            capacity.put(from, Math.max(1, data.getWorkers()) + Math.max(0,
+                    data.getPrefetch()));
+            sizer.setScore(from, data.getScore());
+            System.out.println("****CLIENT JOINED**** with " + data
+                    .getWorkers() + " worker(s), " + data.getPrefetch() +
+                               " queued, score " + data.getScore());
+            dispatchIdle();
+        }
+
+        // a result for a job that has been split.  A "failed" is no use,
+        // and its client is free for current work.  A factor may still
+        // divide one of the pieces, so the server decides about that
+        if (from != server && (message.equals("failed") || message.equals
+                ("factor found"))) {
+            Job job = jobs.get(data.getJobId());
+            if (job == null || job.epoch != data.getEpoch()) {
+                staleResults++;
+                if (message.equals("failed")) {
+                    dispatchIdle();
+                } else {
+                    server.send(data);
+                }
+                return;
+            }
+        }
+
         System.out.println("SubServer read message: " + message);
 
+        // a client finished its range.  Give it a lost range if there is
+        // one, otherwise the next one
+        if (message.equals("failed")) {
+            Job job = jobs.get(data.getJobId());
+            // time in the client's queue is not time spent working
+            long granted = leases.grantedAt(data.getUnitId());
+            long took = data.getWorkMillis() > 0 ? data.getWorkMillis() :
+                    System.currentTimeMillis() - granted;
+            FactorData unit = leases.complete(data.getUnitId());
+            if (job.ledger != null) {
+                if (unit != null) {
+                    BigInteger[] range = unitRange(unit);
+                    job.ledger.complete(range[0], range[1]);
+                    journal(DONE_RECORD, job, range);
+                    if (granted >= 0) {
+                        sizer.record(from, range[1].subtract(range[0]).add
+                                (BigInteger.ONE), took);
+                    }
+                }
+                dispatchIdle();
+                System.out.println("SubServer: job " + job.id + " " + job
+                        .ledger);
+            } else {
+                FactorData lost = leases.nextRequeued();
+                if (lost != null) {
+                    assign(jobs.get(lost.getJobId()), lost, from);
+                } else {
+                    if (granted >= 0) {
+                        sizer.record(from, sizer.lastSize(from), took);
+                    }
+                    nextRange(job, data, from);
+                    journalCursors(job);
+                    assign(job, data, from);
+                }
+            }
+        }
+
         // if "quit", then notify all clients that they need to quit
         if (message.equals("quit")) {
             complete = true;
-            // skip 0 since it's the same machine I'm on.  When I exit, it'll
-            // also exit.
-            for (int i = 1; i < clients.size(); i++) {
-                Socket client = clients.get(i);
-                int port = client.getPort();
-                String address = client.getInetAddress().getHostAddress();
-                try {
-                    client = new Socket(address, port);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (journal != null) {
+                journal.delete(); // the run is over, nothing to resume
+            }
+            for (FactorPeer client : clients) {
                 outputData(data, client);
             }
             // then quit myself
             System.exit(0);
         }
 
-        // server has decided it's time to factor
-        if (message.equals("start") || message.equals("new value")) {
-            int clientCount = clients.size();
-
-            /*--------------------------------
-                Handling the trial divisions
-             ---------------------------------*/
-
-            // Trial Division from 2/RN
-            if (type == FactorType.TD2Server || type == FactorType.TDRNServer) {
-                BigInteger[] bounds = data.getTDBounds();
-                tdLowerBound = bounds[0];
-                tdUpperBound = bounds[1];
+        // the server has split a job.  Stop every client working on it,
+        // and put them on the other jobs
+        if (message.equals("cancel")) {
+            long id = data.getJobId();
+            Job job = jobs.remove(id);
+            if (job != null) {
+                retired.put(id, job);
+                saved.remove(job.num);
+            }
+            leases.cancel(id);
+            unacked.put(id, new HashSet<>(clients));
+            System.out.println("SubServer: cancelling job " + id + " on " +
+                               clients.size() + " client(s)");
+            for (FactorPeer client : clients) {
+                outputData(data, client);
+            }
+            ackCancel(id);
+            dispatchIdle();
+        }
 
-                // set bounds
-                incrementAmount = tdUpperBound.subtract(tdLowerBound);
-                incrementAmount = incrementAmount.divide(BigInteger.valueOf
-                        (clientCount));
+        // a client has stopped a job
+        if (message.equals("cancelled")) {
+            Set<FactorPeer> waiting = unacked.get(data.getJobId());
+            if (waiting != null) {
+                waiting.remove(from);
+                ackCancel(data.getJobId());
+            }
+        }
 
-                incrementAmount = incrementAmount.min(BigInteger.valueOf
-                        (100_000_000));
+        // server has decided it's time to factor, or has split off a new
+        // job to factor alongside the rest
+        if (message.equals("start") || message.equals("new value")) {
+            if (staleResults > 0) {
+                System.out.println("SubServer: dropped " + staleResults +
+                                   " result(s) for split jobs");
+                staleResults = 0;
+            }
+            if (!jobs.containsKey(data.getJobId())) {
+                addJob(data);
+            }
+        }
 
+        // a factor has been found
+        // send data to server.  It'll handle it from there.
+        if (message.equals("factor found")) {
+            Job job = jobs.get(data.getJobId());
+            FactorData unit = leases.complete(data.getUnitId());
+            if (job.ledger != null && unit != null) {
+                BigInteger[] range = unitRange(unit);
+                job.ledger.release(range[0], range[1]);
+            }
+            System.out.println("Sending data to Server");
+            server.send(data);
+            dispatchIdle();
+        }
+    }
 
-                // send factoring data to clients
-                System.out.println("Sending data to clients");
-                for (Socket client : clients) {
+    /**
+     * addJob
+     * Starts work on a job the server sent.  A job split from one this
+     * sub-server worked on carries that work over, and one whose number
+     * was worked on before a restart picks up where that stopped.
+     *
+     * @param data the job, as sent by the server
+     */
+    private void addJob(FactorData data) {
+
+        Job job = new Job(data);
+        Job parent = jobs.containsKey(data.getParentId()) ? jobs.get(data
+                .getParentId()) : retired.get(data.getParentId());
+        boolean carry = parent != null && parent.num.mod(job.num).signum()
+                                          == 0;
+        Saved resumed = saved.get(job.num);
+
+        /*--------------------------------
+            Handling the trial divisions
+         ---------------------------------*/
+
+        // Trial Division from 2/RN
+        if (type == FactorType.TD2Server || type == FactorType.TDRNServer) {
+            BigInteger[] bounds = data.getTDBounds();
+            boolean down = type == FactorType.TDRNServer;
+            job.ledger = new FactorLedger(bounds[0], bounds[1], down);
+            if (carry && parent.ledger != null) {
+                job.ledger.carry(parent.ledger);
+                System.out.println("SubServer: carried job " + parent.id +
+                                   " over to job " + job.id + ", " + job
+                                           .ledger);
+            }
 
-                    if (type == FactorType.TD2Server) {
-                        tdUpperBound = tdLowerBound.add(incrementAmount);
-                    } else {
-                        tdLowerBound = tdUpperBound.subtract(incrementAmount);
+            /*--------------------*
+                Fermat Factoring
+             *--------------------*/
+
+        } else if (type == FactorType.FERMATServer) {
+            // a reaches (n + 1) / 2 when the factors are 1 and n
+            job.ledger = new FactorLedger(data.getFermatStartVal(), job.num
+                    .add(BigInteger.ONE).shiftRight(1), false);
+
+            /*--------------------------*
+                Pollard's p-1 algorithm
+             *--------------------------*/
+
+        } else if (type == FactorType.POLLARDSServer) {
+            job.pollardBase = data.getPollardBase();
+            job.pollardLBound = data.getPollardsBounds()[0];
+            job.pollardUBound = job.pollardLBound;
+            if (carry && parent.pollardPower != null) {
+                // 2^(B!) mod n reduces to 2^(B!) mod any divisor of n
+                job.pollardBase = parent.pollardBase;
+                job.pollardLBound = parent.pollardLBound;
+                job.pollardUBound = parent.pollardLBound;
+                job.pollardPower = parent.pollardPower.mod(job.num);
+                System.out.println("SubServer: carrying Pollard's over to " +
+                                   "job " + job.id + " at base " + job
+                                           .pollardBase + ", bound " + job
+                                           .pollardLBound);
+            }
+        }
 
-                        System.out.println("Upper bound = " + tdUpperBound + ", " +
-                                           "Lower bound = " + tdLowerBound);
-                    }
+        if (resumed != null) {
+            if (job.ledger != null) {
+                for (BigInteger[] range : resumed.done) {
+                    job.ledger.complete(range[0], range[1]);
+                }
+            } else if (type == FactorType.POLLARDSServer && resumed.pollard
+                                                            != null) {
+                // carry on from the last power computed
+                job.pollardBase = resumed.pollard[0];
+                job.pollardLBound = resumed.pollard[1];
+                job.pollardUBound = resumed.pollard[2];
+                job.pollardPower = resumed.pollard[3];
+            }
+            job.cfracRank = resumed.rank;
+            System.out.println("SubServer: resuming job " + job.id + " on " +
+                               job.num);
+        }
 
-                    data.setUpperBoundTD(tdUpperBound);
-                    data.setLowerBoundTD(tdLowerBound);
-                    data.setMessage("run");
+        job.handed = startingCount(job, parent);
+        jobs.put(job.id, job);
+        saved.put(job.num, new Saved(job));
+        saveState();
+        System.out.println("SubServer: " + jobs.size() + " job(s) running");
+        dispatchIdle();
+
+    } /*addJob*/
+
+    // nextRange
+    // a client reported that its last range held no factor.  Move the
+    // bounds kept for Pollard's or CFRAC along and write the next range
+    // into data.
+    private void nextRange(Job job, FactorData data, FactorPeer client) {
+
+        if (type == FactorType.POLLARDSServer) {
+            BigInteger[] bounds = data.getPollardsBounds();
+            BigInteger base = data.getPollardBase();
+            BigInteger boundVal = data.getBoundAmount();
+            if (base.compareTo(job.pollardBase) > 0) {
+                job.pollardBase = base;
+                job.pollardLBound = BigInteger.ONE;
+                job.pollardUBound = BigInteger.valueOf(100);
+            } else if (boundVal.equals(bounds[0])) {
+                if (job.pollardLBound.compareTo(bounds[0]) > 0) {
+                    data.setLowerBoundP(job.pollardLBound);
+                    data.setTwoToImodN(job.pollardPower);
+                } else {
+                    job.pollardLBound = bounds[0];
+                    job.pollardPower = data.getTwoToImodN();
+                }
+            } else if (boundVal.equals(bounds[1])) {
+                if (bounds[1].compareTo(job.pollardUBound) < 0) {
+                    job.pollardUBound = bounds[1];
+                } else {
+                    data.setUpperBoundP(job.pollardUBound);
+                }
+            } else {
+                data.resetBasePollards(job.pollardBase);
+                job.pollardUBound = job.pollardUBound.add(sizer.nextSize
+                        (client));
+                data.setUpperBoundP(job.pollardUBound);
+            }
+        } else if (type == FactorType.CFRACServer) {
+            data.setCFRACRank(job.cfracRank++);
+        }
+    }
 
+    // newUnit
+    // builds the next unit of a job for client, from the job's ledger or
+    // cursors
+    private FactorData newUnit(Job job, FactorPeer client) {
+
+        FactorData unit = job.template.copy();
+        if (job.ledger != null) {
+            nextGap(job, unit, client);
+        } else if (type == FactorType.POLLARDSServer) {
+            unit.resetBasePollards(job.pollardBase);
+            if (job.pollardPower != null) {
+                unit.setTwoToImodN(job.pollardPower);
+                unit.setStartP(job.pollardLBound.add(BigInteger.ONE));
+            }
+            job.pollardUBound = job.pollardUBound.add(sizer.nextSize(client));
+            unit.setLowerBoundP(job.pollardLBound);
+            unit.setUpperBoundP(job.pollardUBound);
+            journalCursors(job);
+        } else if (type == FactorType.CFRACServer) {
+            // every unit works on its own multiplier
+            unit.setCFRACRank(job.cfracRank++);
+            journalCursors(job);
+        }
+        return unit;
+
+    } /*newUnit*/
+
+    // pickJob
+    // the job the next free slot goes to: of those with work left, the
+    // one with the fewest units handed out for its size times priority
+    private Job pickJob() {
+        Job best = null;
+        for (Job job : jobs.values()) {
+            if (job.ledger != null && job.ledger.nextGap(BigInteger.ONE) ==
+                                      null) {
+                continue; // all of it done or out with clients
+            }
+            if (best == null || job.handed * best.weight < best.handed * job
+                    .weight) {
+                best = job;
+            }
+        }
+        return best;
+    }
 
-                    outputData(data, client);
+    // startingCount
+    // the units a new job counts as handed out already, scaled to its
+    // weight: its parent's for a piece of a split job, otherwise the fewest
+    // any running job has had.  A job starting from none would take every
+    // slot until it caught up
+    private long startingCount(Job job, Job parent) {
+        if (parent != null) {
+            return parent.handed * job.weight / parent.weight;
+        }
+        long least = 0;
+        boolean first = true;
+        for (Job other : jobs.values()) {
+            long count = other.handed * job.weight / other.weight;
+            if (first || count < least) {
+                least = count;
+                first = false;
+            }
+        }
+        return least;
+    }
 
-                    if (type == FactorType.TD2Server) {
-                        tdLowerBound = tdUpperBound.add(BigInteger.ONE);
-                    } else {
-                        tdUpperBound = tdLowerBound.subtract(BigInteger.ONE);
+    // recoverJournal
+    // reads back what an earlier sub-server for this algorithm saved
+    private void recoverJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.recover(new FactorJournal.Recovery() {
+                @Override
+                public void restore(byte[] snapshot) throws IOException {
+                    DataInputStream in = FactorJournal.reader(snapshot);
+                    saved = new LinkedHashMap<>();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        BigInteger num = FactorJournal.readBig(in);
+                        Saved entry = new Saved(null);
+                        for (int j = in.readInt(); j > 0; j--) {
+                            entry.done.add(new BigInteger[]{FactorJournal
+                                    .readBig(in), FactorJournal.readBig(in)});
+                        }
+                        entry.pollard = readCursors(in);
+                        entry.rank = in.readInt();
+                        saved.put(num, entry);
                     }
                 }
 
-                /*--------------------*
-                    Fermat Factoring
-                 *--------------------*/
-
-            } else if (type == FactorType.FERMATServer) {
-                fermatStartValue = data.getFermatStartVal();
-                long attempts = data.getAttempts();
-
-                for (Socket client : clients) {
-                    data.setFermatStartVal(fermatStartValue);
-                    data.setMessage("run");
-
-                    outputData(data, client);
-
-                    fermatStartValue = fermatStartValue.add(BigInteger
-                            .valueOf(attempts));
+                @Override
+                public void replay(byte[] record) throws IOException {
+                    DataInputStream in = FactorJournal.reader(record);
+                    byte kind = in.readByte();
+                    BigInteger num = FactorJournal.readBig(in);
+                    Saved entry = saved.get(num);
+                    if (entry == null) {
+                        entry = new Saved(null);
+                        saved.put(num, entry);
+                    }
+                    if (kind == DONE_RECORD) {
+                        entry.done.add(new BigInteger[]{FactorJournal.readBig
+                                (in), FactorJournal.readBig(in)});
+                    } else if (kind == POLLARD_RECORD) {
+                        entry.pollard = readCursors(in);
+                    } else if (kind == CFRAC_RECORD) {
+                        entry.rank = in.readInt();
+                    }
+                    // units assigned but not finished are searched again
                 }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                /*--------------------------*
-                    Pollard's p-1 algorithm
-                 *--------------------------*/
-
-            } else if (type == FactorType.POLLARDSServer) {
-                BigInteger[] bounds = data.getPollardsBounds();
-                pollardLBound = bounds[0];
-                pollardUBound = bounds[0];
-                for (Socket client : clients) {
-                    pollardUBound = pollardUBound.add(BigInteger.valueOf(1000));
-                    data.setUpperBoundP(pollardUBound);
-                    data.setLowerBoundP(pollardLBound);
-                    data.setMessage("run");
-                    outputData(data, client);
-                }
+    // readCursors
+    // the Pollard's cursors as saved by writeCursors
+    private BigInteger[] readCursors(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        BigInteger[] cursors = new BigInteger[4];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = FactorJournal.readBig(in);
+        }
+        return cursors;
+    }
 
+    // writeCursors
+    // saves the Pollard's cursors, if there are any
+    private void writeCursors(FactorJournal.Record out, BigInteger[] cursors)
+            throws IOException {
+        out.writeBoolean(cursors != null);
+        if (cursors != null) {
+            for (BigInteger cursor : cursors) {
+                FactorJournal.writeBig(out, cursor);
             }
         }
+    }
 
-        // a factor has been found
-        // send data to server.  It'll handle it from there.
-        if (message.equals("factor found")) {
-            System.out.println("Sending data to Server");
-            setServer();
-            try {
-                ObjectOutputStream outputStream = new ObjectOutputStream(server
-                        .getOutputStream());
-                outputStream.writeObject(data);
-            } catch (IOException e) {
-                e.printStackTrace();
+    // saveState
+    // writes this sub-server's whole progress on every number as a
+    // snapshot
+    private void saveState() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            for (Job job : jobs.values()) {
+                saved.put(job.num, new Saved(job));
             }
+            FactorJournal.Record out = new FactorJournal.Record();
+            out.writeInt(saved.size());
+            for (Map.Entry<BigInteger, Saved> entry : saved.entrySet()) {
+                FactorJournal.writeBig(out, entry.getKey());
+                out.writeInt(entry.getValue().done.size());
+                for (BigInteger[] range : entry.getValue().done) {
+                    FactorJournal.writeBig(out, range[0]);
+                    FactorJournal.writeBig(out, range[1]);
+                }
+                writeCursors(out, entry.getValue().pollard);
+                out.writeInt(entry.getValue().rank);
+            }
+            journal.compact(out.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    // outputData
-    // given a data object and a client, output the data file to the machine
-    // associated with that socket.
-    private void outputData(FactorData data, Socket client) {
-        String address = client.getLocalAddress().getHostName();
-        int port = client.getPort();
-        clients.remove(client);
+    // journal
+    // appends a record of a range of a job, compacting when the journal is
+    // full
+    private void journal(byte kind, Job job, BigInteger[] range) {
+        if (journal == null) {
+            return;
+        }
         try {
-            client = new Socket(address,port);
-            clients.add(client);
-            ObjectOutputStream outputStream = new ObjectOutputStream
-                    (client.getOutputStream());
-            outputStream.writeObject(data);
-            outputStream.flush();
+            FactorJournal.Record out = new FactorJournal.Record();
+            out.writeByte(kind);
+            FactorJournal.writeBig(out, job.num);
+            FactorJournal.writeBig(out, range[0]);
+            FactorJournal.writeBig(out, range[1]);
+            journal.append(out.toByteArray());
+            if (kind == DONE_RECORD) {
+                saved.get(job.num).done.add(range);
+            }
+            if (journal.needsCompaction()) {
+                saveState();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // setServer
-    // Establish the socket in which the main server is located
-    private void setServer() {
+    // journalCursors
+    // saves where Pollard's or CFRAC has got to on a job
+    private void journalCursors(Job job) {
+        if (journal == null) {
+            return;
+        }
         try {
-            server = new Socket(serverHost, socketPort);
+            FactorJournal.Record out = new FactorJournal.Record();
+            Saved entry = saved.get(job.num);
+            if (type == FactorType.POLLARDSServer) {
+                out.writeByte(POLLARD_RECORD);
+                FactorJournal.writeBig(out, job.num);
+                entry.pollard = job.cursors();
+                writeCursors(out, entry.pollard);
+            } else {
+                out.writeByte(CFRAC_RECORD);
+                FactorJournal.writeBig(out, job.num);
+                out.writeInt(job.cfracRank);
+                entry.rank = job.cfracRank;
+            }
+            journal.append(out.toByteArray());
+            if (journal.needsCompaction()) {
+                saveState();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // ServerListener
-    // Creates a listener that listens on a well-known port for connections
-    // to this server.
-    private class ServerListener implements Runnable {
-
-        private int port;
-
-        ServerListener() {
-            port = FactorType.getAddress(type);
+    // unitSizer
+    // the first, smallest and largest unit for each algorithm: divisors
+    // for TD, attempts for Fermat and bound steps for Pollard's
+    private static FactorUnitSizer unitSizer(FactorType type) {
+        if (type == FactorType.FERMATServer) {
+            return new FactorUnitSizer(1000, 1000, 100_000_000);
+        } else if (type == FactorType.POLLARDSServer) {
+            return new FactorUnitSizer(1000, 100, 10_000_000);
         }
+        return new FactorUnitSizer(1_000_000, 10_000, 1_000_000_000);
+    }
 
-        @Override
-        public void run() {
-
-            ServerSocket listen;
-            Socket socket;
-            ServerReader reader;
-
-            try {
-                System.out.println("Subserver creating socket on port #" + port);
-                listen = new ServerSocket(port, 10);
-                while (!complete) {
-                    System.out.println("Sub-Server waiting for connection");
+    // nextGap
+    // writes the next range the job's ledger has no record of into data,
+    // sized for client.  False once all of it is done or out with clients
+    private boolean nextGap(Job job, FactorData data, FactorPeer client) {
+        BigInteger[] range = job.ledger.nextGap(sizer.nextSize(client));
+        if (range == null) {
+            return false;
+        }
+        if (type == FactorType.FERMATServer) {
+            data.setFermatStartVal(range[0]);
+            data.setAttempts(range[1].subtract(range[0]).longValue() + 1);
+        } else {
+            data.setLowerBoundTD(range[0]);
+            data.setUpperBoundTD(range[1]);
+        }
+        return true;
+    }
 
-                    ready = true;
-                    socket = listen.accept();
+    // unitRange
+    // the part of the search space a unit covers, ends included
+    private BigInteger[] unitRange(FactorData unit) {
+        if (type == FactorType.FERMATServer) {
+            BigInteger start = unit.getFermatStartVal();
+            return new BigInteger[]{start, start.add(BigInteger.valueOf(unit
+                    .getAttempts() - 1))};
+        }
+        return unit.getTDBounds();
+    }
 
-                    System.out.println("SubServer: Connection found!");
+    // assign
+    // leases a unit of a job to a client and sends it
+    private void assign(Job job, FactorData data, FactorPeer client) {
+        data.setMessage("run");
+        data.setJobId(job.id);
+        data.setEpoch(job.epoch);
+        job.handed++;
+        leases.grant(data, client, System.currentTimeMillis());
+        if (job.ledger != null) {
+            BigInteger[] range = unitRange(data);
+            job.ledger.lease(range[0], range[1]);
+            journal(ASSIGN_RECORD, job, range);
+        }
+        outputData(data, client);
+    }
 
-                    reader = new ServerReader(socket);
-                    Thread t = new Thread(reader);
-                    t.start();
-                }
-                System.out.println("SubServer quitting");
-            } catch (IOException e) {
-                e.printStackTrace();
+    // reclaim
+    // with a ledger, a lost unit is just a gap in it, which nextGap hands
+    // out again
+    private void reclaim() {
+        if (type != FactorType.TD2Server && type != FactorType.TDRNServer &&
+            type != FactorType.FERMATServer) {
+            return;
+        }
+        FactorData lost;
+        while ((lost = leases.nextRequeued()) != null) {
+            Job job = jobs.get(lost.getJobId());
+            if (job != null) {
+                BigInteger[] range = unitRange(lost);
+                job.ledger.release(range[0], range[1]);
             }
         }
     }
 
-    private class ServerReader implements Runnable {
-
-        private Socket mySocket;
+    // workSlots
+    // each client once for every unit it can hold, so a loop over them
+    // fills every client's workers and queue
+    private List<FactorPeer> workSlots() {
+        List<FactorPeer> slots = new ArrayList<>();
+        for (FactorPeer client : clients) {
+            for (int i = capacity.getOrDefault(client, 1); i > 0; i--) {
+                slots.add(client);
+            }
+        }
+        return slots;
+    }
 
-        /**
-         * ServerReader
-         * Sets socket field to passed in parameter
-         *
-         * @param socket the socket this is reading from
-         */
-        ServerReader(Socket socket) {
-            mySocket = socket;
+    // ackCancel
+    // once every client has stopped a job, tells the server our clients
+    // are off it
+    private void ackCancel(long jobId) {
+        Set<FactorPeer> waiting = unacked.get(jobId);
+        if (waiting != null && waiting.isEmpty()) {
+            unacked.remove(jobId);
+            FactorData ack = new FactorData(null);
+            ack.setMessage("cancelled");
+            ack.setJobId(jobId);
+            ack.setType(type);
+            server.send(ack);
         }
+    }
 
-        /**
-         * run
-         * Tries to read data coming in from socket
-         */
-        @Override
-        public void run() {
-            ObjectInputStream inputStream;
-            FactorData data;
-            try {
+    // dispatchIdle
+    // hands lost units, then new ones, to clients with room for more work
+    private void dispatchIdle() {
+        for (FactorPeer client : workSlots()) {
+            if (leases.held(client) >= capacity.getOrDefault(client, 1)) {
+                continue;
+            }
+            FactorData lost = leases.nextRequeued();
+            if (lost != null) {
+                assign(jobs.get(lost.getJobId()), lost, client);
+                continue;
+            }
+            Job job = pickJob();
+            if (job == null) {
+                return;
+            }
+            assign(job, newUnit(job, client), client);
+        }
+    }
 
-                if (mySocket.isClosed()) {
-                    return;
-                }
+    /**
+     * getLedger
+     * Returns the record of what is searched on a job, for the algorithms
+     * that search a range.  Null for the others, and for jobs not being
+     * worked on.
+     *
+     * @param jobId the job's id
+     * @return the ledger, or null
+     */
+    public synchronized FactorLedger getLedger(long jobId) {
+        Job job = jobs.get(jobId);
+        return job == null ? null : job.ledger;
+    }
 
-                try {
-                    inputStream = new ObjectInputStream(mySocket.getInputStream());
-                } catch (java.io.EOFException e) {
-                    return;
-                }
+    /**
+     * getLeased
+     * Returns how many units a client holds right now.
+     *
+     * @param client the client's connection
+     * @return the units leased to it
+     */
+    public synchronized int getLeased(FactorPeer client) {
+        return leases.held(client);
+    }
 
-                data = (FactorData) inputStream.readObject();
+    /**
+     * getOutstanding
+     * Returns how many units are out with clients, on every job.
+     *
+     * @return the units leased and not yet finished
+     */
+    public synchronized int getOutstanding() {
+        return leases.outstanding();
+    }
 
-                int clientPort = data.getClientPort();
-                String clientAddress = data.getClientAddress();
+    // expireLeases
+    // runs on the reaper every heartbeat interval.  Takes back units from
+    // clients that have gone quiet.
+    private synchronized void expireLeases() {
+        if (complete) {
+            return;
+        }
+        int lost = leases.expire(System.currentTimeMillis());
+        if (lost > 0) {
+            System.out.println("SubServer: " + lost + " unit(s) timed out, " +
+                               "requeued");
+        }
+        reclaim();
+        dispatchIdle();
+    }
 
-                Socket s = null;
+    // handleClosed
+    // a client hung up, stop handing it work and requeue what it had
+    private synchronized void handleClosed(FactorPeer connection) {
+        clients.remove(connection);
+        capacity.remove(connection);
+        sizer.forget(connection);
+        for (Long jobId : new ArrayList<>(unacked.keySet())) {
+            unacked.get(jobId).remove(connection);
+            ackCancel(jobId);
+        }
+        int lost = leases.release(connection);
+        if (lost > 0) {
+            System.out.println("SubServer: client " + connection + " left " +
+                               "with " + lost + " unit(s), requeued");
+            reclaim();
+            dispatchIdle();
+        }
+    }
 
-                for (Socket c : clients) {
-                    if (c.getPort() == clientPort && c.getInetAddress()
-                            .getHostName().equals(clientAddress)) {
-                        s = c;
-                    }
-                }
+    // outputData
+    // given a data object and a client, send the data down that client's
+    // connection.
+    private void outputData(FactorData data, FactorPeer client) {
+        client.send(data);
+    }
 
-                if (s == null && clientAddress != null) {
-                    s = new Socket(clientAddress, clientPort);
-                    clients.add(s);
-                    System.out.println("****CLIENT JOINED****");
-                }
+    // Job
+    // one number the server is factoring, and how far this sub-server's
+    // algorithm has got on it
+    private static class Job {
+
+        private long id;
+        private long epoch;
+        private BigInteger num;
+        private long weight; // its share of the clients, see pickJob
+        private long handed = 0; // units handed out so far
+        private FactorData template; // what the server sent, to build units
+
+        // what is done and handed out for TD algs and Fermat, which search
+        // a range of integers
+        private FactorLedger ledger;
+
+        // info for Pollard's
+        private BigInteger pollardBase;
+        private BigInteger pollardLBound;
+        private BigInteger pollardUBound;
+        private BigInteger pollardPower;
+
+        // next multiplier rank to hand out for CFRAC
+        private int cfracRank = 0;
+
+        Job(FactorData data) {
+            id = data.getJobId();
+            epoch = data.getEpoch();
+            num = data.getNum();
+            weight = (long) Math.max(1, num.bitLength()) * Math.max(1, data
+                    .getPriority());
+            template = data.copy();
+        }
 
-                if (data.getMessage().equals("failed")) {
-
-                    if (type == FactorType.TD2Server || type == FactorType
-                            .TDRNServer) {
-                        if (type == FactorType.TD2Server) {
-                            tdLowerBound = tdUpperBound.add(BigInteger.ONE);
-                            tdUpperBound = tdLowerBound.add(incrementAmount);
-                        } else {
-                            tdUpperBound = tdLowerBound.subtract(BigInteger
-                                    .ONE);
-                            tdLowerBound = tdUpperBound.subtract
-                                    (incrementAmount);
-                        }
-                        data.setUpperBoundTD(tdUpperBound);
-                        data.setLowerBoundTD(tdLowerBound);
-                    } else if (type == FactorType.FERMATServer) {
-                        data.setFermatStartVal(fermatStartValue);
-                        long attempts = data.getAttempts();
-                        fermatStartValue = fermatStartValue.add(BigInteger
-                                .valueOf(attempts));
-                    } else if (type == FactorType.POLLARDSServer) {
-                        BigInteger[] bounds = data.getPollardsBounds();
-                        BigInteger base = data.getPollardBase();
-                        BigInteger boundVal = data.getBoundAmount();
-                        if (base.compareTo(pollardBase) > 0) {
-                            pollardBase = base;
-                            pollardLBound = BigInteger.ONE;
-                            pollardUBound = BigInteger.valueOf(100);
-                        } else if (boundVal.equals(bounds[0])) {
-                            if (pollardLBound.compareTo(bounds[0]) > 0) {
-                                data.setLowerBoundP(pollardLBound);
-                                data.setTwoToImodN(pollardPower);
-                            } else {
-                                pollardLBound = bounds[0];
-                                pollardPower = data.getTwoToImodN();
-                            }
-                        } else if (boundVal.equals(bounds[1])) {
-                            if (bounds[1].compareTo(pollardUBound) < 0) {
-                                pollardUBound = bounds[1];
-                            } else {
-                                data.setUpperBoundP(pollardUBound);
-                            }
-                        } else {
-                            data.resetBasePollards(pollardBase);
-                            pollardUBound = pollardUBound.add(BigInteger.valueOf(1000));
-                            data.setUpperBoundP(pollardUBound);
-                        }
-                    }
+        BigInteger[] cursors() {
+            return pollardBase == null ? null : new BigInteger[]{pollardBase,
+                    pollardLBound, pollardUBound, pollardPower};
+        }
+    }
 
-                    data.setMessage("run");
+    // Saved
+    // progress on one number as journaled: finished ranges, the Pollard's
+    // cursors and the CFRAC rank
+    private static class Saved {
 
-                    mySocket = new Socket(data.getClientAddress(), data
-                            .getClientPort());
+        private List<BigInteger[]> done = new ArrayList<>();
+        private BigInteger[] pollard;
+        private int rank;
 
-                    outputData(data, mySocket);
+        Saved(Job job) {
+            if (job != null) {
+                if (job.ledger != null) {
+                    done = job.ledger.getDoneIntervals();
                 }
-
-                handleReadData(data);
-
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
+                pollard = job.cursors();
+                rank = job.cfracRank;
             }
         }
-
-
     }
 }
@@ -0,0 +1,117 @@
+package model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FactorThreadListener.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * The thread-per-connection listener.  Every accepted socket becomes a
+ * FactorConnection whose reader thread blocks on the socket and runs the
+ * handler itself, so messages from one peer are handled in order with no
+ * hand-off.  Reader threads come from FactorThreads: virtual threads where
+ * the JDK has them, small-stack platform threads where it does not.
+ */
+
+public class FactorThreadListener implements FactorListener {
+
+    private ServerSocket listen;
+    private FactorPeer.Handler handler;
+    private volatile boolean running = true;
+
+    // how long to wait after a failed accept, doubling while they keep
+    // failing, e.g. while the process is out of file descriptors
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 5000;
+
+    // open connections, closed along with the listener
+    private Set<FactorConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * FactorThreadListener
+     * Binds the port.  Nothing is accepted until start is called.
+     *
+     * @param port    the port to listen on, 0 for any free port
+     * @param handler what to do with each message
+     * @throws IOException if the port cannot be bound
+     */
+    public FactorThreadListener(int port, FactorPeer.Handler handler) throws
+            IOException {
+
+        this.handler = handler;
+        listen = new ServerSocket();
+        listen.setReuseAddress(true);
+        listen.bind(new InetSocketAddress(port), FactorEventLoop.BACKLOG);
+
+    }
+
+    @Override
+    public void start() {
+        FactorThreads.start("factor-accept-" + getPort(), this::acceptLoop);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            listen.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (FactorConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return listen.getLocalPort();
+    }
+
+    // acceptLoop
+    // accepts connections until closed, giving each its own reader.  A
+    // failed accept is logged and retried after a pause, rather than
+    // retried at once, which spins while the failure lasts
+    private void acceptLoop() {
+
+        long backoff = MIN_BACKOFF;
+        while (running) {
+            try {
+                Socket socket = listen.accept();
+                backoff = MIN_BACKOFF;
+                FactorConnection connection = new FactorConnection(socket);
+                connections.add(connection);
+                connection.start(new FactorPeer.Handler() {
+                    @Override
+                    public void handle(FactorData data, FactorPeer from) {
+                        handler.handle(data, from);
+                    }
+
+                    @Override
+                    public void closed(FactorPeer from) {
+                        connections.remove(connection);
+                        handler.closed(from);
+                    }
+                });
+            } catch (IOException e) {
+                if (!running) {
+                    break; // listener closed
+                }
+                e.printStackTrace();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            }
+        }
+
+    } /*acceptLoop*/
+}
@@ -0,0 +1,103 @@
+package model;
+
+import java.lang.reflect.Method;
+
+/**
+ * FactorThreads.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Starts the threads that sit blocked on sockets.  On a JDK with virtual
+ * threads (21 and later) each one is a virtual thread, which costs a few
+ * hundred bytes until it runs and parks without holding an OS thread, so
+ * thousands of idle connections are cheap.  Older JDKs get platform
+ * threads with a small stack instead, since a socket reader never needs
+ * the default megabyte.
+ * <p>
+ * Virtual threads are looked up by reflection so the code still builds
+ * and runs on Java 8.  Set -Dfactor.threads=platform (default stacks) or
+ * -Dfactor.threads=small to pick a kind by hand, e.g. to compare them.
+ */
+
+public final class FactorThreads {
+
+    // stack for a platform thread that only reads a socket
+    public static final long SMALL_STACK = 256 * 1024;
+
+    private static final Method OF_VIRTUAL; // Thread.ofVirtual()
+    private static final Method NAME; // Thread.Builder.name(String)
+    private static final Method START; // Thread.Builder.start(Runnable)
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method start = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            // older JDK, no virtual threads
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        START = start;
+    }
+
+    private FactorThreads() {
+    }
+
+    /**
+     * isVirtual
+     * returns whether start will hand out virtual threads
+     *
+     * @return true on a JDK with virtual threads, unless overridden
+     */
+    public static boolean isVirtual() {
+        return OF_VIRTUAL != null && mode().equals("virtual");
+    }
+
+    /**
+     * start
+     * Starts task on a new thread suited to blocking I/O.
+     *
+     * @param name the thread's name
+     * @param task what it runs
+     * @return the started thread
+     */
+    public static Thread start(String name, Runnable task) {
+
+        if (isVirtual()) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) START.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                e.printStackTrace(); // fall back to a platform thread
+            }
+        }
+
+        long stack = mode().equals("platform") ? 0 : SMALL_STACK;
+        Thread thread = new Thread(null, task, name, stack);
+        thread.start();
+        return thread;
+
+    } /*start*/
+
+    /**
+     * describe
+     * returns the kind of thread start hands out, for logs
+     *
+     * @return "virtual", "small-stack platform" or "platform"
+     */
+    public static String describe() {
+        if (isVirtual()) {
+            return "virtual";
+        }
+        return mode().equals("platform") ? "platform" : "small-stack platform";
+    }
+
+    private static String mode() {
+        return System.getProperty("factor.threads", "virtual");
+    }
+}
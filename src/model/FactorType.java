@@ -10,9 +10,10 @@ package model;
 
 public enum FactorType {
 
-    // all of the factoring types, including server types and none
-    TD2, TDRN, POLLARDS, FERMAT, TD2Server, TDRNServer, POLLARDSServer,
-    FERMATServer, NONE;
+    // all of the factoring types, including server types and none.  SNFS
+    // is run by the server itself on numbers of the special form
+    TD2, TDRN, POLLARDS, FERMAT, CFRAC, SNFS, TD2Server, TDRNServer,
+    POLLARDSServer, FERMATServer, CFRACServer, NONE;
 
     /**
      * asInt
@@ -31,11 +32,38 @@ public enum FactorType {
             return 2;
         } else if (type == POLLARDSServer || type == POLLARDS) {
             return 3;
+        } else if (type == CFRACServer || type == CFRAC) {
+            return 4;
         }
 
         return -1;
     }
 
+    /**
+     * asWorker
+     * Returns the algorithm a type's clients run.  A sub-server type
+     * becomes the algorithm it serves.
+     *
+     * @param type the type to convert
+     * @return the algorithm, e.g. TD2 for TD2Server, or NONE
+     */
+    public static FactorType asWorker(FactorType type) {
+        if (type == TD2Server || type == TD2) {
+            return TD2;
+        } else if (type == TDRNServer || type == TDRN) {
+            return TDRN;
+        } else if (type == FERMATServer || type == FERMAT) {
+            return FERMAT;
+        } else if (type == POLLARDSServer || type == POLLARDS) {
+            return POLLARDS;
+        } else if (type == CFRACServer || type == CFRAC) {
+            return CFRAC;
+        } else if (type == SNFS) {
+            return SNFS;
+        }
+        return NONE;
+    }
+
     /**
      * getAddress
      * Given a FactorType, return the server port where that algorithm is
@@ -53,6 +81,8 @@ public enum FactorType {
             return FactorSubServer.FERMATPORT;
         } else if (type == POLLARDSServer || type == POLLARDS) {
             return FactorSubServer.POLLARDPORT;
+        } else if (type == CFRACServer || type == CFRAC) {
+            return FactorSubServer.CFRACPORT;
         }
 
         return -1;
@@ -74,6 +104,10 @@ public enum FactorType {
             return "Fermat";
         } else if (type == POLLARDSServer || type == POLLARDS) {
             return "Pollard's";
+        } else if (type == CFRACServer || type == CFRAC) {
+            return "CFRAC";
+        } else if (type == SNFS) {
+            return "SNFS";
         }
 
         return null;
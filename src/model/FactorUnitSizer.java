@@ -0,0 +1,164 @@
+package model;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FactorUnitSizer.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * Picks how much work goes in the next unit sent to a client, so each unit
+ * takes about TARGET_MILLIS whatever the machine.  Units that are too
+ * small spend their time on messages.  Units that are too big leave the
+ * whole run waiting on the slowest machine's last unit.
+ * <p>
+ * Each time a client finishes a unit, its speed (work per millisecond) is
+ * folded into a running average, with the newest unit weighted by ALPHA.
+ * The next unit is that speed times the target, kept between a minimum and
+ * maximum, and never more than GROWTH times the client's last unit, so
+ * one unit that ran fast does not produce one enormous unit.  Clients
+ * that have not finished anything yet get the starting size, scaled by
+ * the benchmark score they joined with against the others' scores, so a
+ * slow machine's first units do not hold up the run.
+ * <p>
+ * What "work" counts depends on the algorithm: divisors for trial
+ * division, attempts for Fermat, steps of the bound for Pollard's.
+ */
+
+public class FactorUnitSizer {
+
+    // how long a unit should take
+    public static final long TARGET_MILLIS = 3000;
+
+    // weight of the newest speed in the running average
+    private static final double ALPHA = 0.3;
+
+    // how much bigger one unit may be than the last
+    private static final long GROWTH = 4;
+
+    private long initial; // size before a client has a speed
+    private long min; // smallest unit handed out
+    private long max; // largest unit handed out
+
+    private Map<FactorPeer, Double> rates = new HashMap<>(); // work per ms
+    private Map<FactorPeer, Long> lastSizes = new HashMap<>();
+    private Map<FactorPeer, Long> scores = new HashMap<>(); // benchmarks
+
+    /**
+     * FactorUnitSizer
+     * Creates a sizer with no speeds measured.
+     *
+     * @param initial the size of a client's first unit
+     * @param min     the smallest unit to hand out
+     * @param max     the largest unit to hand out
+     */
+    public FactorUnitSizer(long initial, long min, long max) {
+        this.initial = Math.max(min, Math.min(initial, max));
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * nextSize
+     * returns how much work to put in the next unit for client
+     *
+     * @param client the client the unit is for
+     * @return the unit's size
+     */
+    public synchronized BigInteger nextSize(FactorPeer client) {
+
+        long size = initial;
+        Double rate = rates.get(client);
+        Long score = scores.get(client);
+        if (rate == null && score != null) {
+            double mean = 0;
+            for (long other : scores.values()) {
+                mean += other;
+            }
+            mean /= scores.size();
+            size = (long) Math.max(min, Math.min(initial * score / mean,
+                    max));
+        } else if (rate != null) {
+            double wanted = rate * TARGET_MILLIS;
+            Long last = lastSizes.get(client);
+            if (last != null) {
+                wanted = Math.min(wanted, (double) last * GROWTH);
+            }
+            size = (long) Math.max(min, Math.min(wanted, max));
+        }
+
+        lastSizes.put(client, size);
+        return BigInteger.valueOf(size);
+
+    } /*nextSize*/
+
+    /**
+     * record
+     * Folds a finished unit into client's speed.
+     *
+     * @param client the client that did the work
+     * @param size   how much work the unit held
+     * @param millis how long it took, from sending to hearing back
+     */
+    public synchronized void record(FactorPeer client, BigInteger size,
+                                    long millis) {
+
+        double sample = size.doubleValue() / Math.max(1, millis);
+        Double rate = rates.get(client);
+        rates.put(client, rate == null ? sample : ALPHA * sample +
+                                                  (1 - ALPHA) * rate);
+
+    } /*record*/
+
+    /**
+     * setScore
+     * Records the benchmark score a client joined with, which sizes its
+     * units until it has finished one.
+     *
+     * @param client the client
+     * @param score  its score, trial divisions a second
+     */
+    public synchronized void setScore(FactorPeer client, long score) {
+        if (score > 0) {
+            scores.put(client, score);
+        }
+    }
+
+    /**
+     * lastSize
+     * returns the size most recently handed out to client
+     *
+     * @param client the client
+     * @return its last unit's size, or the starting size if it has none
+     */
+    public synchronized BigInteger lastSize(FactorPeer client) {
+        Long last = lastSizes.get(client);
+        return BigInteger.valueOf(last == null ? initial : last);
+    }
+
+    /**
+     * getRate
+     * returns a client's measured speed
+     *
+     * @param client the client
+     * @return work per millisecond, or 0 if nothing is measured yet
+     */
+    public synchronized double getRate(FactorPeer client) {
+        Double rate = rates.get(client);
+        return rate == null ? 0 : rate;
+    }
+
+    /**
+     * forget
+     * Drops what is known about a client, e.g. once it has left.
+     *
+     * @param client the client
+     */
+    public synchronized void forget(FactorPeer client) {
+        rates.remove(client);
+        lastSizes.remove(client);
+        scores.remove(client);
+    }
+}
@@ -0,0 +1,441 @@
+package model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * FactorWire.java
+ *
+ * @author Jon Thomas
+ * <p>
+ * The binary format FactorData travels in between machines.  Java
+ * serialization sent every field of FactorData, plus class descriptors,
+ * with every message.  Most messages only change the message and one
+ * bound, so a frame here carries only the fields that changed since the
+ * last frame on the same connection.
+ * <p>
+ * A frame is laid out as:
+ * <pre>
+ *   varint  length of everything after this
+ *   byte    VERSION
+ *   byte    message kind (see Kind)
+ *   string  rest of the message, for NAME and TEXT kinds only
+ *   varint  bit mask of the fields that follow
+ *   ...     each field in the mask, lowest number first
+ * </pre>
+ * Varints are 7 bits per byte, low bits first.  Ints and longs are zig-zag
+ * encoded so small negatives stay short.  BigIntegers and strings are a
+ * varint of their byte length plus one (0 means null) followed by the two's
+ * complement bytes or UTF-8.  Each side keeps its own Encoder and Decoder
+ * per connection, since a frame only makes sense after the ones before it.
+ */
+
+public final class FactorWire {
+
+    public static final int VERSION = 1;
+
+    // frames larger than this are refused rather than allocated
+    public static final int MAX_FRAME = 1 << 24;
+
+    // how each numbered field of FactorData is encoded
+    private static final int ENUM = 0;
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int BIG = 3;
+    private static final int LONG = 4;
+    private static final int[] FIELD_TYPES = {ENUM, STRING, INT, STRING, BIG,
+            BIG, BIG, BIG, BIG, BIG, BIG, BIG, BIG, BIG, BIG, BIG, INT, LONG,
+            LONG, INT, INT, LONG, LONG, LONG, LONG, INT, INT, INT, STRING,
+            LONG};
+
+    private static final FactorType[] TYPES = FactorType.values();
+
+    private FactorWire() {
+    }
+
+    /**
+     * Kind
+     * The message strings the system uses, each sent as a single byte.
+     * NAME carries the text after "name:", and TEXT carries any other
+     * message whole.  HEARTBEAT never carries fields, whatever the data
+     * it was sent with holds.
+     */
+    public enum Kind {
+        NONE(null), NEW_CLIENT("new client"), NEW_VALUE("new value"),
+        START("start"), RUN("run"), FAILED("failed"),
+        FACTOR_FOUND("factor found"), QUIT("quit"), NEW("new"),
+        CONNECT("connect"), REQUEST_SSERVER("request sserver"),
+        NAME("name:"), TEXT(null), HEARTBEAT("heartbeat"), CANCEL("cancel"),
+        CANCELLED("cancelled"), LEAVE("leave"), SWITCH("switch");
+
+        private String message;
+
+        Kind(String message) {
+            this.message = message;
+        }
+
+        /**
+         * of
+         * returns the kind a message string is sent as
+         *
+         * @param message the message on a FactorData
+         * @return its kind
+         */
+        public static Kind of(String message) {
+            if (message == null) {
+                return NONE;
+            }
+            if (message.startsWith("name:")) {
+                return NAME;
+            }
+            for (Kind kind : values()) {
+                if (message.equals(kind.message) && kind != NAME) {
+                    return kind;
+                }
+            }
+            return TEXT;
+        }
+    }
+
+    /**
+     * Encoder
+     * Turns FactorData into frames for one connection.  Remembers what it
+     * sent last so the next frame only carries what changed.
+     */
+    public static class Encoder {
+
+        private FactorData last = new FactorData(null);
+        private Buffer buffer = new Buffer();
+
+        /**
+         * encode
+         * Builds the frame for data, length prefix included.
+         *
+         * @param data the message to send
+         * @return the frame
+         */
+        public byte[] encode(FactorData data) {
+
+            buffer.reset();
+            buffer.write(VERSION);
+
+            String message = data.getMessage();
+            Kind kind = Kind.of(message);
+            buffer.write(kind.ordinal());
+            if (kind == Kind.NAME) {
+                writeString(buffer, message.substring(5));
+            } else if (kind == Kind.TEXT) {
+                writeString(buffer, message);
+            }
+
+            long mask = 0;
+            for (int i = 0; i < FactorData.FIELDS && kind != Kind.HEARTBEAT;
+                 i++) {
+                if (!Objects.equals(data.getField(i), last.getField(i))) {
+                    mask |= 1L << i;
+                }
+            }
+            writeVarint(buffer, mask);
+
+            for (int i = 0; i < FactorData.FIELDS; i++) {
+                if ((mask & (1L << i)) != 0) {
+                    Object value = data.getField(i);
+                    writeField(buffer, FIELD_TYPES[i], value);
+                    last.setField(i, value);
+                }
+            }
+
+            // put the length in front
+            Buffer frame = new Buffer();
+            writeVarint(frame, buffer.size);
+            frame.write(buffer.bytes, 0, buffer.size);
+            return frame.toArray();
+
+        } /*encode*/
+    }
+
+    /**
+     * Decoder
+     * Turns frames from one connection back into FactorData.  Every call
+     * returns a new object, so a message kept by its handler is never
+     * changed by the ones after it.
+     */
+    public static class Decoder {
+
+        private FactorData last = new FactorData(null);
+
+        /**
+         * read
+         * Reads one frame from a stream.
+         *
+         * @param in the stream to read
+         * @return the decoded message
+         * @throws IOException  if the frame is malformed or the stream fails
+         * @throws EOFException if the stream ends before a frame starts
+         */
+        public FactorData read(InputStream in) throws IOException {
+
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                length |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                if (shift > 28) {
+                    throw new IOException("bad frame length");
+                }
+            }
+            if (length > MAX_FRAME) {
+                throw new IOException("frame of " + length + " bytes is too " +
+                                      "large");
+            }
+
+            byte[] body = new byte[(int) length];
+            int read = 0;
+            while (read < body.length) {
+                int r = in.read(body, read, body.length - read);
+                if (r < 0) {
+                    throw new EOFException("connection closed mid-frame");
+                }
+                read += r;
+            }
+
+            return decode(body, 0, body.length);
+
+        } /*read*/
+
+        /**
+         * decode
+         * Decodes a frame body, the bytes after the length prefix.
+         *
+         * @param bytes  holds the frame body
+         * @param offset where the body starts
+         * @param length number of bytes in the body
+         * @return the decoded message
+         * @throws IOException if the body is malformed
+         */
+        public FactorData decode(byte[] bytes, int offset, int length) throws
+                IOException {
+
+            Reader in = new Reader(bytes, offset, offset + length);
+
+            int version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("unsupported wire version " + version);
+            }
+
+            int kindIndex = in.readByte();
+            if (kindIndex >= Kind.values().length) {
+                throw new IOException("unknown message kind " + kindIndex);
+            }
+            Kind kind = Kind.values()[kindIndex];
+            String message = kind.message;
+            if (kind == Kind.NAME) {
+                message = "name:" + readString(in);
+            } else if (kind == Kind.TEXT) {
+                message = readString(in);
+            }
+
+            long mask = readVarint(in);
+            for (int i = 0; i < FactorData.FIELDS; i++) {
+                if ((mask & (1L << i)) != 0) {
+                    last.setField(i, readField(in, FIELD_TYPES[i]));
+                }
+            }
+            if (mask >>> FactorData.FIELDS != 0) {
+                throw new IOException("unknown fields in mask " + mask);
+            }
+
+            FactorData data = last.copy();
+            data.setMessage(message);
+            return data;
+
+        } /*decode*/
+    }
+
+    /*------------------------------------------*
+        Encoding of single values
+     *------------------------------------------*/
+
+    // writeField
+    // writes one field value in the given encoding
+    private static void writeField(Buffer out, int fieldType, Object value) {
+        switch (fieldType) {
+            case ENUM:
+                out.write(value == null ? 0 : ((FactorType) value).ordinal()
+                                              + 1);
+                break;
+            case STRING:
+                writeString(out, (String) value);
+                break;
+            case INT:
+                int v = (Integer) value;
+                writeVarint(out, ((v << 1) ^ (v >> 31)) & 0xffffffffL); // zig-zag
+                break;
+            case LONG:
+                long l = (Long) value;
+                writeVarint(out, (l << 1) ^ (l >> 63));
+                break;
+            default:
+                if (value == null) {
+                    writeVarint(out, 0);
+                } else {
+                    byte[] bytes = ((BigInteger) value).toByteArray();
+                    writeVarint(out, bytes.length + 1);
+                    out.write(bytes, 0, bytes.length);
+                }
+        }
+    }
+
+    // readField
+    // reads one field value in the given encoding
+    private static Object readField(Reader in, int fieldType) throws
+            IOException {
+        switch (fieldType) {
+            case ENUM:
+                int ordinal = in.readByte();
+                if (ordinal > TYPES.length) {
+                    throw new IOException("unknown factor type " + ordinal);
+                }
+                return ordinal == 0 ? null : TYPES[ordinal - 1];
+            case STRING:
+                return readString(in);
+            case INT:
+                int v = (int) readVarint(in);
+                return (v >>> 1) ^ -(v & 1);
+            case LONG:
+                long l = readVarint(in);
+                return (l >>> 1) ^ -(l & 1);
+            default:
+                int length = readLength(in);
+                if (length < 0) {
+                    return null;
+                }
+                if (length == 0) {
+                    throw new IOException("empty number");
+                }
+                return new BigInteger(in.take(length));
+        }
+    }
+
+    private static void writeString(Buffer out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(Reader in) throws IOException {
+        int length = readLength(in);
+        if (length < 0) {
+            return null;
+        }
+        return new String(in.take(length), StandardCharsets.UTF_8);
+    }
+
+    // readLength
+    // reads a length written as length + 1, returns -1 for null
+    private static int readLength(Reader in) throws IOException {
+        long length = readVarint(in) - 1;
+        if (length > in.remaining()) {
+            throw new IOException("field runs past the end of its frame");
+        }
+        return (int) length;
+    }
+
+    private static void writeVarint(Buffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(Reader in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint is too long");
+    }
+
+    // Buffer
+    // a growable byte array, reused between frames
+    private static class Buffer {
+
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        void reset() {
+            size = 0;
+        }
+
+        void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * size);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        void write(byte[] b, int offset, int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length,
+                        size + length));
+            }
+            System.arraycopy(b, offset, bytes, size, length);
+            size += length;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    // Reader
+    // reads the bytes of one frame body, refusing to run past its end
+    private static class Reader {
+
+        private byte[] bytes;
+        private int position;
+        private int end;
+
+        Reader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        int remaining() {
+            return end - position;
+        }
+
+        int readByte() throws IOException {
+            if (position >= end) {
+                throw new IOException("frame ended early");
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        byte[] take(int length) {
+            byte[] out = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return out;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package tests;
+
+import model.FactorData;
+import model.FactorListener;
+import model.FactorMath;
+import model.FactorThreads;
+import model.FactorWire;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens many idle connections to a listener and reports how many threads
+ * and how much memory it took to hold them.  Run it once per setting to
+ * compare, e.g.
+ *
+ *   java -Dfactor.io=threads -Dfactor.threads=platform tests.connectionLoadTester 2000
+ *   java -Dfactor.io=threads tests.connectionLoadTester 2000
+ *   java -Dfactor.io=nio tests.connectionLoadTester 2000
+ *
+ * The second uses virtual threads on JDK 21 and later, and small-stack
+ * platform threads before that.
+ */
+public class connectionLoadTester {
+
+    public static void main(String[] args) throws Exception {
+
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        // every message is answered on the connection it came in on
+        FactorListener listener = FactorListener.open(0, 2, (data, from) ->
+                from.send(data));
+        listener.start();
+
+        String io = System.getProperty("factor.io", FactorThreads.isVirtual()
+                ? "threads" : "nio");
+        System.out.println("Listener: " + (io.equals("threads") ?
+                FactorThreads.describe() + " thread per connection" :
+                "NIO event loop"));
+
+        int threadsBefore = ManagementFactory.getThreadMXBean()
+                .getThreadCount();
+        long rssBefore = statusKB("VmRSS:");
+        long vmBefore = statusKB("VmSize:");
+
+        long start = System.nanoTime();
+
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            sockets.add(new Socket("localhost", listener.getPort()));
+        }
+
+        // one round trip per connection, so every reader is running
+        FactorData data = new FactorData(new BigInteger("1000003"));
+        data.setMessage("run");
+        for (Socket socket : sockets) {
+            OutputStream out = socket.getOutputStream();
+            out.write(new FactorWire.Encoder().encode(data));
+            out.flush();
+        }
+        for (Socket socket : sockets) {
+            InputStream in = socket.getInputStream();
+            new FactorWire.Decoder().read(in);
+        }
+
+        long end = System.nanoTime();
+
+        int threadsAfter = ManagementFactory.getThreadMXBean()
+                .getThreadCount();
+        long rssAfter = statusKB("VmRSS:");
+        long vmAfter = statusKB("VmSize:");
+        long[] time = FactorMath.getTime(end - start);
+
+        System.out.println(count + " connections, each answered once");
+        System.out.println("Time: " + time[0] + " seconds, " + time[1] +
+                           " millis");
+        System.out.println("Platform threads: " + threadsBefore + " -> " +
+                           threadsAfter);
+        if (rssBefore > 0) {
+            System.out.println("Resident memory: " + rssBefore / 1024 +
+                               " MB -> " + rssAfter / 1024 + " MB (" +
+                               (rssAfter - rssBefore) / count +
+                               " KB per connection)");
+            System.out.println("Reserved memory: " + vmBefore / 1024 +
+                               " MB -> " + vmAfter / 1024 + " MB (" +
+                               (vmAfter - vmBefore) / count +
+                               " KB per connection)");
+        }
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        listener.close();
+        System.exit(0);
+    }
+
+    // statusKB
+    // a memory figure for this process in KB, such as its resident set
+    // (VmRSS) or reserved address space (VmSize).  0 where /proc is missing
+    private static long statusKB(String field) {
+        try (BufferedReader in = new BufferedReader(new FileReader
+                ("/proc/self/status"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not on Linux
+        }
+        return 0;
+    }
+}
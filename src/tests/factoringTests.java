@@ -1,14 +1,58 @@
 package tests;
 
+import model.FactorBatchGCD;
+import model.FactorCFRAC;
 import model.FactorClient;
+import model.FactorConnection;
+import model.FactorCostModel;
 import model.FactorData;
+import model.FactorEventLoop;
+import model.FactorHttp;
+import model.FactorJob;
+import model.FactorJobTable;
+import model.FactorJournal;
+import model.FactorLeases;
+import model.FactorLedger;
 import model.FactorMath;
+import model.FactorMatrix;
+import model.FactorNumberField;
+import model.FactorPeer;
+import model.FactorPortfolio;
+import model.FactorSNFS;
+import model.FactorServer;
+import model.FactorSubServer;
 import model.FactorType;
+import model.FactorUnitSizer;
+import model.FactorWire;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertTrue;
 
@@ -156,6 +200,1476 @@ public class factoringTests {
         }
     }
 
+    @Test
+    public void testCFRACFactoring() {
+        BigInteger p = new BigInteger("1000000007");
+        BigInteger q = new BigInteger("998244353");
+        BigInteger n = p.multiply(q);
+
+        BigInteger factor = null;
+        for (int k : FactorCFRAC.multipliers(n)) {
+            factor = FactorCFRAC.findFactorCFRAC(n, k,
+                    FactorCFRAC.defaultSteps(n));
+            if (factor != null) {
+                break;
+            }
+        }
+
+        assertTrue(factor != null);
+        assertTrue(factor.equals(p) || factor.equals(q));
+
+        // once every multiplier has had a run, the ranks wrap around with
+        // twice the budget rather than repeating the runs that failed
+        int count = FactorCFRAC.multipliers(n).length;
+        long steps = FactorCFRAC.defaultSteps(n);
+        assertTrue(FactorCFRAC.stepsForRank(n, 0) == steps);
+        assertTrue(FactorCFRAC.stepsForRank(n, count - 1) == steps);
+        assertTrue(FactorCFRAC.stepsForRank(n, count) == 2 * steps);
+        assertTrue(FactorCFRAC.stepsForRank(n, 3 * count) == 8 * steps);
+        assertTrue(FactorCFRAC.stepsForRank(n, 100 * count) == Long
+                .MAX_VALUE);
+    }
+
+    @Test
+    public void testMatrixDependencies() {
+        // enough columns to go through block Lanczos rather than dense
+        Random random = new Random(7);
+        int rows = 3000;
+        FactorMatrix matrix = new FactorMatrix(rows);
+        for (int c = 0; c < rows + 100; c++) {
+            int[] entries = new int[10 + random.nextInt(20)];
+            for (int i = 0; i < entries.length; i++) {
+                double u = random.nextDouble();
+                entries[i] = (int) Math.min(rows - 1, u * u * u * rows);
+            }
+            matrix.addColumn(entries);
+        }
+
+        List<int[]> dependencies = matrix.findDependencies(2);
+        assertTrue(!dependencies.isEmpty());
+        for (int[] dependency : dependencies) {
+            assertTrue(matrix.isDependency(dependency));
+        }
+    }
+
+    @Test
+    public void testSearchCancel() throws Exception {
+        // a prime has no factor to cut the search short
+        BigInteger prime = BigInteger.ONE.shiftLeft(127).subtract(BigInteger
+                .ONE);
+        BigInteger[] result = new BigInteger[]{BigInteger.ONE};
+        Thread search = new Thread(() -> result[0] = FactorMath.findFactorTD2
+                (prime, BigInteger.valueOf(3), BigInteger.ONE.shiftLeft(60)));
+        search.start();
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        search.interrupt();
+        search.join(1000);
+        assertTrue(!search.isAlive() && result[0] == null);
+        assertTrue(System.nanoTime() - start < 500_000_000L);
+
+        // an uninterrupted search is unchanged
+        assertTrue(FactorMath.findFactorTD2(BigInteger.valueOf(1000003L *
+                1000033L), BigInteger.valueOf(3), BigInteger.valueOf(2000000))
+                .equals(BigInteger.valueOf(1000003)));
+    }
+
+    @Test
+    public void testConnectionRoundTrip() throws Exception {
+        ServerSocket listen = new ServerSocket(0);
+        BlockingQueue<FactorData> received = new LinkedBlockingQueue<>();
+
+        FactorConnection client = FactorConnection.open("localhost",
+                listen.getLocalPort());
+        FactorConnection server = new FactorConnection(listen.accept());
+        listen.close();
+
+        // the server echoes back on the connection the message came in on
+        server.start((data, from) -> {
+            data.setMessage("echo " + data.getMessage());
+            from.send(data);
+        });
+        client.start((data, from) -> received.add(data));
+
+        // the same object, changed between sends, must arrive changed
+        FactorData data = new FactorData(new BigInteger("1000003"));
+        for (int i = 0; i < 100; i++) {
+            data.setMessage("unit " + i);
+            assertTrue(client.send(data));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            FactorData reply = received.poll(10, TimeUnit.SECONDS);
+            assertTrue(reply != null);
+            assertTrue(reply.getMessage().equals("echo unit " + i));
+            assertTrue(reply.getNum().equals(new BigInteger("1000003")));
+        }
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testConnectionScope() throws Exception {
+        ServerSocket listen = new ServerSocket(0);
+        FactorConnection client = FactorConnection.open("localhost",
+                listen.getLocalPort());
+        Socket other = listen.accept();
+        listen.close();
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        client.start((data, from) -> {
+        });
+        client.fork("scoped", () -> {
+            started.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+
+        // closing the connection ends the work forked in its scope
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        client.close();
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertTrue(client.fork("late", () -> {
+        }) == null);
+        other.close();
+    }
+
+    @Test
+    public void testEventLoop() throws Exception {
+        // reply to every message with its unit number plus one
+        FactorEventLoop loop = new FactorEventLoop(0, 3, (data, from) -> {
+            data.setCFRACRank(data.getCFRACRank() + 1);
+            from.send(data);
+        });
+        loop.start();
+
+        int peers = 8;
+        int units = 500;
+        List<BlockingQueue<FactorData>> replies = new ArrayList<>();
+        List<FactorConnection> connections = new ArrayList<>();
+        for (int p = 0; p < peers; p++) {
+            BlockingQueue<FactorData> queue = new LinkedBlockingQueue<>();
+            FactorConnection c = FactorConnection.open("localhost",
+                    loop.getPort());
+            c.start((data, from) -> queue.add(data));
+            replies.add(queue);
+            connections.add(c);
+        }
+
+        FactorData data = new FactorData(new BigInteger("1000003"));
+        data.setMessage("failed");
+        for (int i = 0; i < units; i++) {
+            for (FactorConnection c : connections) {
+                data.setCFRACRank(i);
+                assertTrue(c.send(data));
+            }
+        }
+
+        // every peer gets its own replies back, in order
+        for (BlockingQueue<FactorData> queue : replies) {
+            for (int i = 0; i < units; i++) {
+                FactorData reply = queue.poll(10, TimeUnit.SECONDS);
+                assertTrue(reply != null);
+                assertTrue(reply.getCFRACRank() == i + 1);
+            }
+        }
+
+        for (FactorConnection c : connections) {
+            c.close();
+        }
+        loop.close();
+    }
+
+    @Test
+    public void testWireRoundTrip() throws Exception {
+        FactorWire.Encoder encoder = new FactorWire.Encoder();
+        FactorWire.Decoder decoder = new FactorWire.Decoder();
+
+        BigInteger n = new BigInteger("340282366920938463463374607431768211507");
+        FactorData data = new FactorData(n);
+        data.setType(FactorType.TD2);
+        data.setMessage("run");
+        data.setCFRACRank(-3);
+
+        byte[] first = encoder.encode(data);
+        FactorData copy = decoder.read(new ByteArrayInputStream(first));
+        assertTrue(copy.getMessage().equals("run"));
+        assertTrue(copy.getNum().equals(n));
+        assertTrue(copy.getType() == FactorType.TD2);
+        assertTrue(copy.getCFRACRank() == -3);
+        assertTrue(copy.getFactor() == null);
+
+        // the next unit only moves one bound, so only that is sent
+        data.setLowerBoundTD(new BigInteger("1000001"));
+        data.setMessage("failed");
+        byte[] next = encoder.encode(data);
+        copy = decoder.read(new ByteArrayInputStream(next));
+        assertTrue(copy.getMessage().equals("failed"));
+        assertTrue(copy.getTDBounds()[0].equals(new BigInteger("1000001")));
+        assertTrue(copy.getNum().equals(n));
+
+        data.setMessage("name:3host.example");
+        copy = decoder.read(new ByteArrayInputStream(encoder.encode(data)));
+        assertTrue(copy.getMessage().equals("name:3host.example"));
+
+        data.setMessage("cancel");
+        data.setJobId(7);
+        data.setEpoch(3);
+        copy = decoder.read(new ByteArrayInputStream(encoder.encode(data)));
+        assertTrue(copy.getMessage().equals("cancel"));
+        assertTrue(copy.getJobId() == 7 && copy.getEpoch() == 3);
+
+        data.setMessage("connect");
+        data.setWorkers(8);
+        data.setPrefetch(2);
+        data.setWorkMillis(3_000_000_000L);
+        data.setParentId(6);
+        copy = decoder.read(new ByteArrayInputStream(encoder.encode(data)));
+        assertTrue(copy.getWorkers() == 8 && copy.getCFRACRank() == -3);
+        assertTrue(copy.getParentId() == 6 && copy.getJobId() == 7);
+        assertTrue(copy.getPrefetch() == 2);
+        assertTrue(copy.getWorkMillis() == 3_000_000_000L);
+
+        data.setMessage("new client");
+        data.setCores(64);
+        data.setHeapMegabytes(16384);
+        data.setJvmVersion("21.0.2");
+        data.setScore(12_000_000);
+        copy = decoder.read(new ByteArrayInputStream(encoder.encode(data)));
+        assertTrue(copy.getCores() == 64 && copy.getHeapMegabytes() == 16384);
+        assertTrue(copy.getJvmVersion().equals("21.0.2"));
+        assertTrue(copy.getScore() == 12_000_000);
+
+        // a leaving client's message is one byte of kind, and no fields
+        data.setMessage("leave");
+        byte[] leave = encoder.encode(data);
+        copy = decoder.read(new ByteArrayInputStream(leave));
+        assertTrue(copy.getMessage().equals("leave") && leave.length == 4);
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        new ObjectOutputStream(serialized).writeObject(data);
+        assertTrue(next.length < 16);
+        assertTrue(10 * first.length < serialized.size());
+    }
+
+    @Test
+    public void testLeases() throws Exception {
+        FactorLeases leases = new FactorLeases(1000);
+        FactorPeer alive = peer("alive");
+        FactorPeer dead = peer("dead");
+        FactorPeer gone = peer("gone");
+
+        FactorData data = new FactorData(new BigInteger("1000003"));
+        data.setLowerBoundTD(BigInteger.valueOf(2));
+        long first = leases.grant(data, alive, 0);
+        data.setLowerBoundTD(BigInteger.valueOf(100));
+        long second = leases.grant(data, dead, 0);
+        data.setLowerBoundTD(BigInteger.valueOf(200));
+        long third = leases.grant(data, gone, 0);
+        assertTrue(data.getUnitId() == third && first != second);
+
+        // only the client that kept checking in keeps its unit
+        leases.renew(alive, 900);
+        assertTrue(leases.expire(1500) == 2);
+        assertTrue(leases.held(alive) == 1 && leases.held(dead) == 0);
+        assertTrue(leases.outstanding() == 1 && leases.requeued() == 2);
+
+        // a unit comes back as it was first sent
+        FactorData lost = leases.nextRequeued();
+        assertTrue(lost.getUnitId() == second);
+        assertTrue(lost.getTDBounds()[0].equals(BigInteger.valueOf(100)));
+
+        // a late answer cancels the requeued copy
+        assertTrue(leases.complete(third).getUnitId() == third);
+        assertTrue(leases.requeued() == 0);
+        assertTrue(leases.complete(third) == null);
+
+        // hanging up gives the unit back right away
+        assertTrue(leases.release(alive) == 1);
+        assertTrue(leases.nextRequeued().getUnitId() == first);
+
+        // splitting a job drops its units, leased or requeued
+        data.setJobId(4);
+        leases.grant(data, alive, 2000);
+        leases.grant(data, dead, 2000);
+        leases.release(dead);
+        data.setJobId(5);
+        leases.grant(data, alive, 2000);
+        assertTrue(leases.cancel(4) == 2);
+        assertTrue(leases.outstanding() == 1 && leases.requeued() == 0);
+
+        // heartbeats carry no fields and leave the delta state alone
+        FactorWire.Encoder encoder = new FactorWire.Encoder();
+        FactorWire.Decoder decoder = new FactorWire.Decoder();
+        lost.setMessage("run");
+        decoder.read(new ByteArrayInputStream(encoder.encode(lost)));
+        FactorData beat = new FactorData(null);
+        beat.setMessage("heartbeat");
+        byte[] frame = encoder.encode(beat);
+        assertTrue(frame.length == 4);
+        FactorData copy = decoder.read(new ByteArrayInputStream(frame));
+        assertTrue(copy.getMessage().equals("heartbeat"));
+        copy = decoder.read(new ByteArrayInputStream(encoder.encode(lost)));
+        assertTrue(copy.getUnitId() == second);
+        assertTrue(copy.getNum().equals(new BigInteger("1000003")));
+    }
+
+    @Test
+    public void testLedger() {
+        BigInteger ten = BigInteger.TEN;
+        FactorLedger ledger = new FactorLedger(BigInteger.ONE,
+                BigInteger.valueOf(100), false);
+
+        // units come from the bottom, one after another
+        BigInteger[] first = ledger.nextGap(ten);
+        ledger.lease(first[0], first[1]);
+        BigInteger[] second = ledger.nextGap(ten);
+        ledger.lease(second[0], second[1]);
+        assertTrue(first[0].intValue() == 1 && first[1].intValue() == 10);
+        assertTrue(second[0].intValue() == 11 && second[1].intValue() == 20);
+
+        // a lost unit is the next gap, and is not handed out twice
+        ledger.complete(first[0], first[1]);
+        ledger.release(second[0], second[1]);
+        BigInteger[] again = ledger.nextGap(ten);
+        assertTrue(again[0].intValue() == 11 && again[1].intValue() == 20);
+        ledger.lease(again[0], again[1]);
+        assertTrue(ledger.nextGap(ten)[0].intValue() == 21);
+        assertTrue(ledger.getProgress() == 10.0);
+        assertTrue(ledger.getLeased().intValue() == 10);
+
+        // touching done ranges merge, and a gap is never longer than
+        // the hole it fills
+        ledger.complete(BigInteger.valueOf(31), BigInteger.valueOf(100));
+        assertTrue(ledger.getFragments() == 2);
+        BigInteger[] hole = ledger.nextGap(ten.multiply(ten));
+        assertTrue(hole[0].intValue() == 21 && hole[1].intValue() == 30);
+        ledger.complete(BigInteger.ONE, BigInteger.valueOf(30));
+        assertTrue(ledger.getFragments() == 1 && ledger.isComplete());
+        assertTrue(ledger.nextGap(ten) == null);
+
+        // a descending search fills from the top
+        FactorLedger down = new FactorLedger(BigInteger.valueOf(2),
+                BigInteger.valueOf(50), true);
+        BigInteger[] top = down.nextGap(ten);
+        assertTrue(top[0].intValue() == 41 && top[1].intValue() == 50);
+        down.lease(top[0], top[1]);
+        down.complete(BigInteger.valueOf(2), BigInteger.valueOf(35));
+        BigInteger[] last = down.nextGap(ten);
+        assertTrue(last[0].intValue() == 36 && last[1].intValue() == 40);
+
+        // many units stay cheap however scattered they are
+        FactorLedger big = new FactorLedger(BigInteger.ONE, BigInteger
+                .valueOf(10_000_000), false);
+        for (int i = 0; i < 100_000; i++) {
+            BigInteger[] unit = big.nextGap(BigInteger.valueOf(100));
+            big.lease(unit[0], unit[1]);
+            if (i % 2 == 0) {
+                big.complete(unit[0], unit[1]);
+            }
+        }
+        assertTrue(big.getFragments() == 50_000);
+        assertTrue(big.getProgress() == 50.0);
+
+        // a cofactor's smaller search space keeps what was cleared in it
+        FactorLedger old = new FactorLedger(BigInteger.valueOf(2), BigInteger
+                .valueOf(1000), false);
+        old.complete(BigInteger.valueOf(2), BigInteger.valueOf(300));
+        old.complete(BigInteger.valueOf(500), BigInteger.valueOf(1000));
+        old.lease(BigInteger.valueOf(301), BigInteger.valueOf(400));
+        FactorLedger cofactor = new FactorLedger(BigInteger.valueOf(2),
+                BigInteger.valueOf(600), false);
+        cofactor.carry(old);
+        assertTrue(cofactor.getDone().intValue() == 299 + 101);
+        assertTrue(cofactor.getLeased().signum() == 0);
+        BigInteger[] gap = cofactor.nextGap(BigInteger.valueOf(1000));
+        assertTrue(gap[0].intValue() == 301 && gap[1].intValue() == 499);
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "factor-journal-test-" + System.nanoTime());
+        List<BigInteger> seen = new ArrayList<>();
+        FactorJournal.Recovery collect = new FactorJournal.Recovery() {
+            @Override
+            public void restore(byte[] snapshot) throws IOException {
+                seen.clear();
+                DataInputStream in = FactorJournal.reader(snapshot);
+                for (int i = in.readInt(); i > 0; i--) {
+                    seen.add(FactorJournal.readBig(in));
+                }
+            }
+
+            @Override
+            public void replay(byte[] record) throws IOException {
+                seen.add(FactorJournal.readBig(FactorJournal.reader(record)));
+            }
+        };
+
+        // a new journal has nothing to recover
+        FactorJournal journal = new FactorJournal(dir, "test");
+        assertTrue(!journal.recover(collect));
+        for (int i = 0; i < 100; i++) {
+            journal.append(record(BigInteger.valueOf(i)));
+        }
+        journal.close();
+
+        // everything appended comes back, in order
+        journal = new FactorJournal(dir, "test");
+        assertTrue(journal.recover(collect));
+        assertTrue(seen.size() == 100 && seen.get(99).intValue() == 99);
+
+        // a snapshot replaces the records before it
+        FactorJournal.Record state = new FactorJournal.Record();
+        state.writeInt(1);
+        FactorJournal.writeBig(state, BigInteger.valueOf(4950));
+        journal.compact(state.toByteArray());
+        journal.append(record(BigInteger.valueOf(100)));
+        journal.append(record(BigInteger.valueOf(101)));
+        journal.close();
+
+        // tear the last record, as a crash mid-write would
+        File file = new File(dir, "test.journal");
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        long end = 8;
+        while (raw.length() > end + 8) {
+            raw.seek(end);
+            int length = raw.readInt();
+            if (length == 0) {
+                break;
+            }
+            end += 8 + length;
+        }
+        raw.seek(end - 1);
+        int last = raw.read();
+        raw.seek(end - 1);
+        raw.write(last ^ 0xff);
+        raw.close();
+
+        seen.clear();
+        journal = new FactorJournal(dir, "test");
+        assertTrue(journal.recover(collect));
+        assertTrue(seen.size() == 2 && seen.get(0).intValue() == 4950);
+        assertTrue(seen.get(1).intValue() == 100);
+
+        // appends after a torn record carry on from the last good one
+        journal.append(record(BigInteger.valueOf(102)));
+        journal.close();
+        journal = new FactorJournal(dir, "test");
+        journal.recover(collect);
+        assertTrue(seen.size() == 3 && seen.get(2).intValue() == 102);
+
+        // the journal grows past its mapping, and asks to be compacted
+        BigInteger big = BigInteger.ONE.shiftLeft(8000);
+        while (!journal.needsCompaction()) {
+            journal.append(record(big));
+        }
+        journal.append(record(big));
+        journal.close();
+        journal = new FactorJournal(dir, "test");
+        journal.recover(collect);
+        assertTrue(seen.size() > FactorJournal.COMPACT_SIZE / 2000);
+        assertTrue(seen.get(seen.size() - 1).equals(big));
+
+        journal.delete();
+        assertTrue(!file.exists() && dir.delete());
+    }
+
+    @Test
+    public void testUnitSizer() {
+        FactorUnitSizer sizer = new FactorUnitSizer(1000, 100, 1_000_000);
+        FactorPeer fast = peer("fast");
+        FactorPeer slow = peer("slow");
+        long target = FactorUnitSizer.TARGET_MILLIS;
+
+        // no speed yet: the starting size
+        assertTrue(sizer.nextSize(fast).longValue() == 1000);
+        assertTrue(sizer.getRate(fast) == 0);
+
+        // fast does 1000 in 10ms, but may only grow 4 times a unit
+        sizer.record(fast, BigInteger.valueOf(1000), 10);
+        assertTrue(sizer.nextSize(fast).longValue() == 4000);
+        assertTrue(sizer.lastSize(fast).longValue() == 4000);
+
+        // and is held to the maximum once it has grown that far
+        for (int i = 0; i < 10; i++) {
+            BigInteger size = sizer.nextSize(fast);
+            sizer.record(fast, size, size.longValue() / 1000);
+        }
+        assertTrue(sizer.nextSize(fast).longValue() == 1_000_000);
+
+        // slow does 1000 in 30s, shrinks to its speed and not past min
+        sizer.nextSize(slow);
+        sizer.record(slow, BigInteger.valueOf(1000), 30_000);
+        assertTrue(sizer.nextSize(slow).longValue() == 100);
+        assertTrue(sizer.nextSize(slow).longValue() <
+                   sizer.nextSize(fast).longValue());
+
+        // a steady speed is converged on
+        FactorUnitSizer steady = new FactorUnitSizer(1000, 1, 1_000_000);
+        for (int i = 0; i < 20; i++) {
+            BigInteger size = steady.nextSize(slow);
+            steady.record(slow, size, size.longValue() * target / 5000);
+        }
+        long size = steady.nextSize(slow).longValue();
+        assertTrue(size > 4900 && size < 5100);
+
+        // one odd unit only moves the average part way
+        steady.record(slow, BigInteger.valueOf(size), target * 2);
+        long after = steady.nextSize(slow).longValue();
+        assertTrue(after < size && after > size / 2);
+
+        steady.forget(slow);
+        assertTrue(steady.getRate(slow) == 0);
+        assertTrue(steady.nextSize(slow).longValue() == 1000);
+
+        // before either has a speed, benchmark scores size their first
+        // units: three times the score, three times the unit
+        FactorUnitSizer scored = new FactorUnitSizer(1000, 1, 1_000_000);
+        scored.setScore(fast, 3_000_000);
+        scored.setScore(slow, 1_000_000);
+        assertTrue(scored.nextSize(fast).longValue() == 1500);
+        assertTrue(scored.nextSize(slow).longValue() == 500);
+        scored.record(slow, BigInteger.valueOf(500), 100);
+        assertTrue(scored.nextSize(slow).longValue() == 2000);
+        scored.forget(fast);
+        assertTrue(scored.nextSize(peer("other")).longValue() == 1000);
+    }
+
+    @Test
+    public void testSubServerStaleResults() throws Exception {
+        String journalDir = tempJournal();
+        try {
+            List<FactorData> toServer = new ArrayList<>();
+            List<FactorData> toA = new ArrayList<>();
+            List<FactorData> toC = new ArrayList<>();
+            FactorPeer server = recorder("server", toServer);
+            FactorPeer a = recorder("a", toA);
+            FactorPeer c = recorder("c", toC);
+            FactorSubServer sub = new FactorSubServer(FactorType.TD2Server,
+                    server, 0);
+
+            // 1000033 * 134230081 * 268436507, on one client
+            BigInteger n = new BigInteger("36033443142351639913211");
+            sub.handle(message(n, "start", 1, 1), server);
+            sub.handle(message(null, "connect", 0, 0), a);
+            assertTrue(toA.size() == 1 && toA.get(0).getEpoch() == 1);
+            long oldUnit = toA.get(0).getUnitId();
+
+            // the job is split, and its cofactor handed out in its place
+            sub.handle(message(null, "cancel", 1, 1), server);
+            FactorData piece = message(n.divide(BigInteger.valueOf
+                    (1000033)), "new value", 2, 2);
+            piece.setParentId(1);
+            sub.handle(piece, server);
+            FactorLedger ledger = sub.getLedger(2);
+            assertTrue(sub.getLedger(1) == null && ledger != null);
+            assertTrue(sub.getLeased(a) == 1 && sub.getOutstanding() == 1);
+            BigInteger done = ledger.getDone();
+            BigInteger leased = ledger.getLeased();
+            int sentA = toA.size();
+
+            // a "failed" from before the split changes nothing
+            FactorData stale = message(null, "failed", 1, 1);
+            stale.setUnitId(oldUnit);
+            sub.handle(stale, a);
+            assertTrue(ledger.getDone().equals(done));
+            assertTrue(ledger.getLeased().equals(leased));
+            assertTrue(sub.getLeased(a) == 1 && sub.getOutstanding() == 1);
+            assertTrue(toA.size() == sentA);
+
+            // a client joining with one is given current work
+            sub.handle(stale, c);
+            assertTrue(toC.size() == 1);
+            assertTrue(toC.get(0).getMessage().equals("run"));
+            assertTrue(toC.get(0).getJobId() == 2 && toC.get(0).getEpoch()
+                                                     == 2);
+            assertTrue(ledger.getDone().equals(done));
+            assertTrue(sub.getLeased(a) == 1 && sub.getLeased(c) == 1);
+            assertTrue(sub.getOutstanding() == 2);
+
+            // a factor from before the split still goes to the server
+            FactorData found = message(n, "factor found", 1, 1);
+            found.setUnitId(oldUnit);
+            found.addFactor(BigInteger.valueOf(1000033));
+            sub.handle(found, a);
+            assertTrue(toServer.size() == 1 && toServer.get(0) == found);
+            assertTrue(sub.getLeased(a) == 1 && sub.getOutstanding() == 2);
+            assertTrue(ledger.getDone().equals(done));
+        } finally {
+            restoreJournal(journalDir);
+        }
+    }
+
+    @Test
+    public void testSubServerLeave() throws Exception {
+        String journalDir = tempJournal();
+        try {
+            List<FactorData> toA = new ArrayList<>();
+            List<FactorData> toB = new ArrayList<>();
+            FactorPeer server = peer("server");
+            FactorPeer a = recorder("a", toA);
+            FactorPeer b = recorder("b", toB);
+            FactorSubServer sub = new FactorSubServer(FactorType.TD2Server,
+                    server, 0);
+
+            // trial division up to 1500001, the first unit 1000000 long
+            BigInteger root = BigInteger.valueOf(1500001);
+            sub.handle(message(root.multiply(root), "start", 1, 1), server);
+            sub.handle(message(null, "connect", 0, 0), a);
+            FactorData two = message(null, "connect", 0, 0);
+            two.setWorkers(2);
+            sub.handle(two, b);
+            BigInteger[] first = toA.get(0).getTDBounds();
+            assertTrue(first[0].intValue() == 2 && first[1].intValue() ==
+                                                   1000001);
+            assertTrue(toB.size() == 1 && sub.getLeased(b) == 1);
+            assertTrue(toB.get(0).getTDBounds()[1].equals(root));
+
+            // a client leaving hands its range straight to one with room,
+            // without waiting out its lease
+            sub.handle(message(null, "leave", 0, 0), a);
+            assertTrue(sub.getLeased(a) == 0 && sub.getLeased(b) == 2);
+            assertTrue(toB.size() == 2);
+            assertTrue(toB.get(1).getMessage().equals("run"));
+            assertTrue(Arrays.equals(toB.get(1).getTDBounds(), first));
+            assertTrue(sub.getLedger(1).getLeased().equals(root.subtract
+                    (BigInteger.ONE)));
+        } finally {
+            restoreJournal(journalDir);
+        }
+    }
+
+    @Test
+    public void testSubServerPrefetch() throws Exception {
+        String journalDir = tempJournal();
+        try {
+            List<FactorData> toA = new ArrayList<>();
+            FactorPeer server = peer("server");
+            FactorPeer a = recorder("a", toA);
+            FactorSubServer sub = new FactorSubServer(FactorType.TD2Server,
+                    server, 0);
+            sub.handle(message(new BigInteger("36033443142351639913211"),
+                    "start", 1, 1), server);
+
+            // one worker and two queued behind it is three units at once
+            FactorData join = message(null, "connect", 0, 0);
+            join.setPrefetch(2);
+            sub.handle(join, a);
+            assertTrue(toA.size() == 3 && units(toA, 1) == 3);
+            assertTrue(sub.getLeased(a) == 3 && sub.getOutstanding() == 3);
+
+            // each finished unit is replaced by one more, no more
+            for (int i = 0; i < 3; i++) {
+                FactorData failed = message(null, "failed", 1, 1);
+                failed.setUnitId(toA.get(i).getUnitId());
+                sub.handle(failed, a);
+                assertTrue(toA.size() == 4 + i);
+                assertTrue(sub.getLeased(a) == 3);
+            }
+        } finally {
+            restoreJournal(journalDir);
+        }
+    }
+
+    @Test
+    public void testSubServerFairShare() throws Exception {
+        String journalDir = tempJournal();
+        try {
+            List<FactorData> toA = new ArrayList<>();
+            List<FactorData> toB = new ArrayList<>();
+            FactorPeer server = peer("server");
+            FactorPeer a = recorder("a", toA);
+            FactorPeer b = recorder("b", toB);
+            FactorSubServer sub = new FactorSubServer(FactorType.TD2Server,
+                    server, 0);
+
+            // an old job, 21 units in: 1000033 * (2^101 - 1)
+            BigInteger n = new BigInteger
+                    ("2535384865396073866133905193162554783");
+            sub.handle(message(n, "start", 1, 1), server);
+            sub.handle(message(null, "connect", 0, 0), a);
+            for (int i = 0; i < 20; i++) {
+                FactorData failed = message(null, "failed", 1, 1);
+                failed.setUnitId(toA.get(toA.size() - 1).getUnitId());
+                sub.handle(failed, a);
+            }
+            assertTrue(toA.size() == 21);
+
+            // a new one the same size at twice the priority gets two slots
+            // for every one of the old job's, not all of them
+            FactorData second = message(n.add(BigInteger.valueOf(2)),
+                    "new value", 2, 1);
+            second.setPriority(2);
+            sub.handle(second, server);
+            FactorData six = message(null, "connect", 0, 0);
+            six.setWorkers(6);
+            sub.handle(six, b);
+            assertTrue(toB.size() == 6);
+            assertTrue(units(toB, 1) == 2 && units(toB, 2) == 4);
+
+            // the old job splits.  Its piece carries on from the old job's
+            // count and shares the next client with the other job
+            sub.handle(message(null, "cancel", 1, 1), server);
+            FactorData piece = message(n.divide(BigInteger.valueOf
+                    (1000033)), "new value", 3, 2);
+            piece.setParentId(1);
+            sub.handle(piece, server);
+            List<FactorData> toC = new ArrayList<>();
+            FactorPeer c = recorder("c", toC);
+            FactorData four = message(null, "connect", 0, 0);
+            four.setWorkers(4);
+            sub.handle(four, c);
+            assertTrue(toC.size() == 4);
+            assertTrue(units(toC, 2) == 2 && units(toC, 3) == 2);
+        } finally {
+            restoreJournal(journalDir);
+        }
+    }
+
+    @Test
+    public void testServerMinWorkers() throws Exception {
+        File journalDir = new File(System.getProperty("java.io.tmpdir"),
+                "factor-server-test-" + System.nanoTime());
+        int port = freePort();
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        Process process = startServer(port, journalDir, output,
+                "-Dfactor.minworkers=2");
+
+        List<FactorConnection> connections = new ArrayList<>();
+        try {
+            // one worker is not enough to start on its own
+            connections.add(joinServer(port, process));
+            assertTrue(!awaitLine(output, "new client at").contains
+                    ("begin factoring"));
+
+            // the second is
+            connections.add(joinServer(port, process));
+            assertTrue(awaitLine(output, "new client at").contains("2 " +
+                    "workers connected, begin factoring!"));
+        } finally {
+            for (FactorConnection connection : connections) {
+                connection.close();
+            }
+            process.destroy();
+            process.waitFor(10, TimeUnit.SECONDS);
+            delete(journalDir);
+        }
+    }
+
+    @Test
+    public void testServerSubServerLost() throws Exception {
+        File journalDir = new File(System.getProperty("java.io.tmpdir"),
+                "factor-server-test-" + System.nanoTime());
+        int port = freePort();
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        Process process = startServer(port, journalDir, output,
+                "-Dfactor.minworkers=1");
+
+        List<FactorConnection> connections = new ArrayList<>();
+        try {
+            // the first client to join hosts trial division from 2, and
+            // its sub-server is sent the job once it reports in
+            BlockingQueue<FactorData> first = new LinkedBlockingQueue<>();
+            connections.add(connectServer(port, process, hello(), first));
+            assertTrue(nextMessage(first).getType() == FactorType.TD2Server);
+            BlockingQueue<FactorData> sub = new LinkedBlockingQueue<>();
+            FactorConnection subserver = connectServer(port, process,
+                    reportIn(FactorType.TD2Server), sub);
+            connections.add(subserver);
+            assertTrue(nextMessage(sub).getMessage().equals("start"));
+
+            // the second hosts trial division from sqrt(n), but leaves
+            // before its sub-server reports in
+            BlockingQueue<FactorData> second = new LinkedBlockingQueue<>();
+            FactorConnection leaving = connectServer(port, process, hello(),
+                    second);
+            assertTrue(nextMessage(second).getType() == FactorType
+                    .TDRNServer);
+            leaving.close();
+            assertTrue(awaitLine(output, "TDRN sub-server lost") != null);
+
+            // the trial division sub-server goes too
+            subserver.close();
+            assertTrue(awaitLine(output, "TD2 sub-server lost") != null);
+
+            // both roles go to the next clients to join, not to a host
+            // that is gone, and the new sub-server is sent the job
+            BlockingQueue<FactorData> third = new LinkedBlockingQueue<>();
+            connections.add(connectServer(port, process, hello(), third));
+            assertTrue(nextMessage(third).getType() == FactorType.TD2Server);
+            BlockingQueue<FactorData> fourth = new LinkedBlockingQueue<>();
+            connections.add(connectServer(port, process, hello(), fourth));
+            assertTrue(nextMessage(fourth).getType() == FactorType
+                    .TDRNServer);
+            BlockingQueue<FactorData> again = new LinkedBlockingQueue<>();
+            connections.add(connectServer(port, process, reportIn(FactorType
+                    .TD2Server), again));
+            assertTrue(nextMessage(again).getMessage().equals("start"));
+        } finally {
+            for (FactorConnection connection : connections) {
+                connection.close();
+            }
+            process.destroy();
+            process.waitFor(10, TimeUnit.SECONDS);
+            delete(journalDir);
+        }
+    }
+
+    // hello
+    // what a one-worker client sends the server as it joins
+    private static FactorData hello() {
+        FactorData hello = new FactorData(null);
+        hello.setMessage("new client");
+        hello.setWorkers(1);
+        return hello;
+    }
+
+    // reportIn
+    // what a sub-server sends the server once it is listening
+    private static FactorData reportIn(FactorType type) {
+        FactorData data = new FactorData(null);
+        data.setMessage("name:" + FactorType.asInt(type) + "127.0.0.1");
+        data.setType(type);
+        return data;
+    }
+
+    // record
+    // a journal record holding one number
+    private static byte[] record(BigInteger value) throws IOException {
+        FactorJournal.Record out = new FactorJournal.Record();
+        FactorJournal.writeBig(out, value);
+        return out.toByteArray();
+    }
+
+    // peer
+    // a connection that goes nowhere, for tests that only need a name
+    private static FactorPeer peer(String name) {
+        return new FactorPeer() {
+            @Override
+            public boolean send(FactorData data) {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+
+            @Override
+            public String getHostAddress() {
+                return name;
+            }
+        };
+    }
+
+    // tempJournal
+    // points the journals at a new temporary directory, returning where
+    // they pointed before
+    private static String tempJournal() {
+        String journalDir = System.getProperty("factor.journal");
+        System.setProperty("factor.journal", new File(System.getProperty
+                ("java.io.tmpdir"), "factor-subserver-test-" + System
+                .nanoTime()).getPath());
+        return journalDir;
+    }
+
+    // restoreJournal
+    // deletes the temporary journals and points the journals back where
+    // tempJournal found them
+    private static void restoreJournal(String journalDir) {
+        delete(new File(System.getProperty("factor.journal")));
+        if (journalDir == null) {
+            System.clearProperty("factor.journal");
+        } else {
+            System.setProperty("factor.journal", journalDir);
+        }
+    }
+
+    // freePort
+    // a port nothing on this machine is listening on
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // startServer
+    // runs a FactorServer for n = 1000003 * 1000033 in a JVM of its own,
+    // on the given port and journal directory, with its output going to
+    // output line by line
+    private static Process startServer(int port, File journalDir,
+                                       BlockingQueue<String> output,
+                                       String... properties) throws
+            IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(new File(System
+                .getProperty("java.home"), "bin/java").getPath(), "-cp",
+                System.getProperty("java.class.path"), "-Dfactor.port=" +
+                                                       port,
+                "-Dfactor.http=0", "-Dfactor.rebalance=0",
+                "-Dfactor.journal=" + journalDir.getPath()));
+        command.addAll(Arrays.asList(properties));
+        command.addAll(Arrays.asList("model.FactorServer", "-n",
+                "1000036000099"));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new
+                    InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    output.add(line);
+                }
+            } catch (IOException e) {
+                // the server has gone
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return process;
+    }
+
+    // delete
+    // removes a file, or a directory and everything in it
+    private static void delete(File file) {
+        File[] inside = file.listFiles();
+        if (inside != null) {
+            for (File child : inside) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    // joinServer
+    // connects to the FactorServer process listening on port as a
+    // one-worker client, once it is up, and waits for its reply
+    private static FactorConnection joinServer(int port, Process process)
+            throws Exception {
+        BlockingQueue<FactorData> replies = new LinkedBlockingQueue<>();
+        FactorConnection connection = connectServer(port, process, hello(),
+                replies);
+        assertTrue(replies.poll(10, TimeUnit.SECONDS) != null);
+        return connection;
+    }
+
+    // connectServer
+    // connects to the FactorServer process listening on port once it is
+    // up, and sends hello.  Everything the server sends back goes to
+    // received
+    private static FactorConnection connectServer(int port, Process
+            process, FactorData hello, BlockingQueue<FactorData> received)
+            throws Exception {
+        FactorConnection connection = null;
+        for (int tries = 0; connection == null; tries++) {
+            try {
+                connection = FactorConnection.open("localhost", port);
+            } catch (IOException e) {
+                assertTrue(tries < 100 && process.isAlive());
+                Thread.sleep(100);
+            }
+        }
+        connection.start((data, from) -> received.add(data));
+        assertTrue(connection.send(hello));
+        return connection;
+    }
+
+    // nextMessage
+    // the next message received that is not the server passing on where
+    // a sub-server is
+    private static FactorData nextMessage(BlockingQueue<FactorData>
+                                                  received) throws
+            InterruptedException {
+        FactorData data;
+        do {
+            data = received.poll(10, TimeUnit.SECONDS);
+            assertTrue(data != null);
+        } while (data.getMessage().startsWith("name:"));
+        return data;
+    }
+
+    // awaitLine
+    // reads a process's output up to the first line holding marker, and
+    // returns everything read
+    private static String awaitLine(BlockingQueue<String> output, String
+            marker) throws InterruptedException {
+        StringBuilder read = new StringBuilder();
+        String line;
+        while ((line = output.poll(10, TimeUnit.SECONDS)) != null) {
+            read.append(line).append('\n');
+            if (line.contains(marker)) {
+                return read.toString();
+            }
+        }
+        assertTrue(false);
+        return null;
+    }
+
+    // recorder
+    // a connection that keeps everything sent down it in sent
+    private static FactorPeer recorder(String name, List<FactorData> sent) {
+        return new FactorPeer() {
+            @Override
+            public boolean send(FactorData data) {
+                synchronized (sent) {
+                    sent.add(data);
+                }
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+
+            @Override
+            public String getHostAddress() {
+                return name;
+            }
+        };
+    }
+
+    // units
+    // how many of the messages sent are units of a job
+    private static int units(List<FactorData> sent, long jobId) {
+        int count = 0;
+        for (FactorData data : sent) {
+            if (data.getMessage().equals("run") && data.getJobId() == jobId) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // message
+    // a message for a sub-server about a job, as a client or the server
+    // would send it
+    private static FactorData message(BigInteger num, String message, long
+            jobId, long epoch) {
+        FactorData data = new FactorData(num);
+        data.setMessage(message);
+        data.setJobId(jobId);
+        data.setEpoch(epoch);
+        data.setType(FactorType.TD2Server);
+        data.setWorkers(1);
+        return data;
+    }
+
+    @Test
+    public void testJobTree() {
+        // 1000033 * 134230081 * 268436507
+        BigInteger n = new BigInteger("36033443142351639913211");
+        FactorJob root = new FactorJob(1, 1, n, null);
+        root.setPriority(3);
+        assertTrue(!root.isPrime() && root.isLeaf());
+        assertTrue(root.divides(BigInteger.valueOf(1000033)));
+        assertTrue(!root.divides(n) && !root.divides(BigInteger.ONE));
+        assertTrue(!root.divides(BigInteger.valueOf(1000037)));
+
+        List<FactorJob> pieces = root.split(BigInteger.valueOf(1000033), 2, 2);
+        assertTrue(pieces.get(0).isPrime() && pieces.get(0).getId() == 2);
+        FactorJob cofactor = pieces.get(1);
+        assertTrue(!cofactor.isPrime() && cofactor.getId() == 3);
+        assertTrue(cofactor.getParent() == root && cofactor.getEpoch() == 2);
+        assertTrue(cofactor.getPriority() == 3 && !root.isComplete());
+
+        // a factor of n found late may still split the cofactor
+        assertTrue(cofactor.divides(new BigInteger("268436507")));
+        cofactor.split(new BigInteger("268436507"), 4, 3);
+        String tree = root.describe();
+        assertTrue(tree.startsWith(n + "\n  1000033 (prime)\n"));
+        assertTrue(tree.contains("\n    268436507 (prime)\n"));
+        assertTrue(!tree.contains("(composite)"));
+        assertTrue(root.isComplete() && root.leaves().size() == 3);
+        assertTrue(root.factors().get(2).equals(new BigInteger("268436507")));
+        assertTrue(cofactor.getChildren().get(0).getRoot() == root);
+    }
+
+    @Test
+    public void testJobTable() throws Exception {
+        FactorJobTable table = new FactorJobTable(2);
+        assertTrue(table.add(1, BigInteger.valueOf(15), 1));
+        assertTrue(table.add(2, BigInteger.valueOf(21), 5));
+
+        // full of unfinished jobs, so a third is refused
+        assertTrue(!table.hasRoom() && !table.add(3, BigInteger.TEN, 1));
+
+        table.started(1);
+        table.found(1, BigInteger.valueOf(3));
+        FactorJobTable.Entry entry = table.get(1);
+        assertTrue(entry.getState() == FactorJobTable.State.RUNNING);
+        assertTrue(entry.getFactors().size() == 1 && entry.getStarted() > 0);
+
+        // a reader waiting for the next prime wakes when it comes
+        Thread finder = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            table.found(1, BigInteger.valueOf(5));
+            table.finished(1, false);
+        });
+        finder.start();
+        entry = table.await(1, 1, 10000);
+        assertTrue(entry.getFactors().get(1).equals(BigInteger.valueOf(5)));
+        finder.join();
+        assertTrue(table.get(1).getState() == FactorJobTable.State.DONE);
+        assertTrue(table.await(1, 2, 10000).getState().isFinished());
+
+        // the finished job makes room for the next
+        assertTrue(table.add(3, BigInteger.TEN, 1));
+        assertTrue(table.get(1) == null && table.size() == 2);
+        table.finished(3, true);
+        assertTrue(table.get(3).getState() == FactorJobTable.State.CANCELLED);
+        assertTrue(table.list().get(0).getId() == 2);
+    }
+
+    @Test
+    public void testHttpJobs() throws Exception {
+        FactorJobTable table = new FactorJobTable(100);
+        long[] nextId = {1};
+        FactorHttp http = FactorHttp.open(InetAddress.getLoopbackAddress(),
+                0, table, new FactorHttp.Backend() {
+            @Override
+            public long submit(BigInteger num, int priority) {
+                table.add(nextId[0], num, priority);
+                return nextId[0]++;
+            }
+
+            @Override
+            public boolean cancel(long id) {
+                table.finished(id, true);
+                return true;
+            }
+
+            @Override
+            public void start() {
+            }
+        });
+        http.start();
+        String base = "http://127.0.0.1:" + http.getPort();
+
+        String reply = httpCall(base + "/jobs", "POST", "15 2\n21\n");
+        assertTrue(reply.startsWith("201 ") && reply.contains("[1, 2]"));
+        assertTrue(httpCall(base + "/jobs?n=35&priority=3", "POST", "")
+                .contains("[3]"));
+        assertTrue(httpCall(base + "/jobs", "POST", "abc").startsWith("400"));
+        assertTrue(httpCall(base + "/jobs", "POST", "n=%zz").startsWith
+                ("400"));
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() <= FactorHttp.MAX_BODY) {
+            huge.append("1000000007\n");
+        }
+        assertTrue(httpCall(base + "/jobs", "POST", huge.toString())
+                .startsWith("413"));
+        assertTrue(httpCall(base + "/jobs/9", "GET", null).startsWith("404"));
+
+        reply = httpCall(base + "/jobs/3", "GET", null);
+        assertTrue(reply.contains("\"n\": \"35\"") && reply.contains
+                ("\"priority\": 3") && reply.contains("\"waiting\""));
+
+        // the stream sends each prime as it is found, then the last state
+        table.started(1);
+        Thread finder = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            table.found(1, BigInteger.valueOf(3));
+            table.found(1, BigInteger.valueOf(5));
+            table.finished(1, false);
+        });
+        finder.start();
+        reply = httpCall(base + "/jobs/1/factors", "GET", null);
+        finder.join();
+        assertTrue(reply.equals("200 3\n5\nDONE\n"));
+
+        assertTrue(httpCall(base + "/jobs/2", "DELETE", null).contains
+                ("\"cancelled\""));
+        assertTrue(httpCall(base + "/jobs", "GET", null).contains("\"id\": 3"));
+        http.stop();
+    }
+
+    // httpCall
+    // makes one request, returning the status and the body
+    private static String httpCall(String url, String method, String body)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url)
+                .openConnection();
+        connection.setRequestMethod(method);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.getOutputStream().write(body.getBytes(StandardCharsets
+                    .UTF_8));
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() :
+                connection.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int r = in.read(buffer); r >= 0; r = in.read(buffer)) {
+            out.write(buffer, 0, r);
+        }
+        in.close();
+        return status + " " + new String(out.toByteArray(), StandardCharsets
+                .UTF_8);
+    }
+
+    @Test
+    public void testPortfolio() {
+        // a small number is trial division's, once Fermat's short window
+        // is spent
+        FactorPortfolio small = new FactorPortfolio(30);
+        small.spend(FactorType.FERMATServer, small.expectedCost(FactorType
+                .FERMAT));
+        Map<FactorType, Double> shares = small.shares();
+        assertTrue(shares.get(FactorType.FERMAT) == 0);
+        assertTrue(shares.get(FactorType.TD2) + shares.get(FactorType.TDRN)
+                   > 0.5);
+
+        // on a large one it has no hope.  Pollard's p-1 goes first, and
+        // CFRAC takes over once the cheap windows are spent
+        FactorPortfolio large = new FactorPortfolio(100);
+        shares = large.shares();
+        assertTrue(shares.get(FactorType.TD2) < 0.001);
+        assertTrue(shares.get(FactorType.POLLARDS) > 0.5);
+        for (FactorType type : new FactorType[]{FactorType.FERMAT,
+                FactorType.POLLARDS}) {
+            large.spend(type, large.expectedCost(type));
+        }
+        assertTrue(large.shares().get(FactorType.CFRAC) > 0.99);
+
+        // everyone on trial division, so the next client goes to CFRAC,
+        // and moving one there is worth it
+        Map<FactorType, Double> threads = new HashMap<>();
+        threads.put(FactorType.TD2, 8.0);
+        List<FactorType> up = new ArrayList<>();
+        up.add(FactorType.TD2);
+        up.add(FactorType.CFRAC);
+        assertTrue(large.pick(threads, up) == FactorType.CFRAC);
+        assertTrue(large.improves(threads, FactorType.TD2, FactorType.CFRAC,
+                2));
+        assertTrue(!large.improves(threads, FactorType.CFRAC, FactorType
+                .TD2, 2));
+        threads.put(FactorType.TD2, 0.0);
+        threads.put(FactorType.CFRAC, 8.0);
+        assertTrue(!large.improves(threads, FactorType.CFRAC, FactorType
+                .CFRAC, 2));
+        assertTrue(!large.improves(threads, FactorType.CFRAC, FactorType
+                .TD2, 2));
+    }
+
+    @Test
+    public void testCostModel() throws IOException {
+        // a step that costs 1e-9 bits^1.5 seconds is fitted exactly, and
+        // one that seems to get cheaper is flattened
+        FactorCostModel model = new FactorCostModel();
+        assertTrue(!model.isCalibrated());
+        for (int bits : new int[]{48, 64, 128}) {
+            model.record(FactorType.TD2, bits, 1e-9 * Math.pow(bits, 1.5));
+            model.record(FactorType.CFRAC, bits, 1e-6 / bits);
+        }
+        double expected = 1e-9 * Math.pow(256, 1.5);
+        assertTrue(Math.abs(model.secondsPerStep(FactorType.TD2Server, 256)
+                            - expected) < expected * 1e-9);
+        assertTrue(model.secondsPerStep(FactorType.CFRAC, 256) == model
+                .secondsPerStep(FactorType.CFRAC, 48));
+
+        // saved and read back
+        File file = File.createTempFile("costs", ".properties");
+        file.deleteOnExit();
+        model.save(file);
+        String old = System.setProperty("factor.costs", file.getPath());
+        FactorCostModel loaded;
+        try {
+            loaded = FactorCostModel.load();
+        } finally {
+            if (old == null) {
+                System.clearProperty("factor.costs");
+            } else {
+                System.setProperty("factor.costs", old);
+            }
+        }
+        for (FactorType type : FactorPortfolio.ALGORITHMS) {
+            assertTrue(Math.abs(loaded.secondsPerStep(type, 100) - model
+                    .secondsPerStep(type, 100)) < 1e-9 * model
+                    .secondsPerStep(type, 100));
+        }
+
+        // the portfolio's costs follow the model: a CFRAC step a thousand
+        // times cheaper makes its window a thousand times cheaper
+        FactorCostModel fast = new FactorCostModel();
+        fast.record(FactorType.CFRAC, 64, 1e-9);
+        FactorPortfolio guessed = new FactorPortfolio(80);
+        FactorPortfolio measured = new FactorPortfolio(80, fast);
+        assertTrue(Math.abs(guessed.expectedCost(FactorType.CFRAC) / measured
+                .expectedCost(FactorType.CFRAC) - 1000) < 1e-6);
+        assertTrue(measured.shares().get(FactorType.CFRAC) > guessed.shares()
+                .get(FactorType.CFRAC));
+        assertTrue(measured.expectedTime() == measured.expectedCost(FactorType
+                .CFRAC));
+        assertTrue(measured.forecast().contains("CFRAC"));
+
+        // the clients' startup benchmark
+        assertTrue(FactorCostModel.benchmark(50) > 0);
+        assertTrue(model.getScore() == 0 && loaded.getScore() == 0);
+    }
+
+    @Test
+    public void testBatchGCD() {
+        Random random = new Random(11);
+        BigInteger[] primes = new BigInteger[8];
+        for (int i = 0; i < primes.length; i++) {
+            primes[i] = BigInteger.probablePrime(64, random);
+        }
+
+        List<BigInteger> moduli = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            moduli.add(BigInteger.probablePrime(64, random)
+                    .multiply(BigInteger.probablePrime(64, random)));
+        }
+        moduli.add(primes[0].multiply(primes[1])); // 200: shares p0
+        moduli.add(primes[0].multiply(primes[2])); // 201: shares p0, p2
+        moduli.add(primes[2].multiply(primes[3])); // 202: shares p2
+
+        BigInteger[] shared = new FactorBatchGCD(moduli).sharedFactors(2);
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(shared[i].equals(BigInteger.ONE));
+        }
+        assertTrue(shared[200].equals(primes[0]));
+        assertTrue(shared[201].equals(primes[0]) ||
+                   shared[201].equals(primes[2]));
+        assertTrue(shared[202].equals(primes[2]));
+    }
+
+    @Test
+    public void testBatchSmoothness() {
+        BigInteger smooth = new BigInteger("2").pow(10)
+                .multiply(new BigInteger("3").pow(7))
+                .multiply(new BigInteger("97"));
+        BigInteger rough = new BigInteger("1000003");
+        BigInteger mixed = smooth.multiply(rough);
+
+        BigInteger[] values = new BigInteger[3000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 3 == 0 ? smooth : i % 3 == 1 ? rough : mixed;
+        }
+
+        BigInteger[] parts = FactorMath.smoothPartsTD(values, 100, 2);
+        for (int i = 0; i < values.length; i++) {
+            BigInteger expected = i % 3 == 1 ? BigInteger.ONE : smooth;
+            assertTrue(parts[i].equals(expected));
+        }
+    }
+
+    @Test
+    public void testSNFSAlgebraicFactors() {
+        // 2^60 - 1 splits along the cyclotomic values of every divisor of 60
+        BigInteger n = BigInteger.valueOf(2).pow(60).subtract(BigInteger.ONE);
+        FactorSNFS snfs = FactorSNFS.recognize(n);
+        assertTrue(snfs != null);
+
+        List<BigInteger> pieces = snfs.algebraicFactors();
+        assertTrue(pieces.size() > 1);
+
+        BigInteger product = BigInteger.ONE;
+        for (BigInteger piece : pieces) {
+            product = product.multiply(piece);
+        }
+        assertTrue(product.equals(n));
+
+        BigInteger factor = snfs.findFactorSNFS();
+        assertTrue(n.mod(factor).equals(BigInteger.ZERO));
+    }
+
+    @Test
+    public void testSNFSPolynomial() {
+        // f(m) must vanish modulo n for the sieve to make sense
+        FactorSNFS snfs = new FactorSNFS(BigInteger.valueOf(7), 131,
+                BigInteger.valueOf(-3));
+        BigInteger[] poly = snfs.selectPolynomial();
+        BigInteger m = poly[poly.length - 1];
+        BigInteger value = FactorSNFS.evaluate(poly, m);
+        assertTrue(value.mod(snfs.getNum()).equals(BigInteger.ZERO));
+    }
+
+    @Test
+    public void testSNFSSieve() {
+        // 2^67 - 1 = 193707721 * 761838257287 has no algebraic factors, so
+        // only the sieve can split it
+        FactorSNFS snfs = new FactorSNFS(BigInteger.valueOf(2), 67,
+                BigInteger.ONE.negate());
+        assertTrue(snfs.algebraicFactors().size() == 1);
+
+        BigInteger factor = snfs.findFactorSNFS();
+        assertTrue(factor != null);
+        assertTrue(factor.equals(new BigInteger("193707721"))
+                   || factor.equals(new BigInteger("761838257287")));
+
+        // the target has to divide the special form
+        boolean refused = false;
+        try {
+            snfs.findFactorSieve(BigInteger.valueOf(15), 1);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+        assertTrue(refused);
+    }
+
+    @Test
+    public void testNumberField() {
+        // Z[alpha] with alpha^3 = 4
+        BigInteger[] f = {BigInteger.valueOf(-4), BigInteger.ZERO,
+                BigInteger.ZERO, BigInteger.ONE};
+        FactorNumberField field = new FactorNumberField(f);
+
+        for (long r : FactorNumberField.roots(f, 31)) {
+            assertTrue((r * r * r - 4) % 31 == 0);
+        }
+        assertTrue(FactorNumberField.roots(f, 31).length == 3);
+
+        // the square of a product of (a - b*alpha) has it as its root
+        List<BigInteger[]> elements = new ArrayList<>();
+        for (int i = 1; i <= 40; i++) {
+            elements.add(field.element(1000 - 37 * i, i));
+        }
+        BigInteger[] y = field.product(elements);
+        BigInteger[] root = field.sqrt(field.multiply(y, y));
+        assertTrue(root != null);
+        BigInteger[] negated = new BigInteger[root.length];
+        for (int i = 0; i < root.length; i++) {
+            negated[i] = root[i].negate();
+        }
+        assertTrue(Arrays.equals(root, y) || Arrays.equals(negated, y));
+
+        // 5 - 3*alpha has norm 125 - 4*27 = 17, so it isn't a square
+        assertTrue(field.sqrt(field.element(5, 3)) == null);
+
+        // alpha -> 2 is a root of x^3 - 4 modulo 4
+        BigInteger[] alpha = field.element(0, -1);
+        assertTrue(FactorNumberField.map(field.multiply(alpha, field
+                .multiply(alpha, alpha)), BigInteger.valueOf(2), BigInteger
+                .valueOf(4)).signum() == 0);
+    }
+
     @Test
     public void testClientTD2() {
         BigInteger p = new BigInteger("6563");
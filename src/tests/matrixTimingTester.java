@@ -0,0 +1,54 @@
+package tests;
+
+import model.FactorMatrix;
+
+import java.util.List;
+import java.util.Random;
+
+public class matrixTimingTester {
+
+    public static void main(String[] args) {
+
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int extra = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) :
+                Runtime.getRuntime().availableProcessors();
+
+        // columns look like relations: 10-30 entries each, weighted towards
+        // the small primes at the top of the matrix
+        Random random = new Random(1);
+        FactorMatrix matrix = new FactorMatrix(rows);
+        for (int c = 0; c < rows + extra; c++) {
+            int[] entries = new int[10 + random.nextInt(20)];
+            for (int i = 0; i < entries.length; i++) {
+                double u = random.nextDouble();
+                entries[i] = (int) Math.min(rows - 1, u * u * u * rows);
+            }
+            matrix.addColumn(entries);
+        }
+
+        System.out.println("Solving a " + rows + " x " + (rows + extra) +
+                           " matrix with " + threads + " threads");
+
+        long start = System.nanoTime();
+
+        List<int[]> dependencies = matrix.findDependencies(threads);
+
+        long end = System.nanoTime();
+
+        int valid = 0;
+        for (int[] dependency : dependencies) {
+            if (matrix.isDependency(dependency)) {
+                valid++;
+            }
+        }
+
+        long[] time = model.FactorMath.getTime(end - start);
+
+        System.out.println(dependencies.size() + " dependencies, " + valid +
+                           " valid");
+        System.out.println("Time: " + time[0] + " seconds, " + time[1] + " millis");
+
+    }
+
+}